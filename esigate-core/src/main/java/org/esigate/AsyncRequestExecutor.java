@@ -0,0 +1,51 @@
+/* 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package org.esigate;
+
+import java.util.concurrent.Future;
+
+import org.apache.http.client.methods.CloseableHttpResponse;
+import org.esigate.http.OutgoingRequest;
+
+/**
+ * A {@link RequestExecutor} able to send a request without blocking the calling thread, for instance using a
+ * non-blocking HTTP client.
+ * <p>
+ * When the request executor of a driver implements this interface, the parallel ESI includes start all their requests
+ * while parsing the page, then the responses are processed in order by the thread rendering the page. With a
+ * non-blocking implementation, no thread is kept waiting for the responses except this one. Such an implementation can
+ * be set with {@link Driver.DriverBuilder#setRequestExecutorBuilder(RequestExecutor.RequestExecutorBuilder)}.
+ * Otherwise, if prefetchThreads is set, the blocking request executor of the driver is wrapped in a
+ * {@link org.esigate.http.ThreadPoolRequestExecutor} sending the requests from a bounded pool of threads.
+ * 
+ * @see Driver#prefetch(String, org.esigate.http.IncomingRequest)
+ */
+public interface AsyncRequestExecutor extends RequestExecutor {
+
+    /**
+     * Sends a request without waiting for the response.
+     * 
+     * @param outgoingRequest
+     *            the request
+     * @return the response, {@link Future#get()} throwing an {@link java.util.concurrent.ExecutionException} caused by
+     *         an {@link HttpErrorPage} like {@link #execute(OutgoingRequest)} would
+     * @throws java.util.concurrent.RejectedExecutionException
+     *             if the request cannot be sent now, for instance because too many requests are pending. The request is
+     *             then sent by {@link #execute(OutgoingRequest)} when the page is rendered.
+     */
+    Future<CloseableHttpResponse> executeAsync(OutgoingRequest outgoingRequest);
+
+}
@@ -15,18 +15,31 @@
 
 package org.esigate;
 
+import java.io.Closeable;
 import java.io.IOException;
+import java.io.Reader;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.List;
 import java.util.Properties;
+import java.util.Queue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
 
 import org.apache.commons.io.output.StringBuilderWriter;
-import org.apache.commons.lang3.tuple.ImmutablePair;
-import org.apache.commons.lang3.tuple.Pair;
+import org.apache.commons.lang3.tuple.ImmutableTriple;
+import org.apache.commons.lang3.tuple.Triple;
 import org.apache.http.HttpEntity;
+import org.apache.http.HttpHeaders;
 import org.apache.http.HttpStatus;
 import org.apache.http.ProtocolException;
+import org.apache.http.client.cache.HttpCacheStorage;
 import org.apache.http.client.methods.CloseableHttpResponse;
 import org.apache.http.entity.ContentType;
 import org.apache.http.entity.StringEntity;
@@ -37,19 +50,23 @@ import org.esigate.api.RedirectStrategy2;
 import org.esigate.events.EventManager;
 import org.esigate.events.impl.ProxyEvent;
 import org.esigate.events.impl.RenderEvent;
+import org.esigate.extension.Extension;
 import org.esigate.extension.ExtensionFactory;
 import org.esigate.http.BasicCloseableHttpResponse;
+import org.esigate.http.CompressionUtils;
 import org.esigate.http.ContentTypeHelper;
 import org.esigate.http.HeaderManager;
 import org.esigate.http.HttpClientRequestExecutor;
 import org.esigate.http.HttpResponseUtils;
 import org.esigate.http.IncomingRequest;
 import org.esigate.http.OutgoingRequest;
+import org.esigate.http.ProgressiveRenderingEntity;
 import org.esigate.http.ResourceUtils;
+import org.esigate.http.ThreadPoolRequestExecutor;
 import org.esigate.impl.DriverRequest;
 import org.esigate.impl.FragmentRedirectStrategy;
 import org.esigate.impl.UrlRewriter;
-import org.esigate.vars.VariablesResolver;
+import org.esigate.vars.VariableTemplate;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -64,6 +81,7 @@ import org.slf4j.LoggerFactory;
  */
 public final class Driver {
     private static final String CACHE_RESPONSE_PREFIX = "response_";
+    private static final String PREFETCHES_ATTRIBUTE = Driver.class.getName() + ".prefetches";
     private static final Logger LOG = LoggerFactory.getLogger(Driver.class);
     private static final int MAX_REDIRECTS = 50;
     private DriverConfiguration config;
@@ -72,6 +90,7 @@ public final class Driver {
     private ContentTypeHelper contentTypeHelper;
     private UrlRewriter urlRewriter;
     private HeaderManager headerManager;
+    private List<Extension> extensions;
     private final RedirectStrategy2 redirectStrategy = new FragmentRedirectStrategy();
 
     public static class DriverBuilder {
@@ -94,11 +113,18 @@ public final class Driver {
             driver.config = new DriverConfiguration(name, properties);
             driver.contentTypeHelper = new ContentTypeHelper(properties);
             // Load extensions.
-            ExtensionFactory.getExtensions(properties, Parameters.EXTENSIONS, driver);
+            driver.extensions = ExtensionFactory.getExtensions(properties, Parameters.EXTENSIONS, driver);
             UrlRewriter urlRewriter = new UrlRewriter();
             driver.requestExecutor =
                     requestExecutorBuilder.setDriver(driver).setEventManager(driver.eventManager)
                             .setProperties(properties).setContentTypeHelper(driver.contentTypeHelper).build();
+            int prefetchThreads = Parameters.PREFETCH_THREADS.getValue(properties);
+            if (prefetchThreads > 0 && !(driver.requestExecutor instanceof AsyncRequestExecutor)) {
+                driver.requestExecutor =
+                        new ThreadPoolRequestExecutor(driver.requestExecutor, prefetchThreads,
+                                Parameters.PREFETCH_QUEUE_SIZE.getValue(properties),
+                                Parameters.CLOSE_TIMEOUT.getValue(properties), name);
+            }
             driver.urlRewriter = urlRewriter;
             driver.headerManager = new HeaderManager(urlRewriter);
 
@@ -155,33 +181,313 @@ public final class Driver {
      */
     public CloseableHttpResponse render(String pageUrl, IncomingRequest incomingRequest, Renderer... renderers)
             throws IOException, HttpErrorPage {
+        return render(pageUrl, incomingRequest, 0, renderers);
+    }
+
+    /**
+     * Perform rendering on a single url content like {@link #render(String, IncomingRequest, Renderer...)}, giving up
+     * with a 504 error if the page cannot be retrieved before a deadline.
+     * 
+     * @param pageUrl
+     *            Address of the page containing the template
+     * @param incomingRequest
+     *            originating request object
+     * @param deadline
+     *            the time in milliseconds since the epoch before which the page must be retrieved, 0 if there is none.
+     *            The render timeout of the request applies anyway.
+     * @param renderers
+     *            the renderers to use in order to transform the output
+     * @return The resulting response
+     * @throws IOException
+     *             If an IOException occurs while writing to the writer
+     * @throws HttpErrorPage
+     *             If an Exception occurs while retrieving the template
+     */
+    public CloseableHttpResponse render(String pageUrl, IncomingRequest incomingRequest, long deadline,
+            Renderer... renderers) throws IOException, HttpErrorPage {
         DriverRequest driverRequest = new DriverRequest(incomingRequest, this, pageUrl);
+        driverRequest.setDeadline(deadline);
+        String targetUrl = getTargetUrl(pageUrl, driverRequest);
 
-        // Replace ESI variables in URL
-        // TODO: should be performed in the ESI extension
-        String resultingPageUrl = VariablesResolver.replaceAllVariables(pageUrl, driverRequest);
+        // Retrieve URL
+        // Share the result between the fragments of the same page, even if they are rendered in parallel, to prevent
+        // multiple requests to the same url.
+        String cacheKey = CACHE_RESPONSE_PREFIX + targetUrl;
+        Triple<String, CloseableHttpResponse, String> cachedValue = null;
+        while (cachedValue == null) {
+            FetchTask fetch = incomingRequest.getAttribute(cacheKey);
+            if (fetch == null) {
+                FetchTask newFetch = new FetchTask(new Fetch(driverRequest, targetUrl, null, null));
+                fetch = incomingRequest.setAttributeIfAbsent(cacheKey, newFetch);
+                if (fetch == null) {
+                    fetch = newFetch;
+                }
+            }
+            // Does nothing if the page is already being retrieved
+            fetch.run();
+            try {
+                // Another fragment may be retrieving the page, with a different deadline
+                cachedValue = fetch.get(driverRequest.getDeadline());
+            } catch (ExecutionException e) {
+                // Let the next fragments try again
+                incomingRequest.removeAttribute(cacheKey, fetch);
+                Throwable cause = e.getCause();
+                if (!fetch.isTimeoutShorterThan(driverRequest, cause)) {
+                    throwCause(cause);
+                }
+                // The page was retrieved for a fragment with a shorter timeout, try again with ours
+            }
+        }
+        String currentValue = cachedValue.getLeft();
+        // Each fragment gets its own copy of the response as the entity is replaced by the result of the rendering
+        CloseableHttpResponse response = copyResponse(cachedValue.getMiddle());
+        String responseUrl = cachedValue.getRight();
 
-        String targetUrl = ResourceUtils.getHttpUrlWithQueryString(resultingPageUrl, driverRequest, false);
+        logAction("render", pageUrl, renderers);
 
-        String currentValue;
-        CloseableHttpResponse response;
+        // Apply renderers
+        currentValue = performRendering(pageUrl, responseUrl, driverRequest, response, currentValue, renderers);
 
-        // Retrieve URL
-        // Get from cache to prevent multiple request to the same url if
-        // multiple fragments are used.
+        response.setEntity(new StringEntity(currentValue, HttpResponseUtils.getContentType(response)));
 
-        String cacheKey = CACHE_RESPONSE_PREFIX + targetUrl;
-        Pair<String, CloseableHttpResponse> cachedValue = incomingRequest.getAttribute(cacheKey);
+        return response;
+    }
 
-        // content and response were not in cache
-        if (cachedValue == null) {
+    /**
+     * Starts retrieving a page which will be rendered later by {@link #render(String, IncomingRequest, Renderer...)}
+     * for the same request, if the request executor is an {@link AsyncRequestExecutor}. The request is sent without
+     * waiting for the response.
+     * 
+     * @param pageUrl
+     *            Address of the page containing the template
+     * @param incomingRequest
+     *            originating request object
+     * @return true if the page is being retrieved, false if the request executor cannot send requests without blocking
+     * @throws HttpErrorPage
+     *             If an Exception occurs while creating the request
+     */
+    public boolean prefetch(String pageUrl, IncomingRequest incomingRequest) throws HttpErrorPage {
+        return prefetch(pageUrl, incomingRequest, 0);
+    }
+
+    /**
+     * Starts retrieving a page like {@link #prefetch(String, IncomingRequest)}, giving up with a 504 error if the page
+     * cannot be retrieved before a deadline.
+     * 
+     * @param pageUrl
+     *            Address of the page containing the template
+     * @param incomingRequest
+     *            originating request object
+     * @param deadline
+     *            the time in milliseconds since the epoch before which the page must be retrieved, 0 if there is none.
+     *            The render timeout of the request applies anyway.
+     * @return true if the page is being retrieved, false if the request executor cannot send requests without blocking
+     * @throws HttpErrorPage
+     *             If an Exception occurs while creating the request
+     */
+    public boolean prefetch(String pageUrl, IncomingRequest incomingRequest, long deadline) throws HttpErrorPage {
+        if (!(requestExecutor instanceof AsyncRequestExecutor)) {
+            return false;
+        }
+        DriverRequest driverRequest = new DriverRequest(incomingRequest, this, pageUrl);
+        driverRequest.setDeadline(deadline);
+        if (isExpired(driverRequest)) {
+            // render() will report the error
+            return false;
+        }
+        String targetUrl = getTargetUrl(pageUrl, driverRequest);
+        String cacheKey = CACHE_RESPONSE_PREFIX + targetUrl;
+        if (incomingRequest.getAttribute(cacheKey) == null) {
             OutgoingRequest outgoingRequest = requestExecutor.createOutgoingRequest(driverRequest, targetUrl, false);
             headerManager.copyHeaders(driverRequest, outgoingRequest);
-            response = requestExecutor.execute(outgoingRequest);
+            Future<CloseableHttpResponse> response;
+            try {
+                response = ((AsyncRequestExecutor) requestExecutor).executeAsync(outgoingRequest);
+            } catch (RejectedExecutionException e) {
+                LOG.debug("Too many pending requests, {} will be retrieved when rendered", targetUrl);
+                return false;
+            }
+            // Not run now: the response is processed by the first call to render()
+            FetchTask fetch = new FetchTask(new Fetch(driverRequest, targetUrl, outgoingRequest, response));
+            if (incomingRequest.setAttributeIfAbsent(cacheKey, fetch) == null) {
+                getPrefetches(incomingRequest).add(fetch);
+            } else {
+                response.cancel(true);
+            }
+        }
+        return true;
+    }
+
+    private static Queue<FetchTask> getPrefetches(IncomingRequest incomingRequest) {
+        Queue<FetchTask> prefetches = incomingRequest.getAttribute(PREFETCHES_ATTRIBUTE);
+        if (prefetches == null) {
+            prefetches = new ConcurrentLinkedQueue<>();
+            Queue<FetchTask> current = incomingRequest.setAttributeIfAbsent(PREFETCHES_ATTRIBUTE, prefetches);
+            if (current != null) {
+                prefetches = current;
+            }
+        }
+        return prefetches;
+    }
+
+    /**
+     * Cancels the requests sent by {@link #prefetch(String, IncomingRequest)} for a request and whose response has not
+     * been rendered, and closes their responses. To be called when the request has been entirely rendered, as a page
+     * may skip some of its includes or fail before rendering them.
+     * 
+     * @param incomingRequest
+     *            originating request object
+     */
+    public static void discardPrefetches(IncomingRequest incomingRequest) {
+        Queue<FetchTask> prefetches = incomingRequest.getAttribute(PREFETCHES_ATTRIBUTE);
+        if (prefetches != null) {
+            FetchTask fetch;
+            while ((fetch = prefetches.poll()) != null) {
+                fetch.discard();
+            }
+        }
+    }
+
+    private static boolean isExpired(DriverRequest driverRequest) {
+        long deadline = driverRequest.getDeadline();
+        return deadline > 0 && System.currentTimeMillis() >= deadline;
+    }
+
+    private static void checkDeadline(DriverRequest driverRequest) throws HttpErrorPage {
+        if (isExpired(driverRequest)) {
+            throw new HttpErrorPage(HttpStatus.SC_GATEWAY_TIMEOUT, "Gateway Timeout", "Render timeout");
+        }
+    }
+
+    private String getTargetUrl(String pageUrl, DriverRequest driverRequest) {
+        // Replace ESI variables in URL
+        // TODO: should be performed in the ESI extension
+        String resultingPageUrl = VariableTemplate.compile(pageUrl).render(driverRequest);
+
+        return ResourceUtils.getHttpUrlWithQueryString(resultingPageUrl, driverRequest, false);
+    }
+
+    private static void throwCause(Throwable cause) throws IOException, HttpErrorPage {
+        if (cause instanceof IOException) {
+            throw (IOException) cause;
+        } else if (cause instanceof HttpErrorPage) {
+            throw (HttpErrorPage) cause;
+        } else if (cause instanceof RuntimeException) {
+            throw (RuntimeException) cause;
+        } else if (cause instanceof Error) {
+            throw (Error) cause;
+        }
+        throw new IllegalStateException(cause);
+    }
+
+    /**
+     * A {@link Fetch} shared by the fragments of the same page. Each fragment waits for the result until its own
+     * deadline.
+     */
+    private static final class FetchTask extends FutureTask<Triple<String, CloseableHttpResponse, String>> {
+        private final long deadline;
+
+        private final Fetch fetch;
+
+        private FetchTask(Fetch fetch) {
+            super(fetch);
+            this.fetch = fetch;
+            this.deadline = fetch.driverRequest.getDeadline();
+        }
+
+        /**
+         * Cancels the task if it has not started, then the response it would have processed.
+         */
+        private void discard() {
+            if (cancel(false)) {
+                fetch.discardPendingResponse();
+            }
+        }
+
+        /**
+         * @param waitDeadline
+         *            the deadline of the fragment waiting for the page, 0 if there is none
+         * @return the page
+         * @throws HttpErrorPage
+         *             a 504 error if the page is not retrieved before the deadline
+         */
+        private Triple<String, CloseableHttpResponse, String> get(long waitDeadline) throws ExecutionException,
+                IOException, HttpErrorPage {
+            try {
+                if (waitDeadline > 0) {
+                    return get(Math.max(0, waitDeadline - System.currentTimeMillis()), TimeUnit.MILLISECONDS);
+                }
+                return get();
+            } catch (TimeoutException e) {
+                // Not cancelled: the other fragments may wait longer
+                throw new HttpErrorPage(HttpStatus.SC_GATEWAY_TIMEOUT, "Gateway Timeout", "Render timeout");
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IOException(e);
+            }
+        }
+
+        /**
+         * @return true if the page could not be retrieved because of a timeout which is shorter than the one of the
+         *         request
+         */
+        private boolean isTimeoutShorterThan(DriverRequest driverRequest, Throwable cause) {
+            if (!(cause instanceof HttpErrorPage) || deadline <= 0) {
+                return false;
+            }
+            int statusCode = ((HttpErrorPage) cause).getHttpResponse().getStatusLine().getStatusCode();
+            if (statusCode != HttpStatus.SC_GATEWAY_TIMEOUT) {
+                return false;
+            }
+            long requestDeadline = driverRequest.getDeadline();
+            return requestDeadline <= 0 || requestDeadline > deadline;
+        }
+    }
+
+    /**
+     * Retrieves a page for {@link #render(String, IncomingRequest, Renderer...)}, following redirects.
+     */
+    private final class Fetch implements Callable<Triple<String, CloseableHttpResponse, String>> {
+        private final DriverRequest driverRequest;
+        private final String targetUrl;
+        private final OutgoingRequest sentRequest;
+        private final Future<CloseableHttpResponse> pendingResponse;
+
+        /**
+         * @param driverRequest
+         *            the request
+         * @param targetUrl
+         *            the url of the page
+         * @param sentRequest
+         *            the request already sent by {@link #prefetch(String, IncomingRequest)} or null
+         * @param pendingResponse
+         *            the response to the request already sent or null
+         */
+        private Fetch(DriverRequest driverRequest, String targetUrl, OutgoingRequest sentRequest,
+                Future<CloseableHttpResponse> pendingResponse) {
+            this.driverRequest = driverRequest;
+            this.targetUrl = targetUrl;
+            this.sentRequest = sentRequest;
+            this.pendingResponse = pendingResponse;
+        }
+
+        @Override
+        public Triple<String, CloseableHttpResponse, String> call() throws IOException, HttpErrorPage {
+            OutgoingRequest outgoingRequest;
+            CloseableHttpResponse response;
+            if (pendingResponse != null) {
+                outgoingRequest = sentRequest;
+                response = getPendingResponse();
+            } else {
+                checkDeadline(driverRequest);
+                outgoingRequest = requestExecutor.createOutgoingRequest(driverRequest, targetUrl, false);
+                headerManager.copyHeaders(driverRequest, outgoingRequest);
+                response = requestExecutor.execute(outgoingRequest);
+            }
             int redirects = MAX_REDIRECTS;
             try {
                 while (redirects > 0
-                        && this.redirectStrategy.isRedirected(outgoingRequest, response, outgoingRequest.getContext())) {
+                        && redirectStrategy.isRedirected(outgoingRequest, response, outgoingRequest.getContext())) {
 
                     // Must consume the entity
                     EntityUtils.consumeQuietly(response.getEntity());
@@ -189,34 +495,66 @@ public final class Driver {
                     redirects--;
 
                     // Perform new request
+                    checkDeadline(driverRequest);
                     outgoingRequest =
-                            this.requestExecutor.createOutgoingRequest(
+                            requestExecutor.createOutgoingRequest(
                                     driverRequest,
-                                    this.redirectStrategy.getLocationURI(outgoingRequest, response,
+                                    redirectStrategy.getLocationURI(outgoingRequest, response,
                                             outgoingRequest.getContext()).toString(), false);
-                    this.headerManager.copyHeaders(driverRequest, outgoingRequest);
+                    headerManager.copyHeaders(driverRequest, outgoingRequest);
                     response = requestExecutor.execute(outgoingRequest);
                 }
             } catch (ProtocolException e) {
                 throw new HttpErrorPage(HttpStatus.SC_BAD_GATEWAY, "Invalid response from server", e);
             }
-            response = this.headerManager.copyHeaders(outgoingRequest, incomingRequest, response);
-            currentValue = HttpResponseUtils.toString(response, this.eventManager);
-            // Cache
-            cachedValue = new ImmutablePair<>(currentValue, response);
-            incomingRequest.setAttribute(cacheKey, cachedValue);
+            response = headerManager.copyHeaders(outgoingRequest, driverRequest.getOriginalRequest(), response);
+            String content = HttpResponseUtils.toString(response, eventManager);
+            return new ImmutableTriple<>(content, response, outgoingRequest.getRequestLine().getUri());
         }
-        currentValue = cachedValue.getKey();
-        response = cachedValue.getValue();
 
-        logAction("render", pageUrl, renderers);
-
-        // Apply renderers
-        currentValue = performRendering(pageUrl, driverRequest, response, currentValue, renderers);
+        private void discardPendingResponse() {
+            if (pendingResponse == null || pendingResponse.cancel(true) || pendingResponse.isCancelled()) {
+                return;
+            }
+            // Already received
+            try {
+                pendingResponse.get().close();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            } catch (ExecutionException | IOException e) {
+                LOG.debug("Discarded response of {} failed: {}", targetUrl, e.toString());
+            }
+        }
 
-        response.setEntity(new StringEntity(currentValue, HttpResponseUtils.getContentType(response)));
+        private CloseableHttpResponse getPendingResponse() throws IOException, HttpErrorPage {
+            try {
+                long deadline = driverRequest.getDeadline();
+                if (deadline > 0) {
+                    return pendingResponse.get(Math.max(0, deadline - System.currentTimeMillis()),
+                            TimeUnit.MILLISECONDS);
+                }
+                return pendingResponse.get();
+            } catch (TimeoutException e) {
+                pendingResponse.cancel(true);
+                throw new HttpErrorPage(HttpStatus.SC_GATEWAY_TIMEOUT, "Gateway Timeout", "Render timeout");
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IOException(e);
+            } catch (ExecutionException e) {
+                if (e.getCause() instanceof HttpErrorPage) {
+                    throw (HttpErrorPage) e.getCause();
+                } else if (e.getCause() instanceof RuntimeException) {
+                    throw (RuntimeException) e.getCause();
+                }
+                throw new IOException(e.getCause());
+            }
+        }
+    }
 
-        return response;
+    private static CloseableHttpResponse copyResponse(CloseableHttpResponse response) {
+        BasicHttpResponse copy = new BasicHttpResponse(response.getStatusLine());
+        copy.setHeaders(response.getAllHeaders());
+        return BasicCloseableHttpResponse.adapt(copy);
     }
 
     /**
@@ -279,7 +617,7 @@ public final class Driver {
         boolean postProxyPerformed = false;
 
         // Create Proxy event
-        ProxyEvent e = new ProxyEvent(incomingRequest);
+        ProxyEvent e = new ProxyEvent(incomingRequest, relUrl);
 
         // Event pre-proxy
         this.eventManager.fire(EventManager.EVENT_PROXY_PRE, e);
@@ -302,7 +640,8 @@ public final class Driver {
             e.setResponse(response);
 
             // Perform rendering
-            e.setResponse(performRendering(relUrl, driverRequest, e.getResponse(), renderers));
+            e.setResponse(performRendering(relUrl, outgoingRequest.getRequestLine().getUri(), driverRequest,
+                    e.getResponse(), renderers));
 
             // Event post-proxy
             // This must be done before calling sendResponse to ensure response
@@ -320,7 +659,8 @@ public final class Driver {
             // error page.
             CloseableHttpResponse response = e.getErrorPage().getHttpResponse();
             response = headerManager.copyHeaders(outgoingRequest, incomingRequest, response);
-            e.setErrorPage(new HttpErrorPage(performRendering(relUrl, driverRequest, response, renderers)));
+            e.setErrorPage(new HttpErrorPage(performRendering(relUrl, outgoingRequest.getRequestLine().getUri(),
+                    driverRequest, response, renderers)));
 
             // Event post-proxy
             // This must be done before throwing exception to ensure response
@@ -343,6 +683,8 @@ public final class Driver {
      * 
      * @param pageUrl
      *            The remove url from which the body was retrieved.
+     * @param responseUrl
+     *            The absolute url actually requested to retrieve the body.
      * @param originalRequest
      *            The request received by esigate.
      * @param response
@@ -353,24 +695,65 @@ public final class Driver {
      * @throws HttpErrorPage
      * @throws IOException
      */
-    private CloseableHttpResponse performRendering(String pageUrl, DriverRequest originalRequest,
+    private CloseableHttpResponse performRendering(String pageUrl, String responseUrl, DriverRequest originalRequest,
             CloseableHttpResponse response, Renderer[] renderers) throws HttpErrorPage, IOException {
 
         if (!contentTypeHelper.isTextContentType(response)) {
             LOG.debug("'{}' is binary on no transformation to apply: was forwarded without modification.", pageUrl);
-            return response;
+            return negotiateContentEncoding(originalRequest, response);
         }
 
         LOG.debug("'{}' is text : will apply renderers.", pageUrl);
 
-        // Get response body
-        String currentValue = HttpResponseUtils.toString(response, this.eventManager);
+        // Start rendering
+        RenderEvent renderEvent = new RenderEvent(pageUrl, responseUrl, originalRequest, response);
+        // Create renderer list from parameters.
+        renderEvent.getRenderers().addAll(Arrays.asList(renderers));
+
+        this.eventManager.fire(EventManager.EVENT_RENDER_PRE, renderEvent);
+        List<Renderer> rendererList = renderEvent.getRenderers();
+        if (rendererList.isEmpty() && config.isCacheCompression() && CompressionUtils.isGzip(response.getEntity())
+                && !eventManager.hasListeners(EventManager.EVENT_READ_ENTITY)) {
+            // Nothing to render, no need to uncompress the entity
+            LOG.debug("'{}' has no renderer: was forwarded compressed.", pageUrl);
+            this.eventManager.fire(EventManager.EVENT_RENDER_POST, renderEvent);
+            return negotiateContentEncoding(originalRequest, response);
+        }
+        Renderer progressiveRenderer = null;
+        if (config.isProgressiveRendering() && !rendererList.isEmpty()
+                && rendererList.get(rendererList.size() - 1) instanceof ProgressiveRenderer) {
+            // The last renderer writes to the client while the response is sent
+            progressiveRenderer = rendererList.get(rendererList.size() - 1);
+            rendererList = rendererList.subList(0, rendererList.size() - 1);
+        }
+        String currentValue;
+        if (!rendererList.isEmpty() && rendererList.get(0) instanceof StreamingRenderer && response.getEntity() != null
+                && !eventManager.hasListeners(EventManager.EVENT_READ_ENTITY)) {
+            // The first renderer reads the response body as it is received
+            StringBuilderWriter stringWriter = new StringBuilderWriter(Parameters.DEFAULT_BUFFER_SIZE);
+            try (Reader reader = HttpResponseUtils.toReader(response)) {
+                ((StreamingRenderer) rendererList.get(0)).render(originalRequest, reader, stringWriter);
+            }
+            currentValue = stringWriter.toString();
+            rendererList = rendererList.subList(1, rendererList.size());
+        } else {
+            // Get response body
+            currentValue = HttpResponseUtils.toString(response, this.eventManager);
+        }
 
         // Perform rendering
-        currentValue = performRendering(pageUrl, originalRequest, response, currentValue, renderers);
+        currentValue = applyRenderers(originalRequest, currentValue, rendererList);
+        this.eventManager.fire(EventManager.EVENT_RENDER_POST, renderEvent);
 
         // Generate the new response.
-        HttpEntity transformedHttpEntity = new StringEntity(currentValue, ContentType.get(response.getEntity()));
+        HttpEntity transformedHttpEntity;
+        if (progressiveRenderer != null) {
+            transformedHttpEntity =
+                    new ProgressiveRenderingEntity(progressiveRenderer, originalRequest, currentValue,
+                            ContentType.get(response.getEntity()));
+        } else {
+            transformedHttpEntity = new StringEntity(currentValue, ContentType.get(response.getEntity()));
+        }
         CloseableHttpResponse transformedResponse =
                 BasicCloseableHttpResponse.adapt(new BasicHttpResponse(response.getStatusLine()));
         transformedResponse.setHeaders(response.getAllHeaders());
@@ -379,11 +762,40 @@ public final class Driver {
 
     }
 
+    /**
+     * Sends the entities stored compressed in the cache compressed only to the clients accepting it.
+     * 
+     * @param originalRequest
+     *            The request received by esigate.
+     * @param response
+     *            The response which will be sent.
+     * @return The response with an entity the client can read.
+     */
+    private CloseableHttpResponse
+            negotiateContentEncoding(DriverRequest originalRequest, CloseableHttpResponse response) {
+        HttpEntity entity = response.getEntity();
+        if (!config.isCacheCompression() || !CompressionUtils.isGzip(entity)) {
+            return response;
+        }
+        String vary = HttpResponseUtils.getFirstHeader(HttpHeaders.VARY, response);
+        if (vary == null) {
+            response.addHeader(HttpHeaders.VARY, HttpHeaders.ACCEPT_ENCODING);
+        } else if (!vary.toLowerCase().contains("accept-encoding") && !vary.contains("*")) {
+            response.setHeader(HttpHeaders.VARY, vary + ", " + HttpHeaders.ACCEPT_ENCODING);
+        }
+        if (!CompressionUtils.acceptsGzip(originalRequest.getOriginalRequest())) {
+            response.setEntity(CompressionUtils.decompress(entity));
+        }
+        return response;
+    }
+
     /**
      * Performs rendering (apply a render list) on an http response body (as a String).
      * 
      * @param pageUrl
      *            The remove url from which the body was retrieved.
+     * @param responseUrl
+     *            The absolute url actually requested to retrieve the body.
      * @param originalRequest
      *            The request received by esigate.
      * @param response
@@ -396,24 +808,29 @@ public final class Driver {
      * @throws HttpErrorPage
      * @throws IOException
      */
-    private String performRendering(String pageUrl, DriverRequest originalRequest, CloseableHttpResponse response,
-            String body, Renderer[] renderers) throws IOException, HttpErrorPage {
+    private String performRendering(String pageUrl, String responseUrl, DriverRequest originalRequest,
+            CloseableHttpResponse response, String body, Renderer[] renderers) throws IOException, HttpErrorPage {
         // Start rendering
-        RenderEvent renderEvent = new RenderEvent(pageUrl, originalRequest, response);
+        RenderEvent renderEvent = new RenderEvent(pageUrl, responseUrl, originalRequest, response);
         // Create renderer list from parameters.
         renderEvent.getRenderers().addAll(Arrays.asList(renderers));
 
-        String currentBody = body;
-
         this.eventManager.fire(EventManager.EVENT_RENDER_PRE, renderEvent);
-        for (Renderer renderer : renderEvent.getRenderers()) {
+        String currentBody = applyRenderers(originalRequest, body, renderEvent.getRenderers());
+        this.eventManager.fire(EventManager.EVENT_RENDER_POST, renderEvent);
+
+        return currentBody;
+    }
+
+    private String applyRenderers(DriverRequest originalRequest, String body, List<Renderer> rendererList)
+            throws IOException, HttpErrorPage {
+        String currentBody = body;
+        for (Renderer renderer : rendererList) {
             StringBuilderWriter stringWriter = new StringBuilderWriter(Parameters.DEFAULT_BUFFER_SIZE);
             renderer.render(originalRequest, currentBody, stringWriter);
             stringWriter.close();
             currentBody = stringWriter.toString();
         }
-        this.eventManager.fire(EventManager.EVENT_RENDER_POST, renderEvent);
-
         return currentBody;
     }
 
@@ -435,6 +852,50 @@ public final class Driver {
         return requestExecutor;
     }
 
+    /**
+     * @return the storage of the http cache of this driver, or null if the cache is disabled or if the request executor
+     *         has no cache
+     */
+    public HttpCacheStorage getCacheStorage() {
+        RequestExecutor executor = requestExecutor;
+        if (executor instanceof ThreadPoolRequestExecutor) {
+            executor = ((ThreadPoolRequestExecutor) executor).getDelegate();
+        }
+        if (executor instanceof HttpClientRequestExecutor) {
+            return ((HttpClientRequestExecutor) executor).getCacheStorage();
+        }
+        return null;
+    }
+
+    /**
+     * Releases the resources held by this instance (connections, cache storage, background threads) once the requests
+     * in progress are complete, then closes the extensions implementing {@link Closeable}. The instance must not be
+     * used any more afterwards.
+     * 
+     * @throws IOException
+     *             if the request executor could not be closed properly
+     */
+    public void close() throws IOException {
+        try {
+            if (requestExecutor instanceof Closeable) {
+                ((Closeable) requestExecutor).close();
+            }
+        } finally {
+            // In reverse order, like post events
+            for (int i = extensions.size() - 1; i >= 0; i--) {
+                Extension extension = extensions.get(i);
+                if (extension instanceof Closeable) {
+                    try {
+                        ((Closeable) extension).close();
+                    } catch (IOException | RuntimeException e) {
+                        LOG.warn("Could not close extension {} of {}: {}", extension.getClass().getName(),
+                                config.getInstanceName(), e.toString());
+                    }
+                }
+            }
+        }
+    }
+
     @Override
     public String toString() {
         return "driver:" + config.getInstanceName();
@@ -43,6 +43,9 @@ public class DriverConfiguration {
     private final BaseUrlRetrieveStrategy baseUrlRetrieveStrategy;
     private final List<UriMapping> uriMappings;
     private boolean stripMappingPath;
+    private final int renderTimeout;
+    private final boolean cacheCompression;
+    private final boolean progressiveRendering;
 
     public DriverConfiguration(String instanceName, Properties props) {
         this.instanceName = instanceName;
@@ -52,6 +55,9 @@ public class DriverConfiguration {
         this.visibleBaseURL = Parameters.VISIBLE_URL_BASE.getValue(props);
         this.stripMappingPath = Parameters.STRIP_MAPPING_PATH.getValue(props);
         this.uriMappings = parseMappings(props);
+        this.renderTimeout = Parameters.RENDER_TIMEOUT.getValue(props);
+        this.cacheCompression = Parameters.USE_CACHE.getValue(props) && Parameters.CACHE_COMPRESSION.getValue(props);
+        this.progressiveRendering = Parameters.PROGRESSIVE_RENDERING.getValue(props);
         properties = props;
     }
 
@@ -135,4 +141,28 @@ public class DriverConfiguration {
     public boolean isStripMappingPath() {
         return stripMappingPath;
     }
+
+    /**
+     * 
+     * @return the time allowed to render a request in milliseconds, 0 if there is no limit
+     */
+    public int getRenderTimeout() {
+        return renderTimeout;
+    }
+
+    /**
+     * 
+     * @return true if the text responses are stored compressed in the cache
+     */
+    public boolean isCacheCompression() {
+        return cacheCompression;
+    }
+
+    /**
+     * 
+     * @return true if the last renderer of a page may write to the client while the page is being rendered
+     */
+    public boolean isProgressiveRendering() {
+        return progressiveRendering;
+    }
 }
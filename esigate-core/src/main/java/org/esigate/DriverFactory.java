@@ -23,9 +23,11 @@ import java.io.InputStream;
 import java.net.MalformedURLException;
 import java.net.URI;
 import java.net.URL;
+import java.util.ArrayList;
 import java.util.Collection;
 import java.util.Enumeration;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
 import java.util.Map.Entry;
 import java.util.Properties;
@@ -37,6 +39,7 @@ import org.apache.http.HttpHeaders;
 import org.apache.http.HttpStatus;
 import org.apache.http.client.methods.CloseableHttpResponse;
 import org.esigate.Driver.DriverBuilder;
+import org.esigate.cache.CacheWarmup;
 import org.esigate.http.IncomingRequest;
 import org.esigate.impl.IndexedInstances;
 import org.esigate.impl.UriMapping;
@@ -82,6 +85,7 @@ public final class DriverFactory {
     private static IndexedInstances instances = new IndexedInstances(new HashMap<String, Driver>());
     private static final String DEFAULT_INSTANCE_NAME = "default";
     private static final Logger LOG = LoggerFactory.getLogger(DriverFactory.class);
+    private static final Readiness READINESS = Readiness.register();
 
     static {
         String version =
@@ -172,26 +176,74 @@ public final class DriverFactory {
         }
 
         // Merge with default properties
+        Map<String, Driver> previousInstances = instances.getInstances();
         Map<String, Driver> newInstances = new HashMap<>();
         for (Entry<String, Properties> entry : driversProps.entrySet()) {
             String name = entry.getKey();
             Properties properties = new Properties();
             properties.putAll(defaultProperties);
             properties.putAll(entry.getValue());
-            newInstances.put(name, createDriver(name, properties));
+            newInstances.put(name, reuseOrCreateDriver(previousInstances.get(name), name, properties));
         }
         if (newInstances.get(DEFAULT_INSTANCE_NAME) == null
                 && Parameters.REMOTE_URL_BASE.getValue(defaultProperties) != null) {
 
-            newInstances.put(DEFAULT_INSTANCE_NAME, createDriver(DEFAULT_INSTANCE_NAME, defaultProperties));
+            newInstances.put(
+                    DEFAULT_INSTANCE_NAME,
+                    reuseOrCreateDriver(previousInstances.get(DEFAULT_INSTANCE_NAME), DEFAULT_INSTANCE_NAME,
+                            defaultProperties));
         }
 
         instances = new IndexedInstances(newInstances);
+
+        List<Driver> retiredInstances = new ArrayList<>(previousInstances.values());
+        retiredInstances.removeAll(newInstances.values());
+        closeInBackground(retiredInstances);
+        READINESS.setConfigured();
+    }
+
+    /**
+     * Keeps the previous instance, with its cache and connection pool, if its settings did not change.
+     */
+    private static Driver reuseOrCreateDriver(Driver previous, String name, Properties properties) {
+        if (previous != null && previous.getConfiguration().getProperties().equals(properties)) {
+            LOG.info("Configuration of provider {} did not change, keeping it", name);
+            return previous;
+        }
+        return createDriver(name, properties);
+    }
+
+    /**
+     * Closes the instances removed from the configuration without blocking the reload, the requests still using them
+     * are allowed to complete.
+     */
+    private static void closeInBackground(final Collection<Driver> drivers) {
+        if (drivers.isEmpty()) {
+            return;
+        }
+        Thread closer = new Thread("esigate-close-providers") {
+            @Override
+            public void run() {
+                for (Driver driver : drivers) {
+                    CacheWarmup.stop(driver);
+                    try {
+                        driver.close();
+                        LOG.info("Closed {}", driver);
+                    } catch (IOException e) {
+                        LOG.warn("Error while closing " + driver, e);
+                    }
+                }
+            }
+        };
+        closer.setDaemon(true);
+        closer.start();
     }
 
     private static Driver createDriver(String name, Properties properties) {
         DriverBuilder builder = Driver.builder().setName(name).setProperties(properties);
-        return builder.build();
+        Driver driver = builder.build();
+        CacheWarmup.start(driver, properties);
+        return driver;
     }
 
     /**
@@ -204,6 +256,7 @@ public final class DriverFactory {
      */
     public static void configure(String name, Properties props) {
         put(name, createDriver(name, props));
+        READINESS.setConfigured();
     }
 
     /**
@@ -311,6 +364,24 @@ public final class DriverFactory {
         instances = new IndexedInstances(newInstances);
     }
 
+    /**
+     * Closes all the instances and unregisters esigate from the platform MBean server. To be called when esigate is
+     * stopped, for instance when the web application is undeployed.
+     */
+    public static void close() {
+        Collection<Driver> drivers = instances.getInstances().values();
+        instances = new IndexedInstances(new HashMap<String, Driver>());
+        READINESS.unregister();
+        for (Driver driver : drivers) {
+            CacheWarmup.stop(driver);
+            try {
+                driver.close();
+            } catch (IOException e) {
+                LOG.warn("Error while closing " + driver, e);
+            }
+        }
+    }
+
     /**
      * Ensure configuration has been loaded at least once. Helps to prevent delay on first call because of
      * initialization.
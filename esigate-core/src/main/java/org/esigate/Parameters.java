@@ -31,6 +31,7 @@ import org.esigate.util.ParameterBoolean;
 import org.esigate.util.ParameterCollection;
 import org.esigate.util.ParameterFloat;
 import org.esigate.util.ParameterInteger;
+import org.esigate.util.ParameterLong;
 import org.esigate.util.ParameterString;
 
 import java.util.Collection;
@@ -50,10 +51,15 @@ public final class Parameters {
     public static final Parameter<String> URI_ENCODING = new ParameterString("uriEncoding", "ISO-8859-1");
     public static final Parameter<Collection<String>> PARSABLE_CONTENT_TYPES = new ParameterCollection(
             "parsableContentTypes", "text/html", "application/xhtml+xml");
+    public static final Parameter<Boolean> PROGRESSIVE_RENDERING = new ParameterBoolean("progressiveRendering", false);
     // Network settings
     public static final Parameter<Integer> MAX_CONNECTIONS_PER_HOST = new ParameterInteger("maxConnectionsPerHost", 20);
     public static final Parameter<Integer> CONNECT_TIMEOUT = new ParameterInteger("connectTimeout", 1000);
     public static final Parameter<Integer> SOCKET_TIMEOUT = new ParameterInteger("socketTimeout", 10000);
+    public static final Parameter<Integer> RENDER_TIMEOUT = new ParameterInteger("renderTimeout", 0);
+    public static final Parameter<Integer> CLOSE_TIMEOUT = new ParameterInteger("closeTimeout", 60000);
+    public static final Parameter<Integer> PREFETCH_THREADS = new ParameterInteger("prefetchThreads", 0);
+    public static final Parameter<Integer> PREFETCH_QUEUE_SIZE = new ParameterInteger("prefetchQueueSize", 100);
     // Proxy settings
     public static final Parameter<String> PROXY_HOST = new ParameterString("proxyHost");
     public static final Parameter<Integer> PROXY_PORT = new ParameterInteger("proxyPort", 0);
@@ -88,6 +94,14 @@ public final class Parameters {
             BasicCacheStorage.class.getName());
     public static final Parameter<Boolean> X_CACHE_HEADER = new ParameterBoolean("xCacheHeader", false);
     public static final Parameter<Boolean> VIA_HEADER = new ParameterBoolean("viaHeader", true);
+    public static final Parameter<Boolean> CACHE_COMPRESSION = new ParameterBoolean("cacheCompression", false);
+    public static final Parameter<Collection<String>> COMPRESSIBLE_CONTENT_TYPES = new ParameterCollection(
+            "compressibleContentTypes", "text/", "application/javascript", "application/json", "application/xml",
+            "application/xhtml+xml", "image/svg+xml");
+    // Surrogate keys index
+    public static final Parameter<Boolean> SURROGATE_KEY_INDEX = new ParameterBoolean("surrogateKeyIndex", false);
+    public static final Parameter<Integer> SURROGATE_KEY_INDEX_MAX_ENTRIES = new ParameterInteger(
+            "surrogateKeyIndexMaxEntries", 100000);
     // Forced caching
     public static final Parameter<Integer> TTL = new ParameterInteger("ttl", 0);
     // Heuristic caching
@@ -102,12 +116,34 @@ public final class Parameters {
     // Background revalidation
     public static final Parameter<Integer> STALE_WHILE_REVALIDATE = new ParameterInteger("staleWhileRevalidate", 0);
     public static final Parameter<Integer> STALE_IF_ERROR = new ParameterInteger("staleIfError", 0);
+    public static final Parameter<Integer> EARLY_REFRESH = new ParameterInteger("earlyRefresh", 0);
     public static final Parameter<Integer> MIN_ASYNCHRONOUS_WORKERS = new ParameterInteger("minAsynchronousWorkers", 0);
     public static final Parameter<Integer> MAX_ASYNCHRONOUS_WORKERS = new ParameterInteger("maxAsynchronousWorkers", 0);
     public static final Parameter<Integer> ASYNCHRONOUS_WORKER_IDLE_LIFETIME_SECS = new ParameterInteger(
             "asynchronousWorkerIdleLifetimeSecs", 60);
     public static final Parameter<Integer> MAX_UPDATE_RETRIES = new ParameterInteger("maxUpdateRetries", 1);
     public static final Parameter<Integer> REVALIDATION_QUEUE_SIZE = new ParameterInteger("revalidationQueueSize", 100);
+    // Cache key normalization
+    public static final Parameter<Boolean> CACHE_KEY_SORT_PARAMETERS = new ParameterBoolean("cacheKeySortParameters",
+            false);
+    public static final Parameter<Collection<String>> CACHE_KEY_EXCLUDED_PARAMETERS = new ParameterCollection(
+            "cacheKeyExcludedParameters");
+    public static final Parameter<Collection<String>> CACHE_KEY_INCLUDED_PARAMETERS = new ParameterCollection(
+            "cacheKeyIncludedParameters");
+    public static final Parameter<Boolean> CACHE_KEY_IGNORE_CASE = new ParameterBoolean("cacheKeyIgnoreCase", false);
+    public static final Parameter<Collection<String>> CACHE_KEY_COLLAPSED_HEADERS = new ParameterCollection(
+            "cacheKeyCollapsedHeaders");
+    // Cache warmup
+    public static final Parameter<Collection<String>> WARMUP_URLS = new ParameterCollection("warmupUrls");
+    public static final Parameter<String> WARMUP_FILE = new ParameterString("warmupFile");
+    public static final Parameter<Integer> WARMUP_TOP_URLS = new ParameterInteger("warmupTopUrls", 0);
+    public static final Parameter<Integer> WARMUP_MAX_URLS = new ParameterInteger("warmupMaxUrls", 1000);
+    public static final Parameter<Integer> WARMUP_CONCURRENCY = new ParameterInteger("warmupConcurrency", 2);
+    public static final Parameter<Integer> WARMUP_TIMEOUT = new ParameterInteger("warmupTimeout", 60000);
+    // Collapsed forwarding
+    public static final Parameter<Boolean> COLLAPSED_FORWARDING = new ParameterBoolean("collapsedForwarding", false);
+    public static final Parameter<Integer> COLLAPSED_FORWARDING_TIMEOUT = new ParameterInteger(
+            "collapsedForwardingTimeout", 10000);
     // EhCache
     public static final Parameter<String> EHCACHE_CACHE_NAME_PROPERTY = new ParameterString("ehcache.cacheName",
             "esigate");
@@ -116,6 +152,24 @@ public final class Parameters {
     // MemCached
     public static final Parameter<Collection<String>> MEMCACHED_SERVERS_PROPERTY = new ParameterCollection(
             "memcached.servers");
+    // Memory-mapped files
+    public static final Parameter<String> MAPPED_CACHE_DIRECTORY = new ParameterString("mappedCache.directory");
+    public static final Parameter<Integer> MAPPED_CACHE_SEGMENT_SIZE = new ParameterInteger("mappedCache.segmentSize",
+            64 * 1024 * 1024);
+    public static final Parameter<Long> MAPPED_CACHE_MAX_SIZE = new ParameterLong("mappedCache.maxSize",
+            1024L * 1024 * 1024);
+    // Two-tier cache
+    public static final Parameter<String> TIERED_CACHE_STORAGE = new ParameterString("tieredCache.storage");
+    public static final Parameter<Long> TIERED_CACHE_MAX_SIZE = new ParameterLong("tieredCache.maxSize",
+            10L * 1024 * 1024);
+    public static final Parameter<Integer> TIERED_CACHE_TTL = new ParameterInteger("tieredCache.ttl", 5000);
+    public static final Parameter<Integer> TIERED_CACHE_NEGATIVE_TTL = new ParameterInteger("tieredCache.negativeTtl",
+            1000);
+    // TinyLFU
+    public static final Parameter<Long> TINY_LFU_CACHE_MAX_SIZE = new ParameterLong("tinyLfuCache.maxSize",
+            64L * 1024 * 1024);
+    public static final Parameter<Integer> TINY_LFU_CACHE_CONCURRENCY_LEVEL = new ParameterInteger(
+            "tinyLfuCache.concurrencyLevel", 16);
     // Default size for String or byte buffers used to manipulate html page contents
     public static final int DEFAULT_BUFFER_SIZE = 1024;
     // Default size for String or byte buffers used to manipulate small things like tags, cookie, log lines
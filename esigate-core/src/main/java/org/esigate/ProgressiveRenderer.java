@@ -0,0 +1,26 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package org.esigate;
+
+/**
+ * A {@link Renderer} writing the parts of its output as soon as they are ready and flushing the output before waiting
+ * for the next ones.
+ * <p>
+ * When progressiveRendering is enabled and such a renderer is the last one to apply, the Driver runs it while the
+ * response is sent, writing directly to the client. As the status and headers are already sent, an error in the
+ * renderer then interrupts the response instead of producing an error page.
+ */
+public interface ProgressiveRenderer extends Renderer {
+}
@@ -0,0 +1,97 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package org.esigate;
+
+import javax.management.JMException;
+import javax.management.ObjectName;
+
+import org.esigate.cache.CacheWarmup;
+import org.esigate.util.RegisteredMBean;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Tells whether this node can serve requests, so that a load balancer does not send requests to it while it starts.
+ * <p>
+ * It is registered in the platform MBean server as soon as esigate is loaded, not ready until {@link DriverFactory} has
+ * configured the providers.
+ */
+public final class Readiness implements ReadinessMBean {
+    private static final Logger LOG = LoggerFactory.getLogger(Readiness.class);
+    private static final String OBJECT_NAME = "org.esigate:type=Readiness";
+
+    private volatile boolean configured;
+    private RegisteredMBean registration;
+
+    private Readiness() {
+    }
+
+    /**
+     * Registers a new instance, not configured, replacing any instance registered by a previous deployment.
+     * 
+     * @return the instance
+     */
+    static Readiness register() {
+        Readiness readiness = new Readiness();
+        readiness.registerMBean();
+        return readiness;
+    }
+
+    private void registerMBean() {
+        try {
+            registration = RegisteredMBean.register(new ObjectName(OBJECT_NAME), this, ReadinessMBean.class);
+        } catch (JMException | SecurityException e) {
+            LOG.warn("Could not register readiness: {}", e.getMessage());
+        }
+    }
+
+    /**
+     * Reports ready, registering this instance again if it has been unregistered since esigate was closed.
+     */
+    synchronized void setConfigured() {
+        configured = true;
+        if (registration == null) {
+            registerMBean();
+        }
+    }
+
+    /**
+     * Reports not ready and unregisters this instance, unless another deployment has replaced it.
+     */
+    synchronized void unregister() {
+        configured = false;
+        if (registration == null) {
+            return;
+        }
+        try {
+            registration.unregister();
+        } catch (JMException | SecurityException e) {
+            LOG.warn("Could not unregister readiness: {}", e.getMessage());
+        }
+        registration = null;
+    }
+
+    @Override
+    public boolean isConfigured() {
+        return configured;
+    }
+
+    @Override
+    public boolean isReady() {
+        return configured && CacheWarmup.isReady();
+    }
+
+}
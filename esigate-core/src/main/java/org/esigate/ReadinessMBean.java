@@ -0,0 +1,34 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package org.esigate;
+
+/**
+ * Management interface of {@link Readiness}, registered in the platform MBean server as
+ * <code>org.esigate:type=Readiness</code>.
+ */
+public interface ReadinessMBean {
+
+    /**
+     * @return true once the providers have been configured
+     */
+    boolean isConfigured();
+
+    /**
+     * @return true once the providers have been configured and no provider is warming up its cache
+     */
+    boolean isReady();
+
+}
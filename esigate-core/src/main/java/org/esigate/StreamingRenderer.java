@@ -0,0 +1,47 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package org.esigate;
+
+import java.io.IOException;
+import java.io.Reader;
+import java.io.Writer;
+
+import org.esigate.impl.DriverRequest;
+
+/**
+ * A {@link Renderer} able to process its source incrementally.
+ * <p>
+ * When such a renderer is the first one to apply, the Driver feeds it directly from the response entity instead of
+ * loading the whole body into a String first.
+ * 
+ */
+public interface StreamingRenderer extends Renderer {
+
+    /**
+     * Renders the source read from a Reader and writes results to the output as soon as they are available.
+     * 
+     * @param originalRequest
+     *            request received by esigate.
+     * @param src
+     *            source to be rendered
+     * @param out
+     *            output destination. This writer is not thread-safe, use proper synchronization if writing output from
+     *            multiple threads.
+     * @throws IOException
+     * @throws HttpErrorPage
+     */
+    void render(DriverRequest originalRequest, Reader src, Writer out) throws IOException, HttpErrorPage;
+}
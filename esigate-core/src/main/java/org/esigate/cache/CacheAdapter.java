@@ -16,10 +16,17 @@ package org.esigate.cache;
 
 import java.io.IOException;
 import java.util.Arrays;
+import java.util.Collection;
 import java.util.Date;
 import java.util.Properties;
 
+import org.apache.http.Header;
+import org.apache.http.HeaderElement;
 import org.apache.http.HttpException;
+import org.apache.http.HttpHeaders;
+import org.apache.http.HttpMessage;
+import org.apache.http.HttpRequest;
+import org.apache.http.HttpResponse;
 import org.apache.http.HttpStatus;
 import org.apache.http.client.cache.CacheResponseStatus;
 import org.apache.http.client.cache.HttpCacheContext;
@@ -31,6 +38,7 @@ import org.apache.http.conn.routing.HttpRoute;
 import org.apache.http.impl.execchain.ClientExecChain;
 import org.esigate.ConfigurationException;
 import org.esigate.Parameters;
+import org.esigate.http.CompressionUtils;
 import org.esigate.http.DateUtils;
 import org.esigate.http.OutgoingRequestContext;
 import org.slf4j.Logger;
@@ -49,6 +57,9 @@ public class CacheAdapter {
     private int ttl;
     private boolean xCacheHeader;
     private boolean viaHeader;
+    private boolean compression;
+    private Collection<String> compressibleContentTypes;
+    private long maxObjectSize;
 
     /**
      * Inititalize the instance.
@@ -64,12 +75,23 @@ public class CacheAdapter {
             throw new ConfigurationException("You must set a positive value for maxAsynchronousWorkers "
                     + "in order to enable background revalidation (staleWhileRevalidate)");
         }
+        int earlyRefresh = Parameters.EARLY_REFRESH.getValue(properties);
+        if (earlyRefresh < 0 || earlyRefresh > 100) {
+            throw new ConfigurationException("earlyRefresh must be a percentage between 0 and 100");
+        }
+        if (earlyRefresh > 0 && maxAsynchronousWorkers == 0) {
+            throw new ConfigurationException("You must set a positive value for maxAsynchronousWorkers "
+                    + "in order to enable early refresh (earlyRefresh)");
+        }
         ttl = Parameters.TTL.getValue(properties);
         xCacheHeader = Parameters.X_CACHE_HEADER.getValue(properties);
         viaHeader = Parameters.VIA_HEADER.getValue(properties);
+        compression = Parameters.CACHE_COMPRESSION.getValue(properties);
+        compressibleContentTypes = Parameters.COMPRESSIBLE_CONTENT_TYPES.getValue(properties);
+        maxObjectSize = Parameters.MAX_OBJECT_SIZE.getValue(properties);
         LOG.info("Initializing cache for provider " + Arrays.toString(Parameters.REMOTE_URL_BASE.getValue(properties))
                 + " staleIfError=" + staleIfError + " staleWhileRevalidate=" + staleWhileRevalidate + " ttl=" + ttl
-                + " xCacheHeader=" + xCacheHeader + " viaHeader=" + viaHeader);
+                + " xCacheHeader=" + xCacheHeader + " viaHeader=" + viaHeader + " compression=" + compression);
     }
 
     public ClientExecChain wrapCachingHttpClient(final ClientExecChain wrapped) {
@@ -134,11 +156,70 @@ public class CacheAdapter {
                         || statusCode == HttpStatus.SC_SERVICE_UNAVAILABLE || statusCode == HttpStatus.SC_NOT_MODIFIED || statusCode == HttpStatus.SC_GATEWAY_TIMEOUT);
             }
 
+            private boolean isCompressible(HttpRequest request, HttpResponse response) {
+                if (!compression || response.getStatusLine().getStatusCode() != HttpStatus.SC_OK
+                        || !CompressionUtils.isCompressible(response, compressibleContentTypes)
+                        || !isStored(request, response)) {
+                    return false;
+                }
+                // Bigger entities are not cached, do not load them in memory
+                return maxObjectSize <= 0 || response.getEntity().getContentLength() <= maxObjectSize;
+            }
+
+            /**
+             * Applies the main rules of the shared cache, compressing a response which is not stored would only delay
+             * it.
+             */
+            private boolean isStored(HttpRequest request, HttpResponse response) {
+                if (hasCacheControl(request, "no-store")
+                        || hasCacheControl(response, "no-store", "no-cache", "private")) {
+                    return false;
+                }
+                if (request.containsHeader(HttpHeaders.AUTHORIZATION)
+                        && !hasCacheControl(response, "s-maxage", "must-revalidate", "public")) {
+                    return false;
+                }
+                for (Header header : response.getHeaders(HttpHeaders.VARY)) {
+                    for (HeaderElement element : header.getElements()) {
+                        if ("*".equals(element.getName())) {
+                            return false;
+                        }
+                    }
+                }
+                Header[] dates = response.getHeaders(HttpHeaders.DATE);
+                if (dates.length != 1) {
+                    return false;
+                }
+                Header expires = response.getFirstHeader(HttpHeaders.EXPIRES);
+                if (expires != null && !response.containsHeader(HttpHeaders.CACHE_CONTROL)) {
+                    Date expiresDate = DateUtils.parseDate(expires.getValue());
+                    Date date = DateUtils.parseDate(dates[0].getValue());
+                    if (expiresDate != null && date != null && !expiresDate.after(date)) {
+                        return false;
+                    }
+                }
+                return true;
+            }
+
+            private boolean hasCacheControl(HttpMessage message, String... directives) {
+                for (Header header : message.getHeaders(HttpHeaders.CACHE_CONTROL)) {
+                    for (HeaderElement element : header.getElements()) {
+                        for (String directive : directives) {
+                            if (directive.equalsIgnoreCase(element.getName())) {
+                                return true;
+                            }
+                        }
+                    }
+                }
+                return false;
+            }
+
             /**
              * Fire pre-fetch and post-fetch events Enables cache for all GET requests if cache ttl was forced to a
              * certain duration in the configuration. This is done even for non 200 return codes! This is a very
              * aggressive but efficient caching policy. Adds "stale-while-revalidate" and "stale-if-error" cache-control
-             * directives depending on the configuration.
+             * directives depending on the configuration. Compresses text entities if enabled in the configuration so
+             * that they are stored and can be sent to the clients compressed.
              * 
              * @throws HttpException
              * @throws IOException
@@ -179,6 +260,10 @@ public class CacheAdapter {
                         response.addHeader("Cache-control", cacheControlHeader);
                     }
                 }
+                if (method.equalsIgnoreCase("GET") && isCompressible(request, response)) {
+                    // The cache does not store entities bigger than maxObjectSize, send them uncompressed
+                    CompressionUtils.compress(response, maxObjectSize);
+                }
 
                 return response;
             }
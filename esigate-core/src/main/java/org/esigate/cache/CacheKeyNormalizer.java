@@ -0,0 +1,237 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package org.esigate.cache;
+
+import java.io.IOException;
+import java.net.URI;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Properties;
+
+import org.apache.http.Header;
+import org.apache.http.HttpException;
+import org.apache.http.client.methods.CloseableHttpResponse;
+import org.apache.http.client.methods.HttpExecutionAware;
+import org.apache.http.client.methods.HttpRequestWrapper;
+import org.apache.http.client.protocol.HttpClientContext;
+import org.apache.http.conn.routing.HttpRoute;
+import org.apache.http.impl.execchain.ClientExecChain;
+import org.esigate.Parameters;
+
+/**
+ * Normalizes the GET requests before the cache lookup so that equivalent URLs share the same cache entry, and restores
+ * the original request before it is forwarded to the provider.
+ * <p>
+ * Depending on the configuration, the query parameters are filtered (cacheKeyExcludedParameters and
+ * cacheKeyIncludedParameters, a trailing "*" matching any suffix) and sorted by name (cacheKeySortParameters), the path
+ * and parameter names are lower cased (cacheKeyIgnoreCase) and the headers listed in cacheKeyCollapsedHeaders are
+ * removed so that all their values share the same variant.
+ */
+public final class CacheKeyNormalizer {
+    private static final String ORIGINAL_REQUEST = CacheKeyNormalizer.class.getName() + "#originalRequest";
+
+    private static final Comparator<String> PARAMETER_NAME_COMPARATOR = new Comparator<String>() {
+        @Override
+        public int compare(String o1, String o2) {
+            return getName(o1).compareTo(getName(o2));
+        }
+    };
+
+    /**
+     * The URI and headers of the request before normalization.
+     */
+    private static final class OriginalRequest {
+        private final URI uri;
+        private final Map<String, Header[]> headers;
+
+        private OriginalRequest(URI uri, Map<String, Header[]> headers) {
+            this.uri = uri;
+            this.headers = headers;
+        }
+    }
+
+    private final boolean sortParameters;
+    private final Collection<String> excludedParameters;
+    private final Collection<String> includedParameters;
+    private final boolean ignoreCase;
+    private final Collection<String> collapsedHeaders;
+
+    /**
+     * @param properties
+     *            the driver properties
+     */
+    public CacheKeyNormalizer(Properties properties) {
+        sortParameters = Parameters.CACHE_KEY_SORT_PARAMETERS.getValue(properties);
+        excludedParameters = Parameters.CACHE_KEY_EXCLUDED_PARAMETERS.getValue(properties);
+        includedParameters = Parameters.CACHE_KEY_INCLUDED_PARAMETERS.getValue(properties);
+        ignoreCase = Parameters.CACHE_KEY_IGNORE_CASE.getValue(properties);
+        collapsedHeaders = Parameters.CACHE_KEY_COLLAPSED_HEADERS.getValue(properties);
+    }
+
+    /**
+     * @param properties
+     *            the driver properties
+     * @return true if any normalization is configured
+     */
+    public static boolean isEnabled(Properties properties) {
+        return Parameters.CACHE_KEY_SORT_PARAMETERS.getValue(properties)
+                || !Parameters.CACHE_KEY_EXCLUDED_PARAMETERS.getValue(properties).isEmpty()
+                || !Parameters.CACHE_KEY_INCLUDED_PARAMETERS.getValue(properties).isEmpty()
+                || Parameters.CACHE_KEY_IGNORE_CASE.getValue(properties)
+                || !Parameters.CACHE_KEY_COLLAPSED_HEADERS.getValue(properties).isEmpty();
+    }
+
+    /**
+     * Normalizes the requests before the cache.
+     * 
+     * @param wrapped
+     *            the caching client
+     * @return the wrapped client
+     */
+    public ClientExecChain wrapCachingHttpClient(final ClientExecChain wrapped) {
+        return new ClientExecChain() {
+            @Override
+            public CloseableHttpResponse execute(HttpRoute route, HttpRequestWrapper request,
+                    HttpClientContext httpClientContext, HttpExecutionAware execAware) throws IOException,
+                    HttpException {
+                if (!"GET".equalsIgnoreCase(request.getRequestLine().getMethod())) {
+                    return wrapped.execute(route, request, httpClientContext, execAware);
+                }
+                OriginalRequest original = save(request);
+                httpClientContext.setAttribute(ORIGINAL_REQUEST, original);
+                HttpRequestWrapper normalized = copy(request, URI.create(normalize(original.uri.toString())));
+                for (String name : collapsedHeaders) {
+                    normalized.removeHeaders(name);
+                }
+                return wrapped.execute(route, normalized, httpClientContext, execAware);
+            }
+        };
+    }
+
+    /**
+     * Forwards the original requests to the provider.
+     * 
+     * @param wrapped
+     *            the backend client
+     * @return the wrapped client
+     */
+    public ClientExecChain wrapBackendHttpClient(final ClientExecChain wrapped) {
+        return new ClientExecChain() {
+            @Override
+            public CloseableHttpResponse execute(HttpRoute route, HttpRequestWrapper request,
+                    HttpClientContext httpClientContext, HttpExecutionAware execAware) throws IOException,
+                    HttpException {
+                OriginalRequest original = (OriginalRequest) httpClientContext.getAttribute(ORIGINAL_REQUEST);
+                if (original == null || !"GET".equalsIgnoreCase(request.getRequestLine().getMethod())) {
+                    return wrapped.execute(route, request, httpClientContext, execAware);
+                }
+                // The cache keeps using the normalized request to store the response
+                HttpRequestWrapper restored = copy(request, original.uri);
+                for (Map.Entry<String, Header[]> header : original.headers.entrySet()) {
+                    restored.removeHeaders(header.getKey());
+                    for (Header value : header.getValue()) {
+                        restored.addHeader(value);
+                    }
+                }
+                return wrapped.execute(route, restored, httpClientContext, execAware);
+            }
+        };
+    }
+
+    private OriginalRequest save(HttpRequestWrapper request) {
+        Map<String, Header[]> headers = new LinkedHashMap<>();
+        for (String name : collapsedHeaders) {
+            headers.put(name, request.getHeaders(name));
+        }
+        return new OriginalRequest(request.getURI(), headers);
+    }
+
+    private static HttpRequestWrapper copy(HttpRequestWrapper request, URI uri) {
+        HttpRequestWrapper result = HttpRequestWrapper.wrap(request.getOriginal(), request.getTarget());
+        result.setProtocolVersion(request.getProtocolVersion());
+        result.setHeaders(request.getAllHeaders());
+        result.setURI(uri);
+        return result;
+    }
+
+    /**
+     * @param uri
+     *            the request URI
+     * @return the URI used as cache key
+     */
+    String normalize(String uri) {
+        int queryStart = uri.indexOf('?');
+        String path = queryStart < 0 ? uri : uri.substring(0, queryStart);
+        if (ignoreCase) {
+            path = path.toLowerCase(Locale.ENGLISH);
+        }
+        if (queryStart < 0) {
+            return path;
+        }
+        List<String> parameters = new ArrayList<>();
+        for (String parameter : uri.substring(queryStart + 1).split("&")) {
+            if (ignoreCase) {
+                int nameEnd = parameter.indexOf('=');
+                parameter =
+                        nameEnd < 0 ? parameter.toLowerCase(Locale.ENGLISH) : parameter.substring(0, nameEnd)
+                                .toLowerCase(Locale.ENGLISH) + parameter.substring(nameEnd);
+            }
+            String name = getName(parameter);
+            if (!name.isEmpty() && !matches(excludedParameters, name)
+                    && (includedParameters.isEmpty() || matches(includedParameters, name))) {
+                parameters.add(parameter);
+            }
+        }
+        if (sortParameters) {
+            // Stable sort, the values of a parameter keep their order
+            Collections.sort(parameters, PARAMETER_NAME_COMPARATOR);
+        }
+        StringBuilder result = new StringBuilder(path);
+        for (int i = 0; i < parameters.size(); i++) {
+            result.append(i == 0 ? '?' : '&').append(parameters.get(i));
+        }
+        return result.toString();
+    }
+
+    private boolean matches(Collection<String> patterns, String name) {
+        for (String pattern : patterns) {
+            if (pattern.endsWith("*") ? startsWith(name, pattern.substring(0, pattern.length() - 1)) : equals(name,
+                    pattern)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private boolean startsWith(String name, String prefix) {
+        return name.regionMatches(ignoreCase, 0, prefix, 0, prefix.length());
+    }
+
+    private boolean equals(String name, String pattern) {
+        return ignoreCase ? name.equalsIgnoreCase(pattern) : name.equals(pattern);
+    }
+
+    private static String getName(String parameter) {
+        int nameEnd = parameter.indexOf('=');
+        return nameEnd < 0 ? parameter : parameter.substring(0, nameEnd);
+    }
+
+}
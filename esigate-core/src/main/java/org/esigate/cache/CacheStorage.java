@@ -14,6 +14,7 @@
 
 package org.esigate.cache;
 
+import java.io.Closeable;
 import java.io.IOException;
 import java.util.Properties;
 
@@ -24,7 +25,7 @@ import org.apache.http.client.cache.HttpCacheUpdateException;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
-public abstract class CacheStorage implements HttpCacheStorage {
+public abstract class CacheStorage implements HttpCacheStorage, Closeable {
     private static final Logger LOG = LoggerFactory.getLogger(CacheStorage.class);
 
     public abstract void init(Properties properties);
@@ -60,4 +61,14 @@ public abstract class CacheStorage implements HttpCacheStorage {
         this.impl = impl;
     }
 
+    /**
+     * Releases the resources of the storage (connections, files). The storage must not be used any more afterwards.
+     */
+    @Override
+    public void close() throws IOException {
+        if (impl instanceof Closeable) {
+            ((Closeable) impl).close();
+        }
+    }
+
 }
@@ -0,0 +1,425 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package org.esigate.cache;
+
+import java.io.File;
+import java.io.IOException;
+import java.net.URI;
+import java.util.AbstractMap;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import javax.management.JMException;
+import javax.management.ObjectName;
+
+import org.apache.commons.io.FileUtils;
+import org.apache.commons.lang3.StringUtils;
+import org.apache.http.HttpStatus;
+import org.apache.http.client.methods.CloseableHttpResponse;
+import org.apache.http.util.EntityUtils;
+import org.esigate.ConfigurationException;
+import org.esigate.Driver;
+import org.esigate.HttpErrorPage;
+import org.esigate.Parameters;
+import org.esigate.api.ContainerRequestContext;
+import org.esigate.events.Event;
+import org.esigate.events.EventDefinition;
+import org.esigate.events.EventManager;
+import org.esigate.events.IEventListener;
+import org.esigate.events.impl.ProxyEvent;
+import org.esigate.http.IncomingRequest;
+import org.esigate.util.RegisteredMBean;
+import org.esigate.util.UriUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Fills the cache of a provider by requesting a list of urls when it is created, at startup or when the configuration
+ * is reloaded.
+ * <p>
+ * The urls come from the warmupUrls property, from the file set by warmupFile (one url per line, or access log lines in
+ * common log format) and, when warmupTopUrls is set, from the most requested urls recorded since startup. Those are
+ * recorded by provider name so that they are still available when the configuration is reloaded. Urls with a query
+ * string are not recorded: only the configured urls are requested with their query string. At most warmupConcurrency
+ * requests are sent at the same time and the warmup is abandoned after warmupTimeout milliseconds.
+ * <p>
+ * Progress is registered in the platform MBean server as
+ * <code>org.esigate:type=CacheWarmup,name=&lt;provider&gt;</code> so that the node can report it is ready only once its
+ * cache is warm.
+ */
+public final class CacheWarmup implements CacheWarmupMBean {
+    private static final Logger LOG = LoggerFactory.getLogger(CacheWarmup.class);
+    private static final String OBJECT_NAME = "org.esigate:type=CacheWarmup,name=";
+    private static final String WARMUP_REQUEST = CacheWarmup.class.getName() + "#request";
+    private static final String DEFAULT_BASE_URL = "http://localhost";
+    private static final Pattern LOG_LINE = Pattern.compile("\"GET (\\S+) HTTP/[0-9.]+\"");
+    // Urls recorded by provider, kept across configuration reloads
+    private static final ConcurrentMap<String, UrlRecorder> RECORDERS = new ConcurrentHashMap<>();
+    private static final ConcurrentMap<String, CacheWarmup> WARMUPS = new ConcurrentHashMap<>();
+
+    /**
+     * An url to request: the url relative to the provider and the url received by esigate, with the query string.
+     */
+    private static final class Target {
+        private final String relUrl;
+        private final String uri;
+
+        private Target(String relUrl, String uri) {
+            this.relUrl = relUrl;
+            this.uri = uri;
+        }
+
+        /**
+         * @param baseUrl
+         *            the public url of the provider, as the cache key includes the host when preserveHost is set
+         * @param url
+         *            an absolute url or an url relative to the provider
+         */
+        private static Target parse(String baseUrl, String url) {
+            if (!url.startsWith("/")) {
+                return new Target(UriUtils.createURI(url).getRawPath(), url);
+            }
+            int queryStart = url.indexOf('?');
+            return new Target(queryStart < 0 ? url : url.substring(0, queryStart), baseUrl + url);
+        }
+
+        @Override
+        public boolean equals(Object obj) {
+            return obj instanceof Target && relUrl.equals(((Target) obj).relUrl) && uri.equals(((Target) obj).uri);
+        }
+
+        @Override
+        public int hashCode() {
+            return 31 * relUrl.hashCode() + uri.hashCode();
+        }
+    }
+
+    /**
+     * Counts the successful GET requests by url. Urls with a query string are ignored as it may contain session ids or
+     * tokens that must not be replayed.
+     */
+    private static final class UrlRecorder implements IEventListener {
+        private final ConcurrentMap<Target, AtomicInteger> counts = new ConcurrentHashMap<>();
+        private final int maxSize;
+        // The provider instance currently recording
+        private volatile Driver driver;
+
+        private UrlRecorder(int maxSize) {
+            this.maxSize = maxSize;
+        }
+
+        @Override
+        public boolean event(EventDefinition id, Event event) {
+            ProxyEvent e = (ProxyEvent) event;
+            IncomingRequest request = e.getOriginalRequest();
+            if (e.getRelUrl() != null && e.getErrorPage() == null && e.getResponse() != null
+                    && e.getResponse().getStatusLine().getStatusCode() == HttpStatus.SC_OK
+                    && "GET".equalsIgnoreCase(request.getRequestLine().getMethod())
+                    && request.getRequestLine().getUri().indexOf('?') < 0
+                    && request.getAttribute(WARMUP_REQUEST) == null) {
+                record(new Target(e.getRelUrl(), request.getRequestLine().getUri()));
+            }
+            return true;
+        }
+
+        private void record(Target target) {
+            AtomicInteger count = counts.get(target);
+            if (count == null) {
+                if (counts.size() >= maxSize) {
+                    prune();
+                }
+                AtomicInteger previous = counts.putIfAbsent(target, count = new AtomicInteger());
+                if (previous != null) {
+                    count = previous;
+                }
+            }
+            count.incrementAndGet();
+        }
+
+        /**
+         * Forgets the urls requested only once and halves the other counts so that old requests matter less.
+         */
+        private synchronized void prune() {
+            for (Map.Entry<Target, AtomicInteger> entry : counts.entrySet()) {
+                int count = entry.getValue().get();
+                if (count <= 1) {
+                    counts.remove(entry.getKey());
+                } else {
+                    entry.getValue().set(count / 2);
+                }
+            }
+        }
+
+        private List<Target> top(int n) {
+            List<Map.Entry<Target, Integer>> entries = new ArrayList<>();
+            for (Map.Entry<Target, AtomicInteger> entry : counts.entrySet()) {
+                entries.add(new AbstractMap.SimpleEntry<>(entry.getKey(), entry.getValue().get()));
+            }
+            Collections.sort(entries, new Comparator<Map.Entry<Target, Integer>>() {
+                @Override
+                public int compare(Map.Entry<Target, Integer> o1, Map.Entry<Target, Integer> o2) {
+                    return o2.getValue().compareTo(o1.getValue());
+                }
+            });
+            List<Target> result = new ArrayList<>();
+            for (int i = 0; i < n && i < entries.size(); i++) {
+                result.add(entries.get(i).getKey());
+            }
+            return result;
+        }
+    }
+
+    private final String name;
+    private final Driver driver;
+    private final List<Target> targets;
+    private final int timeout;
+    private final ExecutorService executor;
+    private final AtomicInteger warmed = new AtomicInteger();
+    private final AtomicInteger failed = new AtomicInteger();
+    private volatile boolean complete;
+    private volatile RegisteredMBean registration;
+
+    private CacheWarmup(String name, Driver driver, List<Target> targets, int concurrency, int timeout) {
+        this.name = name;
+        this.driver = driver;
+        this.targets = targets;
+        this.timeout = timeout;
+        final ThreadFactory threadFactory = Executors.defaultThreadFactory();
+        this.executor = Executors.newFixedThreadPool(concurrency, new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread thread = threadFactory.newThread(r);
+                thread.setName("esigate-warmup-" + CacheWarmup.this.name + "-" + thread.getName());
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+    }
+
+    /**
+     * Starts recording the requested urls and warming the cache of a provider, according to its configuration. Any
+     * warmup still in progress for a previous instance of the same provider is abandoned.
+     * 
+     * @param driver
+     *            the provider
+     * @param properties
+     *            the configuration of the provider
+     */
+    public static void start(Driver driver, Properties properties) {
+        String name = driver.getConfiguration().getInstanceName();
+        int maxUrls = Parameters.WARMUP_MAX_URLS.getValue(properties);
+        int topUrls = Parameters.WARMUP_TOP_URLS.getValue(properties);
+
+        String baseUrl =
+                StringUtils.removeEnd(
+                        StringUtils.defaultIfBlank(Parameters.VISIBLE_URL_BASE.getValue(properties), DEFAULT_BASE_URL),
+                        "/");
+
+        Set<Target> targets = new LinkedHashSet<>();
+        for (String url : Parameters.WARMUP_URLS.getValue(properties)) {
+            targets.add(Target.parse(baseUrl, url));
+        }
+        String file = Parameters.WARMUP_FILE.getValue(properties);
+        if (file != null) {
+            targets.addAll(readFile(baseUrl, new File(file)));
+        }
+        if (topUrls > 0) {
+            UrlRecorder recorder = RECORDERS.get(name);
+            if (recorder == null) {
+                RECORDERS.putIfAbsent(name, new UrlRecorder(Math.max(10 * topUrls, maxUrls)));
+                recorder = RECORDERS.get(name);
+            } else {
+                targets.addAll(recorder.top(topUrls));
+            }
+            recorder.driver = driver;
+            driver.getEventManager().register(EventManager.EVENT_PROXY_POST, recorder);
+        } else {
+            RECORDERS.remove(name);
+        }
+
+        CacheWarmup previous = WARMUPS.remove(name);
+        if (previous != null) {
+            previous.cancel();
+        }
+        if (targets.isEmpty()) {
+            return;
+        }
+        List<Target> list = new ArrayList<>(targets);
+        if (list.size() > maxUrls) {
+            list = list.subList(0, maxUrls);
+        }
+        CacheWarmup warmup =
+                new CacheWarmup(name, driver, list, Parameters.WARMUP_CONCURRENCY.getValue(properties),
+                        Parameters.WARMUP_TIMEOUT.getValue(properties));
+        WARMUPS.put(name, warmup);
+        warmup.register();
+        warmup.run();
+    }
+
+    /**
+     * Stops the warmup of a provider instance which is retired or closed. The urls it recorded are forgotten, unless a
+     * new instance of the same provider is recording them now.
+     * 
+     * @param driver
+     *            the provider
+     */
+    public static void stop(Driver driver) {
+        String name = driver.getConfiguration().getInstanceName();
+        CacheWarmup warmup = WARMUPS.get(name);
+        if (warmup != null && warmup.driver == driver && WARMUPS.remove(name, warmup)) {
+            warmup.cancel();
+        }
+        UrlRecorder recorder = RECORDERS.get(name);
+        if (recorder != null && recorder.driver == driver) {
+            RECORDERS.remove(name, recorder);
+        }
+    }
+
+    /**
+     * @return true if no cache warmup is in progress
+     */
+    public static boolean isReady() {
+        for (CacheWarmup warmup : WARMUPS.values()) {
+            if (!warmup.isComplete()) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static List<Target> readFile(String baseUrl, File file) {
+        List<String> lines;
+        try {
+            lines = FileUtils.readLines(file, "UTF-8");
+        } catch (IOException e) {
+            throw new ConfigurationException("Unable to read warmup file " + file, e);
+        }
+        List<Target> result = new ArrayList<>();
+        for (String line : lines) {
+            String url = line.trim();
+            Matcher matcher = LOG_LINE.matcher(url);
+            if (matcher.find()) {
+                url = matcher.group(1);
+            }
+            if (!url.isEmpty() && !url.startsWith("#")) {
+                result.add(Target.parse(baseUrl, url));
+            }
+        }
+        return result;
+    }
+
+    private void register() {
+        try {
+            registration =
+                    RegisteredMBean.register(new ObjectName(OBJECT_NAME + ObjectName.quote(name)), this,
+                            CacheWarmupMBean.class);
+        } catch (JMException | SecurityException e) {
+            LOG.warn("Could not register cache warmup for provider {}: {}", name, e.getMessage());
+        }
+    }
+
+    private void run() {
+        LOG.info("Warming up cache of provider {} with {} urls", name, targets.size());
+        for (final Target target : targets) {
+            executor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    warm(target);
+                }
+            });
+        }
+        executor.shutdown();
+        Thread waiter = new Thread("esigate-warmup-" + name) {
+            @Override
+            public void run() {
+                try {
+                    if (!executor.awaitTermination(timeout, TimeUnit.MILLISECONDS)) {
+                        LOG.warn("Cache warmup of provider {} timed out", name);
+                        executor.shutdownNow();
+                    }
+                } catch (InterruptedException e) {
+                    executor.shutdownNow();
+                    Thread.currentThread().interrupt();
+                }
+                complete = true;
+                LOG.info("Cache warmup of provider {} complete: {} warmed, {} failed out of {}", name, warmed.get(),
+                        failed.get(), targets.size());
+            }
+        };
+        waiter.setDaemon(true);
+        waiter.start();
+    }
+
+    private void warm(Target target) {
+        IncomingRequest request = IncomingRequest.builder(target.uri).setContext(new ContainerRequestContext() {
+        }).addHeader("Host", URI.create(target.uri).getRawAuthority()).build();
+        request.setAttribute(WARMUP_REQUEST, Boolean.TRUE);
+        try (CloseableHttpResponse response = driver.proxy(target.relUrl, request)) {
+            EntityUtils.consume(response.getEntity());
+            warmed.incrementAndGet();
+        } catch (HttpErrorPage | IOException | RuntimeException e) {
+            failed.incrementAndGet();
+            LOG.debug("Cache warmup of {} failed: {}", target.uri, e.toString());
+        }
+    }
+
+    private void cancel() {
+        executor.shutdownNow();
+        complete = true;
+        if (registration != null) {
+            try {
+                registration.unregister();
+            } catch (JMException | SecurityException e) {
+                LOG.warn("Could not unregister cache warmup for provider {}: {}", name, e.getMessage());
+            }
+        }
+    }
+
+    @Override
+    public boolean isComplete() {
+        return complete;
+    }
+
+    @Override
+    public int getTotal() {
+        return targets.size();
+    }
+
+    @Override
+    public int getWarmed() {
+        return warmed.get();
+    }
+
+    @Override
+    public int getFailed() {
+        return failed.get();
+    }
+
+}
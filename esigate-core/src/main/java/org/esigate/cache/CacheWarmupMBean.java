@@ -0,0 +1,43 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package org.esigate.cache;
+
+/**
+ * Management interface of {@link CacheWarmup}, registered in the platform MBean server as
+ * <code>org.esigate:type=CacheWarmup,name=&lt;provider&gt;</code>.
+ */
+public interface CacheWarmupMBean {
+
+    /**
+     * @return true when all the urls have been requested or the warmup timed out
+     */
+    boolean isComplete();
+
+    /**
+     * @return the number of urls to request
+     */
+    int getTotal();
+
+    /**
+     * @return the number of urls successfully requested
+     */
+    int getWarmed();
+
+    /**
+     * @return the number of urls that could not be requested or returned an error
+     */
+    int getFailed();
+
+}
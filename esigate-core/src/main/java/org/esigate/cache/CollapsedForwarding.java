@@ -0,0 +1,306 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package org.esigate.cache;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.SequenceInputStream;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Properties;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.commons.io.IOUtils;
+import org.apache.commons.io.output.ByteArrayOutputStream;
+import org.apache.http.Header;
+import org.apache.http.HeaderElement;
+import org.apache.http.HttpEntity;
+import org.apache.http.HttpException;
+import org.apache.http.HttpHeaders;
+import org.apache.http.HttpRequest;
+import org.apache.http.HttpResponse;
+import org.apache.http.client.methods.CloseableHttpResponse;
+import org.apache.http.client.methods.HttpExecutionAware;
+import org.apache.http.client.methods.HttpRequestWrapper;
+import org.apache.http.client.protocol.HttpClientContext;
+import org.apache.http.conn.routing.HttpRoute;
+import org.apache.http.entity.ByteArrayEntity;
+import org.apache.http.entity.InputStreamEntity;
+import org.apache.http.impl.execchain.ClientExecChain;
+import org.apache.http.message.BasicHttpResponse;
+import org.esigate.Parameters;
+import org.esigate.http.BasicCloseableHttpResponse;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.codahale.metrics.Counter;
+import com.codahale.metrics.Gauge;
+import com.codahale.metrics.Metric;
+import com.codahale.metrics.MetricSet;
+
+/**
+ * Collapses the concurrent cache misses for the same resource into a single request to the provider.
+ * <p>
+ * The first GET request for a resource is sent to the provider, the identical requests arriving while it is in progress
+ * wait for its response instead of being forwarded too. They are identical if they have the same url, the same cookies,
+ * the same credentials and the same conditional headers. The response is shared only if a shared cache could store it:
+ * it must not set cookies, must not be private or no-store, must match the Vary header and must not be bigger than
+ * maxObjectSize. Otherwise, or if the response does not come within collapsedForwardingTimeout milliseconds, waiting
+ * requests are forwarded to the provider.
+ * <p>
+ * The number of requests forwarded, collapsed, timed out or forwarded because the response could not be shared are
+ * available as metrics.
+ */
+public final class CollapsedForwarding implements MetricSet {
+    private static final Logger LOG = LoggerFactory.getLogger(CollapsedForwarding.class);
+    private static final String[] KEY_HEADERS = {HttpHeaders.AUTHORIZATION, "Cookie", HttpHeaders.IF_NONE_MATCH,
+            HttpHeaders.IF_MODIFIED_SINCE, HttpHeaders.IF_MATCH, HttpHeaders.IF_UNMODIFIED_SINCE, HttpHeaders.RANGE};
+
+    private final ConcurrentMap<String, Fetch> fetches = new ConcurrentHashMap<>();
+    private final long timeout;
+    private final long maxObjectSize;
+    private final Counter forwarded = new Counter();
+    private final Counter collapsed = new Counter();
+    private final Counter timeouts = new Counter();
+    private final Counter unshared = new Counter();
+
+    /**
+     * @param properties
+     *            the driver properties
+     */
+    public CollapsedForwarding(Properties properties) {
+        timeout = Parameters.COLLAPSED_FORWARDING_TIMEOUT.getValue(properties);
+        int maxObjectSizeParameter = Parameters.MAX_OBJECT_SIZE.getValue(properties);
+        maxObjectSize = maxObjectSizeParameter > 0 ? maxObjectSizeParameter : Integer.MAX_VALUE;
+        LOG.info("Collapsed forwarding enabled, timeout={}ms", timeout);
+    }
+
+    public ClientExecChain wrapBackendHttpClient(final ClientExecChain wrapped) {
+        return new ClientExecChain() {
+            @Override
+            public CloseableHttpResponse execute(HttpRoute route, HttpRequestWrapper request,
+                    HttpClientContext httpClientContext, HttpExecutionAware execAware) throws IOException,
+                    HttpException {
+                if (!"GET".equalsIgnoreCase(request.getRequestLine().getMethod())) {
+                    return wrapped.execute(route, request, httpClientContext, execAware);
+                }
+                String key = getKey(route, request);
+                Fetch fetch = new Fetch(request);
+                Fetch current = fetches.putIfAbsent(key, fetch);
+                if (current == null) {
+                    forwarded.inc();
+                    try {
+                        CloseableHttpResponse response = wrapped.execute(route, request, httpClientContext, execAware);
+                        return fetch.complete(response);
+                    } finally {
+                        fetch.release();
+                        fetches.remove(key, fetch);
+                    }
+                }
+                CloseableHttpResponse response = current.await(request);
+                if (response != null) {
+                    collapsed.inc();
+                    return response;
+                }
+                return wrapped.execute(route, request, httpClientContext, execAware);
+            }
+        };
+    }
+
+    private static String getKey(HttpRoute route, HttpRequest request) {
+        StringBuilder key = new StringBuilder(route.getTargetHost().toURI());
+        key.append(request.getRequestLine().getUri());
+        for (String name : KEY_HEADERS) {
+            for (Header header : request.getHeaders(name)) {
+                key.append('\n').append(name).append(':').append(header.getValue());
+            }
+        }
+        return key.toString();
+    }
+
+    private static String getHeaderValues(HttpRequest request, String name) {
+        StringBuilder result = new StringBuilder();
+        for (Header header : request.getHeaders(name)) {
+            result.append(header.getValue()).append(',');
+        }
+        return result.toString();
+    }
+
+    public long getForwardedCount() {
+        return forwarded.getCount();
+    }
+
+    public long getCollapsedCount() {
+        return collapsed.getCount();
+    }
+
+    public long getTimeoutCount() {
+        return timeouts.getCount();
+    }
+
+    @Override
+    public Map<String, Metric> getMetrics() {
+        Map<String, Metric> metrics = new HashMap<>();
+        metrics.put("forwarded", forwarded);
+        metrics.put("collapsed", collapsed);
+        metrics.put("timeouts", timeouts);
+        metrics.put("unshared", unshared);
+        metrics.put("inflight", new Gauge<Integer>() {
+            @Override
+            public Integer getValue() {
+                return fetches.size();
+            }
+        });
+        return metrics;
+    }
+
+    /**
+     * A request in progress and the requests waiting for it.
+     */
+    private final class Fetch {
+        private final HttpRequest request;
+        private final CountDownLatch done = new CountDownLatch(1);
+        /** Status line, headers and a repeatable entity, or null if the response cannot be shared. */
+        private volatile HttpResponse sharedResponse;
+
+        private Fetch(HttpRequest request) {
+            this.request = request;
+        }
+
+        /**
+         * Keeps a copy of the response for the waiting requests if it can be shared.
+         * 
+         * @param response
+         *            the response from the provider
+         * @return the response for the first request
+         * @throws IOException
+         */
+        private CloseableHttpResponse complete(CloseableHttpResponse response) throws IOException {
+            if (!isShareable(response)) {
+                return response;
+            }
+            HttpEntity entity = response.getEntity();
+            if (entity != null) {
+                if (entity.getContentLength() > maxObjectSize) {
+                    return response;
+                }
+                ByteArrayOutputStream out = new ByteArrayOutputStream();
+                try {
+                    InputStream content = entity.getContent();
+                    long copied = IOUtils.copyLarge(content, out, 0, maxObjectSize + 1);
+                    if (copied > maxObjectSize) {
+                        // Too big, give the response back to the first request only
+                        InputStreamEntity streamEntity =
+                                new InputStreamEntity(new SequenceInputStream(new ByteArrayInputStream(
+                                        out.toByteArray()), content), entity.getContentLength());
+                        streamEntity.setContentType(entity.getContentType());
+                        streamEntity.setContentEncoding(entity.getContentEncoding());
+                        response.setEntity(streamEntity);
+                        return response;
+                    }
+                    content.close();
+                } catch (IOException | RuntimeException e) {
+                    // Release the connection. No response is shared so the waiting requests are forwarded as soon
+                    // as this fetch is released.
+                    response.close();
+                    throw e;
+                }
+                ByteArrayEntity bufferedEntity = new ByteArrayEntity(out.toByteArray());
+                bufferedEntity.setContentType(entity.getContentType());
+                bufferedEntity.setContentEncoding(entity.getContentEncoding());
+                response.setEntity(bufferedEntity);
+            }
+            sharedResponse = copy(response);
+            return response;
+        }
+
+        private boolean isShareable(HttpResponse response) {
+            if (response.containsHeader("Set-Cookie") || response.containsHeader("Set-Cookie2")) {
+                return false;
+            }
+            for (Header header : response.getHeaders(HttpHeaders.CACHE_CONTROL)) {
+                for (HeaderElement element : header.getElements()) {
+                    String name = element.getName();
+                    if ("private".equalsIgnoreCase(name) || "no-store".equalsIgnoreCase(name)
+                            || "no-cache".equalsIgnoreCase(name)) {
+                        return false;
+                    }
+                }
+            }
+            for (Header header : response.getHeaders(HttpHeaders.VARY)) {
+                if (header.getValue().contains("*")) {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        private void release() {
+            done.countDown();
+        }
+
+        /**
+         * Waits for the response.
+         * 
+         * @param waitingRequest
+         *            the waiting request
+         * @return a copy of the response, or null if the waiting request must be forwarded
+         */
+        private CloseableHttpResponse await(HttpRequest waitingRequest) {
+            try {
+                if (!done.await(timeout, TimeUnit.MILLISECONDS)) {
+                    timeouts.inc();
+                    return null;
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return null;
+            }
+            HttpResponse response = sharedResponse;
+            if (response == null || !matchesVary(response, waitingRequest)) {
+                unshared.inc();
+                return null;
+            }
+            return BasicCloseableHttpResponse.adapt(copy(response));
+        }
+
+        private boolean matchesVary(HttpResponse response, HttpRequest waitingRequest) {
+            for (Header header : response.getHeaders(HttpHeaders.VARY)) {
+                for (HeaderElement element : header.getElements()) {
+                    String name = element.getName();
+                    if (!getHeaderValues(request, name).equals(getHeaderValues(waitingRequest, name))) {
+                        return false;
+                    }
+                }
+            }
+            return true;
+        }
+    }
+
+    /**
+     * Copies a response whose entity, if any, is repeatable and can be read by several threads.
+     */
+    private static HttpResponse copy(HttpResponse response) {
+        BasicHttpResponse copy = new BasicHttpResponse(response.getStatusLine());
+        copy.setHeaders(response.getAllHeaders());
+        copy.setEntity(response.getEntity());
+        return copy;
+    }
+
+}
@@ -0,0 +1,268 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package org.esigate.cache;
+
+import java.io.IOException;
+import java.util.Collections;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Properties;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.http.Header;
+import org.apache.http.HeaderElement;
+import org.apache.http.HttpException;
+import org.apache.http.HttpHeaders;
+import org.apache.http.HttpRequest;
+import org.apache.http.HttpResponse;
+import org.apache.http.client.cache.CacheResponseStatus;
+import org.apache.http.client.cache.HttpCacheContext;
+import org.apache.http.client.methods.CloseableHttpResponse;
+import org.apache.http.client.methods.HttpExecutionAware;
+import org.apache.http.client.methods.HttpRequestWrapper;
+import org.apache.http.client.protocol.HttpClientContext;
+import org.apache.http.client.utils.DateUtils;
+import org.apache.http.conn.routing.HttpRoute;
+import org.apache.http.impl.client.cache.AsynchronousValidationRequest;
+import org.apache.http.impl.client.cache.SchedulingStrategy;
+import org.apache.http.impl.execchain.ClientExecChain;
+import org.apache.http.protocol.BasicHttpContext;
+import org.apache.http.util.EntityUtils;
+import org.esigate.Parameters;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.codahale.metrics.Counter;
+import com.codahale.metrics.Gauge;
+import com.codahale.metrics.Metric;
+import com.codahale.metrics.MetricSet;
+
+/**
+ * Revalidates in the background the cache entries about to expire, before they actually expire.
+ * <p>
+ * During the last earlyRefresh percent of the freshness lifetime of an entry, each cache hit triggers a background
+ * revalidation with a probability growing from 0 at the beginning of this period to 1 at expiration. As soon as one is
+ * triggered, the entry is refreshed and the following requests see a fresh entry again. Entries cached at the same time
+ * are thus refreshed at different times instead of all expiring together.
+ * <p>
+ * Revalidations run in a pool of threads configured by minAsynchronousWorkers, maxAsynchronousWorkers,
+ * asynchronousWorkerIdleLifetimeSecs and revalidationQueueSize, shared with the background revalidations of
+ * staleWhileRevalidate. The number of revalidations triggered, rejected because the queue is full and failed are
+ * available as metrics.
+ */
+public final class EarlyRefresh implements MetricSet {
+    private static final Logger LOG = LoggerFactory.getLogger(EarlyRefresh.class);
+
+    private final int earlyRefresh;
+    private final ThreadPoolExecutor executor;
+    private final Set<String> refreshing = Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+    private final Counter triggered = new Counter();
+    private final Counter rejected = new Counter();
+    private final Counter errors = new Counter();
+
+    /**
+     * @param properties
+     *            the driver properties
+     */
+    public EarlyRefresh(Properties properties) {
+        earlyRefresh = Parameters.EARLY_REFRESH.getValue(properties);
+        executor =
+                new ThreadPoolExecutor(Parameters.MIN_ASYNCHRONOUS_WORKERS.getValue(properties),
+                        Parameters.MAX_ASYNCHRONOUS_WORKERS.getValue(properties),
+                        Parameters.ASYNCHRONOUS_WORKER_IDLE_LIFETIME_SECS.getValue(properties), TimeUnit.SECONDS,
+                        new ArrayBlockingQueue<Runnable>(Parameters.REVALIDATION_QUEUE_SIZE.getValue(properties)));
+        LOG.info("Early refresh enabled, earlyRefresh={}%", earlyRefresh);
+    }
+
+    /**
+     * @return the strategy to give to the cache so that its background revalidations run in the same pool of threads
+     */
+    public SchedulingStrategy getSchedulingStrategy() {
+        return new SchedulingStrategy() {
+            @Override
+            public void schedule(AsynchronousValidationRequest revalidationRequest) {
+                executor.execute(revalidationRequest);
+            }
+
+            @Override
+            public void close() {
+                executor.shutdown();
+            }
+        };
+    }
+
+    public ClientExecChain wrapCachingHttpClient(final ClientExecChain wrapped) {
+        return new ClientExecChain() {
+            @Override
+            public CloseableHttpResponse execute(HttpRoute route, HttpRequestWrapper request,
+                    HttpClientContext httpClientContext, HttpExecutionAware execAware) throws IOException,
+                    HttpException {
+                CloseableHttpResponse response = wrapped.execute(route, request, httpClientContext, execAware);
+                Object cacheResponseStatus = httpClientContext.getAttribute(HttpCacheContext.CACHE_RESPONSE_STATUS);
+                if ("GET".equalsIgnoreCase(request.getRequestLine().getMethod())
+                        && cacheResponseStatus == CacheResponseStatus.CACHE_HIT
+                        && ThreadLocalRandom.current().nextDouble() < getRefreshProbability(response, earlyRefresh)) {
+                    refresh(wrapped, route, request, httpClientContext, getKey(route, request, response));
+                }
+                return response;
+            }
+        };
+    }
+
+    private void refresh(final ClientExecChain wrapped, final HttpRoute route, final HttpRequestWrapper request,
+            HttpClientContext httpClientContext, final String key) {
+        if (!refreshing.add(key)) {
+            // Already being refreshed
+            return;
+        }
+        // Attributes set during the revalidation must not be visible to the current request
+        final HttpClientContext context = HttpClientContext.adapt(new BasicHttpContext(httpClientContext));
+        final HttpRequestWrapper refreshRequest = HttpRequestWrapper.wrap(request.getOriginal(), request.getTarget());
+        // Same URI as the current request, as normalized for the cache key
+        refreshRequest.setURI(request.getURI());
+        // Same headers as the current request, including those added by the protocol layer, except Via that the cache
+        // adds again
+        refreshRequest.setHeaders(request.getAllHeaders());
+        refreshRequest.removeHeaders(HttpHeaders.VIA);
+        // Makes the cache revalidate the entry even though it is still fresh
+        refreshRequest.setHeader(HttpHeaders.CACHE_CONTROL, "max-age=0");
+        try {
+            executor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    try (CloseableHttpResponse response = wrapped.execute(route, refreshRequest, context, null)) {
+                        EntityUtils.consume(response.getEntity());
+                    } catch (IOException | HttpException | RuntimeException e) {
+                        errors.inc();
+                        LOG.warn("Early refresh of {} failed", key, e);
+                    } finally {
+                        refreshing.remove(key);
+                    }
+                }
+            });
+            triggered.inc();
+            LOG.debug("Early refresh of {}", key);
+        } catch (RejectedExecutionException e) {
+            refreshing.remove(key);
+            rejected.inc();
+            LOG.debug("Early refresh of {} rejected, revalidation queue is full", key);
+        }
+    }
+
+    /**
+     * The entries with a Vary header are refreshed separately for each variant.
+     */
+    private static String getKey(HttpRoute route, HttpRequest request, HttpResponse response) {
+        StringBuilder key = new StringBuilder(route.getTargetHost().toURI());
+        key.append(request.getRequestLine().getUri());
+        for (Header vary : response.getHeaders(HttpHeaders.VARY)) {
+            for (HeaderElement element : vary.getElements()) {
+                key.append('\n').append(element.getName()).append(':');
+                for (Header header : request.getHeaders(element.getName())) {
+                    key.append(header.getValue()).append(',');
+                }
+            }
+        }
+        return key.toString();
+    }
+
+    /**
+     * @param response
+     *            a response served by the cache, with an Age header
+     * @param earlyRefresh
+     *            the percentage of the freshness lifetime at the end of which the entry may be refreshed
+     * @return the probability that the entry should be refreshed now
+     */
+    static double getRefreshProbability(HttpResponse response, int earlyRefresh) {
+        long lifetime = getFreshnessLifetime(response);
+        if (lifetime <= 0) {
+            return 0;
+        }
+        long age = 0;
+        Header ageHeader = response.getFirstHeader(HttpHeaders.AGE);
+        if (ageHeader != null) {
+            try {
+                age = Long.parseLong(ageHeader.getValue());
+            } catch (NumberFormatException e) {
+                return 0;
+            }
+        }
+        long remaining = lifetime - age;
+        double period = lifetime * earlyRefresh / 100d;
+        if (remaining <= 0 || remaining >= period) {
+            // Expired entries are already revalidated by the cache
+            return 0;
+        }
+        double elapsed = 1 - remaining / period;
+        return elapsed * elapsed;
+    }
+
+    /**
+     * @return the freshness lifetime of the response in seconds, or 0 if it cannot be determined
+     */
+    private static long getFreshnessLifetime(HttpResponse response) {
+        long maxAge = -1;
+        for (Header header : response.getHeaders(HttpHeaders.CACHE_CONTROL)) {
+            for (HeaderElement element : header.getElements()) {
+                if ("s-maxage".equalsIgnoreCase(element.getName())
+                        || ("max-age".equalsIgnoreCase(element.getName()) && maxAge < 0)) {
+                    try {
+                        maxAge = Long.parseLong(element.getValue());
+                    } catch (NumberFormatException e) {
+                        return 0;
+                    }
+                }
+            }
+        }
+        if (maxAge >= 0) {
+            return maxAge;
+        }
+        Header dateHeader = response.getFirstHeader(HttpHeaders.DATE);
+        Header expiresHeader = response.getFirstHeader(HttpHeaders.EXPIRES);
+        if (dateHeader == null || expiresHeader == null) {
+            return 0;
+        }
+        Date date = DateUtils.parseDate(dateHeader.getValue());
+        Date expires = DateUtils.parseDate(expiresHeader.getValue());
+        if (date == null || expires == null) {
+            return 0;
+        }
+        return (expires.getTime() - date.getTime()) / 1000;
+    }
+
+    @Override
+    public Map<String, Metric> getMetrics() {
+        Map<String, Metric> metrics = new HashMap<>();
+        metrics.put("triggered", triggered);
+        metrics.put("rejected", rejected);
+        metrics.put("errors", errors);
+        metrics.put("inprogress", new Gauge<Integer>() {
+            @Override
+            public Integer getValue() {
+                return refreshing.size();
+            }
+        });
+        return metrics;
+    }
+
+}
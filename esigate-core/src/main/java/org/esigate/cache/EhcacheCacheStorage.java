@@ -25,13 +25,19 @@ import org.esigate.Parameters;
 
 public class EhcacheCacheStorage extends CacheStorage {
     public static final String DEFAULT_CACHE_NAME = "EsiGate";
+    // The cache manager is a singleton shared by all the storages
+    private static int users;
+    private CacheManager cacheManager;
 
     @Override
     public void init(Properties properties) {
         String cacheName = Parameters.EHCACHE_CACHE_NAME_PROPERTY.getValue(properties);
         String configurationFileName = Parameters.EHCACHE_CONFIGURATION_FILE_PROPERTY.getValue(properties);
         // Loaded from the Classpath, default will use /ehcache.xml or if not found /ehcache-failsafe.xml
-        CacheManager cacheManager = CacheManager.create(configurationFileName);
+        synchronized (EhcacheCacheStorage.class) {
+            cacheManager = CacheManager.create(configurationFileName);
+            users++;
+        }
         Ehcache ehcache = cacheManager.getEhcache(cacheName);
         if (ehcache == null) {
             cacheManager.addCache(cacheName);
@@ -41,4 +47,17 @@ public class EhcacheCacheStorage extends CacheStorage {
         setImpl(new EhcacheHttpCacheStorage(ehcache, cacheConfig));
     }
 
+    /**
+     * Shuts the cache manager down when the last storage using it is closed.
+     */
+    @Override
+    public void close() {
+        synchronized (EhcacheCacheStorage.class) {
+            if (cacheManager != null && --users == 0) {
+                cacheManager.shutdown();
+            }
+            cacheManager = null;
+        }
+    }
+
 }
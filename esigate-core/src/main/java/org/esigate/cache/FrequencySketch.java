@@ -0,0 +1,106 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package org.esigate.cache;
+
+/**
+ * Count-min sketch estimating how often keys have been requested recently, with 4 bits counters that are halved
+ * periodically so that old popularity fades away. Not thread safe.
+ */
+final class FrequencySketch {
+    private static final int[] SEEDS = {0x97cb3127, 0x5f356495, 0x7b6d8a11, 0xc2b2ae35};
+    private static final int MAX_COUNT = 15;
+    private static final int MAX_WIDTH = 1 << 22;
+
+    private final byte[][] table = new byte[SEEDS.length][];
+    private final int mask;
+    private final int sampleSize;
+    private int additions;
+
+    /**
+     * @param expectedEntries
+     *            the number of keys expected to be tracked
+     */
+    FrequencySketch(long expectedEntries) {
+        // 4 counters per row and per entry keep the collisions low
+        int width = 16;
+        while (width < 4 * expectedEntries && width < MAX_WIDTH) {
+            width <<= 1;
+        }
+        for (int i = 0; i < table.length; i++) {
+            table[i] = new byte[width];
+        }
+        mask = width - 1;
+        sampleSize = 10 * Math.max(width / 4, 1);
+    }
+
+    /**
+     * @param key
+     *            the key
+     * @return the estimated number of recent requests for the key, at most 15
+     */
+    int frequency(String key) {
+        int hash = spread(key.hashCode());
+        int result = MAX_COUNT;
+        for (int i = 0; i < table.length; i++) {
+            result = Math.min(result, table[i][index(hash, i)]);
+        }
+        return result;
+    }
+
+    /**
+     * Records a request for the key.
+     * 
+     * @param key
+     *            the key
+     */
+    void increment(String key) {
+        int hash = spread(key.hashCode());
+        int frequency = frequency(key);
+        if (frequency == MAX_COUNT) {
+            return;
+        }
+        // Conservative update: only the smallest counters are incremented
+        for (int i = 0; i < table.length; i++) {
+            int index = index(hash, i);
+            if (table[i][index] == frequency) {
+                table[i][index]++;
+            }
+        }
+        if (++additions >= sampleSize) {
+            reset();
+        }
+    }
+
+    private void reset() {
+        for (byte[] row : table) {
+            for (int i = 0; i < row.length; i++) {
+                row[i] = (byte) (row[i] >>> 1);
+            }
+        }
+        additions /= 2;
+    }
+
+    private int index(int hash, int row) {
+        int h = hash * SEEDS[row];
+        h ^= h >>> 16;
+        return h & mask;
+    }
+
+    private static int spread(int hashCode) {
+        int h = hashCode * 0x9e3779b9;
+        return h ^ (h >>> 15);
+    }
+
+}
@@ -0,0 +1,54 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package org.esigate.cache;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Properties;
+
+import org.esigate.ConfigurationException;
+import org.esigate.Parameters;
+
+/**
+ * Cache storage keeping the entries in memory-mapped files, see {@link MappedHttpCacheStorage}. The cache can be much
+ * larger than the heap and is still available after a restart.
+ * <p>
+ * Configuration properties:
+ * <ul>
+ * <li>mappedCache.directory : directory of the cache files, mandatory</li>
+ * <li>mappedCache.segmentSize : size of each cache file in bytes, also the maximum size of an entry. Default is 64 MB.</li>
+ * <li>mappedCache.maxSize : maximum total size of the cache files in bytes. Default is 1 GB.</li>
+ * </ul>
+ */
+public class MappedFileCacheStorage extends CacheStorage {
+
+    @Override
+    public void init(Properties properties) {
+        String directory = Parameters.MAPPED_CACHE_DIRECTORY.getValue(properties);
+        if (directory == null) {
+            throw new ConfigurationException("No directory defined for the cache. Property '"
+                    + Parameters.MAPPED_CACHE_DIRECTORY + "' must be defined.");
+        }
+        int segmentSize = Parameters.MAPPED_CACHE_SEGMENT_SIZE.getValue(properties);
+        long maxSize = Parameters.MAPPED_CACHE_MAX_SIZE.getValue(properties);
+        try {
+            setImpl(MappedHttpCacheStorage.open(new File(directory), segmentSize, maxSize));
+        } catch (IOException e) {
+            throw new ConfigurationException("Could not open cache directory " + directory, e);
+        }
+    }
+
+}
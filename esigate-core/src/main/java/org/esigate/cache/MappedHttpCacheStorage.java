@@ -0,0 +1,540 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package org.esigate.cache;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FilenameFilter;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.ObjectStreamException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.channels.OverlappingFileLockException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.zip.CRC32;
+
+import org.apache.commons.io.IOUtils;
+import org.apache.http.Header;
+import org.apache.http.ProtocolVersion;
+import org.apache.http.client.cache.HttpCacheEntry;
+import org.apache.http.client.cache.HttpCacheStorage;
+import org.apache.http.client.cache.HttpCacheUpdateCallback;
+import org.apache.http.client.cache.Resource;
+import org.apache.http.impl.client.cache.HeapResource;
+import org.apache.http.message.BasicHeader;
+import org.apache.http.message.BasicStatusLine;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * {@link HttpCacheStorage} writing the entries to memory-mapped segment files, with only an index of the entries kept
+ * in the heap.
+ * <p>
+ * Segments are written sequentially: each put appends a record to the current segment, and a remove appends a
+ * tombstone. When the total size of the segments exceeds the maximum size, the oldest segment is deleted with the
+ * entries it contains. Bodies are read directly from the mapped files when the response is sent.
+ * <p>
+ * On startup the existing segments are read again to rebuild the index, so the cache is still warm after a restart.
+ * Records are checked with a CRC, a truncated or corrupt record ends the segment.
+ */
+final class MappedHttpCacheStorage implements HttpCacheStorage, Closeable {
+    private static final Logger LOG = LoggerFactory.getLogger(MappedHttpCacheStorage.class);
+    private static final String SEGMENT_PREFIX = "segment-";
+    private static final String SEGMENT_SUFFIX = ".dat";
+    private static final int MAGIC = 0x45534731;
+    // magic, length, crc
+    private static final int RECORD_HEADER_SIZE = 12;
+    private static final byte TYPE_ENTRY = 1;
+    private static final byte TYPE_REMOVED = 2;
+
+    /**
+     * A segment file, mapped in memory.
+     */
+    private static final class Segment {
+        private final long id;
+        private final File file;
+        private final MappedByteBuffer buffer;
+        private int end;
+
+        private Segment(long id, File file, MappedByteBuffer buffer) {
+            this.id = id;
+            this.file = file;
+            this.buffer = buffer;
+        }
+    }
+
+    /**
+     * Position of the record of an entry.
+     */
+    private static final class Location {
+        private final Segment segment;
+        private final int offset;
+        private final int length;
+
+        private Location(Segment segment, int offset, int length) {
+            this.segment = segment;
+            this.offset = offset;
+            this.length = length;
+        }
+    }
+
+    /**
+     * Reads a ByteBuffer without changing its position.
+     */
+    private static final class ByteBufferInputStream extends InputStream {
+        private final ByteBuffer in;
+
+        private ByteBufferInputStream(ByteBuffer buffer) {
+            this.in = buffer;
+        }
+
+        @Override
+        public int read() {
+            return in.hasRemaining() ? in.get() & 0xFF : -1;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) {
+            if (!in.hasRemaining()) {
+                return -1;
+            }
+            int n = Math.min(len, in.remaining());
+            in.get(b, off, n);
+            return n;
+        }
+
+        @Override
+        public int available() {
+            return in.remaining();
+        }
+    }
+
+    /**
+     * Body of an entry read from a mapped segment. It is copied to the heap if the entry is serialized.
+     */
+    private static final class MappedResource implements Resource {
+        private static final long serialVersionUID = 1L;
+        private final transient ByteBuffer body;
+
+        private MappedResource(ByteBuffer body) {
+            this.body = body;
+        }
+
+        @Override
+        public InputStream getInputStream() {
+            return new ByteBufferInputStream(body.duplicate());
+        }
+
+        @Override
+        public long length() {
+            return body.remaining();
+        }
+
+        @Override
+        public void dispose() {
+            // The segment is released when it is deleted
+        }
+
+        private Object writeReplace() throws ObjectStreamException {
+            byte[] bytes = new byte[body.remaining()];
+            body.duplicate().get(bytes);
+            return new HeapResource(bytes);
+        }
+    }
+
+    // Storages already opened in this JVM, by directory: the lock of a directory cannot be acquired twice
+    private static final Map<String, MappedHttpCacheStorage> OPENED = new HashMap<>();
+
+    private final File directory;
+    private final int segmentSize;
+    private final int maxSegments;
+    private final Map<String, Location> index = new ConcurrentHashMap<>();
+    private final List<Segment> segments = new ArrayList<>();
+    private final RandomAccessFile lockFile;
+    private final FileLock lock;
+    private Segment current;
+    // Number of calls to open not followed yet by a call to close, guarded by OPENED
+    private int users;
+    private boolean closed;
+
+    /**
+     * Opens the storage of a directory, or returns the storage already opened for this directory, for instance by the
+     * previous configuration of the driver. A storage already opened cannot be resized: it is rejected if the sizes
+     * differ. The storage is really closed when each call to this method has been followed by a call to
+     * {@link #close()}.
+     * 
+     * @param directory
+     *            the directory of the segment files
+     * @param segmentSize
+     *            the size of each segment file in bytes, also the maximum size of an entry
+     * @param maxSize
+     *            the maximum total size of the segment files in bytes
+     * @return the storage
+     * @throws IOException
+     *             if the directory cannot be used or is already opened with other sizes
+     */
+    static MappedHttpCacheStorage open(File directory, int segmentSize, long maxSize) throws IOException {
+        String path = directory.getCanonicalPath();
+        synchronized (OPENED) {
+            MappedHttpCacheStorage storage = OPENED.get(path);
+            if (storage == null) {
+                storage = new MappedHttpCacheStorage(directory, segmentSize, maxSize);
+                OPENED.put(path, storage);
+            } else if (storage.segmentSize != segmentSize || storage.maxSegments != maxSegments(segmentSize, maxSize)) {
+                LOG.error("Cache directory {} is already opened with segment size {} and max size {}, cannot reopen it"
+                        + " with segment size {} and max size {} before it is closed", directory, storage.segmentSize,
+                        (long) storage.segmentSize * storage.maxSegments, segmentSize, maxSize);
+                throw new IOException("Directory " + directory + " is already used by a cache storage with other sizes");
+            }
+            storage.users++;
+            return storage;
+        }
+    }
+
+    /**
+     * @param directory
+     *            the directory of the segment files, it must not be used by another storage
+     * @param segmentSize
+     *            the size of each segment file in bytes, also the maximum size of an entry
+     * @param maxSize
+     *            the maximum total size of the segment files in bytes
+     * @throws IOException
+     *             if the directory cannot be used
+     */
+    MappedHttpCacheStorage(File directory, int segmentSize, long maxSize) throws IOException {
+        if (!directory.isDirectory() && !directory.mkdirs()) {
+            throw new IOException("Could not create directory " + directory);
+        }
+        this.directory = directory;
+        this.segmentSize = segmentSize;
+        this.maxSegments = maxSegments(segmentSize, maxSize);
+        this.lockFile = new RandomAccessFile(new File(directory, "lock"), "rw");
+        FileLock fileLock;
+        try {
+            fileLock = lockFile.getChannel().tryLock();
+        } catch (OverlappingFileLockException e) {
+            // Already locked by this JVM
+            fileLock = null;
+        }
+        this.lock = fileLock;
+        if (lock == null) {
+            lockFile.close();
+            throw new IOException("Directory " + directory + " is already used by another cache storage");
+        }
+        load();
+    }
+
+    private void load() throws IOException {
+        String[] names = directory.list(new FilenameFilter() {
+            @Override
+            public boolean accept(File dir, String name) {
+                return name.startsWith(SEGMENT_PREFIX) && name.endsWith(SEGMENT_SUFFIX);
+            }
+        });
+        List<Long> ids = new ArrayList<>();
+        for (String name : names) {
+            try {
+                ids.add(Long.valueOf(name.substring(SEGMENT_PREFIX.length(), name.length() - SEGMENT_SUFFIX.length())));
+            } catch (NumberFormatException e) {
+                LOG.warn("Ignoring file {} in cache directory {}", name, directory);
+            }
+        }
+        Collections.sort(ids);
+        for (Long id : ids) {
+            Segment segment = map(id);
+            segments.add(segment);
+            scan(segment);
+        }
+        while (segments.size() > maxSegments) {
+            deleteOldestSegment();
+        }
+        if (segments.isEmpty()) {
+            current = newSegment(0);
+        } else {
+            current = segments.get(segments.size() - 1);
+        }
+        LOG.info("Loaded {} cache entries from {}", index.size(), directory);
+    }
+
+    private Segment map(long id) throws IOException {
+        File file = new File(directory, SEGMENT_PREFIX + id + SEGMENT_SUFFIX);
+        try (RandomAccessFile raf = new RandomAccessFile(file, "rw")) {
+            if (raf.length() != segmentSize) {
+                raf.setLength(segmentSize);
+            }
+            // The mapping remains valid after the file is closed
+            MappedByteBuffer buffer = raf.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, segmentSize);
+            return new Segment(id, file, buffer);
+        }
+    }
+
+    private Segment newSegment(long id) throws IOException {
+        Segment segment = map(id);
+        segments.add(segment);
+        while (segments.size() > maxSegments) {
+            deleteOldestSegment();
+        }
+        return segment;
+    }
+
+    private void deleteOldestSegment() {
+        Segment oldest = segments.remove(0);
+        Iterator<Location> iterator = index.values().iterator();
+        while (iterator.hasNext()) {
+            if (iterator.next().segment == oldest) {
+                iterator.remove();
+            }
+        }
+        if (!oldest.file.delete()) {
+            LOG.warn("Could not delete cache segment {}", oldest.file);
+        }
+    }
+
+    /**
+     * Rebuilds the index from the records of a segment and finds the end of the segment.
+     */
+    private void scan(Segment segment) {
+        ByteBuffer buffer = segment.buffer.duplicate();
+        int position = 0;
+        while (position + RECORD_HEADER_SIZE <= segmentSize) {
+            buffer.position(position);
+            int magic = buffer.getInt();
+            int length = buffer.getInt();
+            int crc = buffer.getInt();
+            int dataStart = position + RECORD_HEADER_SIZE;
+            if (magic != MAGIC || length <= 0 || length > segmentSize - dataStart) {
+                break;
+            }
+            ByteBuffer data = segment.buffer.duplicate();
+            data.position(dataStart);
+            data.limit(dataStart + length);
+            byte[] bytes = new byte[length];
+            data.get(bytes);
+            if (crc != crc(bytes)) {
+                LOG.warn("Corrupt record in cache segment {} at {}", segment.file, position);
+                break;
+            }
+            try {
+                DataInputStream in = new DataInputStream(new ByteArrayInputStream(bytes));
+                byte type = in.readByte();
+                String key = in.readUTF();
+                if (type == TYPE_REMOVED) {
+                    index.remove(key);
+                } else {
+                    index.put(key, new Location(segment, dataStart, length));
+                }
+            } catch (IOException e) {
+                LOG.warn("Invalid record in cache segment {} at {}", segment.file, position);
+                break;
+            }
+            position = dataStart + length;
+        }
+        segment.end = position;
+    }
+
+    private static int crc(byte[] bytes) {
+        CRC32 crc = new CRC32();
+        crc.update(bytes);
+        return (int) crc.getValue();
+    }
+
+    @Override
+    public void putEntry(String key, HttpCacheEntry entry) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bytes);
+        out.writeByte(TYPE_ENTRY);
+        out.writeUTF(key);
+        out.writeLong(entry.getRequestDate().getTime());
+        out.writeLong(entry.getResponseDate().getTime());
+        ProtocolVersion protocolVersion = entry.getProtocolVersion();
+        out.writeUTF(protocolVersion.getProtocol());
+        out.writeInt(protocolVersion.getMajor());
+        out.writeInt(protocolVersion.getMinor());
+        out.writeInt(entry.getStatusCode());
+        out.writeBoolean(entry.getReasonPhrase() != null);
+        out.writeUTF(entry.getReasonPhrase() == null ? "" : entry.getReasonPhrase());
+        Header[] headers = entry.getAllHeaders();
+        out.writeInt(headers.length);
+        for (Header header : headers) {
+            out.writeUTF(header.getName());
+            out.writeUTF(header.getValue());
+        }
+        Map<String, String> variants = entry.getVariantMap();
+        out.writeInt(variants.size());
+        for (Map.Entry<String, String> variant : variants.entrySet()) {
+            out.writeUTF(variant.getKey());
+            out.writeUTF(variant.getValue());
+        }
+        out.writeUTF(entry.getRequestMethod());
+        Resource resource = entry.getResource();
+        if (resource == null) {
+            out.writeInt(-1);
+        } else {
+            long length = resource.length();
+            out.writeInt((int) length);
+            try (InputStream in = resource.getInputStream()) {
+                if (IOUtils.copyLarge(in, out) != length) {
+                    throw new IOException("Invalid resource length for " + key);
+                }
+            }
+        }
+        out.flush();
+        write(key, bytes.toByteArray());
+    }
+
+    @Override
+    public HttpCacheEntry getEntry(String key) throws IOException {
+        Location location = index.get(key);
+        if (location == null) {
+            return null;
+        }
+        ByteBuffer record = location.segment.buffer.duplicate();
+        record.position(location.offset);
+        record.limit(location.offset + location.length);
+        DataInputStream in = new DataInputStream(new ByteBufferInputStream(record));
+        in.readByte();
+        in.readUTF();
+        Date requestDate = new Date(in.readLong());
+        Date responseDate = new Date(in.readLong());
+        ProtocolVersion protocolVersion = new ProtocolVersion(in.readUTF(), in.readInt(), in.readInt());
+        int statusCode = in.readInt();
+        boolean hasReason = in.readBoolean();
+        String reason = in.readUTF();
+        int headerCount = in.readInt();
+        Header[] headers = new Header[headerCount];
+        for (int i = 0; i < headerCount; i++) {
+            headers[i] = new BasicHeader(in.readUTF(), in.readUTF());
+        }
+        int variantCount = in.readInt();
+        Map<String, String> variants = new HashMap<>();
+        for (int i = 0; i < variantCount; i++) {
+            variants.put(in.readUTF(), in.readUTF());
+        }
+        String requestMethod = in.readUTF();
+        int bodyLength = in.readInt();
+        Resource resource = null;
+        if (bodyLength >= 0) {
+            // The rest of the record, read without copy
+            resource = new MappedResource(record.slice());
+        }
+        return new HttpCacheEntry(requestDate, responseDate, new BasicStatusLine(protocolVersion, statusCode,
+                hasReason ? reason : null), headers, resource, variants, requestMethod);
+    }
+
+    @Override
+    public synchronized void removeEntry(String key) throws IOException {
+        if (index.remove(key) != null) {
+            write(null, tombstone(key));
+        }
+    }
+
+    private static byte[] tombstone(String key) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bytes);
+        out.writeByte(TYPE_REMOVED);
+        out.writeUTF(key);
+        out.flush();
+        return bytes.toByteArray();
+    }
+
+    @Override
+    public synchronized void updateEntry(String key, HttpCacheUpdateCallback callback) throws IOException {
+        HttpCacheEntry updated = callback.update(getEntry(key));
+        if (updated == null) {
+            removeEntry(key);
+        } else {
+            putEntry(key, updated);
+        }
+    }
+
+    private synchronized void write(String key, byte[] data) throws IOException {
+        int recordSize = RECORD_HEADER_SIZE + data.length;
+        if (recordSize > segmentSize) {
+            LOG.debug("Entry {} is too big for the cache segments", key);
+            // Do not keep the previous version
+            removeEntry(key);
+            return;
+        }
+        if (current.end + recordSize > segmentSize) {
+            current = newSegment(current.id + 1);
+        }
+        int position = current.end;
+        ByteBuffer buffer = current.buffer.duplicate();
+        buffer.position(position + 4);
+        buffer.putInt(data.length);
+        buffer.putInt(crc(data));
+        buffer.put(data);
+        // Written last so that an interrupted write is ignored on restart
+        current.buffer.putInt(position, MAGIC);
+        current.end = position + recordSize;
+        if (key != null) {
+            index.put(key, new Location(current, position + RECORD_HEADER_SIZE, data.length));
+        }
+    }
+
+    private static int maxSegments(int segmentSize, long maxSize) {
+        return (int) Math.max(2, maxSize / segmentSize);
+    }
+
+    /**
+     * @return the number of entries
+     */
+    int size() {
+        return index.size();
+    }
+
+    /**
+     * Writes the segments to disk and releases the directory, unless the storage is still used by another driver.
+     */
+    @Override
+    public void close() throws IOException {
+        synchronized (OPENED) {
+            users--;
+            if (users > 0 || closed) {
+                return;
+            }
+            closed = true;
+            OPENED.values().remove(this);
+        }
+        synchronized (this) {
+            for (Segment segment : segments) {
+                segment.buffer.force();
+            }
+            lock.release();
+            lockFile.close();
+        }
+    }
+
+    @Override
+    public String toString() {
+        return "MappedHttpCacheStorage[" + directory + "]";
+    }
+}
@@ -31,6 +31,8 @@ import org.esigate.ConfigurationException;
 import org.esigate.Parameters;
 
 public class MemcachedCacheStorage extends CacheStorage {
+    private MemcachedClient memcachedClient;
+
     @Override
     public void init(Properties properties) {
         Collection<String> serverStringList = Parameters.MEMCACHED_SERVERS_PROPERTY.getValue(properties);
@@ -54,7 +56,6 @@ public class MemcachedCacheStorage extends CacheStorage {
                         + "'. Each server must be in format 'host:port'. Port must be an integer.", e);
             }
         }
-        MemcachedClient memcachedClient;
         try {
             memcachedClient = new MemcachedClient(servers);
         } catch (IOException e) {
@@ -64,4 +65,10 @@ public class MemcachedCacheStorage extends CacheStorage {
         setImpl(new MemcachedHttpCacheStorage(memcachedClient, cacheConfig, new MemcachedCacheEntryFactoryImpl(),
                 new SHA256KeyHashingScheme()));
     }
+
+    @Override
+    public void close() {
+        memcachedClient.shutdown();
+    }
+
 }
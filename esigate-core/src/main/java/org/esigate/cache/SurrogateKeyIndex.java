@@ -0,0 +1,302 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package org.esigate.cache;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+
+import javax.management.JMException;
+import javax.management.ObjectName;
+
+import org.apache.http.Header;
+import org.apache.http.client.cache.HttpCacheEntry;
+import org.apache.http.client.cache.HttpCacheStorage;
+import org.apache.http.client.cache.HttpCacheUpdateCallback;
+import org.apache.http.client.cache.HttpCacheUpdateException;
+import org.esigate.util.RegisteredMBean;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * {@link HttpCacheStorage} decorator indexing the cache entries by URL and by the surrogate keys found in their
+ * "Surrogate-Key" (space separated) and "Cache-Tag" (comma separated) headers, so that groups of entries can be purged
+ * at once.
+ * <p>
+ * The index is bounded: when it is full, the oldest entry is removed from the cache too, so that an entry written by
+ * this index is never left out of it.
+ * <p>
+ * The index is kept in memory and only knows the entries written through it since the provider was created. With a
+ * persistent or shared storage, entries written before a restart or by other nodes are not purged.
+ */
+public final class SurrogateKeyIndex implements HttpCacheStorage, SurrogateKeyIndexMBean {
+    private static final Logger LOG = LoggerFactory.getLogger(SurrogateKeyIndex.class);
+    private static final String OBJECT_NAME = "org.esigate:type=SurrogateKeyIndex,name=";
+    private static final String[] TAG_HEADERS = {"Surrogate-Key", "Cache-Tag"};
+    private static final String[] NO_TAGS = {};
+
+    private final String name;
+    private final HttpCacheStorage storage;
+    private final int maxEntries;
+    // Insertion order, oldest first
+    private final Map<String, String[]> keys = new LinkedHashMap<>();
+    private final Map<String, Set<String>> tags = new HashMap<>();
+    private RegisteredMBean registration;
+
+    /**
+     * @param name
+     *            the name of the provider, used to register the index in the platform MBean server
+     * @param storage
+     *            the storage to index
+     * @param maxEntries
+     *            the maximum number of entries indexed
+     */
+    public SurrogateKeyIndex(String name, HttpCacheStorage storage, int maxEntries) {
+        this.name = name;
+        this.storage = storage;
+        this.maxEntries = maxEntries;
+    }
+
+    /**
+     * Registers this index in the platform MBean server, replacing any index previously registered for the same
+     * provider.
+     */
+    public void register() {
+        try {
+            registration =
+                    RegisteredMBean.register(new ObjectName(OBJECT_NAME + ObjectName.quote(name)), this,
+                            SurrogateKeyIndexMBean.class);
+        } catch (JMException | SecurityException e) {
+            LOG.warn("Could not register surrogate keys index for provider {}: {}", name, e.getMessage());
+        }
+    }
+
+    /**
+     * Unregisters this index from the platform MBean server, unless another index has been registered for the same
+     * provider since.
+     */
+    public void unregister() {
+        if (registration == null) {
+            return;
+        }
+        try {
+            registration.unregister();
+        } catch (JMException | SecurityException e) {
+            LOG.warn("Could not unregister surrogate keys index for provider {}: {}", name, e.getMessage());
+        }
+    }
+
+    @Override
+    public HttpCacheEntry getEntry(String key) throws IOException {
+        return storage.getEntry(key);
+    }
+
+    @Override
+    public void putEntry(String key, HttpCacheEntry entry) throws IOException {
+        storage.putEntry(key, entry);
+        index(key, entry);
+    }
+
+    @Override
+    public void removeEntry(String key) throws IOException {
+        storage.removeEntry(key);
+        unindex(Collections.singletonList(key));
+    }
+
+    @Override
+    public void updateEntry(String key, final HttpCacheUpdateCallback callback) throws IOException,
+            HttpCacheUpdateException {
+        final HttpCacheEntry[] updated = new HttpCacheEntry[1];
+        storage.updateEntry(key, new HttpCacheUpdateCallback() {
+
+            @Override
+            public HttpCacheEntry update(HttpCacheEntry existing) throws IOException {
+                updated[0] = callback.update(existing);
+                return updated[0];
+            }
+        });
+        if (updated[0] != null) {
+            index(key, updated[0]);
+        }
+    }
+
+    @Override
+    public int purgeTag(String tag) {
+        List<String> purged;
+        synchronized (this) {
+            Set<String> tagged = tags.get(tag);
+            if (tagged == null) {
+                return 0;
+            }
+            purged = new ArrayList<>(tagged);
+        }
+        return purge(purged);
+    }
+
+    @Override
+    public int purgePrefix(String prefix) {
+        String normalizedPrefix = normalize(prefix);
+        boolean pathOnly = normalizedPrefix.startsWith("/");
+        List<String> purged = new ArrayList<>();
+        synchronized (this) {
+            for (String key : keys.keySet()) {
+                String url = normalize(key);
+                if (pathOnly) {
+                    url = getPath(url);
+                }
+                if (url.startsWith(normalizedPrefix)) {
+                    purged.add(key);
+                }
+            }
+        }
+        return purge(purged);
+    }
+
+    @Override
+    public synchronized int getSize() {
+        return keys.size();
+    }
+
+    private int purge(List<String> purged) {
+        // Storage may be remote, do not hold the lock while calling it
+        for (String key : purged) {
+            try {
+                storage.removeEntry(key);
+            } catch (IOException e) {
+                LOG.warn("Could not purge {}: {}", key, e.getMessage());
+            }
+        }
+        unindex(purged);
+        LOG.info("Purged {} entries from provider {}", purged.size(), name);
+        return purged.size();
+    }
+
+    private void index(String key, HttpCacheEntry entry) {
+        List<String> evicted = new ArrayList<>();
+        synchronized (this) {
+            remove(key);
+            String[] entryTags = getTags(entry);
+            keys.put(key, entryTags);
+            for (String tag : entryTags) {
+                Set<String> tagged = tags.get(tag);
+                if (tagged == null) {
+                    tagged = new HashSet<>();
+                    tags.put(tag, tagged);
+                }
+                tagged.add(key);
+            }
+            Iterator<String> oldest = keys.keySet().iterator();
+            while (keys.size() - evicted.size() > maxEntries) {
+                evicted.add(oldest.next());
+            }
+            for (String evictedKey : evicted) {
+                remove(evictedKey);
+            }
+        }
+        if (!evicted.isEmpty()) {
+            purge(evicted);
+        }
+    }
+
+    private synchronized void unindex(List<String> removed) {
+        for (String key : removed) {
+            remove(key);
+        }
+    }
+
+    private void remove(String key) {
+        String[] entryTags = keys.remove(key);
+        if (entryTags != null) {
+            for (String tag : entryTags) {
+                Set<String> tagged = tags.get(tag);
+                if (tagged != null && tagged.remove(key) && tagged.isEmpty()) {
+                    tags.remove(tag);
+                }
+            }
+        }
+    }
+
+    private static String[] getTags(HttpCacheEntry entry) {
+        Set<String> result = null;
+        for (String headerName : TAG_HEADERS) {
+            for (Header header : entry.getHeaders(headerName)) {
+                for (String tag : header.getValue().split("[\\s,]+")) {
+                    if (!tag.isEmpty()) {
+                        if (result == null) {
+                            result = new HashSet<>();
+                        }
+                        result.add(tag);
+                    }
+                }
+            }
+        }
+        return result == null ? NO_TAGS : result.toArray(new String[result.size()]);
+    }
+
+    /**
+     * Removes from a cache key the variant part and the default port so that it can be compared to a URL.
+     * 
+     * @param key
+     *            a cache key or a URL
+     * @return the normalized URL
+     */
+    static String normalize(String key) {
+        String url = key;
+        if (url.startsWith("{")) {
+            int end = url.indexOf('}');
+            if (end >= 0) {
+                url = url.substring(end + 1);
+            }
+        }
+        int schemeEnd = url.indexOf("://");
+        if (schemeEnd < 0) {
+            return url;
+        }
+        int authorityEnd = url.indexOf('/', schemeEnd + 3);
+        if (authorityEnd < 0) {
+            authorityEnd = url.length();
+        }
+        String scheme = url.substring(0, schemeEnd).toLowerCase(Locale.ENGLISH);
+        String authority = url.substring(schemeEnd + 3, authorityEnd).toLowerCase(Locale.ENGLISH);
+        if (("http".equals(scheme) && authority.endsWith(":80"))
+                || ("https".equals(scheme) && authority.endsWith(":443"))) {
+            authority = authority.substring(0, authority.lastIndexOf(':'));
+        }
+        return scheme + "://" + authority + url.substring(authorityEnd);
+    }
+
+    private static String getPath(String url) {
+        int schemeEnd = url.indexOf("://");
+        if (schemeEnd < 0) {
+            return url;
+        }
+        int authorityEnd = url.indexOf('/', schemeEnd + 3);
+        return authorityEnd < 0 ? "/" : url.substring(authorityEnd);
+    }
+
+    @Override
+    public String toString() {
+        return getClass().getSimpleName() + "(" + storage + ")";
+    }
+
+}
@@ -0,0 +1,47 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package org.esigate.cache;
+
+/**
+ * Management interface of {@link SurrogateKeyIndex}, registered in the platform MBean server as
+ * <code>org.esigate:type=SurrogateKeyIndex,name=&lt;provider&gt;</code>.
+ */
+public interface SurrogateKeyIndexMBean {
+
+    /**
+     * Removes from the cache all the entries tagged with the given surrogate key.
+     * 
+     * @param tag
+     *            the surrogate key
+     * @return the number of cache entries removed
+     */
+    int purgeTag(String tag);
+
+    /**
+     * Removes from the cache all the entries whose URL starts with the given prefix. A prefix starting with "/" is
+     * compared to the path of the URLs only, whatever the host.
+     * 
+     * @param prefix
+     *            an absolute URL or a path
+     * @return the number of cache entries removed
+     */
+    int purgePrefix(String prefix);
+
+    /**
+     * @return the number of cache entries indexed
+     */
+    int getSize();
+
+}
@@ -0,0 +1,59 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package org.esigate.cache;
+
+import java.util.Properties;
+
+import org.esigate.ConfigurationException;
+import org.esigate.Parameters;
+
+/**
+ * Cache storage keeping the most recently used entries in the heap in front of another cache storage, see
+ * {@link TieredHttpCacheStorage}. Useful with a remote storage like {@link MemcachedCacheStorage} to avoid a network
+ * round trip for the most requested entries.
+ * <p>
+ * Configuration properties:
+ * <ul>
+ * <li>tieredCache.storage : class of the other cache storage, mandatory. It is configured with the same properties.</li>
+ * <li>tieredCache.maxSize : maximum size in bytes of the entries kept in the heap. Default is 10 MB.</li>
+ * <li>tieredCache.ttl : time in milliseconds an entry is kept in the heap. Default is 5000.</li>
+ * <li>tieredCache.negativeTtl : time in milliseconds a key not found in the other storage is remembered, 0 to disable.
+ * Default is 1000.</li>
+ * </ul>
+ */
+public class TieredCacheStorage extends CacheStorage {
+
+    @Override
+    public void init(Properties properties) {
+        String storageClass = Parameters.TIERED_CACHE_STORAGE.getValue(properties);
+        if (storageClass == null) {
+            throw new ConfigurationException("No cache storage defined for the second tier. Property '"
+                    + Parameters.TIERED_CACHE_STORAGE + "' must be defined.");
+        }
+        if (TieredCacheStorage.class.getName().equals(storageClass)) {
+            throw new ConfigurationException("Property '" + Parameters.TIERED_CACHE_STORAGE
+                    + "' cannot be a tiered cache storage.");
+        }
+        Properties storageProperties = new Properties();
+        storageProperties.putAll(properties);
+        storageProperties.put(Parameters.CACHE_STORAGE.getName(), storageClass);
+        CacheStorage storage = CacheConfigHelper.createCacheStorage(storageProperties);
+        setImpl(new TieredHttpCacheStorage(storage, Parameters.TIERED_CACHE_MAX_SIZE.getValue(properties),
+                Parameters.TIERED_CACHE_TTL.getValue(properties),
+                Parameters.TIERED_CACHE_NEGATIVE_TTL.getValue(properties)));
+    }
+
+}
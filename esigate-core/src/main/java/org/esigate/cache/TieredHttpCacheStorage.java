@@ -0,0 +1,214 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package org.esigate.cache;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import org.apache.http.Header;
+import org.apache.http.client.cache.HttpCacheEntry;
+import org.apache.http.client.cache.HttpCacheStorage;
+import org.apache.http.client.cache.HttpCacheUpdateCallback;
+import org.apache.http.client.cache.HttpCacheUpdateException;
+import org.apache.http.client.cache.Resource;
+
+/**
+ * {@link HttpCacheStorage} keeping the most recently used entries of another storage in the heap for a short time.
+ * <p>
+ * Writes go through to the other storage. The entries, and the keys not found in the other storage, are kept for a
+ * limited time only as the other storage may be shared and updated by other nodes.
+ */
+final class TieredHttpCacheStorage implements HttpCacheStorage, Closeable {
+    // Rough size of the objects of an entry, excluding the headers and the body
+    private static final int ENTRY_OVERHEAD = 256;
+
+    private static final class LocalEntry {
+        private final HttpCacheEntry entry;
+        private final long expires;
+        private final long size;
+
+        private LocalEntry(HttpCacheEntry entry, long expires, long size) {
+            this.entry = entry;
+            this.expires = expires;
+            this.size = size;
+        }
+    }
+
+    private final HttpCacheStorage storage;
+    private final long maxSize;
+    private final int ttl;
+    private final int negativeTtl;
+    private final Map<String, LocalEntry> entries = new LinkedHashMap<>(16, 0.75f, true);
+    private long size;
+    // Incremented by each write so that a lookup running at the same time does not keep a stale entry
+    private long writes;
+
+    /**
+     * @param storage
+     *            the storage the entries are written to
+     * @param maxSize
+     *            the maximum size in bytes of the entries kept in the heap
+     * @param ttl
+     *            the time in milliseconds an entry is kept in the heap
+     * @param negativeTtl
+     *            the time in milliseconds a key not found in the storage is remembered, 0 to always look it up
+     */
+    TieredHttpCacheStorage(HttpCacheStorage storage, long maxSize, int ttl, int negativeTtl) {
+        this.storage = storage;
+        this.maxSize = maxSize;
+        this.ttl = ttl;
+        this.negativeTtl = negativeTtl;
+    }
+
+    @Override
+    public HttpCacheEntry getEntry(String key) throws IOException {
+        long version;
+        synchronized (this) {
+            version = writes;
+            LocalEntry localEntry = entries.get(key);
+            if (localEntry != null) {
+                if (localEntry.expires > System.currentTimeMillis()) {
+                    return localEntry.entry;
+                }
+                remove(key);
+            }
+        }
+        HttpCacheEntry entry = storage.getEntry(key);
+        synchronized (this) {
+            if (version == writes) {
+                keep(key, entry);
+            }
+        }
+        return entry;
+    }
+
+    @Override
+    public void putEntry(String key, HttpCacheEntry entry) throws IOException {
+        forget(key);
+        storage.putEntry(key, entry);
+        stored(key, entry);
+    }
+
+    @Override
+    public void removeEntry(String key) throws IOException {
+        forget(key);
+        storage.removeEntry(key);
+        stored(key, null);
+    }
+
+    @Override
+    public void updateEntry(String key, final HttpCacheUpdateCallback callback) throws IOException,
+            HttpCacheUpdateException {
+        forget(key);
+        final HttpCacheEntry[] updated = new HttpCacheEntry[1];
+        storage.updateEntry(key, new HttpCacheUpdateCallback() {
+            @Override
+            public HttpCacheEntry update(HttpCacheEntry existing) throws IOException {
+                // May be called several times if the storage has to retry
+                updated[0] = callback.update(existing);
+                return updated[0];
+            }
+        });
+        stored(key, updated[0]);
+    }
+
+    private synchronized void forget(String key) {
+        writes++;
+        remove(key);
+    }
+
+    private synchronized void stored(String key, HttpCacheEntry entry) {
+        writes++;
+        keep(key, entry);
+    }
+
+    private void keep(String key, HttpCacheEntry entry) {
+        int time = ttl;
+        if (entry == null) {
+            time = negativeTtl;
+        }
+        long entrySize = size(entry);
+        if (time <= 0 || entrySize > maxSize) {
+            remove(key);
+            return;
+        }
+        remove(key);
+        entries.put(key, new LocalEntry(entry, System.currentTimeMillis() + time, entrySize));
+        size += entrySize;
+        Iterator<LocalEntry> iterator = entries.values().iterator();
+        while (size > maxSize && iterator.hasNext()) {
+            size -= iterator.next().size;
+            iterator.remove();
+        }
+    }
+
+    private void remove(String key) {
+        LocalEntry removed = entries.remove(key);
+        if (removed != null) {
+            size -= removed.size;
+        }
+    }
+
+    /**
+     * @return the approximate heap size in bytes of an entry
+     */
+    static long size(HttpCacheEntry entry) {
+        long result = ENTRY_OVERHEAD;
+        if (entry != null) {
+            for (Header header : entry.getAllHeaders()) {
+                result += 2 * (header.getName().length() + header.getValue().length());
+            }
+            Resource resource = entry.getResource();
+            if (resource != null) {
+                result += resource.length();
+            }
+        }
+        return result;
+    }
+
+    /**
+     * @return the number of entries kept in the heap, including the keys not found
+     */
+    synchronized int size() {
+        return entries.size();
+    }
+
+    /**
+     * @return the size in bytes of the entries kept in the heap
+     */
+    synchronized long getSize() {
+        return size;
+    }
+
+    @Override
+    public void close() throws IOException {
+        synchronized (this) {
+            entries.clear();
+            size = 0;
+        }
+        if (storage instanceof Closeable) {
+            ((Closeable) storage).close();
+        }
+    }
+
+    @Override
+    public String toString() {
+        return "TieredHttpCacheStorage[" + storage + "]";
+    }
+}
@@ -0,0 +1,58 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package org.esigate.cache;
+
+import java.util.Map;
+import java.util.Properties;
+
+import org.esigate.ConfigurationException;
+import org.esigate.Parameters;
+
+import com.codahale.metrics.Metric;
+import com.codahale.metrics.MetricSet;
+
+/**
+ * In-memory cache storage bounded by the size in bytes of the entries, see {@link TinyLfuHttpCacheStorage}. Unlike
+ * {@link BasicCacheStorage}, big pages and small fragments are accounted for their real size and the entries requested
+ * only once do not evict the most popular ones.
+ * <p>
+ * Configuration properties:
+ * <ul>
+ * <li>tinyLfuCache.maxSize : maximum size in bytes of the entries. Default is 64 MB.</li>
+ * <li>tinyLfuCache.concurrencyLevel : number of independently locked segments. An entry cannot be bigger than maxSize /
+ * concurrencyLevel. Default is 16.</li>
+ * </ul>
+ */
+public class TinyLfuCacheStorage extends CacheStorage implements MetricSet {
+    private TinyLfuHttpCacheStorage storage;
+
+    @Override
+    public void init(Properties properties) {
+        long maxSize = Parameters.TINY_LFU_CACHE_MAX_SIZE.getValue(properties);
+        int concurrencyLevel = Parameters.TINY_LFU_CACHE_CONCURRENCY_LEVEL.getValue(properties);
+        if (maxSize <= 0 || concurrencyLevel <= 0) {
+            throw new ConfigurationException("Properties '" + Parameters.TINY_LFU_CACHE_MAX_SIZE + "' and '"
+                    + Parameters.TINY_LFU_CACHE_CONCURRENCY_LEVEL + "' must be positive.");
+        }
+        storage = new TinyLfuHttpCacheStorage(maxSize, concurrencyLevel);
+        setImpl(storage);
+    }
+
+    @Override
+    public Map<String, Metric> getMetrics() {
+        return storage.getMetrics();
+    }
+
+}
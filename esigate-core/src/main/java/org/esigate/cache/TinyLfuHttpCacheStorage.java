@@ -0,0 +1,253 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package org.esigate.cache;
+
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import org.apache.http.client.cache.HttpCacheEntry;
+import org.apache.http.client.cache.HttpCacheStorage;
+import org.apache.http.client.cache.HttpCacheUpdateCallback;
+
+import com.codahale.metrics.Counter;
+import com.codahale.metrics.Gauge;
+import com.codahale.metrics.Metric;
+import com.codahale.metrics.MetricSet;
+
+/**
+ * In-memory {@link HttpCacheStorage} bounded by the size in bytes of the entries, using the W-TinyLFU policy.
+ * <p>
+ * New entries go to a small LRU window. An entry leaving the window is admitted in the main LRU space only if it has
+ * been requested more often than the entries it would evict, according to a {@link FrequencySketch}. This way, a burst
+ * of URLs requested only once cannot evict the popular fragments.
+ * <p>
+ * The keys are spread over independent segments, each with its own lock, share of the size and sketch.
+ */
+final class TinyLfuHttpCacheStorage implements HttpCacheStorage, MetricSet {
+    // Share of each segment used by the window
+    private static final double WINDOW_RATIO = 0.01;
+    // Assumed average entry size, used to size the sketches
+    private static final int AVERAGE_ENTRY_SIZE = 1024;
+
+    private static final class Node {
+        private final HttpCacheEntry entry;
+        private final long size;
+
+        private Node(HttpCacheEntry entry, long size) {
+            this.entry = entry;
+            this.size = size;
+        }
+    }
+
+    private final class Segment {
+        private final Map<String, Node> window = new LinkedHashMap<>(16, 0.75f, true);
+        private final Map<String, Node> main = new LinkedHashMap<>(16, 0.75f, true);
+        private final long windowMaxSize;
+        private final long mainMaxSize;
+        private final FrequencySketch sketch;
+        private long windowSize;
+        private long mainSize;
+
+        private Segment(long maxSize) {
+            windowMaxSize = (long) (maxSize * WINDOW_RATIO);
+            mainMaxSize = maxSize - windowMaxSize;
+            sketch = new FrequencySketch(maxSize / AVERAGE_ENTRY_SIZE);
+        }
+
+        private synchronized HttpCacheEntry get(String key) {
+            sketch.increment(key);
+            Node node = window.get(key);
+            if (node == null) {
+                node = main.get(key);
+            }
+            if (node == null) {
+                misses.inc();
+                return null;
+            }
+            hits.inc();
+            return node.entry;
+        }
+
+        private synchronized void put(String key, HttpCacheEntry entry) {
+            sketch.increment(key);
+            remove(key);
+            Node node = new Node(entry, TieredHttpCacheStorage.size(entry));
+            if (node.size > windowMaxSize + mainMaxSize) {
+                rejections.inc();
+                return;
+            }
+            window.put(key, node);
+            windowSize += node.size;
+            Iterator<Map.Entry<String, Node>> eldest = window.entrySet().iterator();
+            while (windowSize > windowMaxSize) {
+                Map.Entry<String, Node> candidate = eldest.next();
+                eldest.remove();
+                windowSize -= candidate.getValue().size;
+                admit(candidate.getKey(), candidate.getValue());
+            }
+        }
+
+        private void admit(String key, Node node) {
+            int frequency = sketch.frequency(key);
+            Iterator<Map.Entry<String, Node>> eldest = main.entrySet().iterator();
+            while (mainSize + node.size > mainMaxSize) {
+                if (!eldest.hasNext()) {
+                    rejections.inc();
+                    return;
+                }
+                Map.Entry<String, Node> victim = eldest.next();
+                if (frequency <= sketch.frequency(victim.getKey())) {
+                    rejections.inc();
+                    return;
+                }
+                eldest.remove();
+                mainSize -= victim.getValue().size;
+                evictions.inc();
+            }
+            main.put(key, node);
+            mainSize += node.size;
+        }
+
+        private synchronized void update(String key, HttpCacheUpdateCallback callback) throws IOException {
+            Node node = window.get(key);
+            if (node == null) {
+                node = main.get(key);
+            }
+            HttpCacheEntry updated = callback.update(node != null ? node.entry : null);
+            if (updated != null) {
+                put(key, updated);
+            } else {
+                remove(key);
+            }
+        }
+
+        private synchronized void remove(String key) {
+            Node node = window.remove(key);
+            if (node != null) {
+                windowSize -= node.size;
+            }
+            node = main.remove(key);
+            if (node != null) {
+                mainSize -= node.size;
+            }
+        }
+
+        private synchronized long getSize() {
+            return windowSize + mainSize;
+        }
+
+        private synchronized int getCount() {
+            return window.size() + main.size();
+        }
+    }
+
+    private final Segment[] segments;
+    private final Counter hits = new Counter();
+    private final Counter misses = new Counter();
+    private final Counter evictions = new Counter();
+    private final Counter rejections = new Counter();
+
+    /**
+     * @param maxSize
+     *            the maximum size in bytes of the entries
+     * @param concurrencyLevel
+     *            the number of segments, an entry cannot be bigger than maxSize / concurrencyLevel
+     */
+    TinyLfuHttpCacheStorage(long maxSize, int concurrencyLevel) {
+        segments = new Segment[concurrencyLevel];
+        for (int i = 0; i < concurrencyLevel; i++) {
+            segments[i] = new Segment(maxSize / concurrencyLevel);
+        }
+    }
+
+    private Segment segment(String key) {
+        int h = key.hashCode();
+        h ^= h >>> 16;
+        return segments[(h & Integer.MAX_VALUE) % segments.length];
+    }
+
+    @Override
+    public HttpCacheEntry getEntry(String key) {
+        return segment(key).get(key);
+    }
+
+    @Override
+    public void putEntry(String key, HttpCacheEntry entry) {
+        segment(key).put(key, entry);
+    }
+
+    @Override
+    public void removeEntry(String key) {
+        segment(key).remove(key);
+    }
+
+    @Override
+    public void updateEntry(String key, HttpCacheUpdateCallback callback) throws IOException {
+        segment(key).update(key, callback);
+    }
+
+    /**
+     * @return the size in bytes of the entries
+     */
+    long getSize() {
+        long result = 0;
+        for (Segment segment : segments) {
+            result += segment.getSize();
+        }
+        return result;
+    }
+
+    /**
+     * @return the number of entries
+     */
+    int getCount() {
+        int result = 0;
+        for (Segment segment : segments) {
+            result += segment.getCount();
+        }
+        return result;
+    }
+
+    @Override
+    public Map<String, Metric> getMetrics() {
+        Map<String, Metric> metrics = new HashMap<>();
+        metrics.put("hits", hits);
+        metrics.put("misses", misses);
+        metrics.put("evictions", evictions);
+        metrics.put("rejections", rejections);
+        metrics.put("size", new Gauge<Long>() {
+            @Override
+            public Long getValue() {
+                return getSize();
+            }
+        });
+        metrics.put("entries", new Gauge<Integer>() {
+            @Override
+            public Integer getValue() {
+                return getCount();
+            }
+        });
+        return metrics;
+    }
+
+    @Override
+    public String toString() {
+        return "TinyLfuHttpCacheStorage[size=" + getSize() + ", entries=" + getCount() + "]";
+    }
+
+}
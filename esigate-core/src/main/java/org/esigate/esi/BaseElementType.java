@@ -15,14 +15,17 @@
 package org.esigate.esi;
 
 import org.esigate.parser.ElementType;
+import org.esigate.parser.NamedElementType;
 
-abstract class BaseElementType implements ElementType {
+abstract class BaseElementType implements ElementType, NamedElementType {
     private final String startTag;
     private final String endTag;
+    private final String tagName;
 
     protected BaseElementType(String startTag, String endTag) {
         this.startTag = startTag;
         this.endTag = endTag;
+        this.tagName = startTag.substring(1);
     }
 
     @Override
@@ -35,6 +38,11 @@ abstract class BaseElementType implements ElementType {
         return tag.startsWith(endTag);
     }
 
+    @Override
+    public final String getTagName() {
+        return tagName;
+    }
+
     @Override
     public boolean isSelfClosing(String tag) {
         Tag tagObj = Tag.create(tag);
@@ -15,16 +15,17 @@
 package org.esigate.esi;
 
 import java.io.IOException;
+import java.io.Reader;
 import java.io.Writer;
 import java.util.Map;
-import java.util.regex.Pattern;
 
 import org.apache.http.HttpStatus;
 import org.esigate.HttpErrorPage;
-import org.esigate.Parameters;
-import org.esigate.Renderer;
+import org.esigate.StreamingRenderer;
 import org.esigate.impl.DriverRequest;
+import org.esigate.parser.ElementType;
 import org.esigate.parser.Parser;
+import org.esigate.parser.TagScanner;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -37,19 +38,13 @@ import org.slf4j.LoggerFactory;
  * 
  * @author Francois-Xavier Bonnet
  */
-public class EsiRenderer implements Renderer, Appendable {
+public class EsiRenderer implements StreamingRenderer, Appendable {
 
     private static final Logger LOG = LoggerFactory.getLogger(EsiRenderer.class);
 
-    private static final Pattern PATTERN = Pattern
-            .compile("(<esi:\\w+((\\s+\\w+(\\s*=\\s*(?:\".*?\"|'.*?'|[^'\">\\s]+))?)+\\s*|\\s*)/?>)|(</esi:[^>]*>)");
-    private static final Pattern PATTERN_COMMENTS = Pattern.compile("(<!--esi)|(-->)");
-
-    private final Parser parser = new Parser(PATTERN, IncludeElement.TYPE, CommentElement.TYPE, RemoveElement.TYPE,
+    private static final ElementType[] ELEMENT_TYPES = {IncludeElement.TYPE, CommentElement.TYPE, RemoveElement.TYPE,
             VarsElement.TYPE, ChooseElement.TYPE, WhenElement.TYPE, OtherwiseElement.TYPE, TryElement.TYPE,
-            AttemptElement.TYPE, ExceptElement.TYPE, InlineElement.TYPE, ReplaceElement.TYPE, FragmentElement.TYPE);
-
-    private final Parser parserComments = new Parser(PATTERN_COMMENTS, Comment.TYPE);
+            AttemptElement.TYPE, ExceptElement.TYPE, InlineElement.TYPE, ReplaceElement.TYPE, FragmentElement.TYPE};
 
     private Writer out;
 
@@ -63,6 +58,10 @@ public class EsiRenderer implements Renderer, Appendable {
 
     private boolean found = false;
 
+    private final EsiTemplateCache templateCache;
+
+    private final String templateKey;
+
     public String getName() {
         return name;
     }
@@ -75,8 +74,23 @@ public class EsiRenderer implements Renderer, Appendable {
      * Constructor used to render a complete page.
      */
     public EsiRenderer() {
+        this((EsiTemplateCache) null, null);
+    }
+
+    /**
+     * Constructor used to render a complete page, reusing the template of the page if it was already rendered.
+     * 
+     * @param templateCache
+     *            the cache of the templates
+     * @param templateKey
+     *            the key of the template of the page as computed by {@link EsiTemplateCache#getKey}, or null if the
+     *            page must not be cached
+     */
+    public EsiRenderer(EsiTemplateCache templateCache, String templateKey) {
         page = null;
         name = null;
+        this.templateCache = templateCache;
+        this.templateKey = templateKey;
     }
 
     /**
@@ -91,6 +105,8 @@ public class EsiRenderer implements Renderer, Appendable {
         this.page = page;
         this.name = name;
         write = false;
+        templateCache = null;
+        templateKey = null;
     }
 
     public Map<String, CharSequence> getFragmentsToReplace() {
@@ -112,15 +128,57 @@ public class EsiRenderer implements Renderer, Appendable {
             return;
         }
 
-        // Pass 1. Remove esi comments
-        StringBuilder contentWithoutComments = new StringBuilder(Parameters.DEFAULT_BUFFER_SIZE);
-        parserComments.setHttpRequest(originalRequest);
-        parserComments.parse(content, contentWithoutComments);
+        if (isTemplateCached()) {
+            EsiTemplate template = templateCache.get(templateKey);
+            if (template != null && template.getLength() == content.length()) {
+                newParser(template.scanner(), originalRequest).parse(content, this);
+            } else {
+                EsiTemplate.Recorder recorder = new EsiTemplate.Recorder();
+                newParser(recorder, originalRequest).parse(content, this);
+                templateCache.put(templateKey, recorder.getTemplate());
+            }
+        } else {
+            newParser(EsiTagScanner.INSTANCE, originalRequest).parse(content, this);
+        }
+
+        checkFragmentFound();
+    }
+
+    @Override
+    public void render(DriverRequest originalRequest, Reader content, Writer outWriter) throws IOException,
+            HttpErrorPage {
+        if (name != null) {
+            LOG.debug("Rendering fragment {} in page {}", name, page);
+        }
+        this.out = outWriter;
+
+        if (isTemplateCached()) {
+            EsiTemplate template = templateCache.get(templateKey);
+            if (template != null) {
+                newParser(template.scanner(), originalRequest).parse(content, this);
+            } else {
+                EsiTemplate.Recorder recorder = new EsiTemplate.Recorder();
+                newParser(recorder, originalRequest).parse(content, this);
+                templateCache.put(templateKey, recorder.getTemplate());
+            }
+        } else {
+            newParser(EsiTagScanner.INSTANCE, originalRequest).parse(content, this);
+        }
+
+        checkFragmentFound();
+    }
 
-        // Pass 2. Process ESI
+    private static Parser newParser(TagScanner tagScanner, DriverRequest originalRequest) {
+        Parser parser = new Parser(tagScanner, ELEMENT_TYPES);
         parser.setHttpRequest(originalRequest);
-        parser.parse(contentWithoutComments, this);
+        return parser;
+    }
+
+    private boolean isTemplateCached() {
+        return templateCache != null && templateKey != null;
+    }
 
+    private void checkFragmentFound() throws HttpErrorPage {
         if (name != null && !this.found) {
             throw new HttpErrorPage(HttpStatus.SC_BAD_GATEWAY, "Fragment " + name + " not found", "Fragment " + name
                     + " not found");
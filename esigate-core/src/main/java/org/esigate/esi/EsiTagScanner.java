@@ -0,0 +1,323 @@
+/* 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package org.esigate.esi;
+
+import org.esigate.parser.TagMatcher;
+import org.esigate.parser.TagScanner;
+
+/**
+ * Hand-written {@link TagScanner} for ESI documents.
+ * <p>
+ * It finds &lt;esi:xxx ...&gt;, &lt;esi:xxx .../&gt; and &lt;/esi:xxx&gt; tags. It only inspects the characters
+ * following a '&lt;' and never backtracks on text, which makes it much cheaper than a regular expression on large pages
+ * containing few tags.
+ * <p>
+ * ESI comments are handled during the same pass: "&lt;!--esi" and the matching "--&gt;" are reported as delimiters to
+ * be removed from the output while their content is processed like the rest of the page. This allows HTML marked up
+ * with ESI to render without processing, it will then remain an HTML/XML comment. A "--&gt;" outside of any ESI comment
+ * is just text.
+ * 
+ * @see <a href="http://www.w3.org/TR/esi-lang">ESI Language Specification 1.0</a>
+ */
+public final class EsiTagScanner implements TagScanner {
+    public static final EsiTagScanner INSTANCE = new EsiTagScanner();
+
+    private static final String ESI_PREFIX = "esi:";
+    private static final String COMMENT_START = "<!--esi";
+    private static final String COMMENT_END = "-->";
+    private static final int NO_MATCH = -1;
+    private static final int INCOMPLETE = -2;
+
+    private EsiTagScanner() {
+    }
+
+    @Override
+    public TagMatcher matcher(CharSequence in, boolean endOfInput) {
+        EsiTagMatcher matcher = new EsiTagMatcher();
+        matcher.reset(in, endOfInput);
+        return matcher;
+    }
+
+    private static final class EsiTagMatcher implements TagMatcher {
+        private CharSequence in;
+        private int length;
+        private boolean endOfInput;
+        private int position;
+        private int start;
+        private int end;
+        private boolean delimiter;
+        private int incompleteTagStart;
+        /** Number of "&lt;!--esi" not closed yet, kept from one chunk to the next. */
+        private int commentDepth = 0;
+
+        @Override
+        public void reset(CharSequence input, boolean inputEnd) {
+            this.in = input;
+            this.length = input.length();
+            this.endOfInput = inputEnd;
+            this.position = 0;
+            this.start = -1;
+            this.end = -1;
+            this.delimiter = false;
+            this.incompleteTagStart = length;
+        }
+
+        @Override
+        public boolean find() {
+            int i = position;
+            while (i < length) {
+                i = nextCandidate(i);
+                if (i < 0) {
+                    break;
+                }
+                int tagEnd;
+                boolean commentDelimiter;
+                if (in.charAt(i) == '-') {
+                    tagEnd = matchLiteral(i, COMMENT_END);
+                    commentDelimiter = true;
+                } else {
+                    tagEnd = matchLiteral(i, COMMENT_START);
+                    commentDelimiter = tagEnd >= 0;
+                    if (tagEnd < 0) {
+                        int tagEndIfTag = matchTag(i);
+                        if (tagEndIfTag != NO_MATCH) {
+                            tagEnd = tagEndIfTag;
+                        }
+                    }
+                }
+                if (tagEnd >= 0) {
+                    if (commentDelimiter) {
+                        commentDepth += in.charAt(i) == '-' ? -1 : 1;
+                    }
+                    start = i;
+                    end = tagEnd;
+                    delimiter = commentDelimiter;
+                    position = tagEnd;
+                    return true;
+                }
+                if (tagEnd == INCOMPLETE && !endOfInput) {
+                    // The tag may go on in the next chunk
+                    incompleteTagStart = i;
+                    position = length;
+                    return false;
+                }
+                i++;
+            }
+            position = length;
+            return false;
+        }
+
+        /**
+         * Finds the next character which can start a tag: a '&lt;' or, inside an ESI comment, a '-'.
+         * 
+         * @return the position of the character or -1
+         */
+        private int nextCandidate(int from) {
+            if (commentDepth == 0) {
+                return indexOf(in, '<', from);
+            }
+            for (int i = from; i < length; i++) {
+                char c = in.charAt(i);
+                if (c == '<' || c == '-') {
+                    return i;
+                }
+            }
+            return -1;
+        }
+
+        @Override
+        public boolean isDelimiter() {
+            return delimiter;
+        }
+
+        @Override
+        public int start() {
+            return start;
+        }
+
+        @Override
+        public int end() {
+            return end;
+        }
+
+        @Override
+        public int incompleteTagStart() {
+            return incompleteTagStart;
+        }
+
+        private int matchLiteral(int from, String literal) {
+            int i = from;
+            for (int k = 0; k < literal.length(); k++, i++) {
+                if (i >= length) {
+                    return INCOMPLETE;
+                }
+                if (in.charAt(i) != literal.charAt(k)) {
+                    return NO_MATCH;
+                }
+            }
+            return i;
+        }
+
+        /**
+         * Matches an ESI start or end tag beginning with the '&lt;' at position from.
+         * 
+         * @return the end of the tag, NO_MATCH or INCOMPLETE
+         */
+        private int matchTag(int from) {
+            int i = from + 1;
+            if (i >= length) {
+                return INCOMPLETE;
+            }
+            boolean endTag = in.charAt(i) == '/';
+            if (endTag) {
+                i++;
+            }
+            i = matchLiteral(i, ESI_PREFIX);
+            if (i < 0) {
+                return i;
+            }
+            if (endTag) {
+                // Anything up to the next '>'
+                int tagEnd = indexOf(in, '>', i);
+                return tagEnd < 0 ? INCOMPLETE : tagEnd + 1;
+            }
+            // Element name
+            int nameStart = i;
+            while (i < length && isWordChar(in.charAt(i))) {
+                i++;
+            }
+            if (i == nameStart && i < length) {
+                return NO_MATCH;
+            }
+            return matchAttributes(i);
+        }
+
+        /**
+         * Matches the attributes and the end of a start tag.
+         * 
+         * @return the end of the tag, NO_MATCH or INCOMPLETE
+         */
+        private int matchAttributes(int from) {
+            int i = from;
+            while (true) {
+                int whitespaceStart = i;
+                i = skipWhitespace(i);
+                if (i >= length) {
+                    return INCOMPLETE;
+                }
+                char c = in.charAt(i);
+                if (c == '>') {
+                    return i + 1;
+                }
+                if (c == '/') {
+                    if (i + 1 >= length) {
+                        return INCOMPLETE;
+                    }
+                    return in.charAt(i + 1) == '>' ? i + 2 : NO_MATCH;
+                }
+                if (i == whitespaceStart || !isWordChar(c)) {
+                    // Attributes must be separated by whitespace
+                    return NO_MATCH;
+                }
+                // Attribute name
+                while (i < length && isWordChar(in.charAt(i))) {
+                    i++;
+                }
+                int nameEnd = i;
+                i = skipWhitespace(i);
+                if (i >= length) {
+                    return INCOMPLETE;
+                }
+                if (in.charAt(i) != '=') {
+                    // Attribute without value
+                    i = nameEnd;
+                    continue;
+                }
+                i = skipWhitespace(i + 1);
+                if (i >= length) {
+                    return INCOMPLETE;
+                }
+                c = in.charAt(i);
+                if (c == '"' || c == '\'') {
+                    return matchQuotedValue(i, c);
+                }
+                if (c == '>') {
+                    return NO_MATCH;
+                }
+                // Unquoted value
+                while (i < length && (c = in.charAt(i)) != '"' && c != '\'' && c != '>' && !isWhitespace(c)) {
+                    i++;
+                }
+            }
+        }
+
+        /**
+         * Matches a quoted value and the rest of the tag. Like a lazy regular expression, if the rest of the tag does
+         * not match after the first closing quote, the value is extended up to the next one on the same line.
+         * 
+         * @return the end of the tag, NO_MATCH or INCOMPLETE
+         */
+        private int matchQuotedValue(int from, char quote) {
+            int i = from + 1;
+            while (i < length) {
+                char c = in.charAt(i);
+                if (c == quote) {
+                    int result = matchAttributes(i + 1);
+                    if (result != NO_MATCH) {
+                        return result;
+                    }
+                } else if (isLineTerminator(c)) {
+                    return NO_MATCH;
+                }
+                i++;
+            }
+            return INCOMPLETE;
+        }
+
+        private int skipWhitespace(int from) {
+            int i = from;
+            while (i < length && isWhitespace(in.charAt(i))) {
+                i++;
+            }
+            return i;
+        }
+    }
+
+    private static int indexOf(CharSequence in, char c, int from) {
+        if (in instanceof String) {
+            return ((String) in).indexOf(c, from);
+        }
+        for (int i = from; i < in.length(); i++) {
+            if (in.charAt(i) == c) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    private static boolean isWordChar(char c) {
+        return (c >= 'a' && c <= 'z') || (c >= 'A' && c <= 'Z') || (c >= '0' && c <= '9') || c == '_';
+    }
+
+    private static boolean isWhitespace(char c) {
+        return c == ' ' || c == '\t' || c == '\n' || c == '\u000b' || c == '\f' || c == '\r';
+    }
+
+    private static boolean isLineTerminator(char c) {
+        return c == '\n' || c == '\r' || c == '\u0085' || c == '\u2028' || c == '\u2029';
+    }
+
+}
@@ -0,0 +1,218 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package org.esigate.esi;
+
+import java.util.Arrays;
+
+import org.esigate.parser.TagMatcher;
+import org.esigate.parser.TagScanner;
+
+/**
+ * The result of the scan of a page for ESI tags: the positions of its tags and ESI comment delimiters and the length of
+ * the page. The static text is what lies between these positions. The page itself is not kept.
+ * <p>
+ * A template is recorded while the page is parsed, chunk by chunk, by a {@link Recorder}. Rendering the same page again
+ * replays the positions through {@link #scanner()} instead of scanning the page, also chunk by chunk. Templates are
+ * immutable and can be replayed by several threads at the same time.
+ * 
+ * @see EsiTemplateCache
+ */
+final class EsiTemplate {
+    /** Three values per token: start, end and 1 if the token is a comment delimiter. */
+    private static final int TOKEN_SIZE = 3;
+
+    private final int length;
+    private final int[] tokens;
+
+    private EsiTemplate(int length, int[] tokens) {
+        this.length = length;
+        this.tokens = tokens;
+    }
+
+    /**
+     * @return the length of the page the template was recorded from
+     */
+    int getLength() {
+        return length;
+    }
+
+    /**
+     * @return the approximate size of the template in memory in bytes
+     */
+    int getSize() {
+        return tokens.length * 4;
+    }
+
+    /**
+     * @return a TagScanner returning the tags found when the template was recorded, to be used to parse the same page
+     */
+    TagScanner scanner() {
+        return new TagScanner() {
+            @Override
+            public TagMatcher matcher(CharSequence in, boolean endOfInput) {
+                return new ReplayTagMatcher(in, endOfInput);
+            }
+        };
+    }
+
+    /**
+     * Keeps track of the position of the chunks in the page. The characters a parser did not consume are given again at
+     * the beginning of the next chunk, so a chunk starts where the previous one stopped being consumed.
+     */
+    private abstract static class ChunkTagMatcher implements TagMatcher {
+        private int offset = 0;
+
+        int offset() {
+            return offset;
+        }
+
+        void nextChunk() {
+            offset += incompleteTagStart();
+        }
+    }
+
+    private final class ReplayTagMatcher extends ChunkTagMatcher {
+        private int length;
+        private boolean endOfInput;
+        private int next = 0;
+        private int current;
+
+        ReplayTagMatcher(CharSequence in, boolean endOfInput) {
+            this.length = in.length();
+            this.endOfInput = endOfInput;
+        }
+
+        @Override
+        public void reset(CharSequence in, boolean inputEnd) {
+            nextChunk();
+            this.length = in.length();
+            this.endOfInput = inputEnd;
+        }
+
+        @Override
+        public boolean find() {
+            if (next >= tokens.length || tokens[next + 1] > offset() + length) {
+                return false;
+            }
+            current = next;
+            next += TOKEN_SIZE;
+            return true;
+        }
+
+        @Override
+        public int start() {
+            return tokens[current] - offset();
+        }
+
+        @Override
+        public int end() {
+            return tokens[current + 1] - offset();
+        }
+
+        @Override
+        public boolean isDelimiter() {
+            return tokens[current + 2] == 1;
+        }
+
+        @Override
+        public int incompleteTagStart() {
+            if (!endOfInput && next < tokens.length && tokens[next] < offset() + length) {
+                // The next tag goes on in the next chunk
+                return tokens[next] - offset();
+            }
+            return length;
+        }
+    }
+
+    /**
+     * A TagScanner recording the tags found by the {@link EsiTagScanner} while a page is parsed. A recorder can be used
+     * for one page only.
+     */
+    static final class Recorder implements TagScanner {
+        private RecordingTagMatcher matcher;
+
+        @Override
+        public TagMatcher matcher(CharSequence in, boolean endOfInput) {
+            if (matcher != null) {
+                throw new IllegalStateException("A recorder can only be used once");
+            }
+            matcher = new RecordingTagMatcher(EsiTagScanner.INSTANCE.matcher(in, endOfInput));
+            return matcher;
+        }
+
+        /**
+         * @return the template of the page, once the page has been entirely parsed
+         */
+        EsiTemplate getTemplate() {
+            if (matcher == null) {
+                return new EsiTemplate(0, new int[0]);
+            }
+            return new EsiTemplate(matcher.offset() + matcher.incompleteTagStart(), Arrays.copyOf(matcher.tokens,
+                    matcher.size));
+        }
+    }
+
+    private static final class RecordingTagMatcher extends ChunkTagMatcher {
+        private final TagMatcher delegate;
+        private int[] tokens = new int[TOKEN_SIZE * 16];
+        private int size = 0;
+
+        RecordingTagMatcher(TagMatcher delegate) {
+            this.delegate = delegate;
+        }
+
+        @Override
+        public void reset(CharSequence in, boolean endOfInput) {
+            nextChunk();
+            delegate.reset(in, endOfInput);
+        }
+
+        @Override
+        public boolean find() {
+            if (!delegate.find()) {
+                return false;
+            }
+            if (size == tokens.length) {
+                tokens = Arrays.copyOf(tokens, size * 2);
+            }
+            tokens[size++] = offset() + delegate.start();
+            tokens[size++] = offset() + delegate.end();
+            tokens[size++] = delegate.isDelimiter() ? 1 : 0;
+            return true;
+        }
+
+        @Override
+        public int start() {
+            return delegate.start();
+        }
+
+        @Override
+        public int end() {
+            return delegate.end();
+        }
+
+        @Override
+        public boolean isDelimiter() {
+            return delegate.isDelimiter();
+        }
+
+        @Override
+        public int incompleteTagStart() {
+            return delegate.incompleteTagStart();
+        }
+    }
+
+}
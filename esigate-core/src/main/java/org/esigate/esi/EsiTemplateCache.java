@@ -0,0 +1,232 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package org.esigate.esi;
+
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Properties;
+import java.util.WeakHashMap;
+
+import org.apache.http.Header;
+import org.apache.http.HeaderElement;
+import org.apache.http.HttpHeaders;
+import org.apache.http.HttpResponse;
+import org.esigate.Driver;
+import org.esigate.util.Parameter;
+import org.esigate.util.ParameterLong;
+
+import com.codahale.metrics.Counter;
+import com.codahale.metrics.Gauge;
+import com.codahale.metrics.Metric;
+import com.codahale.metrics.MetricSet;
+
+/**
+ * Cache of the {@link EsiTemplate}s of the pages rendered by a driver, so that a page served many times from the HTTP
+ * cache is scanned only once, one per driver.
+ * <p>
+ * A template is identified by the URL of the page and its strong ETag, like the entry of the HTTP cache it was recorded
+ * from: a page can only get a template if the response has a strong ETag and is not private to a user. A new version of
+ * the page gets a new key and the old template is eventually evicted. The content rendered is not compared to the
+ * template, the {@link org.esigate.extension.Esi} extension only gives a key when the page reaches the ESI renderer
+ * unmodified.
+ * <p>
+ * The templates only keep the positions of the tags, not the pages. The cache is bounded in size, the least recently
+ * used templates are evicted first.
+ * <p>
+ * Configuration properties:
+ * <ul>
+ * <li>esi_template_cache_max_size : maximum size in bytes of the templates kept in memory. Default is 0 : templates are
+ * not cached.</li>
+ * </ul>
+ * <p>
+ * Hits, misses and evictions are available as metrics.
+ * 
+ * @see EsiRenderer#EsiRenderer(EsiTemplateCache, String)
+ */
+public final class EsiTemplateCache implements MetricSet {
+    public static final Parameter<Long> MAX_SIZE = new ParameterLong("esi_template_cache_max_size", 0L);
+
+    private static final Map<Driver, EsiTemplateCache> CACHES = new WeakHashMap<>();
+    /** Approximate memory used by an entry besides the positions of the tags and the key. */
+    private static final int ENTRY_OVERHEAD = 64;
+
+    private final Map<String, EsiTemplate> templates = new LinkedHashMap<>(16, 0.75f, true);
+    private final long maxSize;
+    private long size = 0;
+    private final Counter hits = new Counter();
+    private final Counter misses = new Counter();
+    private final Counter evictions = new Counter();
+
+    /**
+     * @param maxSize
+     *            the maximum size in bytes of the templates kept in memory
+     */
+    public EsiTemplateCache(long maxSize) {
+        this.maxSize = maxSize;
+    }
+
+    /**
+     * @param driver
+     *            the driver
+     * @return the cache of the driver, created on first use according to the configuration of the driver, or null if
+     *         templates are not cached
+     */
+    public static EsiTemplateCache get(Driver driver) {
+        synchronized (CACHES) {
+            EsiTemplateCache cache = CACHES.get(driver);
+            if (cache == null) {
+                Properties properties = driver.getConfiguration().getProperties();
+                long maxSize = MAX_SIZE.getValue(properties);
+                if (maxSize <= 0) {
+                    return null;
+                }
+                cache = new EsiTemplateCache(maxSize);
+                CACHES.put(driver, cache);
+            }
+            return cache;
+        }
+    }
+
+    /**
+     * Computes the key of the template of a page.
+     * 
+     * @param url
+     *            the URL the page was retrieved from
+     * @param response
+     *            the response containing the page
+     * @return the key or null if the response has no strong ETag or is private
+     */
+    public static String getKey(String url, HttpResponse response) {
+        if (url == null || isPrivate(response)) {
+            return null;
+        }
+        Header etag = response.getFirstHeader(HttpHeaders.ETAG);
+        if (etag == null || etag.getValue().startsWith("W/")) {
+            return null;
+        }
+        return url + ' ' + response.getStatusLine().getStatusCode() + ' ' + etag.getValue();
+    }
+
+    private static boolean isPrivate(HttpResponse response) {
+        if (response.containsHeader("Set-Cookie") || response.containsHeader("Set-Cookie2")) {
+            return true;
+        }
+        for (Header header : response.getHeaders(HttpHeaders.CACHE_CONTROL)) {
+            for (HeaderElement element : header.getElements()) {
+                if ("private".equalsIgnoreCase(element.getName()) || "no-store".equalsIgnoreCase(element.getName())) {
+                    return true;
+                }
+            }
+        }
+        return false;
+    }
+
+    /**
+     * @param key
+     *            the key of the template
+     * @return the template or null if it is not in the cache
+     */
+    EsiTemplate get(String key) {
+        EsiTemplate template;
+        synchronized (templates) {
+            template = templates.get(key);
+        }
+        if (template == null) {
+            misses.inc();
+        } else {
+            hits.inc();
+        }
+        return template;
+    }
+
+    void put(String key, EsiTemplate template) {
+        long templateSize = getSize(key, template);
+        synchronized (templates) {
+            EsiTemplate previous = templates.remove(key);
+            if (previous != null) {
+                size -= getSize(key, previous);
+            }
+            if (templateSize > maxSize) {
+                evictions.inc();
+                return;
+            }
+            templates.put(key, template);
+            size += templateSize;
+            Iterator<Map.Entry<String, EsiTemplate>> iterator = templates.entrySet().iterator();
+            while (size > maxSize && iterator.hasNext()) {
+                Map.Entry<String, EsiTemplate> eldest = iterator.next();
+                size -= getSize(eldest.getKey(), eldest.getValue());
+                iterator.remove();
+                evictions.inc();
+            }
+        }
+    }
+
+    private static long getSize(String key, EsiTemplate template) {
+        return ENTRY_OVERHEAD + key.length() * 2L + template.getSize();
+    }
+
+    public long getHitCount() {
+        return hits.getCount();
+    }
+
+    public long getMissCount() {
+        return misses.getCount();
+    }
+
+    public long getEvictionCount() {
+        return evictions.getCount();
+    }
+
+    public int size() {
+        synchronized (templates) {
+            return templates.size();
+        }
+    }
+
+    /**
+     * @return the approximate size of the templates in memory in bytes
+     */
+    public long getSize() {
+        synchronized (templates) {
+            return size;
+        }
+    }
+
+    @Override
+    public Map<String, Metric> getMetrics() {
+        Map<String, Metric> metrics = new HashMap<>();
+        metrics.put("hits", hits);
+        metrics.put("misses", misses);
+        metrics.put("evictions", evictions);
+        metrics.put("size", new Gauge<Integer>() {
+            @Override
+            public Integer getValue() {
+                return size();
+            }
+        });
+        metrics.put("bytes", new Gauge<Long>() {
+            @Override
+            public Long getValue() {
+                return getSize();
+            }
+        });
+        return metrics;
+    }
+
+}
@@ -75,11 +75,12 @@ class IncludeElement extends BaseElement {
         String src = includeTag.getAttribute("src");
         String alt = includeTag.getAttribute("alt");
         boolean ignoreError = "continue".equals(includeTag.getAttribute("onerror"));
+        long deadline = getDeadline(includeTag);
 
         Exception currentException = null;
         // Handle src
         try {
-            processPage(src, includeTag, ctx);
+            processPage(src, includeTag, ctx, deadline);
         } catch (IOException | HttpErrorPage e) {
             currentException = e;
         } catch (ConfigurationException e) {
@@ -93,7 +94,7 @@ class IncludeElement extends BaseElement {
             // Reset exception
             currentException = null;
             try {
-                processPage(alt, includeTag, ctx);
+                processPage(alt, includeTag, ctx, 0);
             } catch (IOException | HttpErrorPage e) {
                 currentException = e;
             } catch (ConfigurationException e) {
@@ -140,7 +141,23 @@ class IncludeElement extends BaseElement {
         return true;
     }
 
-    private void processPage(String src, Tag tag, ParserContext ctx) throws IOException, HttpErrorPage {
+    /**
+     * @return the deadline for the src of the include according to its timeout attribute, 0 if there is none
+     */
+    private static long getDeadline(Tag tag) {
+        String timeout = tag.getAttribute("timeout");
+        if (timeout == null) {
+            return 0;
+        }
+        try {
+            return System.currentTimeMillis() + Integer.parseInt(timeout.trim());
+        } catch (NumberFormatException e) {
+            LOG.warn("Invalid timeout attribute : [{}], it should be a number of milliseconds", timeout);
+            return 0;
+        }
+    }
+
+    private void processPage(String src, Tag tag, ParserContext ctx, long deadline) throws IOException, HttpErrorPage {
         String fragment = tag.getAttribute("fragment");
         String xpath = tag.getAttribute("xpath");
         String xslt = tag.getAttribute("stylesheet");
@@ -181,9 +198,9 @@ class IncludeElement extends BaseElement {
             }
         }
 
-        InlineCache ic = InlineCache.getFragment(src);
-        if (ic != null && !ic.isExpired()) {
-            String cache = ic.getFragment();
+        InlineFragmentStore.Fragment inline = InlineFragmentStore.get(httpRequest.getDriver()).get(src);
+        if (inline != null) {
+            String cache = inline.getContent();
             characters(cache, 0, cache.length());
         } else {
             EsiRenderer esiRenderer;
@@ -202,7 +219,7 @@ class IncludeElement extends BaseElement {
                 rendererList.add(new XsltRenderer(xslt, driver, httpRequest));
             }
             CloseableHttpResponse response =
-                    driver.render(page, httpRequest.getOriginalRequest(),
+                    driver.render(page, httpRequest.getOriginalRequest(), deadline,
                             rendererList.toArray(new Renderer[rendererList.size()]));
             outAdapter.append(HttpResponseUtils.toString(response));
         }
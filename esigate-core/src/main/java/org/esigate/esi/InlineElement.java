@@ -52,6 +52,7 @@ class InlineElement extends BaseElement {
     @Override
     public void onTagEnd(String tag, ParserContext ctx) {
         String originalUrl = UriUtils.getPath(ctx.getHttpRequest().getOriginalRequest().getRequestLine().getUri());
-        InlineCache.storeFragment(uri, null, fetchable, originalUrl, buf.toString());
+        InlineFragmentStore.get(ctx.getHttpRequest().getDriver())
+                .put(uri, null, fetchable, originalUrl, buf.toString());
     }
 }
@@ -0,0 +1,368 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package org.esigate.esi;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Properties;
+import java.util.WeakHashMap;
+
+import org.apache.commons.io.IOUtils;
+import org.apache.http.Header;
+import org.apache.http.HttpStatus;
+import org.apache.http.HttpVersion;
+import org.apache.http.client.cache.HttpCacheEntry;
+import org.apache.http.client.cache.HttpCacheStorage;
+import org.apache.http.impl.client.cache.HeapResource;
+import org.apache.http.message.BasicHeader;
+import org.apache.http.message.BasicStatusLine;
+import org.esigate.Driver;
+import org.esigate.util.Parameter;
+import org.esigate.util.ParameterBoolean;
+import org.esigate.util.ParameterInteger;
+import org.esigate.util.ParameterLong;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.codahale.metrics.Counter;
+import com.codahale.metrics.Gauge;
+import com.codahale.metrics.Metric;
+import com.codahale.metrics.MetricSet;
+
+/**
+ * Store of the fragments declared with &lt;esi:inline&gt; and used by the includes of the same name, one per driver.
+ * <p>
+ * The store is bounded in number of fragments and in size. When it is full or when a fragment expires, the oldest
+ * fragments are evicted. It can also write the fragments to the storage of the http cache of the driver (see
+ * {@link org.esigate.Parameters#CACHE_STORAGE}), so that the fragments are shared by several nodes when the storage is
+ * distributed. No storage is created for the fragments: they use the one of the driver, closed with it.
+ * <p>
+ * Configuration properties:
+ * <ul>
+ * <li>esi_inline_max_entries : maximum number of fragments kept in memory. Default is 1000.</li>
+ * <li>esi_inline_max_size : maximum size in bytes of the fragments kept in memory. Default is 10 MB.</li>
+ * <li>esi_inline_ttl : time to live of a fragment in seconds, 0 means fragments do not expire. Default is 0.</li>
+ * <li>esi_inline_shared : if true, the fragments are also written to the cache storage. Ignored if the cache is
+ * disabled. Default is false.</li>
+ * </ul>
+ * <p>
+ * Hits, misses and evictions are available as metrics.
+ */
+public final class InlineFragmentStore implements MetricSet {
+    public static final Parameter<Integer> MAX_ENTRIES = new ParameterInteger("esi_inline_max_entries", 1000);
+    public static final Parameter<Long> MAX_SIZE = new ParameterLong("esi_inline_max_size", 10L * 1024 * 1024);
+    public static final Parameter<Integer> TTL = new ParameterInteger("esi_inline_ttl", 0);
+    public static final Parameter<Boolean> SHARED = new ParameterBoolean("esi_inline_shared", false);
+
+    private static final Logger LOG = LoggerFactory.getLogger(InlineFragmentStore.class);
+    private static final Map<Driver, InlineFragmentStore> STORES = new WeakHashMap<>();
+    private static final String KEY_PREFIX = "esi_inline:";
+    private static final String H_OUTDATE = "X-Esigate-Inline-Outdate";
+    private static final String H_FETCHABLE = "X-Esigate-Inline-Fetchable";
+    private static final String H_ORIGINAL_URL = "X-Esigate-Inline-Original-Url";
+
+    /**
+     * A fragment declared with &lt;esi:inline&gt;.
+     */
+    public static final class Fragment {
+        private final Date outdate;
+        private final boolean fetchable;
+        private final String originalUrl;
+        private final String content;
+
+        private Fragment(Date outdate, boolean fetchable, String originalUrl, String content) {
+            this.outdate = outdate;
+            this.fetchable = fetchable;
+            this.originalUrl = originalUrl;
+            this.content = content;
+        }
+
+        public boolean isExpired() {
+            return (outdate != null) && (outdate.getTime() < System.currentTimeMillis());
+        }
+
+        public Date getOutdate() {
+            return outdate;
+        }
+
+        public boolean isFetchable() {
+            return fetchable;
+        }
+
+        public String getOriginalUrl() {
+            return originalUrl;
+        }
+
+        public String getContent() {
+            return content;
+        }
+
+        private long getSize(String uri) {
+            // 2 bytes per char
+            return 2L * (uri.length() + content.length());
+        }
+    }
+
+    // In insertion order, which is also the order of expiration when all fragments have the same time to live
+    private final LinkedHashMap<String, Fragment> fragments = new LinkedHashMap<>();
+    private final String name;
+    private final int maxEntries;
+    private final long maxSize;
+    private final int ttl;
+    private final boolean shared;
+    // Resolved on first use as the store may be created before the cache storage of the driver
+    private volatile HttpCacheStorage sharedStorage;
+    private long size;
+    private final Counter hits = new Counter();
+    private final Counter misses = new Counter();
+    private final Counter evictions = new Counter();
+
+    /**
+     * @param name
+     *            the name of the store, used in the keys of the fragments in the shared storage
+     * @param properties
+     *            the configuration
+     */
+    public InlineFragmentStore(String name, Properties properties) {
+        this(name, properties, SHARED.getValue(properties), null);
+    }
+
+    InlineFragmentStore(String name, Properties properties, HttpCacheStorage sharedStorage) {
+        this(name, properties, sharedStorage != null, sharedStorage);
+    }
+
+    private InlineFragmentStore(String name, Properties properties, boolean shared, HttpCacheStorage sharedStorage) {
+        this.name = name;
+        this.maxEntries = MAX_ENTRIES.getValue(properties);
+        this.maxSize = MAX_SIZE.getValue(properties);
+        this.ttl = TTL.getValue(properties);
+        this.shared = shared;
+        this.sharedStorage = sharedStorage;
+    }
+
+    /**
+     * @param driver
+     *            the driver
+     * @return the store of the driver, created on first use according to the configuration of the driver
+     */
+    public static InlineFragmentStore get(Driver driver) {
+        InlineFragmentStore store;
+        synchronized (STORES) {
+            store = STORES.get(driver);
+            if (store == null) {
+                store =
+                        new InlineFragmentStore(driver.getConfiguration().getInstanceName(), driver.getConfiguration()
+                                .getProperties());
+                STORES.put(driver, store);
+            }
+        }
+        if (store.shared && store.sharedStorage == null) {
+            store.sharedStorage = driver.getCacheStorage();
+        }
+        return store;
+    }
+
+    /**
+     * Stores a fragment, replacing any fragment with the same uri.
+     * 
+     * @param uri
+     *            the name of the fragment
+     * @param outdate
+     *            the expiration date or null to use the configured time to live
+     * @param fetchable
+     *            the fetchable attribute of the fragment
+     * @param originalUrl
+     *            the url of the page declaring the fragment
+     * @param content
+     *            the fragment
+     */
+    public void put(String uri, Date outdate, boolean fetchable, String originalUrl, String content) {
+        Date expiration = outdate;
+        if (expiration == null && ttl > 0) {
+            expiration = new Date(System.currentTimeMillis() + ttl * 1000L);
+        }
+        Fragment fragment = new Fragment(expiration, fetchable, originalUrl, content);
+        putLocal(uri, fragment);
+        HttpCacheStorage storage = sharedStorage;
+        if (storage != null) {
+            try {
+                storage.putEntry(KEY_PREFIX + name + ":" + uri, toCacheEntry(fragment));
+            } catch (IOException e) {
+                LOG.warn("Could not share inline fragment {}: {}", uri, e.toString());
+            }
+        }
+    }
+
+    private void putLocal(String uri, Fragment fragment) {
+        long fragmentSize = fragment.getSize(uri);
+        synchronized (fragments) {
+            // Remove first so that the new version goes to the end of the queue
+            remove(uri);
+            if (fragmentSize > maxSize) {
+                evictions.inc();
+                return;
+            }
+            fragments.put(uri, fragment);
+            size += fragmentSize;
+            Iterator<Map.Entry<String, Fragment>> iterator = fragments.entrySet().iterator();
+            while (iterator.hasNext()) {
+                Map.Entry<String, Fragment> eldest = iterator.next();
+                if (fragments.size() <= maxEntries && size <= maxSize && !eldest.getValue().isExpired()) {
+                    break;
+                }
+                size -= eldest.getValue().getSize(eldest.getKey());
+                iterator.remove();
+                evictions.inc();
+            }
+        }
+    }
+
+    private Fragment remove(String uri) {
+        Fragment removed = fragments.remove(uri);
+        if (removed != null) {
+            size -= removed.getSize(uri);
+        }
+        return removed;
+    }
+
+    /**
+     * @param uri
+     *            the name of the fragment
+     * @return the fragment or null if there is no fragment with this name or if it has expired
+     */
+    public Fragment get(String uri) {
+        Fragment fragment;
+        synchronized (fragments) {
+            fragment = fragments.get(uri);
+            if (fragment != null && fragment.isExpired()) {
+                remove(uri);
+                evictions.inc();
+                fragment = null;
+            }
+        }
+        HttpCacheStorage storage = sharedStorage;
+        if (fragment == null && storage != null) {
+            fragment = getShared(storage, uri);
+            if (fragment != null) {
+                putLocal(uri, fragment);
+            }
+        }
+        if (fragment == null) {
+            misses.inc();
+        } else {
+            hits.inc();
+        }
+        return fragment;
+    }
+
+    private Fragment getShared(HttpCacheStorage storage, String uri) {
+        try {
+            HttpCacheEntry entry = storage.getEntry(KEY_PREFIX + name + ":" + uri);
+            if (entry == null) {
+                return null;
+            }
+            Fragment fragment = fromCacheEntry(entry);
+            return fragment.isExpired() ? null : fragment;
+        } catch (IOException e) {
+            LOG.warn("Could not read shared inline fragment {}: {}", uri, e.toString());
+            return null;
+        }
+    }
+
+    private static HttpCacheEntry toCacheEntry(Fragment fragment) {
+        Date now = new Date();
+        Header[] headers;
+        Header fetchable = new BasicHeader(H_FETCHABLE, String.valueOf(fragment.isFetchable()));
+        Header originalUrl = new BasicHeader(H_ORIGINAL_URL, fragment.getOriginalUrl());
+        if (fragment.getOutdate() == null) {
+            headers = new Header[] {fetchable, originalUrl};
+        } else {
+            headers =
+                    new Header[] {fetchable, originalUrl,
+                            new BasicHeader(H_OUTDATE, String.valueOf(fragment.getOutdate().getTime()))};
+        }
+        return new HttpCacheEntry(now, now, new BasicStatusLine(HttpVersion.HTTP_1_1, HttpStatus.SC_OK, "OK"), headers,
+                new HeapResource(fragment.getContent().getBytes(StandardCharsets.UTF_8)));
+    }
+
+    private static Fragment fromCacheEntry(HttpCacheEntry entry) throws IOException {
+        Header outdate = entry.getFirstHeader(H_OUTDATE);
+        Header fetchable = entry.getFirstHeader(H_FETCHABLE);
+        Header originalUrl = entry.getFirstHeader(H_ORIGINAL_URL);
+        String content;
+        try (InputStream in = entry.getResource().getInputStream()) {
+            content = IOUtils.toString(in, StandardCharsets.UTF_8);
+        }
+        return new Fragment(outdate == null ? null : new Date(Long.parseLong(outdate.getValue())), fetchable != null
+                && Boolean.parseBoolean(fetchable.getValue()), originalUrl == null ? null : originalUrl.getValue(),
+                content);
+    }
+
+    public long getHitCount() {
+        return hits.getCount();
+    }
+
+    public long getMissCount() {
+        return misses.getCount();
+    }
+
+    public long getEvictionCount() {
+        return evictions.getCount();
+    }
+
+    public int size() {
+        synchronized (fragments) {
+            return fragments.size();
+        }
+    }
+
+    /**
+     * @return the approximate size of the fragments in memory in bytes
+     */
+    public long getSize() {
+        synchronized (fragments) {
+            return size;
+        }
+    }
+
+    @Override
+    public Map<String, Metric> getMetrics() {
+        Map<String, Metric> metrics = new HashMap<>();
+        metrics.put("hits", hits);
+        metrics.put("misses", misses);
+        metrics.put("evictions", evictions);
+        metrics.put("size", new Gauge<Integer>() {
+            @Override
+            public Integer getValue() {
+                return size();
+            }
+        });
+        metrics.put("bytes", new Gauge<Long>() {
+            @Override
+            public Long getValue() {
+                return getSize();
+            }
+        });
+        return metrics;
+    }
+
+}
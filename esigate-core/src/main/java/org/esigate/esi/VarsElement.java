@@ -20,7 +20,7 @@ import java.io.IOException;
 import org.esigate.Parameters;
 import org.esigate.parser.ElementType;
 import org.esigate.parser.ParserContext;
-import org.esigate.vars.VariablesResolver;
+import org.esigate.vars.VariableTemplate;
 
 class VarsElement extends BaseElement {
     public static final ElementType TYPE = new BaseElementType("<esi:vars", "</esi:vars") {
@@ -43,7 +43,7 @@ class VarsElement extends BaseElement {
 
     @Override
     public void onTagEnd(String tag, ParserContext ctx) throws IOException {
-        String result = VariablesResolver.replaceAllVariables(buf.toString(), ctx.getHttpRequest());
+        String result = VariableTemplate.render(buf.toString(), ctx.getHttpRequest());
         ctx.getCurrent().characters(result, 0, result.length());
     }
 
@@ -20,8 +20,7 @@ import java.io.IOException;
 import org.esigate.Parameters;
 import org.esigate.parser.ElementType;
 import org.esigate.parser.ParserContext;
-import org.esigate.vars.Operations;
-import org.esigate.vars.VariablesResolver;
+import org.esigate.vars.Expression;
 
 class WhenElement extends BaseElement {
 
@@ -46,8 +45,7 @@ class WhenElement extends BaseElement {
         if (test != null && parent != null) {
             // no other 'when' were active before
             active = !parent.hadConditionSet();
-            parent.setCondition(Operations.processOperators(VariablesResolver.replaceAllVariables(test,
-                    ctx.getHttpRequest())));
+            parent.setCondition(Expression.compile(test).evaluate(ctx.getHttpRequest()));
             active &= parent.isCondition();
         }
         return active;
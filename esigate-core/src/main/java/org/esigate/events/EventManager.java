@@ -168,6 +168,23 @@ public class EventManager {
 
     }
 
+    /**
+     * Checks whether an event has at least one listener. This allows skipping the preparation of events nobody is
+     * interested in.
+     * 
+     * @param eventDefinition
+     * @return true if a listener is registered for this event
+     */
+    public boolean hasListeners(EventDefinition eventDefinition) {
+        List<IEventListener> eventListeners;
+        if (eventDefinition.getType() == EventDefinition.TYPE_POST) {
+            eventListeners = listenersPost.get(eventDefinition);
+        } else {
+            eventListeners = listeners.get(eventDefinition);
+        }
+        return eventListeners != null && !eventListeners.isEmpty();
+    }
+
     /**
      * Stop listening to an event.
      * 
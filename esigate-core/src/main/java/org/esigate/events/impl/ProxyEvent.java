@@ -42,8 +42,18 @@ public class ProxyEvent extends Event {
      */
     private HttpErrorPage errorPage = null;
 
+    /**
+     * The url relative to the provider base url, without the query string. May be null.
+     */
+    private final String relUrl;
+
     public ProxyEvent(IncomingRequest originalRequest) {
+        this(originalRequest, null);
+    }
+
+    public ProxyEvent(IncomingRequest originalRequest, String relUrl) {
         this.originalRequest = originalRequest;
+        this.relUrl = relUrl;
     }
 
     public CloseableHttpResponse getResponse() {
@@ -65,4 +75,8 @@ public class ProxyEvent extends Event {
     public IncomingRequest getOriginalRequest() {
         return originalRequest;
     }
+
+    public String getRelUrl() {
+        return relUrl;
+    }
 }
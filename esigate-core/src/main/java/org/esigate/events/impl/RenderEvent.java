@@ -34,6 +34,7 @@ public class RenderEvent extends Event {
     private final List<Renderer> renderers = new ArrayList<>(10);
     private final String remoteUrl;
     private final DriverRequest originalRequest;
+    private final String targetUrl;
 
     /**
      * The response from backend, including headers.
@@ -41,7 +42,13 @@ public class RenderEvent extends Event {
     private final CloseableHttpResponse httpResponse;
 
     public RenderEvent(String remoteUrl, DriverRequest originalRequest, CloseableHttpResponse httpResponse) {
+        this(remoteUrl, null, originalRequest, httpResponse);
+    }
+
+    public RenderEvent(String remoteUrl, String targetUrl, DriverRequest originalRequest,
+            CloseableHttpResponse httpResponse) {
         this.remoteUrl = remoteUrl;
+        this.targetUrl = targetUrl;
         this.originalRequest = originalRequest;
         this.httpResponse = httpResponse;
     }
@@ -54,6 +61,13 @@ public class RenderEvent extends Event {
         return remoteUrl;
     }
 
+    /**
+     * @return the absolute URL the response was retrieved from, including the query string, or null if unknown
+     */
+    public String getTargetUrl() {
+        return targetUrl;
+    }
+
     public DriverRequest getOriginalRequest() {
         return originalRequest;
     }
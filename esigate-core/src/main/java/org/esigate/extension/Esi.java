@@ -6,6 +6,7 @@ import java.util.Properties;
 
 import org.esigate.Driver;
 import org.esigate.esi.EsiRenderer;
+import org.esigate.esi.EsiTemplateCache;
 import org.esigate.events.Event;
 import org.esigate.events.EventDefinition;
 import org.esigate.events.EventManager;
@@ -25,6 +26,15 @@ import org.esigate.extension.surrogate.Surrogate;
  * "ESIGATE/4.0"</li>
  * <li>When one of these capabilities is requested, all are applied at once.</li>
  * </ul>
+ * <p>
+ * Configuration properties:
+ * <ul>
+ * <li>esi_template_cache_max_size : Maximum size in bytes of the positions of the ESI tags kept for the pages already
+ * scanned, so that a page served again with the same strong ETag is not scanned again. Default is 0 : templates are not
+ * cached, see {@link EsiTemplateCache}.</li>
+ * <li>esi_inline_max_entries, esi_inline_max_size, esi_inline_ttl, esi_inline_shared : limits of the store of the
+ * &lt;esi:inline&gt; fragments, see {@link org.esigate.esi.InlineFragmentStore}.</li>
+ * </ul>
  * 
  * @author Nicolas Richeton
  */
@@ -32,6 +42,10 @@ public class Esi implements Extension, IEventListener {
     private static final String[] CAPABILITIES = new String[] {"ESI/1.0", "ESI-Inline/1.0", "X-ESI-Fragment/1.0",
             "X-ESI-Replace/1.0", "X-ESI-XSLT/1.0", "ESIGATE/4.0"};
 
+    private Driver driver;
+
+    private EsiTemplateCache templateCache;
+
     @Override
     public boolean event(EventDefinition id, Event event) {
         RenderEvent renderEvent = (RenderEvent) event;
@@ -53,7 +67,13 @@ public class Esi implements Extension, IEventListener {
         }
 
         if (doEsi) {
-            renderEvent.getRenderers().add(new EsiRenderer());
+            String templateKey = null;
+            // The template of a page can only be reused if the page reaches the ESI renderer as it was received
+            if (templateCache != null && renderEvent.getHttpResponse() != null && renderEvent.getRenderers().isEmpty()
+                    && !driver.getEventManager().hasListeners(EventManager.EVENT_READ_ENTITY)) {
+                templateKey = EsiTemplateCache.getKey(renderEvent.getTargetUrl(), renderEvent.getHttpResponse());
+            }
+            renderEvent.getRenderers().add(new EsiRenderer(templateCache, templateKey));
         }
 
         // Continue processing
@@ -62,6 +82,9 @@ public class Esi implements Extension, IEventListener {
 
     @Override
     public void init(Driver driver, Properties properties) {
+        this.driver = driver;
+        templateCache = EsiTemplateCache.get(driver);
+
         driver.getEventManager().register(EventManager.EVENT_RENDER_PRE, this);
 
         driver.getEventManager().register(Surrogate.EVENT_SURROGATE_CAPABILITIES, new IEventListener() {
@@ -76,4 +99,11 @@ public class Esi implements Extension, IEventListener {
         });
     }
 
+    /**
+     * @return the cache of the templates, or null if it is disabled
+     */
+    public EsiTemplateCache getTemplateCache() {
+        return templateCache;
+    }
+
 }
@@ -23,6 +23,9 @@ import org.esigate.Driver;
  * 
  * <p>
  * Extensions are classes which are loaded through the generic ExtensionFactory.getExtension().
+ * <p>
+ * Extensions holding resources (threads, connections) should implement {@link java.io.Closeable}: the extensions listed
+ * in the configuration of a driver are closed when the driver is closed.
  * 
  * 
  * @author Nicolas Richeton
@@ -16,24 +16,33 @@
 package org.esigate.extension.monitoring;
 
 import com.codahale.metrics.MetricRegistry;
+import com.codahale.metrics.MetricSet;
 import com.codahale.metrics.ScheduledReporter;
 import com.codahale.metrics.Slf4jReporter;
 import org.apache.http.HttpStatus;
 import org.apache.http.client.cache.CacheResponseStatus;
 import org.apache.http.client.cache.HttpCacheContext;
+import org.apache.http.impl.client.HttpClientBuilder;
 import org.esigate.Driver;
+import org.esigate.cache.CollapsedForwarding;
+import org.esigate.cache.EarlyRefresh;
+import org.esigate.esi.EsiTemplateCache;
+import org.esigate.esi.InlineFragmentStore;
 import org.esigate.events.Event;
 import org.esigate.events.EventDefinition;
 import org.esigate.events.EventManager;
 import org.esigate.events.IEventListener;
 import org.esigate.events.impl.FetchEvent;
+import org.esigate.events.impl.HttpClientBuilderEvent;
 import org.esigate.events.impl.ProxyEvent;
 import org.esigate.extension.Extension;
+import org.esigate.http.ProxyingHttpClientBuilder;
 import org.esigate.util.Parameter;
 import org.esigate.util.ParameterInteger;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import java.io.Closeable;
 import java.util.Properties;
 import java.util.concurrent.TimeUnit;
 
@@ -44,15 +53,19 @@ import java.util.concurrent.TimeUnit;
  * <p>
  * <code>metricPeriod=60</code>
  * <p>
+ * The counters of collapsed forwarding, early refresh and of the cache of the ESI templates are also reported when they
+ * are enabled, as well as those of the cache storage when it provides some.
+ * <p>
  * <p>
  * Created by alexis on 20/03/14.
  */
-public class Metric implements Extension, IEventListener {
+public class Metric implements Extension, IEventListener, Closeable {
     private static final Logger LOG = LoggerFactory.getLogger(Metric.class);
     private static final Parameter<Integer> PARAM_METRIC_PERIOD = new ParameterInteger("metricPeriod", 60);
 
     private MetricRegistry metric = new MetricRegistry();
     private Driver driver;
+    private ScheduledReporter reporter;
 
     @Override
     public void init(Driver d, Properties properties) {
@@ -60,8 +73,16 @@ public class Metric implements Extension, IEventListener {
         LOG.debug("Initialize Metric");
         driver.getEventManager().register(EventManager.EVENT_PROXY_POST, this);
         driver.getEventManager().register(EventManager.EVENT_FETCH_POST, this);
+        driver.getEventManager().register(EventManager.EVENT_HTTP_BUILDER_INITIALIZATION, this);
+        metric.register(MetricRegistry.name(this.getClass().getSimpleName(), driver.getConfiguration()
+                .getInstanceName(), "inlineFragments"), InlineFragmentStore.get(driver));
+        EsiTemplateCache templateCache = EsiTemplateCache.get(driver);
+        if (templateCache != null) {
+            metric.register(MetricRegistry.name(this.getClass().getSimpleName(), driver.getConfiguration()
+                    .getInstanceName(), "esiTemplates"), templateCache);
+        }
 
-        ScheduledReporter reporter =
+        reporter =
                 Slf4jReporter.forRegistry(this.metric).outputTo(LOG).convertRatesTo(TimeUnit.SECONDS)
                         .convertDurationsTo(TimeUnit.MILLISECONDS).build();
 
@@ -70,6 +91,29 @@ public class Metric implements Extension, IEventListener {
 
     @Override
     public boolean event(EventDefinition id, Event event) {
+        if (EventManager.EVENT_HTTP_BUILDER_INITIALIZATION.equals(id)) {
+            HttpClientBuilder httpClientBuilder = ((HttpClientBuilderEvent) event).getHttpClientBuilder();
+            if (httpClientBuilder instanceof ProxyingHttpClientBuilder) {
+                CollapsedForwarding collapsedForwarding =
+                        ((ProxyingHttpClientBuilder) httpClientBuilder).getCollapsedForwarding();
+                if (collapsedForwarding != null) {
+                    metric.register(MetricRegistry.name(this.getClass().getSimpleName(), driver.getConfiguration()
+                            .getInstanceName(), "collapsedForwarding"), collapsedForwarding);
+                }
+                EarlyRefresh earlyRefresh = ((ProxyingHttpClientBuilder) httpClientBuilder).getEarlyRefresh();
+                if (earlyRefresh != null) {
+                    metric.register(MetricRegistry.name(this.getClass().getSimpleName(), driver.getConfiguration()
+                            .getInstanceName(), "earlyRefresh"), earlyRefresh);
+                }
+                MetricSet cacheStorageMetrics =
+                        ((ProxyingHttpClientBuilder) httpClientBuilder).getCacheStorageMetrics();
+                if (cacheStorageMetrics != null) {
+                    metric.register(MetricRegistry.name(this.getClass().getSimpleName(), driver.getConfiguration()
+                            .getInstanceName(), "cacheStorage"), cacheStorageMetrics);
+                }
+            }
+            return true;
+        }
 
         String timerName =
                 MetricRegistry.name(this.getClass().getSimpleName(), driver.getConfiguration().getInstanceName(),
@@ -103,4 +147,10 @@ public class Metric implements Extension, IEventListener {
 
         return true;
     }
+
+    @Override
+    public void close() {
+        reporter.stop();
+    }
+
 }
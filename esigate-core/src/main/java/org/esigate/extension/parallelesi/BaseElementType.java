@@ -14,15 +14,18 @@
  */
 package org.esigate.extension.parallelesi;
 
+import org.esigate.parser.NamedElementType;
 import org.esigate.parser.future.FutureElementType;
 
-abstract class BaseElementType implements FutureElementType {
+abstract class BaseElementType implements FutureElementType, NamedElementType {
     private final String startTag;
     private final String endTag;
+    private final String tagName;
 
     protected BaseElementType(String startTag, String endTag) {
         this.startTag = startTag;
         this.endTag = endTag;
+        this.tagName = startTag.substring(1);
     }
 
     @Override
@@ -35,6 +38,11 @@ abstract class BaseElementType implements FutureElementType {
         return tag.startsWith(this.endTag);
     }
 
+    @Override
+    public final String getTagName() {
+        return tagName;
+    }
+
     @Override
     public boolean isSelfClosing(String tag) {
         Tag tagObj = Tag.create(tag);
@@ -14,11 +14,10 @@
  */
 package org.esigate.extension.parallelesi;
 
+import java.io.Closeable;
+import java.io.IOException;
 import java.util.Properties;
 import java.util.concurrent.Executor;
-import java.util.concurrent.LinkedBlockingQueue;
-import java.util.concurrent.ThreadPoolExecutor;
-import java.util.concurrent.TimeUnit;
 
 import org.apache.commons.lang3.StringUtils;
 import org.esigate.Driver;
@@ -28,10 +27,12 @@ import org.esigate.events.EventManager;
 import org.esigate.events.IEventListener;
 import org.esigate.events.impl.RenderEvent;
 import org.esigate.extension.Extension;
+import org.esigate.extension.ExtensionFactory;
 import org.esigate.extension.surrogate.CapabilitiesEvent;
 import org.esigate.extension.surrogate.Surrogate;
 import org.esigate.util.Parameter;
 import org.esigate.util.ParameterInteger;
+import org.esigate.util.ParameterString;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -50,11 +51,21 @@ import org.slf4j.LoggerFactory;
  * <li>esi_max_idle : Release threads after X seconds of idle.</li>
  * <li>esi_max_queue : Maximum waiting esi requests (waiting for threads). When the limit is reached, new requests are
  * refused.</li>
+ * <li>esi_max_depth : Maximum depth of the nested includes run in parallel. Default is 0 : only the includes of the
+ * page are run in parallel, the includes inside included pages are run sequentially.</li>
+ * <li>esi_max_includes_per_request : Maximum number of includes running or waiting in parallel for one incoming
+ * request, including nested includes. The includes over the limit are run sequentially. Default is 0 : no limit.</li>
+ * <li>esi_max_concurrent_includes : Maximum number of includes running or waiting in parallel for all the requests of
+ * the driver. The includes over the limit are run sequentially instead of being refused. Default is 0 : no limit.</li>
+ * <li>esi_executor_factory : Class name of the {@link ExecutorFactory} creating the executor for parallel includes.
+ * Default is {@link ThreadPoolExecutorFactory}, which uses the thread parameters above.</li>
+ * <li>esi_inline_max_entries, esi_inline_max_size, esi_inline_ttl, esi_inline_shared : limits of the store of the
+ * &lt;esi:inline&gt; fragments, see {@link org.esigate.esi.InlineFragmentStore}.</li>
  * </ul>
  * 
  * @author Nicolas Richeton
  */
-public class Esi implements Extension, IEventListener {
+public class Esi implements Extension, IEventListener, Closeable {
     private static final Logger LOG = LoggerFactory.getLogger(Esi.class);
     // esi_max_threads = 0 -> linear execution
     public static final Parameter<Integer> MAX_THREADS = new ParameterInteger("esi_max_threads", 0);
@@ -62,7 +73,15 @@ public class Esi implements Extension, IEventListener {
     public static final Parameter<Integer> CORE_THREADS = new ParameterInteger("esi_core_threads", 0);
     public static final Parameter<Integer> IDLE = new ParameterInteger("esi_max_idle", 60);
     public static final Parameter<Integer> MAX_QUEUE = new ParameterInteger("esi_max_queue", 10000);
-    private Executor executor;
+    public static final Parameter<Integer> MAX_DEPTH = new ParameterInteger("esi_max_depth", 0);
+    public static final Parameter<Integer> MAX_INCLUDES_PER_REQUEST = new ParameterInteger(
+            "esi_max_includes_per_request", 0);
+    public static final Parameter<Integer> MAX_CONCURRENT_INCLUDES = new ParameterInteger(
+            "esi_max_concurrent_includes", 0);
+    public static final Parameter<String> EXECUTOR_FACTORY = new ParameterString("esi_executor_factory",
+            ThreadPoolExecutorFactory.class.getName());
+    private IncludeScheduler scheduler;
+    private ExecutorFactory executorFactory;
     public static final String[] CAPABILITIES = new String[] {"ESI/1.0", "ESI-Inline/1.0", "X-ESI-Fragment/1.0",
             "X-ESI-Replace/1.0", "X-ESI-XSLT/1.0", "ESIGATE/4.0"};
 
@@ -89,7 +108,7 @@ public class Esi implements Extension, IEventListener {
         }
 
         if (doEsi) {
-            renderEvent.getRenderers().add(new EsiRenderer(this.executor));
+            renderEvent.getRenderers().add(new EsiRenderer(null, null, this.scheduler));
         }
 
         // Continue processing
@@ -112,28 +131,25 @@ public class Esi implements Extension, IEventListener {
         });
 
         // Load configuration
-        int maxThreads = MAX_THREADS.getValue(properties);
-        int coreThreads = CORE_THREADS.getValue(properties);
-        int minThreads = MIN_THREADS.getValue(properties);
-        if (minThreads > 0 && coreThreads == 0) {
-            coreThreads = minThreads;
+        executorFactory = ExtensionFactory.getExtension(properties, EXECUTOR_FACTORY, driver);
+        Executor executor = executorFactory.getExecutor();
+        int maxDepth = MAX_DEPTH.getValue(properties);
+        int maxIncludesPerRequest = MAX_INCLUDES_PER_REQUEST.getValue(properties);
+        int maxConcurrentIncludes = MAX_CONCURRENT_INCLUDES.getValue(properties);
+        this.scheduler = new IncludeScheduler(executor, maxDepth, maxIncludesPerRequest, maxConcurrentIncludes);
+
+        if (executor != null) {
+            LOG.info("Parallel ESI includes: executor {}, max depth {}, max includes per request {},"
+                    + " max concurrent includes {}.", executor.getClass().getName(), String.valueOf(maxDepth),
+                    String.valueOf(maxIncludesPerRequest), String.valueOf(maxConcurrentIncludes));
         }
+    }
 
-        int idle = IDLE.getValue(properties);
-        int maxQueue = MAX_QUEUE.getValue(properties);
-
-        if (maxThreads == 0) {
-            this.executor = null;
-            LOG.info("Linear ESI processing enabled.");
-        } else {
-            this.executor =
-                    new ThreadPoolExecutor(coreThreads, maxThreads, idle, TimeUnit.SECONDS,
-                            new LinkedBlockingQueue<Runnable>(maxQueue));
-
-            LOG.info("Multi-threaded ESI processing enabled. Thread limit: {}, max idle {}.",
-                    String.valueOf(maxThreads), String.valueOf(idle));
+    @Override
+    public void close() throws IOException {
+        if (executorFactory instanceof Closeable) {
+            ((Closeable) executorFactory).close();
         }
-
     }
 
 }
@@ -17,21 +17,19 @@ package org.esigate.extension.parallelesi;
 import java.io.IOException;
 import java.io.Writer;
 import java.util.Map;
-import java.util.concurrent.ExecutionException;
 import java.util.concurrent.Executor;
 import java.util.concurrent.Future;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.TimeoutException;
-import java.util.regex.Pattern;
 
 import org.apache.http.HttpStatus;
 import org.esigate.HttpErrorPage;
-import org.esigate.Renderer;
+import org.esigate.ProgressiveRenderer;
+import org.esigate.esi.EsiTagScanner;
 import org.esigate.impl.DriverRequest;
 import org.esigate.parser.future.FutureAppendable;
 import org.esigate.parser.future.FutureAppendableAdapter;
 import org.esigate.parser.future.FutureParser;
-import org.esigate.parser.future.StringBuilderFutureAppendable;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -49,7 +47,7 @@ import org.slf4j.LoggerFactory;
  * 
  * @author Nicolas Richeton
  */
-public class EsiRenderer implements Renderer, FutureAppendable {
+public class EsiRenderer implements ProgressiveRenderer, FutureAppendable {
 
     private static final Logger LOG = LoggerFactory.getLogger(EsiRenderer.class);
     /**
@@ -57,16 +55,16 @@ public class EsiRenderer implements Renderer, FutureAppendable {
      */
     public static final String DATA_EXECUTOR = "executor";
 
-    private static final Pattern PATTERN = Pattern
-            .compile("(<esi:\\w+((\\s+\\w+(\\s*=\\s*(?:\".*?\"|'.*?'|[^'\">\\s]+))?)+\\s*|\\s*)/?>)|(</esi:[^>]*>)");
-    private static final Pattern PATTERN_COMMENTS = Pattern.compile("(<!--esi)|(-->)");
-
-    private final FutureParser parser = new FutureParser(PATTERN, IncludeElement.TYPE, CommentElement.TYPE,
-            RemoveElement.TYPE, VarsElement.TYPE, ChooseElement.TYPE, WhenElement.TYPE, OtherwiseElement.TYPE,
-            TryElement.TYPE, AttemptElement.TYPE, ExceptElement.TYPE, InlineElement.TYPE, ReplaceElement.TYPE,
-            FragmentElement.TYPE);
+    /**
+     * Key for the {@link IncludeScheduler} deciding which includes run in the background. This is used with
+     * parser#setData().
+     */
+    static final String DATA_SCHEDULER = "scheduler";
 
-    private final FutureParser parserComments = new FutureParser(PATTERN_COMMENTS, Comment.TYPE);
+    private final FutureParser parser = new FutureParser(EsiTagScanner.INSTANCE, IncludeElement.TYPE,
+            CommentElement.TYPE, RemoveElement.TYPE, VarsElement.TYPE, ChooseElement.TYPE, WhenElement.TYPE,
+            OtherwiseElement.TYPE, TryElement.TYPE, AttemptElement.TYPE, ExceptElement.TYPE, InlineElement.TYPE,
+            ReplaceElement.TYPE, FragmentElement.TYPE);
 
     private Map<String, CharSequence> fragmentsToReplace;
 
@@ -74,13 +72,13 @@ public class EsiRenderer implements Renderer, FutureAppendable {
 
     private final String name;
 
-    private boolean write = true;
+    private boolean write;
 
     private boolean found = false;
 
     private FutureAppendableAdapter futureOut;
 
-    private Executor executor;
+    private final IncludeScheduler scheduler;
 
     public String getName() {
         return name;
@@ -91,15 +89,29 @@ public class EsiRenderer implements Renderer, FutureAppendable {
     }
 
     /**
-     * Constructor used to render a complete page.
+     * Constructor used to render a complete page. Only the includes of the page are run in the background, the includes
+     * found inside the included pages are run in the thread of their parent include.
      * 
      * @param executor
      *            Executor to use for background operations or null if single-thread operations.
      */
     public EsiRenderer(Executor executor) {
-        this.page = null;
-        this.name = null;
-        this.executor = executor;
+        this(executor, 0, 0);
+    }
+
+    /**
+     * Constructor used to render a complete page.
+     * 
+     * @param executor
+     *            Executor to use for background operations or null if single-thread operations.
+     * @param maxDepth
+     *            Maximum depth of the nested includes run in the background, 0 for the includes of the page only.
+     * @param maxIncludesPerRequest
+     *            Maximum number of includes running or waiting in the background for one incoming request, 0 for no
+     *            limit. The includes over the limit are run in the current thread.
+     */
+    public EsiRenderer(Executor executor, int maxDepth, int maxIncludesPerRequest) {
+        this(null, null, new IncludeScheduler(executor, maxDepth, maxIncludesPerRequest, 0));
     }
 
     /**
@@ -113,10 +125,24 @@ public class EsiRenderer implements Renderer, FutureAppendable {
      *            Executor to use for background operations or null if single-thread operations.
      */
     public EsiRenderer(String page, String name, Executor executor) {
+        this(page, name, new IncludeScheduler(executor, 0, 0, 0));
+    }
+
+    /**
+     * Constructor used for the pages and fragments included by another page.
+     * 
+     * @param page
+     *            the page or null if rendering a complete page
+     * @param name
+     *            the fragment or null if rendering a complete page
+     * @param scheduler
+     *            the scheduler for the includes of the page
+     */
+    EsiRenderer(String page, String name, IncludeScheduler scheduler) {
         this.page = page;
         this.name = name;
-        this.write = false;
-        this.executor = executor;
+        this.write = name == null;
+        this.scheduler = scheduler;
     }
 
     public Map<String, CharSequence> getFragmentsToReplace() {
@@ -137,20 +163,12 @@ public class EsiRenderer implements Renderer, FutureAppendable {
             return;
         }
 
+        IncludeScheduler.startRendering(originalRequest);
         try {
-            // Pass 1. Remove esi comments
-            StringBuilderFutureAppendable contentWithoutComments = new StringBuilderFutureAppendable();
-            parserComments.setHttpRequest(originalRequest);
-            parserComments.setData(DATA_EXECUTOR, this.executor);
-            parserComments.parse(content, contentWithoutComments);
-            CharSequence contentWithoutCommentsResult;
-
-            contentWithoutCommentsResult = contentWithoutComments.get();
-
-            // Pass 2. Process ESI
             parser.setHttpRequest(originalRequest);
-            parser.setData(DATA_EXECUTOR, this.executor);
-            parser.parse(contentWithoutCommentsResult, this);
+            parser.setData(DATA_EXECUTOR, scheduler == null ? null : scheduler.getExecutor());
+            parser.setData(DATA_SCHEDULER, scheduler);
+            parser.parse(content, this);
 
             if (name != null && !this.found) {
                 throw new HttpErrorPage(HttpStatus.SC_BAD_GATEWAY, "Fragment " + name + " not found", "Fragment "
@@ -158,14 +176,13 @@ public class EsiRenderer implements Renderer, FutureAppendable {
             }
 
             this.futureOut.performAppends();
-
-        } catch (ExecutionException e) {
-            throw new IOException(e);
+        } finally {
+            IncludeScheduler.endRendering(originalRequest);
         }
     }
 
     @Override
-    public FutureAppendable enqueueAppend(Future<CharSequence> csq) {
+    public FutureAppendable enqueueAppend(Future<CharSequence> csq) throws IOException {
         if (this.write) {
             this.futureOut.enqueueAppend(csq);
         }
@@ -0,0 +1,36 @@
+/* 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package org.esigate.extension.parallelesi;
+
+import java.util.concurrent.Executor;
+
+import org.esigate.extension.Extension;
+
+/**
+ * Creates the executor running the parallel includes of a driver.
+ * <p>
+ * The implementation is configured with the esi_executor_factory parameter. It is loaded like any other extension,
+ * {@link #init(org.esigate.Driver, java.util.Properties)} being called with the driver properties before
+ * {@link #getExecutor()}. An implementation can for instance start a new thread for each include, or use threads which
+ * do not hold a system thread while waiting for the provider.
+ */
+public interface ExecutorFactory extends Extension {
+
+    /**
+     * @return the executor for the parallel includes, or null to process the includes sequentially.
+     */
+    Executor getExecutor();
+}
@@ -22,14 +22,18 @@ import java.util.List;
 import java.util.Map;
 import java.util.Map.Entry;
 import java.util.concurrent.Callable;
-import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutionException;
 import java.util.concurrent.Future;
 import java.util.concurrent.FutureTask;
-import java.util.concurrent.RejectedExecutionException;
 import java.util.concurrent.RunnableFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
 import java.util.regex.Pattern;
 
 import org.apache.commons.io.output.StringBuilderWriter;
+import org.apache.commons.lang3.tuple.ImmutablePair;
+import org.apache.commons.lang3.tuple.Pair;
+import org.apache.http.HttpStatus;
 import org.apache.http.client.methods.CloseableHttpResponse;
 import org.esigate.ConfigurationException;
 import org.esigate.Driver;
@@ -37,6 +41,7 @@ import org.esigate.DriverFactory;
 import org.esigate.HttpErrorPage;
 import org.esigate.Parameters;
 import org.esigate.Renderer;
+import org.esigate.esi.InlineFragmentStore;
 import org.esigate.http.HttpResponseUtils;
 import org.esigate.impl.DriverRequest;
 import org.esigate.parser.future.CharSequenceFuture;
@@ -64,11 +69,12 @@ class IncludeElement extends BaseElement {
         private Tag includeTag;
         private Map<String, CharSequence> fragmentReplacements;
         private Map<String, CharSequence> regexpReplacements;
-        private Executor executor;
+        private IncludeScheduler scheduler;
+        private long deadline;
 
         private IncludeTask(Tag includeTag, String src, String alt, FutureParserContext ctx, FutureElement current,
                 boolean ignoreError, Map<String, CharSequence> fragmentReplacements,
-                Map<String, CharSequence> regexpReplacements, Executor executor) {
+                Map<String, CharSequence> regexpReplacements, IncludeScheduler scheduler, long deadline) {
             this.src = src;
             this.alt = alt;
             this.ctx = ctx;
@@ -77,7 +83,8 @@ class IncludeElement extends BaseElement {
             this.includeTag = includeTag;
             this.fragmentReplacements = fragmentReplacements;
             this.regexpReplacements = regexpReplacements;
-            this.executor = executor;
+            this.scheduler = scheduler;
+            this.deadline = deadline;
         }
 
         @Override
@@ -85,31 +92,44 @@ class IncludeElement extends BaseElement {
             LOG.debug("Starting include task {}", this.src);
             StringBuilderWriter sw = new StringBuilderWriter(Parameters.DEFAULT_BUFFER_SIZE);
 
-            Exception currentException = null;
             // Handle src
+            Exception currentException = tryProcessPage(this.src, deadline, sw);
+            return complete(currentException, sw);
+        }
+
+        /**
+         * Gives up waiting for src and falls back to alt or to the onerror behavior.
+         * 
+         * @return the content of the include
+         * @throws IOException
+         * @throws HttpErrorPage
+         */
+        private CharSequence onTimeout() throws IOException, HttpErrorPage {
+            LOG.warn("Timeout while including {}", this.src);
+            StringBuilderWriter sw = new StringBuilderWriter(Parameters.DEFAULT_BUFFER_SIZE);
+            return complete(new HttpErrorPage(HttpStatus.SC_GATEWAY_TIMEOUT, "Gateway Timeout", "Include timeout"), sw);
+        }
+
+        private Exception tryProcessPage(String srcOrAlt, long pageDeadline, Appendable out) {
             try {
-                processPage(this.src, includeTag, sw);
+                processPage(srcOrAlt, includeTag, out, pageDeadline);
             } catch (IOException | HttpErrorPage e) {
-                currentException = e;
+                return e;
             } catch (ConfigurationException e) {
                 // case uknown provider : log error
-                currentException = e;
                 LOG.error("Esi Include Tag with unknown Provider :" + e.getMessage());
+                return e;
             }
+            return null;
+        }
+
+        private CharSequence complete(Exception srcException, StringBuilderWriter sw) throws IOException, HttpErrorPage {
+            Exception currentException = srcException;
 
             // Handle Alt
             if (currentException != null && alt != null) {
-                // Reset exception
-                currentException = null;
-                try {
-                    processPage(alt, includeTag, sw);
-                } catch (IOException | HttpErrorPage e) {
-                    currentException = e;
-                } catch (ConfigurationException e) {
-                    // case uknown provider : log error
-                    currentException = e;
-                    LOG.error("Esi Include Tag with unknown Provider :" + e.getMessage());
-                }
+                // The timeout of the include only applies to src, alt is only bounded by the page including it
+                currentException = tryProcessPage(alt, ctx.getHttpRequest().getDeadline(), sw);
             }
 
             // Handle onerror
@@ -139,13 +159,33 @@ class IncludeElement extends BaseElement {
             return result;
         }
 
-        private void processPage(String srcOrAlt, Tag tag, Appendable out) throws IOException, HttpErrorPage {
-            String fragment = tag.getAttribute("fragment");
-            String xpath = tag.getAttribute("xpath");
-            String xslt = tag.getAttribute("stylesheet");
+        /**
+         * Sends the request for src without waiting for the response, if the provider can do it.
+         * 
+         * @return true if the request has been sent
+         * @throws HttpErrorPage
+         */
+        private boolean prefetch() throws HttpErrorPage {
+            if (src == null) {
+                return false;
+            }
+            if (InlineFragmentStore.get(ctx.getHttpRequest().getDriver()).get(src) != null) {
+                return false;
+            }
+            Pair<Driver, String> target;
+            try {
+                target = getTarget(src, false);
+            } catch (ConfigurationException e) {
+                // Reported when processing the include
+                return false;
+            }
+            return target.getLeft().prefetch(target.getRight(), ctx.getHttpRequest().getOriginalRequest(), deadline);
+        }
 
-            DriverRequest httpRequest = ctx.getHttpRequest();
-            List<Renderer> rendererList = new ArrayList<>();
+        /**
+         * @return the driver and the url of the page for a src or alt attribute
+         */
+        private Pair<Driver, String> getTarget(String srcOrAlt, boolean logWarnings) {
             Driver driver;
             String page;
 
@@ -153,14 +193,14 @@ class IncludeElement extends BaseElement {
             int idxLegacyPattern = srcOrAlt.indexOf(LEGACY_PROVIDER_PATTERN);
             if (idx < 0 && idxLegacyPattern < 0) {
                 page = srcOrAlt;
-                driver = httpRequest.getDriver();
+                driver = ctx.getHttpRequest().getDriver();
             } else if (idx >= 0) {
                 int startIdx = idx + PROVIDER_PATTERN.length();
                 int endIndex = srcOrAlt.indexOf("})", startIdx);
                 String provider = srcOrAlt.substring(startIdx, endIndex);
                 page = srcOrAlt.substring(endIndex + "})".length());
                 driver = DriverFactory.getInstance(provider);
-                if (LOG.isWarnEnabled() && idx > 0) {
+                if (logWarnings && LOG.isWarnEnabled() && idx > 0) {
                     LOG.warn("Invalid src attribute : [{}], src should start with [{}{}})]."
                             + " First characters [{}] have been ignored", srcOrAlt, PROVIDER_PATTERN, provider,
                             srcOrAlt.substring(0, idx));
@@ -171,23 +211,37 @@ class IncludeElement extends BaseElement {
                 String provider = srcOrAlt.substring(startIdx, endIndex);
                 page = srcOrAlt.substring(endIndex + "})".length());
                 driver = DriverFactory.getInstance(provider);
-                if (LOG.isWarnEnabled() && idxLegacyPattern > 0) {
+                if (logWarnings && LOG.isWarnEnabled() && idxLegacyPattern > 0) {
                     LOG.warn("Invalid src attribute : [{}], src should start with [{}{}})]."
                             + " First characters [{}] have been ignored", srcOrAlt, PROVIDER_PATTERN, provider,
                             srcOrAlt.substring(0, idxLegacyPattern));
                 }
             }
+            return new ImmutablePair<>(driver, page);
+        }
+
+        private void processPage(String srcOrAlt, Tag tag, Appendable out, long pageDeadline) throws IOException,
+                HttpErrorPage {
+            String fragment = tag.getAttribute("fragment");
+            String xpath = tag.getAttribute("xpath");
+            String xslt = tag.getAttribute("stylesheet");
 
-            InlineCache ic = InlineCache.getFragment(srcOrAlt);
-            if (ic != null && !ic.isExpired()) {
-                String cache = ic.getFragment();
+            DriverRequest httpRequest = ctx.getHttpRequest();
+            List<Renderer> rendererList = new ArrayList<>();
+            Pair<Driver, String> target = getTarget(srcOrAlt, true);
+            Driver driver = target.getLeft();
+            String page = target.getRight();
+
+            InlineFragmentStore.Fragment inline = InlineFragmentStore.get(httpRequest.getDriver()).get(srcOrAlt);
+            if (inline != null) {
+                String cache = inline.getContent();
                 out.append(cache);
             } else {
                 EsiRenderer esiRenderer;
                 if (fragment != null) {
-                    esiRenderer = new EsiRenderer(page, fragment, executor);
+                    esiRenderer = new EsiRenderer(page, fragment, scheduler);
                 } else {
-                    esiRenderer = new EsiRenderer(executor);
+                    esiRenderer = new EsiRenderer(null, null, scheduler);
                 }
                 if (fragmentReplacements != null && !fragmentReplacements.isEmpty()) {
                     esiRenderer.setFragmentsToReplace(fragmentReplacements);
@@ -199,7 +253,7 @@ class IncludeElement extends BaseElement {
                     rendererList.add(new XsltRenderer(xslt, driver, httpRequest));
                 }
                 CloseableHttpResponse response =
-                        driver.render(page, httpRequest.getOriginalRequest(),
+                        driver.render(page, httpRequest.getOriginalRequest(), pageDeadline,
                                 rendererList.toArray(new Renderer[rendererList.size()]));
                 out.append(HttpResponseUtils.toString(response));
             }
@@ -207,6 +261,53 @@ class IncludeElement extends BaseElement {
 
     }
 
+    /**
+     * Waits for an include until a deadline, then uses the fallback of the include.
+     */
+    private static final class TimeLimitedInclude extends FutureTask<CharSequence> {
+        private final Future<CharSequence> include;
+
+        private TimeLimitedInclude(final Future<CharSequence> include, final IncludeTask task, final long deadline) {
+            super(new Callable<CharSequence>() {
+                @Override
+                public CharSequence call() throws Exception {
+                    try {
+                        return include.get(Math.max(0, deadline - System.currentTimeMillis()), TimeUnit.MILLISECONDS);
+                    } catch (TimeoutException e) {
+                        include.cancel(true);
+                        return task.onTimeout();
+                    } catch (ExecutionException e) {
+                        Throwable cause = e.getCause();
+                        if (cause instanceof Exception) {
+                            throw (Exception) cause;
+                        }
+                        throw e;
+                    }
+                }
+            });
+            this.include = include;
+        }
+
+        @Override
+        public boolean isDone() {
+            // The result can be read without waiting
+            return super.isDone() || include.isDone();
+        }
+
+        @Override
+        public CharSequence get() throws InterruptedException, ExecutionException {
+            run();
+            return super.get();
+        }
+
+        @Override
+        public CharSequence get(long timeout, TimeUnit unit) throws InterruptedException, ExecutionException,
+                TimeoutException {
+            run();
+            return super.get(timeout, unit);
+        }
+    }
+
     public static final FutureElementType TYPE = new BaseElementType("<esi:include", "</esi:include") {
         @Override
         public IncludeElement newInstance() {
@@ -237,30 +338,91 @@ class IncludeElement extends BaseElement {
         String src = includeTag.getAttribute("src");
         String alt = includeTag.getAttribute("alt");
         boolean ignoreError = "continue".equals(includeTag.getAttribute("onerror"));
+        // The include cannot last longer than the page including it
+        long deadline = earliest(getDeadline(includeTag), ctx.getHttpRequest().getDeadline());
         FutureElement current = ctx.getCurrent();
         // write accumulated data into parent
-        Executor executor = (Executor) ctx.getData(EsiRenderer.DATA_EXECUTOR);
-        Future<CharSequence> result;
+        IncludeScheduler scheduler = (IncludeScheduler) ctx.getData(EsiRenderer.DATA_SCHEDULER);
+        Future<CharSequence> result = null;
         IncludeTask task =
                 new IncludeTask(includeTag, src, alt, ctx, current, ignoreError, fragmentReplacements,
-                        regexpReplacements, null); // executor is null to disable parallel esi on recursive calls.
-        if (executor == null) {
+                        regexpReplacements, scheduler == null ? null : scheduler.nested(), deadline);
+        if (scheduler != null && isPrefetchable(ctx)) {
+            // The response will be processed by the thread reading the result, no need for a thread of the pool.
+            result = prefetch(task, scheduler, ctx.getHttpRequest());
+        }
+        if (result == null && scheduler != null) {
+            // Start processing in a new thread if the limits allow it.
+            result = scheduler.submit(task, ctx.getHttpRequest());
+        }
+        if (result == null) {
             // No threads.
             CharSequence content = task.call();
             result = new CharSequenceFuture(content);
         } else {
-            // Start processing in a new thread.
-            try {
-                RunnableFuture<CharSequence> r = new FutureTask<>(task);
-                executor.execute(r);
-                result = r;
-            } catch (RejectedExecutionException e) {
-                throw new HttpErrorPage(509, "Limits exceeded", e);
+            // Do not wait longer than the timeout of the include or of the whole request
+            if (deadline > 0) {
+                result = new TimeLimitedInclude(result, task, deadline);
             }
         }
         ctx.getCurrent().characters(result);
     }
 
+    /**
+     * The includes inside a condition or inside &lt;esi:remove&gt; may never be read, their source is not prefetched.
+     */
+    private static boolean isPrefetchable(FutureParserContext ctx) {
+        return ctx.findAncestor(WhenElement.class) == null && ctx.findAncestor(OtherwiseElement.class) == null
+                && ctx.findAncestor(RemoveElement.class) == null;
+    }
+
+    /**
+     * @return the include if its source is being prefetched, null otherwise
+     */
+    private static Future<CharSequence> prefetch(IncludeTask task, IncludeScheduler scheduler, DriverRequest request)
+            throws HttpErrorPage {
+        RunnableFuture<CharSequence> deferred = scheduler.defer(task, request);
+        if (deferred == null) {
+            return null;
+        }
+        boolean prefetched = false;
+        try {
+            prefetched = task.prefetch();
+        } finally {
+            if (!prefetched) {
+                // Gives back its place in the budgets
+                deferred.cancel(false);
+            }
+        }
+        return prefetched ? deferred : null;
+    }
+
+    /**
+     * @return the earliest of two deadlines, 0 meaning no deadline
+     */
+    private static long earliest(long deadline, long otherDeadline) {
+        if (deadline <= 0 || (otherDeadline > 0 && otherDeadline < deadline)) {
+            return otherDeadline;
+        }
+        return deadline;
+    }
+
+    /**
+     * @return the deadline for the src of the include according to its timeout attribute, 0 if there is none
+     */
+    private static long getDeadline(Tag tag) {
+        String timeout = tag.getAttribute("timeout");
+        if (timeout == null) {
+            return 0;
+        }
+        try {
+            return System.currentTimeMillis() + Integer.parseInt(timeout.trim());
+        } catch (NumberFormatException e) {
+            LOG.warn("Invalid timeout attribute : [{}], it should be a number of milliseconds", timeout);
+            return 0;
+        }
+    }
+
     @Override
     protected boolean parseTag(Tag tag, FutureParserContext ctx) {
         buf = new StringBuilderFutureAppendable();
@@ -0,0 +1,302 @@
+/* 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package org.esigate.extension.parallelesi;
+
+import java.util.Queue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.RunnableFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.esigate.Driver;
+import org.esigate.HttpErrorPage;
+import org.esigate.http.IncomingRequest;
+import org.esigate.impl.DriverRequest;
+
+/**
+ * Decides whether an include is fetched in a background thread or in the current thread.
+ * <p>
+ * Includes are run in the background only if the include is not nested deeper than the maximum depth and if the
+ * incoming request has not already reached its maximum number of background includes. Nested includes share the budget
+ * of the incoming request, so a single page cannot take all the threads of the pool. The includes of all the requests
+ * can also be limited, the includes over the limit being run in the current thread instead of waiting for a thread.
+ * <p>
+ * A thread waiting for the result of an include which has not started yet runs it itself, or starts it in a new thread
+ * if it only waits until a deadline. Thus an include waiting for its own nested includes never waits for a thread of
+ * the pool, which could otherwise lead to a deadlock when all the threads are busy.
+ * <p>
+ * The includes whose source is prefetched take a place in the same budgets, as each of them may keep a request to a
+ * provider pending. When the rendering of the incoming request ends, the prefetched includes which were never read, for
+ * instance because the page failed before, are cancelled and give back their place.
+ */
+final class IncludeScheduler {
+    private static final String BUDGET_ATTRIBUTE = IncludeScheduler.class.getName() + ".budget";
+    private static final String DEFERRED_ATTRIBUTE = IncludeScheduler.class.getName() + ".deferred";
+    private static final String RENDERINGS_ATTRIBUTE = IncludeScheduler.class.getName() + ".renderings";
+
+    private final Executor executor;
+    private final int maxDepth;
+    private final int maxIncludesPerRequest;
+    /** Shared by the schedulers of all the requests, null if there is no limit. */
+    private final AtomicInteger concurrentBudget;
+    private final int depth;
+
+    /**
+     * @param executor
+     *            the executor, or null to process all the includes in the current thread
+     * @param maxDepth
+     *            the maximum depth of the includes run in the background, 0 for top-level includes only
+     * @param maxIncludesPerRequest
+     *            the maximum number of includes running or waiting in the background for an incoming request, 0 for no
+     *            limit
+     * @param maxConcurrentIncludes
+     *            the maximum number of includes running or waiting in the background for all the requests using this
+     *            scheduler, 0 for no limit
+     */
+    IncludeScheduler(Executor executor, int maxDepth, int maxIncludesPerRequest, int maxConcurrentIncludes) {
+        this(executor, maxDepth, maxIncludesPerRequest, maxConcurrentIncludes > 0 ? new AtomicInteger(
+                maxConcurrentIncludes) : null, 0);
+    }
+
+    private IncludeScheduler(Executor executor, int maxDepth, int maxIncludesPerRequest,
+            AtomicInteger concurrentBudget, int depth) {
+        this.executor = executor;
+        this.maxDepth = maxDepth;
+        this.maxIncludesPerRequest = maxIncludesPerRequest;
+        this.concurrentBudget = concurrentBudget;
+        this.depth = depth;
+    }
+
+    /**
+     * @return the scheduler for the includes found inside an included page
+     */
+    IncludeScheduler nested() {
+        return new IncludeScheduler(executor, maxDepth, maxIncludesPerRequest, concurrentBudget, depth + 1);
+    }
+
+    Executor getExecutor() {
+        return executor;
+    }
+
+    int getDepth() {
+        return depth;
+    }
+
+    /**
+     * Starts an include task in the background if allowed.
+     * 
+     * @param task
+     *            the include task
+     * @param request
+     *            the current request
+     * @return the result of the task, or null if the task must be run in the current thread
+     * @throws HttpErrorPage
+     *             if the executor refuses the task
+     */
+    Future<CharSequence> submit(Callable<CharSequence> task, DriverRequest request) throws HttpErrorPage {
+        if (executor == null || depth > maxDepth) {
+            return null;
+        }
+        AtomicInteger budget = getBudget(request.getOriginalRequest());
+        if (!acquire(budget)) {
+            return null;
+        }
+        if (concurrentBudget != null && !acquire(concurrentBudget)) {
+            budget.incrementAndGet();
+            return null;
+        }
+        IncludeFuture future = new IncludeFuture(task, budget, concurrentBudget);
+        try {
+            executor.execute(future);
+        } catch (RejectedExecutionException e) {
+            future.release();
+            throw new HttpErrorPage(509, "Limits exceeded", e);
+        }
+        return future;
+    }
+
+    /**
+     * Prepares an include whose source is prefetched, to be processed by the first thread reading its result, if the
+     * limits allow it.
+     * 
+     * @param task
+     *            the include task
+     * @param request
+     *            the current request
+     * @return the include, which must be cancelled if its source is not prefetched, or null if the limits are reached
+     */
+    RunnableFuture<CharSequence> defer(Callable<CharSequence> task, DriverRequest request) {
+        IncomingRequest incomingRequest = request.getOriginalRequest();
+        AtomicInteger budget = getBudget(incomingRequest);
+        if (!acquire(budget)) {
+            return null;
+        }
+        if (concurrentBudget != null && !acquire(concurrentBudget)) {
+            budget.incrementAndGet();
+            return null;
+        }
+        IncludeFuture include = new IncludeFuture(task, budget, concurrentBudget);
+        getDeferred(incomingRequest).add(include);
+        return include;
+    }
+
+    private static Queue<IncludeFuture> getDeferred(IncomingRequest request) {
+        Queue<IncludeFuture> deferred = request.getAttribute(DEFERRED_ATTRIBUTE);
+        if (deferred == null) {
+            deferred = new ConcurrentLinkedQueue<>();
+            Queue<IncludeFuture> current = request.setAttributeIfAbsent(DEFERRED_ATTRIBUTE, deferred);
+            if (current != null) {
+                deferred = current;
+            }
+        }
+        return deferred;
+    }
+
+    /**
+     * Signals that a page or an included page starts being rendered for an incoming request.
+     * 
+     * @param request
+     *            the current request
+     */
+    static void startRendering(DriverRequest request) {
+        IncomingRequest incomingRequest = request.getOriginalRequest();
+        AtomicInteger renderings = incomingRequest.getAttribute(RENDERINGS_ATTRIBUTE);
+        if (renderings == null) {
+            renderings = new AtomicInteger();
+            AtomicInteger current = incomingRequest.setAttributeIfAbsent(RENDERINGS_ATTRIBUTE, renderings);
+            if (current != null) {
+                renderings = current;
+            }
+        }
+        renderings.incrementAndGet();
+    }
+
+    /**
+     * Signals that a page or an included page has been rendered. Once the whole incoming request has been rendered, the
+     * prefetched includes which have not been read are cancelled as well as their requests.
+     * 
+     * @param request
+     *            the current request
+     */
+    static void endRendering(DriverRequest request) {
+        IncomingRequest incomingRequest = request.getOriginalRequest();
+        AtomicInteger renderings = incomingRequest.getAttribute(RENDERINGS_ATTRIBUTE);
+        if (renderings == null || renderings.decrementAndGet() > 0) {
+            return;
+        }
+        Queue<IncludeFuture> deferred = incomingRequest.getAttribute(DEFERRED_ATTRIBUTE);
+        if (deferred != null) {
+            IncludeFuture include;
+            while ((include = deferred.poll()) != null) {
+                include.cancel(false);
+            }
+        }
+        Driver.discardPrefetches(incomingRequest);
+    }
+
+    private static boolean acquire(AtomicInteger budget) {
+        if (budget.decrementAndGet() < 0) {
+            budget.incrementAndGet();
+            return false;
+        }
+        return true;
+    }
+
+    private AtomicInteger getBudget(IncomingRequest request) {
+        AtomicInteger budget = request.getAttribute(BUDGET_ATTRIBUTE);
+        if (budget == null) {
+            budget = new AtomicInteger(maxIncludesPerRequest > 0 ? maxIncludesPerRequest : Integer.MAX_VALUE);
+            AtomicInteger current = request.setAttributeIfAbsent(BUDGET_ATTRIBUTE, budget);
+            if (current != null) {
+                budget = current;
+            }
+        }
+        return budget;
+    }
+
+    /**
+     * A task which gives back its place in the budgets when done or cancelled, and which is run by the thread waiting
+     * for it if no other thread has started it yet. A thread waiting with a timeout never runs the task itself, as
+     * reading a response is only bounded by the socket timeout, which a provider sending its bytes slowly never
+     * reaches: the task is started in a new thread instead and the wait stops at the timeout.
+     */
+    private static final class IncludeFuture extends FutureTask<CharSequence> {
+        private final AtomicInteger budget;
+        private final AtomicInteger concurrentBudget;
+        private final AtomicBoolean started = new AtomicBoolean();
+
+        private IncludeFuture(Callable<CharSequence> task, AtomicInteger budget, AtomicInteger concurrentBudget) {
+            super(task);
+            this.budget = budget;
+            this.concurrentBudget = concurrentBudget;
+        }
+
+        @Override
+        public void run() {
+            // Does nothing if the task is already running or done
+            if (started.compareAndSet(false, true)) {
+                super.run();
+            }
+        }
+
+        @Override
+        public CharSequence get() throws InterruptedException, ExecutionException {
+            run();
+            return super.get();
+        }
+
+        @Override
+        public CharSequence get(long timeout, TimeUnit unit) throws InterruptedException, ExecutionException,
+                TimeoutException {
+            if (started.compareAndSet(false, true)) {
+                Thread thread = new Thread("esigate-include") {
+                    @Override
+                    public void run() {
+                        runTask();
+                    }
+                };
+                thread.setDaemon(true);
+                thread.start();
+            }
+            return super.get(timeout, unit);
+        }
+
+        private void runTask() {
+            super.run();
+        }
+
+        @Override
+        protected void done() {
+            release();
+        }
+
+        private void release() {
+            budget.incrementAndGet();
+            if (concurrentBudget != null) {
+                concurrentBudget.incrementAndGet();
+            }
+        }
+    }
+
+}
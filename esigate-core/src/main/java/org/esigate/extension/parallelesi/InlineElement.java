@@ -19,6 +19,7 @@ import java.io.IOException;
 import java.util.concurrent.ExecutionException;
 import java.util.concurrent.Future;
 
+import org.esigate.esi.InlineFragmentStore;
 import org.esigate.parser.future.FutureElementType;
 import org.esigate.parser.future.FutureParserContext;
 import org.esigate.parser.future.StringBuilderFutureAppendable;
@@ -57,7 +58,8 @@ class InlineElement extends BaseElement {
     public void onTagEnd(String tag, FutureParserContext ctx) throws IOException {
         String originalUrl = UriUtils.getPath(ctx.getHttpRequest().getOriginalRequest().getRequestLine().getUri());
         try {
-            InlineCache.storeFragment(uri, null, fetchable, originalUrl, buf.get().toString());
+            InlineFragmentStore.get(ctx.getHttpRequest().getDriver()).put(uri, null, fetchable, originalUrl,
+                    buf.get().toString());
         } catch (ExecutionException e) {
             throw new IOException(e);
         }
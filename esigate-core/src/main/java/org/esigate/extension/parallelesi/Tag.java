@@ -12,68 +12,94 @@
  * limitations under the License.
  *
  */
-package org.esigate.extension.parallelesi;
 
-import java.util.Collections;
-import java.util.HashMap;
-import java.util.Map;
-import java.util.regex.Matcher;
-import java.util.regex.Pattern;
+package org.esigate.extension.parallelesi;
 
+/**
+ * A tag found in a page.
+ * <p>
+ * The name of the tag and whether it is closing or self-closing are read when the tag is created, by looking at both
+ * ends of the String only. The attributes are scanned the first time one of them is requested, and only the positions
+ * of their names and values are kept: an attribute value is extracted from the tag each time it is requested.
+ */
 final class Tag {
-    private static final Pattern TAG_CLOSE_PATTERN = Pattern.compile("\\A</([\\S]*)[\\s]*>\\z");
-    private static final Pattern TAG_START_PATTERN = Pattern.compile("\\A<([\\S]*)[\\s|>]");
-    private static final Pattern ATTRIBUTE_PATTERN = Pattern.compile("([^\\s=]+)\\s*=\\s*('[^']*'|\"[^\"]*\")");
-    private static final Pattern AUTO_CLOSE_TAG = Pattern.compile("/[\\s]*>\\z");
+    private static final int[] NO_ATTRIBUTES = new int[0];
 
-    private final String name;
-    private final Map<String, String> attributes;
+    private final String tag;
+    private final int nameStart;
+    private final int nameEnd;
     private final boolean closing;
     private final boolean openClosed;
+    /** Four positions per attribute: start and end of the name, start and end of the value. */
+    private int[] attributes;
 
     public static Tag create(String tag) {
-        // check for close tag pattern firs as '/' is included into '\S' regexp in TAG_START_PATTERN
-        Matcher closeMatcher = TAG_CLOSE_PATTERN.matcher(tag);
-        if (closeMatcher.find()) {
-            String name = closeMatcher.group(1);
-            Map<String, String> attributes = Collections.emptyMap();
-
-            return new Tag(name, true, false, attributes);
+        int length = tag.length();
+        // check for close tag first as '/' is a valid character for the name of a start tag
+        if (length > 2 && tag.startsWith("</") && tag.charAt(length - 1) == '>') {
+            int end = length - 1;
+            while (end > 2 && isWhitespace(tag.charAt(end - 1))) {
+                end--;
+            }
+            if (indexOfWhitespace(tag, 2, end) < 0) {
+                return new Tag(tag, 2, end, true, false);
+            }
         }
 
-        Matcher startMatcher = TAG_START_PATTERN.matcher(tag);
-        if (startMatcher.find()) {
-            String name = startMatcher.group(1);
-
-            Map<String, String> attributes = new HashMap<>();
-            Matcher attributesMatcher = ATTRIBUTE_PATTERN.matcher(tag);
-            while (attributesMatcher.find()) {
-                // attributesMatcher.group(2) matches to the attribute value including surrounded quotes
-                attributes.put(attributesMatcher.group(1),
-                        tag.substring(attributesMatcher.start(2) + 1, attributesMatcher.end(2) - 1));
+        if (length > 0 && tag.charAt(0) == '<') {
+            int end = indexOfWhitespace(tag, 1, length);
+            if (end < 0) {
+                // No whitespace, the name ends with the last '>' (or '|')
+                end = length - 1;
+                while (end > 0 && tag.charAt(end) != '>' && tag.charAt(end) != '|') {
+                    end--;
+                }
+            }
+            if (end > 0) {
+                return new Tag(tag, 1, end, false, isOpenClosed(tag));
             }
-            boolean openClosed = AUTO_CLOSE_TAG.matcher(tag).find();
-
-            return new Tag(name, false, openClosed, attributes);
         }
 
         throw new IllegalArgumentException("invalid tag string: '" + tag + "'");
-        // return null;
     }
 
-    private Tag(String name, boolean closing, boolean openClosed, Map<String, String> attributes) {
-        this.name = name;
+    private static boolean isOpenClosed(String tag) {
+        int i = tag.length() - 1;
+        if (i < 0 || tag.charAt(i) != '>') {
+            return false;
+        }
+        i--;
+        while (i >= 0 && isWhitespace(tag.charAt(i))) {
+            i--;
+        }
+        return i >= 0 && tag.charAt(i) == '/';
+    }
+
+    private Tag(String tag, int nameStart, int nameEnd, boolean closing, boolean openClosed) {
+        this.tag = tag;
+        this.nameStart = nameStart;
+        this.nameEnd = nameEnd;
         this.closing = closing;
         this.openClosed = openClosed;
-        this.attributes = attributes;
     }
 
     public String getName() {
-        return name;
+        return tag.substring(nameStart, nameEnd);
     }
 
-    public String getAttribute(String pName) {
-        return attributes.get(pName);
+    public String getAttribute(String attributeName) {
+        if (attributes == null) {
+            attributes = closing ? NO_ATTRIBUTES : scanAttributes(tag);
+        }
+        int nameLength = attributeName.length();
+        // If an attribute is repeated, the last value wins
+        for (int i = attributes.length - 4; i >= 0; i -= 4) {
+            if (attributes[i + 1] - attributes[i] == nameLength
+                    && tag.regionMatches(attributes[i], attributeName, 0, nameLength)) {
+                return tag.substring(attributes[i + 2], attributes[i + 3]);
+            }
+        }
+        return null;
     }
 
     public boolean isClosing() {
@@ -84,4 +110,78 @@ final class Tag {
         return openClosed;
     }
 
+    /**
+     * Finds the attributes like name="value" or name='value' anywhere in the tag. Values must be quoted and may contain
+     * any character except the quote. Anything which does not look like an attribute is skipped.
+     */
+    private static int[] scanAttributes(String tag) {
+        int[] result = new int[16];
+        int size = 0;
+        int length = tag.length();
+        int i = 0;
+        while (i < length) {
+            char c = tag.charAt(i);
+            if (isWhitespace(c) || c == '=') {
+                i++;
+                continue;
+            }
+            int attributeNameEnd = i + 1;
+            while (attributeNameEnd < length) {
+                c = tag.charAt(attributeNameEnd);
+                if (isWhitespace(c) || c == '=') {
+                    break;
+                }
+                attributeNameEnd++;
+            }
+            int valueEnd = -1;
+            int j = skipWhitespace(tag, attributeNameEnd);
+            if (j < length && tag.charAt(j) == '=') {
+                j = skipWhitespace(tag, j + 1);
+                if (j < length && (tag.charAt(j) == '"' || tag.charAt(j) == '\'')) {
+                    valueEnd = tag.indexOf(tag.charAt(j), j + 1);
+                }
+            }
+            if (valueEnd < 0) {
+                // Not an attribute, nor any part of the name
+                i = attributeNameEnd;
+                continue;
+            }
+            if (size == result.length) {
+                int[] larger = new int[size * 2];
+                System.arraycopy(result, 0, larger, 0, size);
+                result = larger;
+            }
+            result[size++] = i;
+            result[size++] = attributeNameEnd;
+            result[size++] = j + 1;
+            result[size++] = valueEnd;
+            i = valueEnd + 1;
+        }
+        int[] attributes = new int[size];
+        System.arraycopy(result, 0, attributes, 0, size);
+        return attributes;
+    }
+
+    private static int skipWhitespace(String tag, int from) {
+        int i = from;
+        while (i < tag.length() && isWhitespace(tag.charAt(i))) {
+            i++;
+        }
+        return i;
+    }
+
+    private static int indexOfWhitespace(String tag, int from, int to) {
+        for (int i = from; i < to; i++) {
+            if (isWhitespace(tag.charAt(i))) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    /** Same characters as \s in regular expressions. */
+    private static boolean isWhitespace(char c) {
+        return c == ' ' || c == '\t' || c == '\n' || c == '\u000b' || c == '\f' || c == '\r';
+    }
+
 }
@@ -0,0 +1,80 @@
+/* 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package org.esigate.extension.parallelesi;
+
+import java.io.Closeable;
+import java.util.Properties;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+import org.esigate.Driver;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Default {@link ExecutorFactory}: a thread pool configured with the esi_max_threads, esi_min_threads,
+ * esi_core_threads, esi_max_idle and esi_max_queue parameters.
+ * 
+ * @see Esi
+ */
+public class ThreadPoolExecutorFactory implements ExecutorFactory, Closeable {
+    private static final Logger LOG = LoggerFactory.getLogger(ThreadPoolExecutorFactory.class);
+    private ExecutorService executor;
+
+    @Override
+    public void init(Driver driver, Properties properties) {
+        int maxThreads = Esi.MAX_THREADS.getValue(properties);
+        int coreThreads = Esi.CORE_THREADS.getValue(properties);
+        int minThreads = Esi.MIN_THREADS.getValue(properties);
+        if (minThreads > 0 && coreThreads == 0) {
+            coreThreads = minThreads;
+        }
+
+        int idle = Esi.IDLE.getValue(properties);
+        int maxQueue = Esi.MAX_QUEUE.getValue(properties);
+
+        if (maxThreads == 0) {
+            this.executor = null;
+            LOG.info("Linear ESI processing enabled.");
+        } else {
+            this.executor =
+                    new ThreadPoolExecutor(coreThreads, maxThreads, idle, TimeUnit.SECONDS,
+                            new LinkedBlockingQueue<Runnable>(maxQueue));
+
+            LOG.info("Multi-threaded ESI processing enabled. Thread limit: {}, max idle {}.",
+                    String.valueOf(maxThreads), String.valueOf(idle));
+        }
+    }
+
+    @Override
+    public Executor getExecutor() {
+        return executor;
+    }
+
+    /**
+     * Stops the threads once the includes already submitted are complete.
+     */
+    @Override
+    public void close() {
+        if (executor != null) {
+            executor.shutdown();
+        }
+    }
+
+}
@@ -24,7 +24,7 @@ import org.esigate.parser.future.CharSequenceFuture;
 import org.esigate.parser.future.FutureElementType;
 import org.esigate.parser.future.FutureParserContext;
 import org.esigate.parser.future.StringBuilderFutureAppendable;
-import org.esigate.vars.VariablesResolver;
+import org.esigate.vars.VariableTemplate;
 
 class VarsElement extends BaseElement {
     public static final FutureElementType TYPE = new BaseElementType("<esi:vars", "</esi:vars") {
@@ -50,7 +50,7 @@ class VarsElement extends BaseElement {
         buf.performAppends();
         String result;
         try {
-            result = VariablesResolver.replaceAllVariables(buf.get().toString(), ctx.getHttpRequest());
+            result = VariableTemplate.render(buf.get().toString(), ctx.getHttpRequest());
         } catch (ExecutionException e) {
             if (e.getCause() instanceof HttpErrorPage) {
                 throw (HttpErrorPage) e.getCause();
@@ -24,8 +24,7 @@ import org.esigate.parser.future.CharSequenceFuture;
 import org.esigate.parser.future.FutureElementType;
 import org.esigate.parser.future.FutureParserContext;
 import org.esigate.parser.future.StringBuilderFutureAppendable;
-import org.esigate.vars.Operations;
-import org.esigate.vars.VariablesResolver;
+import org.esigate.vars.Expression;
 
 class WhenElement extends BaseElement {
 
@@ -50,8 +49,7 @@ class WhenElement extends BaseElement {
         if (test != null && parent != null) {
             // no other 'when' were active before
             active = !parent.hadConditionSet();
-            parent.setCondition(Operations.processOperators(VariablesResolver.replaceAllVariables(test,
-                    ctx.getHttpRequest())));
+            parent.setCondition(Expression.compile(test).evaluate(ctx.getHttpRequest()));
             active &= parent.isCondition();
         }
         return active;
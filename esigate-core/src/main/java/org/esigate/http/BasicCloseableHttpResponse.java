@@ -1,5 +1,7 @@
 package org.esigate.http;
 
+import java.io.Closeable;
+import java.io.IOException;
 import java.util.Locale;
 
 import org.apache.http.Header;
@@ -12,6 +14,7 @@ import org.apache.http.client.methods.CloseableHttpResponse;
 
 public final class BasicCloseableHttpResponse implements CloseableHttpResponse {
     private final HttpResponse httpResponse;
+    private final Closeable closeable;
 
     public static CloseableHttpResponse adapt(HttpResponse response) {
         if (response instanceof CloseableHttpResponse) {
@@ -21,13 +24,33 @@ public final class BasicCloseableHttpResponse implements CloseableHttpResponse {
         }
     }
 
+    /**
+     * Wraps a response so that closing it runs an action.
+     * 
+     * @param response
+     *            the response
+     * @param closeable
+     *            the action to run when the response is closed, responsible for closing the wrapped response if needed
+     * @return the wrapped response
+     */
+    public static CloseableHttpResponse adapt(HttpResponse response, Closeable closeable) {
+        return new BasicCloseableHttpResponse(response, closeable);
+    }
+
     private BasicCloseableHttpResponse(HttpResponse httpResponse) {
+        this(httpResponse, null);
+    }
+
+    private BasicCloseableHttpResponse(HttpResponse httpResponse, Closeable closeable) {
         this.httpResponse = httpResponse;
+        this.closeable = closeable;
     }
 
     @Override
-    public void close() {
-        // Nothing to do
+    public void close() throws IOException {
+        if (closeable != null) {
+            closeable.close();
+        }
     }
 
     @Override
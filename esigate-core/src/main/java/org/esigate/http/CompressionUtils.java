@@ -0,0 +1,210 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package org.esigate.http;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.SequenceInputStream;
+import java.util.Collection;
+import java.util.zip.GZIPOutputStream;
+
+import org.apache.commons.io.IOUtils;
+import org.apache.http.Header;
+import org.apache.http.HeaderElement;
+import org.apache.http.HttpEntity;
+import org.apache.http.HttpHeaders;
+import org.apache.http.HttpRequest;
+import org.apache.http.HttpResponse;
+import org.apache.http.NameValuePair;
+import org.apache.http.client.entity.GzipDecompressingEntity;
+import org.apache.http.entity.ByteArrayEntity;
+import org.apache.http.entity.InputStreamEntity;
+import org.apache.http.util.EntityUtils;
+
+/**
+ * Utility methods to store gzip compressed entities and send them to the clients.
+ */
+public final class CompressionUtils {
+    /** Smaller entities are not worth compressing. */
+    private static final int MIN_COMPRESSED_SIZE = 256;
+    private static final String GZIP = "gzip";
+
+    private CompressionUtils() {
+
+    }
+
+    /**
+     * @param response
+     *            the response
+     * @param contentTypes
+     *            the beginnings of the content types to compress, in lower case
+     * @return true if the response has an uncompressed entity with one of the content types
+     */
+    public static boolean isCompressible(HttpResponse response, Collection<String> contentTypes) {
+        HttpEntity entity = response.getEntity();
+        if (entity == null || entity.getContentEncoding() != null
+                || response.containsHeader(HttpHeaders.CONTENT_ENCODING)) {
+            return false;
+        }
+        String contentType = HttpResponseUtils.getFirstHeader(HttpHeaders.CONTENT_TYPE, response);
+        if (contentType == null && entity.getContentType() != null) {
+            contentType = entity.getContentType().getValue();
+        }
+        if (contentType != null) {
+            String lowerContentType = contentType.toLowerCase();
+            for (String compressibleContentType : contentTypes) {
+                if (lowerContentType.startsWith(compressibleContentType)) {
+                    return true;
+                }
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Reads the entity of the response and replaces it with its gzip compressed version, unless it is too small. The
+     * Content-Encoding and Content-Length headers are updated.
+     * 
+     * @param response
+     *            the response
+     * @return true if the entity was compressed
+     * @throws IOException
+     *             if the entity cannot be read
+     */
+    public static boolean compress(HttpResponse response) throws IOException {
+        return compress(response, 0);
+    }
+
+    /**
+     * Reads the entity of the response and replaces it with its gzip compressed version, unless it is too small or too
+     * big. At most maxSize + 1 bytes are read: a bigger entity is replaced with an entity sending the bytes already
+     * read then the rest of the original entity, uncompressed. The Content-Encoding and Content-Length headers are
+     * updated.
+     * 
+     * @param response
+     *            the response
+     * @param maxSize
+     *            the maximum size of the entity to compress, 0 for no limit
+     * @return true if the entity was compressed
+     * @throws IOException
+     *             if the entity cannot be read
+     */
+    public static boolean compress(HttpResponse response, long maxSize) throws IOException {
+        HttpEntity entity = response.getEntity();
+        byte[] content;
+        if (maxSize > 0) {
+            InputStream in = entity.getContent();
+            ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+            if (IOUtils.copyLarge(in, buffer, 0, maxSize + 1) > maxSize) {
+                InputStreamEntity newEntity =
+                        new InputStreamEntity(new SequenceInputStream(new ByteArrayInputStream(buffer.toByteArray()),
+                                in), entity.getContentLength());
+                newEntity.setContentType(entity.getContentType());
+                newEntity.setChunked(entity.isChunked());
+                response.setEntity(newEntity);
+                return false;
+            }
+            in.close();
+            content = buffer.toByteArray();
+        } else {
+            content = EntityUtils.toByteArray(entity);
+        }
+        byte[] result = content;
+        if (content.length >= MIN_COMPRESSED_SIZE) {
+            ByteArrayOutputStream out = new ByteArrayOutputStream(content.length / 2);
+            try (GZIPOutputStream gzip = new GZIPOutputStream(out)) {
+                gzip.write(content);
+            }
+            result = out.toByteArray();
+        }
+        ByteArrayEntity newEntity = new ByteArrayEntity(result);
+        newEntity.setContentType(entity.getContentType());
+        response.setEntity(newEntity);
+        if (result == content) {
+            return false;
+        }
+        newEntity.setContentEncoding(GZIP);
+        response.setHeader(HttpHeaders.CONTENT_ENCODING, GZIP);
+        if (response.containsHeader(HttpHeaders.CONTENT_LENGTH)) {
+            response.setHeader(HttpHeaders.CONTENT_LENGTH, Integer.toString(result.length));
+        }
+        return true;
+    }
+
+    /**
+     * @param entity
+     *            the entity, may be null
+     * @return true if the entity is gzip compressed
+     */
+    public static boolean isGzip(HttpEntity entity) {
+        if (entity == null || entity.getContentEncoding() == null) {
+            return false;
+        }
+        String contentEncoding = entity.getContentEncoding().getValue();
+        return GZIP.equalsIgnoreCase(contentEncoding) || "x-gzip".equalsIgnoreCase(contentEncoding);
+    }
+
+    /**
+     * @param entity
+     *            a gzip compressed entity
+     * @return the entity uncompressed on the fly
+     */
+    public static HttpEntity decompress(HttpEntity entity) {
+        return new GzipDecompressingEntity(entity);
+    }
+
+    /**
+     * Checks the Accept-Encoding headers of a request. A request without Accept-Encoding header is not supposed to
+     * accept gzip as many clients do not send it although they do not support compression.
+     * 
+     * @param request
+     *            the request
+     * @return true if the client accepts gzip compressed responses
+     */
+    public static boolean acceptsGzip(HttpRequest request) {
+        Float gzipQuality = null;
+        Float anyQuality = null;
+        for (Header header : request.getHeaders(HttpHeaders.ACCEPT_ENCODING)) {
+            for (HeaderElement element : header.getElements()) {
+                String name = element.getName();
+                if (GZIP.equalsIgnoreCase(name) || "x-gzip".equalsIgnoreCase(name)) {
+                    gzipQuality = getQuality(element);
+                } else if ("*".equals(name)) {
+                    anyQuality = getQuality(element);
+                }
+            }
+        }
+        if (gzipQuality != null) {
+            return gzipQuality > 0;
+        }
+        return anyQuality != null && anyQuality > 0;
+    }
+
+    private static float getQuality(HeaderElement element) {
+        NameValuePair quality = element.getParameterByName("q");
+        if (quality == null || quality.getValue() == null) {
+            return 1;
+        }
+        try {
+            return Float.parseFloat(quality.getValue());
+        } catch (NumberFormatException e) {
+            return 0;
+        }
+    }
+
+}
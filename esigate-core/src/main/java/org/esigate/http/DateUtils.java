@@ -31,4 +31,16 @@ public final class DateUtils {
         return org.apache.http.client.utils.DateUtils.formatDate(new Date(date));
     }
 
+    /**
+     * Parses a date in one of the formats allowed by the HTTP protocol.
+     * 
+     * @param date
+     *            The date to parse.
+     * @return The date or null if it cannot be parsed.
+     * 
+     */
+    public static Date parseDate(String date) {
+        return org.apache.http.client.utils.DateUtils.parseDate(date);
+    }
+
 }
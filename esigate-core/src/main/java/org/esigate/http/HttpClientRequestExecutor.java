@@ -15,13 +15,19 @@
 
 package org.esigate.http;
 
+import java.io.Closeable;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
 import java.util.Arrays;
 import java.util.Collections;
 import java.util.HashSet;
 import java.util.Properties;
 import java.util.Set;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
 
+import org.apache.http.HttpEntity;
 import org.apache.http.HttpHeaders;
 import org.apache.http.HttpHost;
 import org.apache.http.HttpResponse;
@@ -31,20 +37,25 @@ import org.apache.http.auth.Credentials;
 import org.apache.http.auth.UsernamePasswordCredentials;
 import org.apache.http.client.CookieStore;
 import org.apache.http.client.CredentialsProvider;
-import org.apache.http.client.HttpClient;
+import org.apache.http.client.cache.HttpCacheStorage;
 import org.apache.http.client.config.RequestConfig;
 import org.apache.http.client.methods.CloseableHttpResponse;
 import org.apache.http.config.Registry;
 import org.apache.http.config.RegistryBuilder;
+import org.apache.http.conn.EofSensorInputStream;
+import org.apache.http.conn.EofSensorWatcher;
 import org.apache.http.conn.HttpClientConnectionManager;
 import org.apache.http.cookie.CookieSpecProvider;
+import org.apache.http.entity.HttpEntityWrapper;
 import org.apache.http.impl.client.BasicCredentialsProvider;
+import org.apache.http.impl.client.CloseableHttpClient;
 import org.esigate.ConfigurationException;
 import org.esigate.Driver;
 import org.esigate.HttpErrorPage;
 import org.esigate.Parameters;
 import org.esigate.RequestExecutor;
 import org.esigate.cache.CacheConfigHelper;
+import org.esigate.cache.SurrogateKeyIndex;
 import org.esigate.cookie.CookieManager;
 import org.esigate.events.EventManager;
 import org.esigate.events.impl.FragmentEvent;
@@ -57,6 +68,8 @@ import org.esigate.util.UriUtils;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import com.codahale.metrics.MetricSet;
+
 /**
  * HttpClientHelper is responsible for creating Apache HttpClient requests from incoming requests. It can copy a request
  * with its method and entity or simply create a new GET request to the same URI. Some parameters enable to control
@@ -64,18 +77,23 @@ import org.slf4j.LoggerFactory;
  * 
  * @author Francois-Xavier Bonnet
  */
-public final class HttpClientRequestExecutor implements RequestExecutor {
+public final class HttpClientRequestExecutor implements RequestExecutor, Closeable {
     private static final Logger LOG = LoggerFactory.getLogger(HttpClientRequestExecutor.class);
     private static final Set<String> SIMPLE_METHODS = Collections.unmodifiableSet(new HashSet<>(Arrays.asList("GET",
             "HEAD", "OPTIONS", "TRACE", "DELETE")));
     private static final Set<String> ENTITY_METHODS = Collections.unmodifiableSet(new HashSet<>(Arrays.asList("POST",
             "PUT", "PROPFIND", "PROPPATCH", "MKCOL", "COPY", "MOVE", "LOCK", "UNLOCK")));
+    private static final long CLOSE_POLL_INTERVAL = 100;
     private boolean preserveHost;
     private CookieManager cookieManager;
-    private HttpClient httpClient;
+    private CloseableHttpClient httpClient;
+    private HttpCacheStorage cacheStorage;
+    private SurrogateKeyIndex surrogateKeyIndex;
     private EventManager eventManager = null;
     private int connectTimeout;
     private int socketTimeout;
+    private int closeTimeout;
+    private final AtomicInteger inFlight = new AtomicInteger();
     private HttpHost firstBaseUrlHost;
 
     /**
@@ -89,6 +107,8 @@ public final class HttpClientRequestExecutor implements RequestExecutor {
         private Driver driver;
         private HttpClientConnectionManager connectionManager;
         private CookieManager cookieManager;
+        private HttpCacheStorage cacheStorage;
+        private SurrogateKeyIndex surrogateKeyIndex;
 
         @Override
         public HttpClientRequestExecutorBuilder setDriver(Driver pDriver) {
@@ -122,7 +142,10 @@ public final class HttpClientRequestExecutor implements RequestExecutor {
             result.cookieManager = cookieManager;
             result.connectTimeout = Parameters.CONNECT_TIMEOUT.getValue(properties);
             result.socketTimeout = Parameters.SOCKET_TIMEOUT.getValue(properties);
+            result.closeTimeout = Parameters.CLOSE_TIMEOUT.getValue(properties);
             result.httpClient = buildHttpClient();
+            result.cacheStorage = cacheStorage;
+            result.surrogateKeyIndex = surrogateKeyIndex;
             String firstBaseURL = Parameters.REMOTE_URL_BASE.getValue(properties)[0];
             result.firstBaseUrlHost = UriUtils.extractHost(firstBaseURL);
             return result;
@@ -149,7 +172,7 @@ public final class HttpClientRequestExecutor implements RequestExecutor {
             return this;
         }
 
-        private HttpClient buildHttpClient() {
+        private CloseableHttpClient buildHttpClient() {
             HttpHost proxyHost = null;
             Credentials proxyCredentials = null;
             // Proxy settings
@@ -185,7 +208,19 @@ public final class HttpClientRequestExecutor implements RequestExecutor {
             boolean useCache = Parameters.USE_CACHE.getValue(properties);
             httpClientBuilder.setUseCache(Parameters.USE_CACHE.getValue(properties));
             if (useCache) {
-                httpClientBuilder.setHttpCacheStorage(CacheConfigHelper.createCacheStorage(properties));
+                cacheStorage = CacheConfigHelper.createCacheStorage(properties);
+                if (cacheStorage instanceof MetricSet) {
+                    httpClientBuilder.setCacheStorageMetrics((MetricSet) cacheStorage);
+                }
+                HttpCacheStorage indexedStorage = cacheStorage;
+                if (Parameters.SURROGATE_KEY_INDEX.getValue(properties)) {
+                    surrogateKeyIndex =
+                            new SurrogateKeyIndex(driver.getConfiguration().getInstanceName(), cacheStorage,
+                                    Parameters.SURROGATE_KEY_INDEX_MAX_ENTRIES.getValue(properties));
+                    surrogateKeyIndex.register();
+                    indexedStorage = surrogateKeyIndex;
+                }
+                httpClientBuilder.setHttpCacheStorage(indexedStorage);
                 httpClientBuilder.setCacheConfig(CacheConfigHelper.createCacheConfig(properties));
             }
 
@@ -223,6 +258,13 @@ public final class HttpClientRequestExecutor implements RequestExecutor {
     private HttpClientRequestExecutor() {
     }
 
+    /**
+     * @return the storage of the http cache, or null if the cache is disabled
+     */
+    public HttpCacheStorage getCacheStorage() {
+        return cacheStorage;
+    }
+
     @Override
     public OutgoingRequest createOutgoingRequest(DriverRequest originalRequest, String uri, boolean proxy) {
         // Extract the host in the URI. This is the host we have to send the
@@ -241,8 +283,16 @@ public final class HttpClientRequestExecutor implements RequestExecutor {
         }
 
         RequestConfig.Builder builder = RequestConfig.custom();
-        builder.setConnectTimeout(connectTimeout);
-        builder.setSocketTimeout(socketTimeout);
+        long deadline = originalRequest.getDeadline();
+        if (deadline > 0) {
+            // Do not wait for the server longer than the time left
+            int remaining = (int) Math.min(Integer.MAX_VALUE, Math.max(1, deadline - System.currentTimeMillis()));
+            builder.setConnectTimeout(limitTimeout(connectTimeout, remaining));
+            builder.setSocketTimeout(limitTimeout(socketTimeout, remaining));
+        } else {
+            builder.setConnectTimeout(connectTimeout);
+            builder.setSocketTimeout(socketTimeout);
+        }
 
         // Use browser compatibility cookie policy. This policy is the closest
         // to the behavior of a real browser.
@@ -273,6 +323,14 @@ public final class HttpClientRequestExecutor implements RequestExecutor {
         return outgoingRequest;
     }
 
+    private static int limitTimeout(int timeout, int remaining) {
+        // 0 means no timeout
+        if (timeout <= 0) {
+            return remaining;
+        }
+        return Math.min(timeout, remaining);
+    }
+
     /**
      * Execute a HTTP request.
      * 
@@ -304,14 +362,25 @@ public final class HttpClientRequestExecutor implements RequestExecutor {
                     event.setHttpResponse(HttpErrorPage.generateHttpResponse(HttpStatus.SC_EXPECTATION_FAILED,
                             "'Expect' request header is not supported"));
                 } else {
+                    inFlight.incrementAndGet();
+                    TrackedEntity trackedEntity = null;
                     try {
                         HttpHost physicalHost = context.getPhysicalHost();
                         result = httpClient.execute(physicalHost, httpRequest, context);
+                        trackedEntity = trackEntity(result);
                     } catch (IOException e) {
                         result = HttpErrorPage.generateHttpResponse(e);
                         LOG.warn(httpRequest.getRequestLine() + " -> " + result.getStatusLine().toString());
+                    } finally {
+                        if (trackedEntity == null) {
+                            inFlight.decrementAndGet();
+                        }
+                    }
+                    if (trackedEntity != null) {
+                        event.setHttpResponse(trackedEntity.trackResponse(result));
+                    } else {
+                        event.setHttpResponse(BasicCloseableHttpResponse.adapt(result));
                     }
-                    event.setHttpResponse(BasicCloseableHttpResponse.adapt(result));
                 }
             }
             // EVENT post
@@ -328,4 +397,114 @@ public final class HttpClientRequestExecutor implements RequestExecutor {
         return httpResponse;
     }
 
+    /**
+     * Keeps the request counted as in progress until the response body has been entirely read or closed, or until the
+     * response has been closed.
+     * 
+     * @return the tracked body or null if the response has no body
+     */
+    private TrackedEntity trackEntity(HttpResponse response) {
+        HttpEntity entity = response.getEntity();
+        if (entity == null) {
+            return null;
+        }
+        TrackedEntity trackedEntity = new TrackedEntity(entity);
+        response.setEntity(trackedEntity);
+        return trackedEntity;
+    }
+
+    private final class TrackedEntity extends HttpEntityWrapper implements EofSensorWatcher {
+        private final AtomicBoolean released = new AtomicBoolean();
+
+        private TrackedEntity(HttpEntity wrappedEntity) {
+            super(wrappedEntity);
+        }
+
+        private void release() {
+            if (released.compareAndSet(false, true)) {
+                inFlight.decrementAndGet();
+            }
+        }
+
+        /**
+         * Also releases the request when the response is closed without its body having been used.
+         */
+        private CloseableHttpResponse trackResponse(final HttpResponse response) {
+            return BasicCloseableHttpResponse.adapt(response, new Closeable() {
+                @Override
+                public void close() throws IOException {
+                    try {
+                        if (response instanceof Closeable) {
+                            ((Closeable) response).close();
+                        }
+                    } finally {
+                        release();
+                    }
+                }
+            });
+        }
+
+        @Override
+        public InputStream getContent() throws IOException {
+            return new EofSensorInputStream(super.getContent(), this);
+        }
+
+        @Override
+        public void writeTo(OutputStream outstream) throws IOException {
+            try {
+                super.writeTo(outstream);
+            } finally {
+                release();
+            }
+        }
+
+        @Override
+        public boolean eofDetected(InputStream wrapped) {
+            release();
+            return true;
+        }
+
+        @Override
+        public boolean streamClosed(InputStream wrapped) {
+            release();
+            return true;
+        }
+
+        @Override
+        public boolean streamAbort(InputStream wrapped) {
+            release();
+            return true;
+        }
+    }
+
+    /**
+     * Closes the connection pool and the background tasks of the http client, then the cache storage. Waits until the
+     * responses in progress have been read, for at most closeTimeout milliseconds.
+     */
+    @Override
+    public void close() throws IOException {
+        long deadline = System.currentTimeMillis() + closeTimeout;
+        while (inFlight.get() > 0 && System.currentTimeMillis() < deadline) {
+            try {
+                Thread.sleep(CLOSE_POLL_INTERVAL);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                break;
+            }
+        }
+        if (inFlight.get() > 0) {
+            LOG.warn("Closing http client with {} requests still in progress", inFlight.get());
+        }
+        try {
+            httpClient.close();
+        } finally {
+            if (surrogateKeyIndex != null) {
+                surrogateKeyIndex.unregister();
+            }
+            if (cacheStorage instanceof Closeable) {
+                ((Closeable) cacheStorage).close();
+            }
+        }
+    }
+
 }
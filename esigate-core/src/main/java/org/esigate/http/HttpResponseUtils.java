@@ -17,7 +17,10 @@ package org.esigate.http;
 
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.InputStreamReader;
 import java.io.OutputStream;
+import java.io.Reader;
+import java.io.StringReader;
 import java.io.UnsupportedEncodingException;
 import java.nio.charset.Charset;
 import java.nio.charset.UnsupportedCharsetException;
@@ -34,6 +37,7 @@ import org.apache.http.cookie.Cookie;
 import org.apache.http.cookie.CookieOrigin;
 import org.apache.http.cookie.CookieSpec;
 import org.apache.http.cookie.MalformedCookieException;
+import org.apache.http.entity.BufferedHttpEntity;
 import org.apache.http.entity.ContentType;
 import org.apache.http.impl.cookie.DefaultCookieSpec;
 import org.apache.http.protocol.HTTP;
@@ -159,37 +163,13 @@ public final class HttpResponseUtils {
             result = httpResponse.getStatusLine().getReasonPhrase();
         } else {
             // Unzip the stream if necessary
-            Header contentEncoding = httpEntity.getContentEncoding();
-            if (contentEncoding != null) {
-                String contentEncodingValue = contentEncoding.getValue();
-                if ("gzip".equalsIgnoreCase(contentEncodingValue) || "x-gzip".equalsIgnoreCase(contentEncodingValue)) {
-                    httpEntity = new GzipDecompressingEntity(httpEntity);
-                } else if ("deflate".equalsIgnoreCase(contentEncodingValue)) {
-                    httpEntity = new DeflateDecompressingEntity(httpEntity);
-                } else {
-                    throw new UnsupportedContentEncodingException("Content-encoding \"" + contentEncoding
-                            + "\" is not supported");
-                }
-            }
+            httpEntity = decompress(httpEntity);
 
             try {
                 byte[] rawEntityContent = EntityUtils.toByteArray(httpEntity);
-                ContentType contentType;
-                Charset charset;
-                String mimeType;
-                try {
-                    contentType = ContentType.getOrDefault(httpEntity);
-                    mimeType = contentType.getMimeType();
-                    charset = contentType.getCharset();
-                } catch (UnsupportedCharsetException ex) {
-                    throw new UnsupportedEncodingException(ex.getMessage());
-                }
-
-                // Use default charset is no valid information found from HTTP
-                // headers
-                if (charset == null) {
-                    charset = HTTP.DEF_CONTENT_CHARSET;
-                }
+                ContentType contentType = getContentTypeOrDefault(httpEntity);
+                String mimeType = contentType.getMimeType();
+                Charset charset = getCharsetOrDefault(contentType);
 
                 ReadEntityEvent event = new ReadEntityEvent(mimeType, charset, rawEntityContent);
 
@@ -211,6 +191,70 @@ public final class HttpResponseUtils {
         return removeSessionId(result, httpResponse);
     }
 
+    /**
+     * Returns a Reader decoding the response body on the fly, so that it can be processed without building a String
+     * with the whole content. The entity is uncompressed if necessary and decoded using the charset declared by the
+     * HTTP headers.
+     * <p>
+     * Non-repeatable entities are first read into memory: this releases the connection to the backend immediately
+     * instead of keeping it while the content is processed, which could exhaust the connection pool when the processing
+     * itself needs to send requests (ESI includes for instance).
+     * <p>
+     * Unlike {@link #toString(HttpResponse, EventManager)}, this method cannot fire EventManager.EVENT_READ_ENTITY as
+     * the raw content is never available as a whole.
+     * 
+     * @param httpResponse
+     * @return a Reader on the body or on the reason phrase if body is empty.
+     * @throws HttpErrorPage
+     */
+    public static Reader toReader(HttpResponse httpResponse) throws HttpErrorPage {
+        HttpEntity httpEntity = httpResponse.getEntity();
+        if (httpEntity == null) {
+            return new StringReader(removeSessionId(httpResponse.getStatusLine().getReasonPhrase(), httpResponse));
+        }
+        try {
+            httpEntity = decompress(new BufferedHttpEntity(httpEntity));
+            Charset charset = getCharsetOrDefault(getContentTypeOrDefault(httpEntity));
+            return new InputStreamReader(httpEntity.getContent(), charset);
+        } catch (IOException e) {
+            throw new HttpErrorPage(HttpErrorPage.generateHttpResponse(e));
+        }
+    }
+
+    private static HttpEntity decompress(HttpEntity httpEntity) throws UnsupportedContentEncodingException {
+        Header contentEncoding = httpEntity.getContentEncoding();
+        if (contentEncoding != null) {
+            String contentEncodingValue = contentEncoding.getValue();
+            if ("gzip".equalsIgnoreCase(contentEncodingValue) || "x-gzip".equalsIgnoreCase(contentEncodingValue)) {
+                return new GzipDecompressingEntity(httpEntity);
+            } else if ("deflate".equalsIgnoreCase(contentEncodingValue)) {
+                return new DeflateDecompressingEntity(httpEntity);
+            } else {
+                throw new UnsupportedContentEncodingException("Content-encoding \"" + contentEncoding
+                        + "\" is not supported");
+            }
+        }
+        return httpEntity;
+    }
+
+    private static ContentType getContentTypeOrDefault(HttpEntity httpEntity) throws UnsupportedEncodingException {
+        try {
+            return ContentType.getOrDefault(httpEntity);
+        } catch (UnsupportedCharsetException ex) {
+            throw new UnsupportedEncodingException(ex.getMessage());
+        }
+    }
+
+    private static Charset getCharsetOrDefault(ContentType contentType) {
+        Charset charset = contentType.getCharset();
+        // Use default charset is no valid information found from HTTP
+        // headers
+        if (charset == null) {
+            charset = HTTP.DEF_CONTENT_CHARSET;
+        }
+        return charset;
+    }
+
     public static ContentType getContentType(CloseableHttpResponse response) {
         HttpEntity entity = response.getEntity();
         if (entity == null) {
@@ -236,6 +280,12 @@ public final class HttpResponseUtils {
      */
     public static void writeTo(final HttpEntity httpEntity, final OutputStream outstream) throws IOException {
         Args.notNull(outstream, "Output stream");
+        if (httpEntity instanceof ProgressiveRenderingEntity) {
+            // Flushed by the renderer each time it waits for the next part of the page, unless already rendered by
+            // getContent()
+            httpEntity.writeTo(outstream);
+            return;
+        }
         try (InputStream instream = httpEntity.getContent()) {
             final byte[] buffer = new byte[OUTPUT_BUFFER_SIZE];
             int l;
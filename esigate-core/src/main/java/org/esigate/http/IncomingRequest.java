@@ -133,11 +133,54 @@ public final class IncomingRequest extends BasicHttpEntityEnclosingRequest {
     }
 
     public <T> T getAttribute(String name) {
-        return (T) attributes.get(name);
+        synchronized (attributes) {
+            return (T) attributes.get(name);
+        }
     }
 
     public void setAttribute(String name, Object value) {
-        attributes.put(name, value);
+        synchronized (attributes) {
+            attributes.put(name, value);
+        }
+    }
+
+    /**
+     * Sets an attribute unless it is already set. Attributes may be accessed by several threads, for instance when
+     * processing ESI includes in parallel.
+     * 
+     * @param name
+     *            the attribute name
+     * @param value
+     *            the value
+     * @return the current value of the attribute, or null if the value has been set
+     */
+    public <T> T setAttributeIfAbsent(String name, T value) {
+        synchronized (attributes) {
+            T current = (T) attributes.get(name);
+            if (current == null) {
+                attributes.put(name, value);
+            }
+            return current;
+        }
+    }
+
+    /**
+     * Removes an attribute if it still has the given value.
+     * 
+     * @param name
+     *            the attribute name
+     * @param value
+     *            the expected value
+     * @return true if the attribute has been removed
+     */
+    public boolean removeAttribute(String name, Object value) {
+        synchronized (attributes) {
+            if (value != null && value.equals(attributes.get(name))) {
+                attributes.remove(name);
+                return true;
+            }
+            return false;
+        }
     }
 
     public ContainerRequestContext getContext() {
@@ -0,0 +1,131 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package org.esigate.http;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.Charset;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import org.apache.http.entity.AbstractHttpEntity;
+import org.apache.http.entity.ContentType;
+import org.apache.http.protocol.HTTP;
+import org.esigate.HttpErrorPage;
+import org.esigate.Renderer;
+import org.esigate.impl.DriverRequest;
+
+/**
+ * Entity whose content is produced by a renderer while it is written, so that the beginning of a page reaches the
+ * client before the whole page is rendered.
+ * <p>
+ * The renderer is only run once. Writing the entity streams the page and can only be done once. Reading the content
+ * with {@link #getContent()} renders the whole page in memory instead, which is then kept: from then on the entity is
+ * repeatable and can be read or written again.
+ * 
+ * @see org.esigate.ProgressiveRenderer
+ */
+public final class ProgressiveRenderingEntity extends AbstractHttpEntity {
+    private final Renderer renderer;
+    private final DriverRequest originalRequest;
+    private final String source;
+    private final Charset charset;
+    private final AtomicBoolean rendered = new AtomicBoolean();
+    private volatile byte[] buffer;
+
+    /**
+     * @param renderer
+     *            the renderer producing the content
+     * @param originalRequest
+     *            the request received by esigate
+     * @param source
+     *            the source to render
+     * @param contentType
+     *            the content type of the page, may be null
+     */
+    public ProgressiveRenderingEntity(Renderer renderer, DriverRequest originalRequest, String source,
+            ContentType contentType) {
+        this.renderer = renderer;
+        this.originalRequest = originalRequest;
+        this.source = source;
+        Charset contentTypeCharset = contentType != null ? contentType.getCharset() : null;
+        this.charset = contentTypeCharset != null ? contentTypeCharset : HTTP.DEF_CONTENT_CHARSET;
+        if (contentType != null) {
+            setContentType(contentType.toString());
+        }
+        setChunked(true);
+    }
+
+    @Override
+    public boolean isRepeatable() {
+        return buffer != null;
+    }
+
+    @Override
+    public long getContentLength() {
+        byte[] content = buffer;
+        return content != null ? content.length : -1;
+    }
+
+    @Override
+    public boolean isStreaming() {
+        return !rendered.get();
+    }
+
+    /**
+     * Renders the whole content in memory, for the consumers of the entity which do not write it to a stream. The
+     * rendered content is kept so that the entity can still be written afterwards.
+     */
+    @Override
+    public InputStream getContent() throws IOException {
+        byte[] content = buffer;
+        if (content == null) {
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            render(out);
+            content = out.toByteArray();
+            buffer = content;
+        }
+        return new ByteArrayInputStream(content);
+    }
+
+    @Override
+    public void writeTo(OutputStream outstream) throws IOException {
+        byte[] content = buffer;
+        if (content != null) {
+            outstream.write(content);
+            outstream.flush();
+            return;
+        }
+        render(outstream);
+    }
+
+    private void render(OutputStream outstream) throws IOException {
+        if (!rendered.compareAndSet(false, true)) {
+            throw new IllegalStateException("Content already consumed");
+        }
+        Writer writer = new OutputStreamWriter(outstream, charset);
+        try {
+            renderer.render(originalRequest, source, writer);
+        } catch (HttpErrorPage e) {
+            throw new IOException("Error while rendering " + originalRequest.getBaseUrl(), e);
+        }
+        writer.flush();
+    }
+
+}
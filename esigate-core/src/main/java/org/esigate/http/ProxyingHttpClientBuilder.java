@@ -28,14 +28,23 @@ import org.apache.http.conn.routing.HttpRoute;
 import org.apache.http.impl.client.cache.CachingHttpClientBuilder;
 import org.apache.http.impl.execchain.ClientExecChain;
 import org.esigate.HttpErrorPage;
+import org.esigate.Parameters;
 import org.esigate.cache.CacheAdapter;
+import org.esigate.cache.CacheKeyNormalizer;
+import org.esigate.cache.CollapsedForwarding;
+import org.esigate.cache.EarlyRefresh;
 import org.esigate.events.EventManager;
 import org.esigate.events.impl.FetchEvent;
 
+import com.codahale.metrics.MetricSet;
+
 public class ProxyingHttpClientBuilder extends CachingHttpClientBuilder {
     private Properties properties;
     private EventManager eventManager;
     private boolean useCache = true;
+    private CollapsedForwarding collapsedForwarding;
+    private EarlyRefresh earlyRefresh;
+    private MetricSet cacheStorageMetrics;
 
     @Override
     protected ClientExecChain decorateMainExec(ClientExecChain mainExec) {
@@ -45,12 +54,60 @@ public class ProxyingHttpClientBuilder extends CachingHttpClientBuilder {
             CacheAdapter cacheAdapter = new CacheAdapter();
             cacheAdapter.init(properties);
             result = cacheAdapter.wrapBackendHttpClient(result);
+            CacheKeyNormalizer cacheKeyNormalizer = null;
+            if (CacheKeyNormalizer.isEnabled(properties)) {
+                cacheKeyNormalizer = new CacheKeyNormalizer(properties);
+                result = cacheKeyNormalizer.wrapBackendHttpClient(result);
+            }
+            if (getCollapsedForwarding() != null) {
+                result = collapsedForwarding.wrapBackendHttpClient(result);
+            }
+            if (getEarlyRefresh() != null) {
+                setSchedulingStrategy(earlyRefresh.getSchedulingStrategy());
+            }
             result = super.decorateMainExec(result);
+            if (earlyRefresh != null) {
+                result = earlyRefresh.wrapCachingHttpClient(result);
+            }
+            if (cacheKeyNormalizer != null) {
+                result = cacheKeyNormalizer.wrapCachingHttpClient(result);
+            }
             result = cacheAdapter.wrapCachingHttpClient(result);
         }
         return result;
     }
 
+    /**
+     * @return the {@link CollapsedForwarding} used for the cache misses, or null if collapsed forwarding is disabled
+     */
+    public CollapsedForwarding getCollapsedForwarding() {
+        if (collapsedForwarding == null && useCache && Parameters.COLLAPSED_FORWARDING.getValue(properties)) {
+            collapsedForwarding = new CollapsedForwarding(properties);
+        }
+        return collapsedForwarding;
+    }
+
+    /**
+     * @return the {@link EarlyRefresh} used for the cache hits, or null if early refresh is disabled
+     */
+    public EarlyRefresh getEarlyRefresh() {
+        if (earlyRefresh == null && useCache && Parameters.EARLY_REFRESH.getValue(properties) > 0) {
+            earlyRefresh = new EarlyRefresh(properties);
+        }
+        return earlyRefresh;
+    }
+
+    /**
+     * @return the metrics reported by the cache storage, or null if it does not report any
+     */
+    public MetricSet getCacheStorageMetrics() {
+        return cacheStorageMetrics;
+    }
+
+    public void setCacheStorageMetrics(MetricSet cacheStorageMetrics) {
+        this.cacheStorageMetrics = cacheStorageMetrics;
+    }
+
     public void setUseCache(boolean useCache) {
         this.useCache = useCache;
     }
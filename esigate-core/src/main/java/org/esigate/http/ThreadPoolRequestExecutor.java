@@ -0,0 +1,144 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package org.esigate.http;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.http.HttpEntity;
+import org.apache.http.client.methods.CloseableHttpResponse;
+import org.apache.http.entity.BufferedHttpEntity;
+import org.esigate.AsyncRequestExecutor;
+import org.esigate.HttpErrorPage;
+import org.esigate.RequestExecutor;
+import org.esigate.impl.DriverRequest;
+
+/**
+ * Sends the prefetched requests of a driver with a blocking {@link RequestExecutor}, from a pool of threads dedicated
+ * to the driver. The parallel ESI includes thus start retrieving all their sources while the page is parsed.
+ * <p>
+ * This is not a non-blocking client: each request being sent takes a thread of the pool until its response has been
+ * entirely read. The response is read in memory by this thread, so that its connection goes back to the pool of
+ * connections even if the response is never used. The requests waiting for a thread are queued, when the queue is full
+ * {@link #executeAsync(OutgoingRequest)} refuses the request and the include is retrieved when it is rendered instead.
+ * <p>
+ * Enabled by setting prefetchThreads to the size of the pool, the size of the queue is set by prefetchQueueSize.
+ * 
+ * @see org.esigate.Driver#prefetch(String, IncomingRequest)
+ */
+public final class ThreadPoolRequestExecutor implements AsyncRequestExecutor, Closeable {
+    private final RequestExecutor delegate;
+    private final ThreadPoolExecutor executor;
+    private final int closeTimeout;
+
+    /**
+     * @param delegate
+     *            the request executor actually sending the requests
+     * @param threads
+     *            the number of requests sent at the same time, the others are queued
+     * @param queueSize
+     *            the maximum number of requests waiting for a thread
+     * @param closeTimeout
+     *            the maximum time in milliseconds to wait for the queued requests when closing
+     * @param name
+     *            the name of the driver, used to name the threads
+     */
+    public ThreadPoolRequestExecutor(RequestExecutor delegate, int threads, int queueSize, int closeTimeout,
+            final String name) {
+        this.delegate = delegate;
+        this.closeTimeout = closeTimeout;
+        final ThreadFactory defaultThreadFactory = Executors.defaultThreadFactory();
+        ThreadFactory threadFactory = new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread thread = defaultThreadFactory.newThread(r);
+                thread.setName("esigate-prefetch-" + name + "-" + thread.getName());
+                thread.setDaemon(true);
+                return thread;
+            }
+        };
+        this.executor =
+                new ThreadPoolExecutor(threads, threads, 0L, TimeUnit.MILLISECONDS, new ArrayBlockingQueue<Runnable>(
+                        Math.max(1, queueSize)), threadFactory);
+    }
+
+    /**
+     * @return the executor actually sending the requests
+     */
+    public RequestExecutor getDelegate() {
+        return delegate;
+    }
+
+    @Override
+    public OutgoingRequest createOutgoingRequest(DriverRequest originalRequest, String url, boolean proxy) {
+        return delegate.createOutgoingRequest(originalRequest, url, proxy);
+    }
+
+    @Override
+    public CloseableHttpResponse execute(OutgoingRequest outgoingRequest) throws HttpErrorPage {
+        return delegate.execute(outgoingRequest);
+    }
+
+    /**
+     * {@inheritDoc}
+     * 
+     * @throws RejectedExecutionException
+     *             if the queue is full or if the executor is closed
+     */
+    @Override
+    public Future<CloseableHttpResponse> executeAsync(final OutgoingRequest outgoingRequest) {
+        return executor.submit(new Callable<CloseableHttpResponse>() {
+            @Override
+            public CloseableHttpResponse call() throws HttpErrorPage, IOException {
+                CloseableHttpResponse response = delegate.execute(outgoingRequest);
+                HttpEntity entity = response.getEntity();
+                if (entity != null && !entity.isRepeatable()) {
+                    try {
+                        response.setEntity(new BufferedHttpEntity(entity));
+                    } catch (IOException e) {
+                        response.close();
+                        throw e;
+                    }
+                }
+                return response;
+            }
+        });
+    }
+
+    /**
+     * Sends the queued requests then closes the request executor sending them.
+     */
+    @Override
+    public void close() throws IOException {
+        executor.shutdown();
+        try {
+            executor.awaitTermination(closeTimeout, TimeUnit.MILLISECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        if (delegate instanceof Closeable) {
+            ((Closeable) delegate).close();
+        }
+    }
+
+}
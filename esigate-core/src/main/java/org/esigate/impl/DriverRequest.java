@@ -33,6 +33,7 @@ import org.esigate.util.UriUtils;
  * 
  */
 public class DriverRequest {
+    private static final String DEADLINE_ATTRIBUTE = DriverRequest.class.getName() + ".deadline";
     private final IncomingRequest wrappedRequest;
     private final Driver driver;
     private final UserContext userContext;
@@ -40,6 +41,7 @@ public class DriverRequest {
     private final String visibleBaseUrl;
     private final boolean external;
     private String characterEncoding;
+    private long deadline;
 
     /**
      * 
@@ -69,6 +71,11 @@ public class DriverRequest {
             }
         }
         this.visibleBaseUrl = UriUtils.rewriteURI(visibleBase, UriUtils.extractHost(request.getRequestLine().getUri()));
+        int renderTimeout = driver.getConfiguration().getRenderTimeout();
+        if (renderTimeout > 0 && request.getAttribute(DEADLINE_ATTRIBUTE) == null) {
+            // The first driver involved in the request starts the countdown
+            request.setAttributeIfAbsent(DEADLINE_ATTRIBUTE, System.currentTimeMillis() + renderTimeout);
+        }
     }
 
     /**
@@ -153,4 +160,31 @@ public class DriverRequest {
         return visibleBaseUrl;
     }
 
+    /**
+     * Returns the time before which this request must be completed: the earliest of the deadline set by
+     * {@link #setDeadline(long)} and the render timeout of the original request.
+     * 
+     * @return the deadline in milliseconds since the epoch, 0 if there is none
+     */
+    public long getDeadline() {
+        Long requestDeadline = wrappedRequest.getAttribute(DEADLINE_ATTRIBUTE);
+        if (requestDeadline == null) {
+            return deadline;
+        }
+        if (deadline <= 0) {
+            return requestDeadline;
+        }
+        return Math.min(deadline, requestDeadline);
+    }
+
+    /**
+     * Sets a deadline specific to this request, for instance the timeout of an include.
+     * 
+     * @param deadline
+     *            the deadline in milliseconds since the epoch, 0 if there is none
+     */
+    public void setDeadline(long deadline) {
+        this.deadline = deadline;
+    }
+
 }
@@ -0,0 +1,69 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package org.esigate.parser;
+
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Finds the element type of a start tag from the name of the tag, for the types implementing {@link NamedElementType}.
+ * <p>
+ * When several types have the same name, the first one in the list wins, as it would when the types are tried one by
+ * one.
+ * 
+ * @param <T>
+ *            {@link ElementType} or {@link org.esigate.parser.future.FutureElementType}
+ */
+public final class ElementTypeIndex<T> {
+    private final Map<String, T> typesByName = new HashMap<>();
+
+    /**
+     * @param elementTypes
+     *            the element types, in the order they would be tried
+     */
+    public ElementTypeIndex(List<T> elementTypes) {
+        for (T type : elementTypes) {
+            if (type instanceof NamedElementType) {
+                String name = ((NamedElementType) type).getTagName();
+                if (!typesByName.containsKey(name)) {
+                    typesByName.put(name, type);
+                }
+            }
+        }
+    }
+
+    /**
+     * @param tag
+     *            a start tag
+     * @return the type declaring the name of the tag, or null if there is none
+     */
+    public T get(String tag) {
+        if (typesByName.isEmpty()) {
+            return null;
+        }
+        int end = 1;
+        int length = tag.length();
+        while (end < length) {
+            char c = tag.charAt(end);
+            if (c == '>' || c == '/' || Character.isWhitespace(c)) {
+                break;
+            }
+            end++;
+        }
+        return typesByName.get(tag.substring(1, end));
+    }
+}
@@ -0,0 +1,32 @@
+/* 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package org.esigate.parser;
+
+/**
+ * An {@link ElementType} or a {@link org.esigate.parser.future.FutureElementType} whose start tags all have the same
+ * name, like &lt;esi:include ...&gt; for the name "esi:include".
+ * <p>
+ * The parsers index these types by name to find the type of a tag directly, other types are still tried one by one.
+ * 
+ * @see ElementTypeIndex
+ */
+public interface NamedElementType {
+
+    /**
+     * @return the name of the tag, as found right after the '&lt;' character
+     */
+    String getTagName();
+}
@@ -16,22 +16,25 @@
 package org.esigate.parser;
 
 import java.io.IOException;
+import java.io.Reader;
+import java.nio.CharBuffer;
 import java.util.ArrayList;
 import java.util.Collections;
 import java.util.List;
-import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
 import org.apache.http.HttpResponse;
 import org.esigate.HttpErrorPage;
+import org.esigate.Parameters;
 import org.esigate.impl.DriverRequest;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 public class Parser {
     private static final Logger LOG = LoggerFactory.getLogger(Parser.class);
-    private final Pattern pattern;
+    private final TagScanner tagScanner;
     private final List<ElementType> elementTypes;
+    private final ElementTypeIndex<ElementType> elementTypeIndex;
     private DriverRequest httpRequest;
     private HttpResponse httpResponse;
 
@@ -44,11 +47,23 @@ public class Parser {
      *            The element types
      */
     public Parser(Pattern pattern, ElementType... elementTypes) {
-        this.pattern = pattern;
+        this(new RegexTagScanner(pattern), elementTypes);
+    }
+
+    /**
+     * Creates a Parser with a given TagScanner and ElementTypes.
+     * 
+     * @param tagScanner
+     *            The TagScanner used to find the tags
+     * @param elementTypes
+     *            The element types
+     */
+    public Parser(TagScanner tagScanner, ElementType... elementTypes) {
+        this.tagScanner = tagScanner;
         this.elementTypes = new ArrayList<>(elementTypes.length + 1);
         Collections.addAll(this.elementTypes, elementTypes);
         this.elementTypes.add(new UnknownElementType());
-
+        this.elementTypeIndex = new ElementTypeIndex<>(this.elementTypes);
     }
 
     /**
@@ -63,36 +78,97 @@ public class Parser {
      */
     public void parse(CharSequence in, Appendable out) throws IOException, HttpErrorPage {
         ParserContextImpl ctx = new ParserContextImpl(out, httpRequest, httpResponse);
-        Matcher matcher = pattern.matcher(in);
+        parse(in, tagScanner.matcher(in, true), ctx);
+    }
+
+    /**
+     * Parses a document read from a Reader, chunk by chunk. Text regions are written to the output as soon as they are
+     * known not to be part of a tag, so the whole document is never loaded in memory.
+     * 
+     * @param in
+     *            The Reader to parse
+     * @param out
+     *            The Writable to write the result to
+     * @throws IOException
+     * @throws HttpErrorPage
+     */
+    public void parse(Reader in, Appendable out) throws IOException, HttpErrorPage {
+        ParserStream stream = open(out);
+        char[] buffer = new char[Parameters.DEFAULT_BUFFER_SIZE];
+        int read;
+        while ((read = in.read(buffer)) != -1) {
+            stream.append(CharBuffer.wrap(buffer, 0, read));
+        }
+        stream.end();
+    }
+
+    /**
+     * Starts the parsing of a document which will be pushed chunk by chunk.
+     * 
+     * @param out
+     *            The Writable to write the result to
+     * @return the {@link ParserStream} accepting the chunks of the document
+     */
+    public ParserStream open(Appendable out) {
+        return new ParserStream(this, new ParserContextImpl(out, httpRequest, httpResponse));
+    }
+
+    TagMatcher matcher(CharSequence in, boolean endOfInput) {
+        return tagScanner.matcher(in, endOfInput);
+    }
+
+    /**
+     * Parses a part of the document.
+     * 
+     * @param in
+     *            The characters to parse
+     * @param matcher
+     *            The TagMatcher, reset on the characters to parse
+     * @param ctx
+     *            The parser context, kept from one chunk to the next
+     * @return the number of characters consumed, the remaining ones may be the beginning of a tag and must be parsed
+     *         again with the next chunk
+     * @throws IOException
+     * @throws HttpErrorPage
+     */
+    int parse(CharSequence in, TagMatcher matcher, ParserContextImpl ctx) throws IOException, HttpErrorPage {
         int currentPosition = 0;
         while (matcher.find()) {
-            String tag = matcher.group();
             ctx.characters(in, currentPosition, matcher.start());
             currentPosition = matcher.end();
-            if (ctx.isCurrentTagEnd(tag)) {
-                // check if this is the end tag for current element
-                LOG.info("Processing end tag {}", tag);
-                ctx.endElement(tag);
-            } else {
-                // if not, it is an opening tag for a new element
-                LOG.info("Processing start tag {}", tag);
-                ElementType type = null;
+            if (!matcher.isDelimiter()) {
+                processTag(in.subSequence(matcher.start(), matcher.end()).toString(), ctx);
+            }
+        }
+        int end = matcher.incompleteTagStart();
+        ctx.characters(in, currentPosition, end);
+        return end;
+    }
+
+    private void processTag(String tag, ParserContextImpl ctx) throws IOException, HttpErrorPage {
+        if (ctx.isCurrentTagEnd(tag)) {
+            // check if this is the end tag for current element
+            LOG.info("Processing end tag {}", tag);
+            ctx.endElement(tag);
+        } else {
+            // if not, it is an opening tag for a new element
+            LOG.info("Processing start tag {}", tag);
+            ElementType type = elementTypeIndex.get(tag);
+            if (type == null) {
                 for (ElementType t : elementTypes) {
                     if (t.isStartTag(tag)) {
                         type = t;
                         break;
                     }
                 }
-                Element element = type.newInstance();
-                ctx.startElement(type, element, tag);
-                if (type.isSelfClosing(tag)) {
-                    ctx.endElement(tag);
-                }
-
             }
+            Element element = type.newInstance();
+            ctx.startElement(type, element, tag);
+            if (type.isSelfClosing(tag)) {
+                ctx.endElement(tag);
+            }
+
         }
-        // we reached the end of input
-        ctx.characters(in, currentPosition, in.length());
     }
 
     public void setHttpRequest(DriverRequest httpRequest) {
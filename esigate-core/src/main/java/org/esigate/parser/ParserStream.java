@@ -0,0 +1,88 @@
+/* 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package org.esigate.parser;
+
+import java.io.IOException;
+
+import org.esigate.HttpErrorPage;
+
+/**
+ * Parsing of a document pushed as a sequence of character chunks.
+ * <p>
+ * Each chunk is parsed as soon as it is appended. Only the end of a chunk that may be the beginning of a tag is kept
+ * until the next chunk arrives, everything else is written immediately to the output.
+ * 
+ * @see Parser#open(Appendable)
+ */
+public final class ParserStream {
+    private final Parser parser;
+    private final ParserContextImpl ctx;
+    private final StringBuilder pending = new StringBuilder();
+    private TagMatcher matcher;
+    private boolean ended = false;
+
+    ParserStream(Parser parser, ParserContextImpl ctx) {
+        this.parser = parser;
+        this.ctx = ctx;
+    }
+
+    /**
+     * Parses a new chunk of the document. The chunk is not referenced after this method returns and can be reused by
+     * the caller.
+     * 
+     * @param chunk
+     *            the characters to parse
+     * @throws IOException
+     * @throws HttpErrorPage
+     */
+    public void append(CharSequence chunk) throws IOException, HttpErrorPage {
+        if (ended) {
+            throw new IllegalStateException("Parsing is already finished");
+        }
+        if (pending.length() == 0) {
+            int consumed = parse(chunk, false);
+            pending.append(chunk, consumed, chunk.length());
+        } else {
+            pending.append(chunk);
+            int consumed = parse(pending, false);
+            pending.delete(0, consumed);
+        }
+    }
+
+    private int parse(CharSequence in, boolean endOfInput) throws IOException, HttpErrorPage {
+        if (matcher == null) {
+            matcher = parser.matcher(in, endOfInput);
+        } else {
+            matcher.reset(in, endOfInput);
+        }
+        return parser.parse(in, matcher, ctx);
+    }
+
+    /**
+     * Signals the end of the document: the remaining characters are parsed even if they look like an incomplete tag.
+     * 
+     * @throws IOException
+     * @throws HttpErrorPage
+     */
+    public void end() throws IOException, HttpErrorPage {
+        if (!ended) {
+            ended = true;
+            parse(pending, true);
+            pending.setLength(0);
+        }
+    }
+
+}
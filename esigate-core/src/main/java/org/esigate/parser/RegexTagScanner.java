@@ -0,0 +1,118 @@
+/* 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package org.esigate.parser;
+
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * {@link TagScanner} finding the tags matching a regular expression.
+ */
+public class RegexTagScanner implements TagScanner {
+    private static final int ASCII_CHARS = 128;
+    private final Pattern pattern;
+    /** ASCII characters a tag can start with, used to quickly skip text when looking for an incomplete tag. */
+    private final boolean[] tagStartChars = new boolean[ASCII_CHARS];
+
+    public RegexTagScanner(Pattern pattern) {
+        this.pattern = pattern;
+        for (char c = 0; c < ASCII_CHARS; c++) {
+            Matcher matcher = pattern.matcher(String.valueOf(c));
+            tagStartChars[c] = matcher.lookingAt() || matcher.hitEnd();
+        }
+    }
+
+    @Override
+    public TagMatcher matcher(CharSequence in, boolean endOfInput) {
+        return new RegexTagMatcher(in, endOfInput);
+    }
+
+    private class RegexTagMatcher implements TagMatcher {
+        private CharSequence in;
+        private boolean endOfInput;
+        private Matcher matcher;
+        private int currentPosition;
+        private int incompleteTagStart;
+
+        RegexTagMatcher(CharSequence in, boolean endOfInput) {
+            reset(in, endOfInput);
+        }
+
+        @Override
+        public void reset(CharSequence input, boolean inputEnd) {
+            this.in = input;
+            this.endOfInput = inputEnd;
+            this.matcher = pattern.matcher(input);
+            this.currentPosition = 0;
+            this.incompleteTagStart = input.length();
+        }
+
+        @Override
+        public boolean find() {
+            boolean found = matcher.find();
+            if (!endOfInput && matcher.hitEnd()) {
+                // The tag may go on in the next chunk
+                incompleteTagStart = findIncompleteTagStart();
+                return false;
+            }
+            if (found) {
+                currentPosition = matcher.end();
+            }
+            return found;
+        }
+
+        /**
+         * Finds the first position from which the end of the input could be the beginning of a tag.
+         */
+        private int findIncompleteTagStart() {
+            Matcher candidate = pattern.matcher(in);
+            candidate.useTransparentBounds(true);
+            candidate.useAnchoringBounds(false);
+            for (int i = currentPosition; i < in.length(); i++) {
+                char c = in.charAt(i);
+                if (c < ASCII_CHARS && !tagStartChars[c]) {
+                    continue;
+                }
+                candidate.region(i, in.length());
+                candidate.lookingAt();
+                if (candidate.hitEnd()) {
+                    return i;
+                }
+            }
+            return in.length();
+        }
+
+        @Override
+        public int start() {
+            return matcher.start();
+        }
+
+        @Override
+        public int end() {
+            return matcher.end();
+        }
+
+        @Override
+        public boolean isDelimiter() {
+            return false;
+        }
+
+        @Override
+        public int incompleteTagStart() {
+            return incompleteTagStart;
+        }
+    }
+}
@@ -0,0 +1,64 @@
+/* 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package org.esigate.parser;
+
+/**
+ * The state of a scan performed by a {@link TagScanner}, similar to {@link java.util.regex.Matcher}.
+ */
+public interface TagMatcher {
+
+    /**
+     * Starts scanning new characters, typically the next chunk of a document parsed incrementally. The state which
+     * depends on the characters already consumed is kept.
+     * 
+     * @param in
+     *            The characters to scan
+     * @param endOfInput
+     *            false if more characters may follow
+     */
+    void reset(CharSequence in, boolean endOfInput);
+
+    /**
+     * Looks for the next tag.
+     * 
+     * @return true if a complete tag was found
+     */
+    boolean find();
+
+    /**
+     * @return the position of the first character of the tag found by the last call to {@link #find()}
+     */
+    int start();
+
+    /**
+     * @return the position following the last character of the tag found by the last call to {@link #find()}
+     */
+    int end();
+
+    /**
+     * @return true if the characters found by the last call to {@link #find()} are not a tag but a delimiter which just
+     *         has to be removed from the output
+     */
+    boolean isDelimiter();
+
+    /**
+     * Tells where the characters which cannot be processed yet start, once {@link #find()} has returned false.
+     * 
+     * @return the position of a tag which may go on after the end of the input, or the length of the input if there is
+     *         no such tag or if the end of the input was reached
+     */
+    int incompleteTagStart();
+}
@@ -0,0 +1,38 @@
+/* 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package org.esigate.parser;
+
+/**
+ * Locates the tags a {@link Parser} has to process inside a document.
+ * <p>
+ * Implementations must be thread-safe: all the state of a scan is held by the {@link TagMatcher}.
+ * 
+ * @see RegexTagScanner
+ */
+public interface TagScanner {
+
+    /**
+     * Creates a matcher to scan the given characters.
+     * 
+     * @param in
+     *            The characters to scan
+     * @param endOfInput
+     *            false if more characters may follow, in this case tags which are not finished at the end of the input
+     *            are not reported and {@link TagMatcher#incompleteTagStart()} tells where they begin.
+     * @return a new matcher
+     */
+    TagMatcher matcher(CharSequence in, boolean endOfInput);
+}
@@ -14,12 +14,14 @@
  */
 package org.esigate.parser.future;
 
+import java.io.Flushable;
 import java.io.IOException;
-import java.util.ArrayList;
-import java.util.List;
+import java.util.ArrayDeque;
+import java.util.Deque;
 import java.util.concurrent.CancellationException;
 import java.util.concurrent.ExecutionException;
 import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.TimeoutException;
 
@@ -27,6 +29,10 @@ import org.esigate.HttpErrorPage;
 
 /**
  * This class is an Adapter for Appendable objects.
+ * <p>
+ * Content is written progressively and in order: each time a Future is queued, the leading Futures which are already
+ * done are appended right away, and the output is flushed before waiting for a Future which is not done yet. This way
+ * the beginning of the page can reach the client while the slowest includes are still being fetched.
  * 
  * @author Nicolas Richeton
  * 
@@ -34,27 +40,70 @@ import org.esigate.HttpErrorPage;
 public class FutureAppendableAdapter implements FutureAppendable {
 
     private Appendable out;
-    private List<Future<CharSequence>> futureList;
+    private Deque<Future<CharSequence>> futureList;
 
     public FutureAppendableAdapter(Appendable out) {
         this.out = out;
-        this.futureList = new ArrayList<>();
+        this.futureList = new ArrayDeque<>();
     }
 
     @Override
-    public FutureAppendable enqueueAppend(Future<CharSequence> csq) {
+    public FutureAppendable enqueueAppend(Future<CharSequence> csq) throws IOException {
         this.futureList.add(csq);
+        appendCompleted();
         return this;
     }
 
+    /**
+     * Append the leading Futures which are already done, without blocking. A Future which completed with an error is
+     * left in the queue so that the error is reported by {@link #performAppends()}.
+     */
+    private void appendCompleted() throws IOException {
+        Future<CharSequence> f = this.futureList.peek();
+        while (f != null && isCompleted(f)) {
+            CharSequence csq;
+            try {
+                csq = f.get();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return;
+            } catch (ExecutionException e) {
+                return;
+            }
+            this.out.append(csq);
+            this.futureList.poll();
+            f = this.futureList.peek();
+        }
+    }
+
+    /**
+     * Some Futures only compute their content when {@link Future#get()} is called and depend on what is parsed after
+     * them (for instance the content of an except tag), so only the Futures known to hold their final result are
+     * considered.
+     */
+    private static boolean isCompleted(Future<CharSequence> f) {
+        return f instanceof CharSequenceFuture || (f instanceof FutureTask && f.isDone() && !f.isCancelled());
+    }
+
+    private void flush() throws IOException {
+        if (this.out instanceof Flushable) {
+            ((Flushable) this.out).flush();
+        }
+    }
+
     @Override
     public FutureAppendable performAppends(int timeout, TimeUnit unit) throws IOException, HttpErrorPage,
             TimeoutException {
 
         try {
-            for (Future<CharSequence> f : this.futureList) {
+            Future<CharSequence> f;
+            while ((f = this.futureList.peek()) != null) {
+                if (!f.isDone()) {
+                    flush();
+                }
                 CharSequence csq = f.get(timeout, unit);
                 this.out.append(csq);
+                this.futureList.poll();
             }
         } catch (CancellationException | InterruptedException e) {
             throw new IOException(e);
@@ -78,9 +127,14 @@ public class FutureAppendableAdapter implements FutureAppendable {
     @Override
     public FutureAppendable performAppends() throws IOException, HttpErrorPage {
         try {
-            for (Future<CharSequence> f : this.futureList) {
+            Future<CharSequence> f;
+            while ((f = this.futureList.peek()) != null) {
+                if (!f.isDone()) {
+                    flush();
+                }
                 CharSequence csq = f.get();
                 this.out.append(csq);
+                this.futureList.poll();
             }
         } catch (CancellationException | InterruptedException e) {
             throw new IOException(e);
@@ -17,12 +17,15 @@ package org.esigate.parser.future;
 
 import java.io.IOException;
 import java.util.*;
-import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
 import org.apache.http.HttpResponse;
 import org.esigate.HttpErrorPage;
 import org.esigate.impl.DriverRequest;
+import org.esigate.parser.ElementTypeIndex;
+import org.esigate.parser.RegexTagScanner;
+import org.esigate.parser.TagMatcher;
+import org.esigate.parser.TagScanner;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -35,8 +38,9 @@ import org.slf4j.LoggerFactory;
  */
 public class FutureParser {
     private static final Logger LOG = LoggerFactory.getLogger(FutureParser.class);
-    private final Pattern pattern;
+    private final TagScanner tagScanner;
     private final List<FutureElementType> elementTypes;
+    private final ElementTypeIndex<FutureElementType> elementTypeIndex;
     private DriverRequest httpRequest;
     private HttpResponse httpResponse;
     private Map<String, Object> data = null;
@@ -50,10 +54,23 @@ public class FutureParser {
      *            The element types
      */
     public FutureParser(Pattern pattern, FutureElementType... elementTypes) {
-        this.pattern = pattern;
+        this(new RegexTagScanner(pattern), elementTypes);
+    }
+
+    /**
+     * Creates a Parser with a given TagScanner and ElementTypes.
+     * 
+     * @param tagScanner
+     *            The TagScanner used to find the tags
+     * @param elementTypes
+     *            The element types
+     */
+    public FutureParser(TagScanner tagScanner, FutureElementType... elementTypes) {
+        this.tagScanner = tagScanner;
         this.elementTypes = new ArrayList<>(elementTypes.length + 1);
         Collections.addAll(this.elementTypes, elementTypes);
         this.elementTypes.add(UnknownElement.TYPE);
+        this.elementTypeIndex = new ElementTypeIndex<>(this.elementTypes);
     }
 
     /**
@@ -68,12 +85,16 @@ public class FutureParser {
      */
     public void parse(CharSequence in, FutureAppendable out) throws IOException, HttpErrorPage {
         FutureParserContextImpl ctx = new FutureParserContextImpl(out, this.httpRequest, this.httpResponse, this.data);
-        Matcher matcher = this.pattern.matcher(in);
+        TagMatcher matcher = this.tagScanner.matcher(in, true);
         int currentPosition = 0;
         while (matcher.find()) {
-            String tag = matcher.group();
             ctx.characters(new CharSequenceFuture(in.subSequence(currentPosition, matcher.start())));
             currentPosition = matcher.end();
+            if (matcher.isDelimiter()) {
+                // Nothing to process, the delimiter is just removed
+                continue;
+            }
+            String tag = in.subSequence(matcher.start(), matcher.end()).toString();
             if (ctx.isCurrentTagEnd(tag)) {
                 // check if this is the end tag for current element
                 LOG.info("Processing end tag {}", tag);
@@ -81,11 +102,13 @@ public class FutureParser {
             } else {
                 // if not, it is an opening tag for a new element
                 LOG.info("Processing start tag {}", tag);
-                FutureElementType type = null;
-                for (FutureElementType t : this.elementTypes) {
-                    if (t.isStartTag(tag)) {
-                        type = t;
-                        break;
+                FutureElementType type = this.elementTypeIndex.get(tag);
+                if (type == null) {
+                    for (FutureElementType t : this.elementTypes) {
+                        if (t.isStartTag(tag)) {
+                            type = t;
+                            break;
+                        }
                     }
                 }
                 FutureElement element = type.newInstance();
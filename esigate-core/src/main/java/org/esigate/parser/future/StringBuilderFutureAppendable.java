@@ -58,7 +58,12 @@ public class StringBuilderFutureAppendable implements FutureAppendable, Future<C
 
     @Override
     public FutureAppendable enqueueAppend(Future<CharSequence> csq) {
-        return this.futureBuilder.enqueueAppend(csq);
+        try {
+            return this.futureBuilder.enqueueAppend(csq);
+        } catch (IOException e) {
+            // A StringBuilder never throws IOException
+            throw new IllegalStateException(e);
+        }
     }
 
     @Override
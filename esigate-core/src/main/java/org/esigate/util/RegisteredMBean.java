@@ -0,0 +1,90 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package org.esigate.util;
+
+import java.lang.management.ManagementFactory;
+
+import javax.management.InstanceNotFoundException;
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import javax.management.StandardMBean;
+
+/**
+ * An object registered in the platform MBean server. Registering an object under a name already taken replaces the
+ * previous object, for instance when a provider is configured again. Unregistering an object does nothing if it has
+ * been replaced since, so that the object replacing it stays registered.
+ */
+public final class RegisteredMBean {
+    private final ObjectName objectName;
+    private volatile boolean registered;
+
+    private RegisteredMBean(ObjectName objectName) {
+        this.objectName = objectName;
+    }
+
+    /**
+     * Registers an object, replacing any object registered under the same name.
+     * 
+     * @param objectName
+     *            the name of the object
+     * @param object
+     *            the object
+     * @param mbeanInterface
+     *            the management interface of the object
+     * @param <T>
+     *            the type of the management interface
+     * @return the registration
+     * @throws JMException
+     *             if the object cannot be registered
+     */
+    public static <T> RegisteredMBean register(ObjectName objectName, T object, Class<T> mbeanInterface)
+            throws JMException {
+        final RegisteredMBean registration = new RegisteredMBean(objectName);
+        StandardMBean mbean = new StandardMBean(object, mbeanInterface) {
+            @Override
+            public void postDeregister() {
+                registration.registered = false;
+                super.postDeregister();
+            }
+        };
+        MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+        if (server.isRegistered(objectName)) {
+            server.unregisterMBean(objectName);
+        }
+        server.registerMBean(mbean, objectName);
+        registration.registered = true;
+        return registration;
+    }
+
+    /**
+     * Unregisters the object, unless another object has been registered under the same name since.
+     * 
+     * @throws JMException
+     *             if the object cannot be unregistered
+     */
+    public void unregister() throws JMException {
+        if (!registered) {
+            return;
+        }
+        try {
+            ManagementFactory.getPlatformMBeanServer().unregisterMBean(objectName);
+        } catch (InstanceNotFoundException e) {
+            // Already unregistered
+        }
+    }
+
+}
@@ -0,0 +1,95 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package org.esigate.vars;
+
+import java.util.Iterator;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Bounded cache of the compiled forms of the expressions and variable templates found in the pages. It is read without
+ * locking, as it is used by all the threads rendering pages and includes in parallel.
+ * <p>
+ * The cache is bounded in number of entries and in size, a source larger than the whole cache is not kept. When the
+ * cache is full, arbitrary entries are removed: they are cheap to compile again and the entries still in use are added
+ * back at their next access.
+ * 
+ * @param <V>
+ *            the type of the compiled values
+ */
+final class CompiledCache<V> {
+    private final ConcurrentMap<String, V> entries = new ConcurrentHashMap<>();
+    private final AtomicInteger size = new AtomicInteger();
+    private final AtomicLong bytes = new AtomicLong();
+    private final int maxEntries;
+    private final long maxBytes;
+
+    /**
+     * @param maxEntries
+     *            the maximum number of entries
+     * @param maxBytes
+     *            the maximum size of the entries in bytes, see {@link #getSize(String)}
+     */
+    CompiledCache(int maxEntries, long maxBytes) {
+        this.maxEntries = maxEntries;
+        this.maxBytes = maxBytes;
+    }
+
+    V get(String key) {
+        return entries.get(key);
+    }
+
+    void put(String key, V value) {
+        long entrySize = getSize(key);
+        if (entrySize > maxBytes || entries.putIfAbsent(key, value) != null) {
+            return;
+        }
+        if (size.incrementAndGet() > maxEntries | bytes.addAndGet(entrySize) > maxBytes) {
+            evict(key);
+        }
+    }
+
+    int size() {
+        return size.get();
+    }
+
+    long getBytes() {
+        return bytes.get();
+    }
+
+    /**
+     * @param key
+     *            the source
+     * @return the approximate size of an entry in bytes: the characters of the source, and about as much for the
+     *         compiled value which keeps the parts of the source
+     */
+    static long getSize(String key) {
+        return 4L * key.length();
+    }
+
+    private void evict(String added) {
+        Iterator<String> keys = entries.keySet().iterator();
+        while ((size.get() > maxEntries || bytes.get() > maxBytes) && keys.hasNext()) {
+            String key = keys.next();
+            if (!key.equals(added) && entries.remove(key) != null) {
+                size.decrementAndGet();
+                bytes.addAndGet(-getSize(key));
+            }
+        }
+    }
+
+}
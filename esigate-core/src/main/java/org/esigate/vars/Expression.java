@@ -0,0 +1,423 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package org.esigate.vars;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import org.esigate.impl.DriverRequest;
+
+/**
+ * An ESI expression, as found in the test attribute of &lt;esi:when&gt;, compiled once and evaluated for each request.
+ * <p>
+ * The expression is split into comparisons and boolean operators when it is compiled. Variables are only resolved when
+ * the expression is evaluated and their values are used as operands: unlike with
+ * {@link Operations#processOperators(String)} applied to the result of
+ * {@link VariablesResolver#replaceAllVariables(String, DriverRequest)}, a value containing operators or parenthesis
+ * cannot change the structure of the expression.
+ */
+public final class Expression {
+    private static final int MAX_CACHED_EXPRESSIONS = 1000;
+    private static final long MAX_CACHED_EXPRESSIONS_SIZE = 1024 * 1024;
+    private static final CompiledCache<Expression> CACHE = new CompiledCache<>(MAX_CACHED_EXPRESSIONS,
+            MAX_CACHED_EXPRESSIONS_SIZE);
+
+    private static final Expression FALSE = new Expression(new Variable[0], new String[0], new Comparison[0],
+            new String[0]);
+
+    private static final Pattern AKAMAI_EXISTS_PATTERN = Pattern.compile("\\$exists\\((.*?)\\)");
+
+    /**
+     * Variables are replaced by a character of the Unicode private use area when the expression is compiled, the first
+     * variable by PLACEHOLDER, the second one by PLACEHOLDER + 1...
+     */
+    private static final char PLACEHOLDER = '\uE000';
+    private static final int MAX_VARIABLES = '\uF8FF' - PLACEHOLDER + 1;
+
+    private static final int EQUAL = 0;
+    private static final int NOT_EQUAL = 1;
+    private static final int GREATER_OR_EQUAL = 2;
+    private static final int LESS_OR_EQUAL = 3;
+    private static final int GREATER = 4;
+    private static final int LESS = 5;
+    private static final String[] OPERATORS = {"==", "!=", ">=", "<=", ">", "<"};
+
+    private final Variable[] variables;
+    /** Arguments of the $exists() functions: the expression is false if one of them is empty. */
+    private final String[] existsArguments;
+    private final Comparison[] comparisons;
+    private final String[] operations;
+
+    private Expression(Variable[] variables, String[] existsArguments, Comparison[] comparisons, String[] operations) {
+        this.variables = variables;
+        this.existsArguments = existsArguments;
+        this.comparisons = comparisons;
+        this.operations = operations;
+    }
+
+    /**
+     * Compiles an expression which may contain variables. Compiled expressions are cached.
+     * 
+     * @param test
+     *            the expression
+     * @return the compiled expression
+     */
+    public static Expression compile(String test) {
+        if (test == null) {
+            return FALSE;
+        }
+        Expression expression = CACHE.get(test);
+        if (expression == null) {
+            expression = compile(test, true);
+            CACHE.put(test, expression);
+        }
+        return expression;
+    }
+
+    /**
+     * Compiles an expression.
+     * 
+     * @param test
+     *            the expression
+     * @param withVariables
+     *            false if "$(...)" must be considered as text
+     * @return the compiled expression
+     */
+    static Expression compile(String test, boolean withVariables) {
+        if (test == null || test.isEmpty()) {
+            return FALSE;
+        }
+        List<Variable> variableList = new ArrayList<>();
+        String masked = withVariables ? maskVariables(test, variableList) : test;
+        if (masked == null || masked.contains("$exists()") || masked.contains("$exists('')")) {
+            return FALSE;
+        }
+
+        List<String> existsArgumentList = new ArrayList<>();
+        Matcher existsMatcher = AKAMAI_EXISTS_PATTERN.matcher(masked);
+        while (existsMatcher.find()) {
+            String group = existsMatcher.group();
+            String existsValue = group.substring(8, group.length() - 1);
+            if (!variableList.isEmpty()) {
+                existsArgumentList.add(existsValue);
+            }
+            masked = masked.replace(group, existsValue + " != \"\"");
+        }
+
+        List<String> operands = new ArrayList<>();
+        List<String> operationList = new ArrayList<>();
+        String s = masked.replace(" ", "");
+        if (s.startsWith("!")) {
+            operationList.add("!");
+        }
+
+        if (s.indexOf('(') == -1) {
+            s = "(" + s + ")";
+        }
+
+        // allocate (...)
+        try {
+            while (s.length() > 0) {
+                int sbIndex = s.indexOf(')');
+                operands.add(s.substring(s.indexOf('(') + 1, sbIndex));
+                if (s.length() > sbIndex + 1) {
+                    String oper = s.substring(sbIndex + 1, s.substring(sbIndex).indexOf('(') + sbIndex);
+                    operationList.add(oper);
+                    s = s.substring(sbIndex + 2);
+                } else {
+                    s = "";
+                }
+
+            }
+        } catch (RuntimeException e) {
+            return FALSE;
+        }
+
+        Comparison[] comparisons = new Comparison[operands.size()];
+        for (int i = 0; i < comparisons.length; i++) {
+            comparisons[i] = new Comparison(operands.get(i), variableList.size());
+        }
+        return new Expression(variableList.toArray(new Variable[variableList.size()]),
+                existsArgumentList.toArray(new String[existsArgumentList.size()]), comparisons,
+                operationList.toArray(new String[operationList.size()]));
+    }
+
+    /**
+     * Replaces the variables by placeholders.
+     * 
+     * @return the expression with placeholders, or null if there are too many variables
+     */
+    private static String maskVariables(String test, List<Variable> variableList) {
+        StringBuilder result = null;
+        int position = 0;
+        int start = test.indexOf("$(");
+        while (start >= 0) {
+            int end = VariableTemplate.findVariableEnd(test, start);
+            if (end < 0) {
+                start = test.indexOf("$(", start + 1);
+                continue;
+            }
+            if (variableList.size() == MAX_VARIABLES) {
+                return null;
+            }
+            if (result == null) {
+                result = new StringBuilder(test.length());
+            }
+            result.append(test, position, start).append((char) (PLACEHOLDER + variableList.size()));
+            variableList.add(new Variable(test.substring(start + 2, end)));
+            position = end + 1;
+            start = test.indexOf("$(", position);
+        }
+        if (result == null) {
+            return test;
+        }
+        return result.append(test, position, test.length()).toString();
+    }
+
+    /**
+     * Evaluates the expression.
+     * 
+     * @param request
+     *            the request used to resolve variables, may be null
+     * @return the result
+     */
+    public boolean evaluate(DriverRequest request) {
+        if (comparisons.length == 0) {
+            return false;
+        }
+        String[] values = null;
+        if (variables.length > 0) {
+            values = new String[variables.length];
+            for (int i = 0; i < variables.length; i++) {
+                values[i] = variables[i].getValue(request);
+            }
+            for (String existsArgument : existsArguments) {
+                String value = expand(existsArgument, values, false);
+                if (value.isEmpty() || value.equals("''")) {
+                    return false;
+                }
+            }
+        }
+
+        boolean[] results = new boolean[comparisons.length];
+        for (int i = 0; i < results.length; i++) {
+            results[i] = comparisons[i].evaluate(values);
+        }
+
+        if (results.length == 1) {
+            return results[0] != (operations.length == 1 && operations[0].equals("!"));
+        }
+
+        int i = 1;
+        boolean res = results[0];
+        for (String op : operations) {
+            if (op.equals("&")) {
+                if (res) {
+                    if (i >= results.length) {
+                        return false;
+                    }
+                    res = results[i];
+                }
+            } else if (op.equals("|")) {
+                if (!res) {
+                    if (i >= results.length) {
+                        return false;
+                    }
+                    res = results[i];
+                }
+            } else {
+                res = false;
+            }
+            i++;
+        }
+        return res;
+    }
+
+    /**
+     * Replaces the placeholders of a part of the expression by the values of the variables.
+     */
+    private static String expand(String masked, String[] values, boolean removeSpaces) {
+        StringBuilder result = null;
+        for (int i = 0; i < masked.length(); i++) {
+            char c = masked.charAt(i);
+            int index = c - PLACEHOLDER;
+            if (index >= 0 && index < values.length) {
+                if (result == null) {
+                    result = new StringBuilder(masked.length() + 16);
+                    result.append(masked, 0, i);
+                }
+                String value = values[index];
+                result.append(removeSpaces ? value.replace(" ", "") : value);
+            } else if (result != null) {
+                result.append(c);
+            }
+        }
+        return result == null ? masked : result.toString();
+    }
+
+    private static boolean containsPlaceholder(String masked, int variableCount) {
+        for (int i = 0; i < masked.length(); i++) {
+            int index = masked.charAt(i) - PLACEHOLDER;
+            if (index >= 0 && index < variableCount) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Get an operand as a numeric type.
+     * 
+     * @param op
+     *            operand as String
+     * @return Double value or null if op is not numeric
+     */
+    static Double getOperandAsNumeric(String op) {
+        // Avoid the cost of an exception for values which are obviously not numbers
+        int i = 0;
+        while (i < op.length() && op.charAt(i) <= ' ') {
+            i++;
+        }
+        if (i == op.length()) {
+            return null;
+        }
+        char c = op.charAt(i);
+        if (!(c >= '0' && c <= '9') && c != '+' && c != '-' && c != '.' && c != 'N' && c != 'I') {
+            return null;
+        }
+        try {
+            return Double.valueOf(op);
+        } catch (NumberFormatException e) {
+            // Null is returned if not numeric.
+            return null;
+        }
+    }
+
+    /**
+     * A comparison between two operands.
+     */
+    private static final class Comparison {
+        private final int operator;
+        private final String left;
+        private final String right;
+        /** True if the operands do not depend on variables and are computed once. */
+        private final boolean constant;
+        private final Operand constantLeft;
+        private final Operand constantRight;
+
+        Comparison(String op, int variableCount) {
+            int operatorIndex = -1;
+            int i = -1;
+            for (int j = 0; j < OPERATORS.length; j++) {
+                i = op.indexOf(OPERATORS[j]);
+                if (i >= 0) {
+                    operatorIndex = j;
+                    break;
+                }
+            }
+            operator = operatorIndex;
+            if (operatorIndex < 0) {
+                left = null;
+                right = null;
+            } else {
+                left = op.substring(0, i);
+                right = op.substring(i + OPERATORS[operatorIndex].length());
+            }
+            constant =
+                    operatorIndex >= 0 && !containsPlaceholder(left, variableCount)
+                            && !containsPlaceholder(right, variableCount);
+            constantLeft = constant ? Operand.create(left) : null;
+            constantRight = constant ? Operand.create(right) : null;
+        }
+
+        boolean evaluate(String[] values) {
+            if (operator < 0) {
+                return false;
+            }
+            Operand op1;
+            Operand op2;
+            if (constant) {
+                op1 = constantLeft;
+                op2 = constantRight;
+            } else {
+                op1 = Operand.create(expand(left, values, true));
+                op2 = Operand.create(expand(right, values, true));
+            }
+            if (op1 == null || op2 == null) {
+                return false;
+            }
+
+            if (op1.number != null && op2.number != null) {
+                double d1 = op1.number;
+                double d2 = op2.number;
+                switch (operator) {
+                case EQUAL:
+                    return op1.number.equals(op2.number);
+                case NOT_EQUAL:
+                    return !op1.number.equals(op2.number);
+                case GREATER_OR_EQUAL:
+                    return d1 >= d2;
+                case LESS_OR_EQUAL:
+                    return d1 <= d2;
+                case GREATER:
+                    return d1 > d2;
+                default:
+                    return d1 < d2;
+                }
+            }
+
+            switch (operator) {
+            case EQUAL:
+                return op1.text.equals(op2.text);
+            case NOT_EQUAL:
+                return !op1.text.equals(op2.text);
+            case GREATER_OR_EQUAL:
+                return op1.text.compareTo(op2.text) >= 0;
+            case LESS_OR_EQUAL:
+                return op1.text.compareTo(op2.text) <= 0;
+            case GREATER:
+                return op1.text.compareTo(op2.text) > 0;
+            default:
+                return op1.text.compareTo(op2.text) < 0;
+            }
+        }
+    }
+
+    /**
+     * An operand without its simple quotes, and its numeric value if any.
+     */
+    private static final class Operand {
+        private final String text;
+        private final Double number;
+
+        private Operand(String text) {
+            this.text = text;
+            this.number = getOperandAsNumeric(text);
+        }
+
+        /**
+         * @return the operand or null if it is a single quote
+         */
+        static Operand create(String op) {
+            if (op.equals("'")) {
+                return null;
+            }
+            return new Operand(VarUtils.removeSimpleQuotes(op));
+        }
+    }
+
+}
@@ -0,0 +1,171 @@
+/* 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package org.esigate.vars;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.esigate.impl.DriverRequest;
+
+/**
+ * A String containing ESI variables, split once into literal text and variable references.
+ * <p>
+ * Rendering a template appends the literal parts and the values of the variables to a single buffer. The values are
+ * inserted as is: a value containing a variable reference is not resolved again.
+ */
+public final class VariableTemplate {
+    private static final int MAX_CACHED_TEMPLATES = 1000;
+    private static final long MAX_CACHED_TEMPLATES_SIZE = 1024 * 1024;
+    private static final CompiledCache<VariableTemplate> CACHE = new CompiledCache<>(MAX_CACHED_TEMPLATES,
+            MAX_CACHED_TEMPLATES_SIZE);
+
+    private final String source;
+    /** One more literal than variables: literals[i] is before variables[i]. */
+    private final String[] literals;
+    private final Variable[] variables;
+
+    private VariableTemplate(String source, String[] literals, Variable[] variables) {
+        this.source = source;
+        this.literals = literals;
+        this.variables = variables;
+    }
+
+    /**
+     * Splits a String containing variables. Templates containing variables are cached, this is intended for the static
+     * text of the configuration and of the attributes of the ESI tags, use {@link #render(String, DriverRequest)} for
+     * text used only once.
+     * 
+     * @param source
+     *            a String that may contain variables.
+     * @return the template
+     */
+    public static VariableTemplate compile(String source) {
+        if (!VariablesResolver.containsVariable(source)) {
+            return new VariableTemplate(source, null, null);
+        }
+        VariableTemplate template = CACHE.get(source);
+        if (template == null) {
+            template = parse(source);
+            CACHE.put(source, template);
+        }
+        return template;
+    }
+
+    /**
+     * Replaces the variables of a String without caching its compiled form, for text which depends on the request like
+     * the body of an &lt;esi:vars&gt; tag.
+     * 
+     * @param source
+     *            a String that may contain variables.
+     * @param request
+     *            the request, may be null
+     * @return the resulting String
+     */
+    public static String render(String source, DriverRequest request) {
+        if (!VariablesResolver.containsVariable(source)) {
+            return source;
+        }
+        return parse(source).render(request);
+    }
+
+    private static VariableTemplate parse(String source) {
+        List<String> literalList = new ArrayList<>();
+        List<Variable> variableList = new ArrayList<>();
+        int position = 0;
+        int start = source.indexOf("$(");
+        while (start >= 0) {
+            int end = findVariableEnd(source, start);
+            if (end < 0) {
+                start = source.indexOf("$(", start + 1);
+            } else {
+                literalList.add(source.substring(position, start));
+                variableList.add(new Variable(source.substring(start + 2, end)));
+                position = end + 1;
+                start = source.indexOf("$(", position);
+            }
+        }
+        if (variableList.isEmpty()) {
+            return new VariableTemplate(source, null, null);
+        }
+        literalList.add(source.substring(position));
+        return new VariableTemplate(source, literalList.toArray(new String[literalList.size()]),
+                variableList.toArray(new Variable[variableList.size()]));
+    }
+
+    /**
+     * Finds the end of a variable reference like the regular expression \$\((.*?)\) would.
+     * 
+     * @param source
+     *            the String
+     * @param start
+     *            the position of "$("
+     * @return the position of the closing parenthesis, or -1 if there is none on the same line
+     */
+    static int findVariableEnd(String source, int start) {
+        for (int i = start + 2; i < source.length(); i++) {
+            char c = source.charAt(i);
+            if (c == ')') {
+                return i;
+            }
+            if (c == '\n' || c == '\r' || c == '\u0085' || c == '\u2028' || c == '\u2029') {
+                return -1;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * @return true if the template contains at least one variable
+     */
+    public boolean hasVariables() {
+        return variables != null;
+    }
+
+    /**
+     * Replaces the variables by their value for a request.
+     * 
+     * @param request
+     *            the request, may be null
+     * @return the resulting String
+     */
+    public String render(DriverRequest request) {
+        if (variables == null) {
+            return source;
+        }
+        StringBuilder result = new StringBuilder(source.length() + 16 * variables.length);
+        render(request, result);
+        return result.toString();
+    }
+
+    /**
+     * Appends the template to a buffer, replacing the variables by their value for a request.
+     * 
+     * @param request
+     *            the request, may be null
+     * @param out
+     *            the buffer
+     */
+    public void render(DriverRequest request, StringBuilder out) {
+        if (variables == null) {
+            out.append(source);
+            return;
+        }
+        for (int i = 0; i < variables.length; i++) {
+            out.append(literals[i]).append(variables[i].getValue(request));
+        }
+        out.append(literals[variables.length]);
+    }
+
+}
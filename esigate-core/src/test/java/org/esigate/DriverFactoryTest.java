@@ -15,8 +15,11 @@
 
 package org.esigate;
 
+import java.lang.management.ManagementFactory;
 import java.util.Properties;
 
+import javax.management.ObjectName;
+
 import junit.framework.Assert;
 import junit.framework.TestCase;
 
@@ -211,4 +214,48 @@ public class DriverFactoryTest extends TestCase {
 
     }
 
+    /**
+     * Providers whose settings did not change must survive a configuration reload with their cache and connections.
+     */
+    public void testReloadKeepsUnchangedProviders() {
+        Properties properties = new Properties();
+        properties.setProperty("provider1." + Parameters.REMOTE_URL_BASE.getName(), "http://example1.com");
+        properties.setProperty("provider2." + Parameters.REMOTE_URL_BASE.getName(), "http://example2.com");
+        DriverFactory.configure(properties);
+        Driver provider1 = DriverFactory.getInstance("provider1");
+        Driver provider2 = DriverFactory.getInstance("provider2");
+
+        properties = new Properties();
+        properties.setProperty("provider1." + Parameters.REMOTE_URL_BASE.getName(), "http://example1.com");
+        properties.setProperty("provider2." + Parameters.REMOTE_URL_BASE.getName(), "http://example2.com");
+        properties.setProperty("provider2." + Parameters.SOCKET_TIMEOUT.getName(), "5000");
+        DriverFactory.configure(properties);
+
+        assertSame(provider1, DriverFactory.getInstance("provider1"));
+        assertNotSame(provider2, DriverFactory.getInstance("provider2"));
+        assertEquals(
+                "5000",
+                DriverFactory.getInstance("provider2").getConfiguration().getProperties()
+                        .getProperty(Parameters.SOCKET_TIMEOUT.getName()));
+    }
+
+    public void testReadyOnceConfigured() throws Exception {
+        ObjectName readiness = new ObjectName("org.esigate:type=Readiness");
+        assertEquals(Boolean.TRUE, ManagementFactory.getPlatformMBeanServer().getAttribute(readiness, "Configured"));
+    }
+
+    public void testCloseUnregistersReadiness() throws Exception {
+        ObjectName readiness = new ObjectName("org.esigate:type=Readiness");
+        Properties properties = new Properties();
+        properties.setProperty("closed." + Parameters.REMOTE_URL_BASE.getName(), "http://example.com");
+        DriverFactory.configure(properties);
+
+        DriverFactory.close();
+        assertFalse(ManagementFactory.getPlatformMBeanServer().isRegistered(readiness));
+
+        // Registered again when esigate is configured again
+        DriverFactory.configure(properties);
+        assertEquals(Boolean.TRUE, ManagementFactory.getPlatformMBeanServer().getAttribute(readiness, "Configured"));
+    }
+
 }
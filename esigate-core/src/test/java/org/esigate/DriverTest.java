@@ -15,23 +15,27 @@
 package org.esigate;
 
 import java.io.ByteArrayInputStream;
+import java.io.Closeable;
 import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.UnsupportedEncodingException;
 import java.net.SocketTimeoutException;
+import java.nio.charset.StandardCharsets;
 import java.util.Date;
 import java.util.HashMap;
 import java.util.Properties;
 import java.util.concurrent.atomic.AtomicInteger;
 import java.util.zip.GZIPOutputStream;
 
+import org.apache.commons.lang3.StringUtils;
 import org.apache.http.HttpClientConnection;
 import org.apache.http.HttpEntity;
 import org.apache.http.HttpRequest;
 import org.apache.http.HttpResponse;
 import org.apache.http.HttpStatus;
 import org.apache.http.ProtocolVersion;
+import org.apache.http.client.entity.GzipDecompressingEntity;
 import org.apache.http.client.methods.CloseableHttpResponse;
 import org.apache.http.conn.HttpClientConnectionManager;
 import org.apache.http.conn.routing.HttpRoute;
@@ -51,6 +55,7 @@ import org.esigate.events.EventManager;
 import org.esigate.events.IEventListener;
 import org.esigate.events.impl.FetchEvent;
 import org.esigate.extension.DefaultCharset;
+import org.esigate.extension.Extension;
 import org.esigate.http.DateUtils;
 import org.esigate.http.HttpClientRequestExecutor;
 import org.esigate.http.HttpResponseUtils;
@@ -1275,4 +1280,128 @@ public class DriverTest extends TestCase {
         // Ensure correct result.
         Assert.assertEquals("Entity content should be OK", "OK", EntityUtils.toString(response.getEntity()));
     }
+
+    private Driver
+            createCompressingDriver(final String contentType, final String content, final AtomicInteger requests) {
+        return createCompressingDriver(new Properties(), "public, max-age=1000", contentType, content, requests);
+    }
+
+    /**
+     * The provider sends its entities without Content-Length.
+     */
+    private Driver createCompressingDriver(Properties properties, final String cacheControl, final String contentType,
+            final String content, final AtomicInteger requests) {
+        properties.put(Parameters.REMOTE_URL_BASE.getName(), "http://localhost");
+        properties.put(Parameters.CACHE_COMPRESSION.getName(), "true");
+        mockConnectionManager.setResponseHandler(new IResponseHandler() {
+            @Override
+            public HttpResponse execute(HttpRequest request) {
+                requests.incrementAndGet();
+                ContentType type = ContentType.parse(contentType);
+                InputStream in = new ByteArrayInputStream(content.getBytes(StandardCharsets.UTF_8));
+                return new HttpResponseBuilder().status(HttpStatus.SC_OK)
+                        .header("Date", DateUtils.formatDate(new Date())).header("Cache-control", cacheControl)
+                        .header("Content-Type", contentType).entity(new InputStreamEntity(in, -1, type)).build();
+            }
+        });
+        return createMockDriver(properties, mockConnectionManager);
+    }
+
+    public void testCacheCompressionForwardedCompressed() throws Exception {
+        String css = StringUtils.repeat("body {color: red;}\n", 100);
+        AtomicInteger requests = new AtomicInteger();
+        Driver driver = createCompressingDriver("text/css", css, requests);
+
+        request = TestUtils.createIncomingRequest().addHeader("Accept-Encoding", "gzip, deflate");
+        CloseableHttpResponse driverResponse = driver.proxy("/style.css", request.build());
+        HttpEntity entity = driverResponse.getEntity();
+        assertEquals("gzip", entity.getContentEncoding().getValue());
+        assertTrue(entity.getContentLength() < css.length());
+        assertEquals("Accept-Encoding", driverResponse.getFirstHeader("Vary").getValue());
+        assertEquals(css, EntityUtils.toString(new GzipDecompressingEntity(entity)));
+
+        // Same cache entry for a client not supporting compression
+        request = TestUtils.createIncomingRequest();
+        driverResponse = driver.proxy("/style.css", request.build());
+        assertNull(driverResponse.getEntity().getContentEncoding());
+        assertEquals(css, EntityUtils.toString(driverResponse.getEntity()));
+        assertEquals(1, requests.get());
+    }
+
+    public void testCacheCompressionRendered() throws Exception {
+        String html = "<html><body>" + StringUtils.repeat("<p>Some text</p>", 50) + "</body></html>";
+        AtomicInteger requests = new AtomicInteger();
+        Driver driver = createCompressingDriver("text/html", html, requests);
+
+        for (int i = 0; i < 2; i++) {
+            request = TestUtils.createIncomingRequest().addHeader("Accept-Encoding", "gzip");
+            CloseableHttpResponse driverResponse = driver.proxy("/page.html", request.build(), new EsiRenderer());
+            assertNull(driverResponse.getEntity().getContentEncoding());
+            assertEquals(html, EntityUtils.toString(driverResponse.getEntity()));
+        }
+        assertEquals(1, requests.get());
+    }
+
+    public void testCacheCompressionSmallEntity() throws Exception {
+        AtomicInteger requests = new AtomicInteger();
+        Driver driver = createCompressingDriver("text/css", "body {}", requests);
+        request = TestUtils.createIncomingRequest().addHeader("Accept-Encoding", "gzip");
+        CloseableHttpResponse driverResponse = driver.proxy("/style.css", request.build());
+        assertNull(driverResponse.getEntity().getContentEncoding());
+        assertEquals("body {}", EntityUtils.toString(driverResponse.getEntity()));
+    }
+
+    public void testCacheCompressionNotStored() throws Exception {
+        String css = StringUtils.repeat("body {color: red;}\n", 100);
+        AtomicInteger requests = new AtomicInteger();
+        Driver driver = createCompressingDriver(new Properties(), "private, max-age=1000", "text/css", css, requests);
+        for (int i = 0; i < 2; i++) {
+            request = TestUtils.createIncomingRequest().addHeader("Accept-Encoding", "gzip");
+            CloseableHttpResponse driverResponse = driver.proxy("/style.css", request.build());
+            assertNull(driverResponse.getEntity().getContentEncoding());
+            assertEquals(css, EntityUtils.toString(driverResponse.getEntity()));
+        }
+        assertEquals(2, requests.get());
+    }
+
+    public void testCacheCompressionEntityBiggerThanMaxObjectSize() throws Exception {
+        String css = StringUtils.repeat("body {color: red;}\n", 100);
+        AtomicInteger requests = new AtomicInteger();
+        Properties properties = new Properties();
+        properties.put(Parameters.MAX_OBJECT_SIZE.getName(), "1000");
+        Driver driver = createCompressingDriver(properties, "public, max-age=1000", "text/css", css, requests);
+        request = TestUtils.createIncomingRequest().addHeader("Accept-Encoding", "gzip");
+        CloseableHttpResponse driverResponse = driver.proxy("/style.css", request.build());
+        assertNull(driverResponse.getEntity().getContentEncoding());
+        assertEquals(css, EntityUtils.toString(driverResponse.getEntity()));
+    }
+
+    /**
+     * Extensions implementing {@link Closeable} are closed with the driver.
+     * 
+     * @throws Exception
+     */
+    public void testCloseClosesExtensions() throws Exception {
+        Properties properties = new Properties();
+        properties.put(Parameters.REMOTE_URL_BASE.getName(), "http://www.foo.com/");
+        properties.put(Parameters.EXTENSIONS.getName(), ClosingExtension.class.getName());
+        Driver driver = createMockDriver(properties, mockConnectionManager);
+        int closed = ClosingExtension.CLOSED.get();
+        driver.close();
+        assertEquals(closed + 1, ClosingExtension.CLOSED.get());
+    }
+
+    public static final class ClosingExtension implements Extension, Closeable {
+        private static final AtomicInteger CLOSED = new AtomicInteger();
+
+        @Override
+        public void init(Driver driver, Properties properties) {
+            // Nothing to configure
+        }
+
+        @Override
+        public void close() {
+            CLOSED.incrementAndGet();
+        }
+    }
 }
@@ -0,0 +1,120 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package org.esigate.cache;
+
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+import java.util.Properties;
+
+import junit.framework.TestCase;
+
+import org.apache.http.HttpRequest;
+import org.apache.http.HttpResponse;
+import org.apache.http.HttpStatus;
+import org.apache.http.entity.ContentType;
+import org.apache.http.entity.StringEntity;
+import org.apache.http.util.EntityUtils;
+import org.esigate.Driver;
+import org.esigate.Parameters;
+import org.esigate.http.DateUtils;
+import org.esigate.http.HttpClientRequestExecutor;
+import org.esigate.test.PropertiesBuilder;
+import org.esigate.test.TestUtils;
+import org.esigate.test.conn.IResponseHandler;
+import org.esigate.test.conn.MockConnectionManager;
+import org.esigate.test.http.HttpResponseBuilder;
+
+public class CacheKeyNormalizerTest extends TestCase {
+
+    public void testSortParameters() {
+        CacheKeyNormalizer normalizer =
+                new CacheKeyNormalizer(new PropertiesBuilder().set(Parameters.CACHE_KEY_SORT_PARAMETERS, true).build());
+        assertEquals("/page?a=1&b=2&b=1&c", normalizer.normalize("/page?c&b=2&a=1&b=1"));
+        assertEquals("/page", normalizer.normalize("/page"));
+    }
+
+    public void testExcludedParameters() {
+        CacheKeyNormalizer normalizer =
+                new CacheKeyNormalizer(new PropertiesBuilder().set(Parameters.CACHE_KEY_EXCLUDED_PARAMETERS,
+                        "utm_*,fbclid").build());
+        assertEquals("/page?id=1", normalizer.normalize("/page?utm_source=x&id=1&fbclid=y&utm_medium=z"));
+        assertEquals("/page", normalizer.normalize("/page?fbclid=y"));
+    }
+
+    public void testIncludedParameters() {
+        CacheKeyNormalizer normalizer =
+                new CacheKeyNormalizer(new PropertiesBuilder().set(Parameters.CACHE_KEY_INCLUDED_PARAMETERS, "id,page")
+                        .build());
+        assertEquals("http://localhost/list?page=2&id=1",
+                normalizer.normalize("http://localhost/list?session=abc&page=2&id=1"));
+    }
+
+    public void testIgnoreCase() {
+        CacheKeyNormalizer normalizer =
+                new CacheKeyNormalizer(new PropertiesBuilder().set(Parameters.CACHE_KEY_IGNORE_CASE, true)
+                        .set(Parameters.CACHE_KEY_EXCLUDED_PARAMETERS, "UTM_*").build());
+        assertEquals("/page?id=ABC", normalizer.normalize("/Page?ID=ABC&utm_Source=x"));
+    }
+
+    public void testEnabled() {
+        assertFalse(CacheKeyNormalizer.isEnabled(new Properties()));
+        assertTrue(CacheKeyNormalizer.isEnabled(new PropertiesBuilder().set(Parameters.CACHE_KEY_COLLAPSED_HEADERS,
+                "Accept-Language").build()));
+    }
+
+    public void testNormalizedCacheKeyOriginalRequestForwarded() throws Exception {
+        final List<String> backendRequests = new ArrayList<>();
+        MockConnectionManager connectionManager = new MockConnectionManager();
+        connectionManager.setResponseHandler(new IResponseHandler() {
+            @Override
+            public HttpResponse execute(HttpRequest request) {
+                backendRequests.add(request.getRequestLine().getUri() + " "
+                        + request.getFirstHeader("Accept-Language").getValue());
+                return new HttpResponseBuilder().status(HttpStatus.SC_OK)
+                        .header("Date", DateUtils.formatDate(new Date()))
+                        .header("Cache-control", "public, max-age=1000").header("Vary", "Accept-Language")
+                        .entity(new StringEntity("content " + backendRequests.size(), ContentType.TEXT_PLAIN)).build();
+            }
+        });
+        Properties properties = new PropertiesBuilder() //
+                .set(Parameters.REMOTE_URL_BASE, "http://localhost") //
+                .set(Parameters.CACHE_KEY_SORT_PARAMETERS, true) //
+                .set(Parameters.CACHE_KEY_EXCLUDED_PARAMETERS, "utm_*") //
+                .set(Parameters.CACHE_KEY_COLLAPSED_HEADERS, "Accept-Language") //
+                .build();
+        Driver driver =
+                Driver.builder()
+                        .setName("cacheKeyNormalizer")
+                        .setProperties(properties)
+                        .setRequestExecutorBuilder(
+                                HttpClientRequestExecutor.builder().setConnectionManager(connectionManager)).build();
+
+        assertEquals("content 1", proxy(driver, "/page?b=2&a=1&utm_source=mail", "fr"));
+        assertEquals("content 1", proxy(driver, "/page?a=1&b=2", "en"));
+        assertEquals("content 1", proxy(driver, "/page?utm_campaign=x&a=1&b=2", "de"));
+        assertEquals("content 2", proxy(driver, "/page?a=2&b=2", "de"));
+
+        assertEquals(2, backendRequests.size());
+        assertEquals("/page?b=2&a=1&utm_source=mail fr", backendRequests.get(0));
+        assertEquals("/page?a=2&b=2 de", backendRequests.get(1));
+    }
+
+    private static String proxy(Driver driver, String relUrl, String language) throws Exception {
+        return EntityUtils.toString(driver.proxy(relUrl,
+                TestUtils.createIncomingRequest().addHeader("Accept-Language", language).build()).getEntity());
+    }
+
+}
@@ -0,0 +1,219 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package org.esigate.cache;
+
+import java.io.File;
+import java.lang.management.ManagementFactory;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Date;
+import java.util.List;
+import java.util.Properties;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+
+import javax.management.ObjectName;
+
+import junit.framework.TestCase;
+
+import org.apache.commons.io.FileUtils;
+import org.apache.http.HttpRequest;
+import org.apache.http.HttpResponse;
+import org.apache.http.HttpStatus;
+import org.apache.http.entity.ContentType;
+import org.apache.http.entity.StringEntity;
+import org.apache.http.util.EntityUtils;
+import org.esigate.Driver;
+import org.esigate.Parameters;
+import org.esigate.http.DateUtils;
+import org.esigate.http.HttpClientRequestExecutor;
+import org.esigate.test.PropertiesBuilder;
+import org.esigate.test.TestUtils;
+import org.esigate.test.conn.IResponseHandler;
+import org.esigate.test.conn.MockConnectionManager;
+import org.esigate.test.http.HttpResponseBuilder;
+
+public class CacheWarmupTest extends TestCase {
+    private final List<String> backendRequests = new CopyOnWriteArrayList<>();
+    private CountDownLatch release = new CountDownLatch(0);
+
+    private Driver createDriver(String name, Properties properties) {
+        MockConnectionManager connectionManager = new MockConnectionManager();
+        connectionManager.setResponseHandler(new IResponseHandler() {
+            @Override
+            public HttpResponse execute(HttpRequest request) {
+                try {
+                    release.await();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+                backendRequests.add(request.getRequestLine().getUri());
+                return new HttpResponseBuilder().status(HttpStatus.SC_OK)
+                        .header("Date", DateUtils.formatDate(new Date()))
+                        .header("Cache-control", "public, max-age=1000")
+                        .entity(new StringEntity("content", ContentType.TEXT_PLAIN)).build();
+            }
+        });
+        properties.put(Parameters.REMOTE_URL_BASE.getName(), "http://localhost");
+        properties.put(Parameters.VISIBLE_URL_BASE.getName(), "http://localhost:8080/");
+        return Driver.builder().setName(name).setProperties(properties)
+                .setRequestExecutorBuilder(HttpClientRequestExecutor.builder().setConnectionManager(connectionManager))
+                .build();
+    }
+
+    private static void waitForWarmup() throws InterruptedException {
+        for (int i = 0; i < 500 && !CacheWarmup.isReady(); i++) {
+            Thread.sleep(10);
+        }
+        assertTrue("Warmup should be complete", CacheWarmup.isReady());
+    }
+
+    private static void proxy(Driver driver, String relUrl, String query) throws Exception {
+        EntityUtils.consume(driver.proxy(relUrl,
+                TestUtils.createIncomingRequest("http://localhost:8080" + relUrl + query).build()).getEntity());
+    }
+
+    public void testWarmupUrls() throws Exception {
+        Properties properties = new PropertiesBuilder().set(Parameters.WARMUP_URLS, "/a,/b?x=1").build();
+        Driver driver = createDriver("warmupUrls", properties);
+        CacheWarmup.start(driver, properties);
+        waitForWarmup();
+        Collections.sort(backendRequests);
+        assertEquals(Arrays.asList("/a", "/b?x=1"), backendRequests);
+
+        proxy(driver, "/a", "");
+        proxy(driver, "/b", "?x=1");
+        assertEquals("Warm urls should be served from the cache", 2, backendRequests.size());
+    }
+
+    public void testWarmupFile() throws Exception {
+        File file = File.createTempFile("warmup", ".log");
+        try {
+            FileUtils.writeLines(file, "UTF-8", Arrays.asList("# urls", "/plain",
+                    "127.0.0.1 - - [10/Oct/2026:13:55:36 +0000] \"GET /logged?p=1 HTTP/1.1\" 200 2326", ""));
+            Properties properties = new PropertiesBuilder().set(Parameters.WARMUP_FILE, file.getAbsolutePath()).build();
+            CacheWarmup.start(createDriver("warmupFile", properties), properties);
+            waitForWarmup();
+            Collections.sort(backendRequests);
+            assertEquals(Arrays.asList("/logged?p=1", "/plain"), backendRequests);
+        } finally {
+            file.delete();
+        }
+    }
+
+    public void testTopUrlsReplayedAfterReload() throws Exception {
+        Properties properties = new PropertiesBuilder().set(Parameters.WARMUP_TOP_URLS, 1).build();
+        Driver driver = createDriver("warmupTopUrls", properties);
+        CacheWarmup.start(driver, properties);
+        proxy(driver, "/hot", "");
+        proxy(driver, "/hot", "");
+        proxy(driver, "/cold", "");
+        backendRequests.clear();
+
+        // Same provider created again, as on a configuration reload
+        Driver reloaded = createDriver("warmupTopUrls", properties);
+        CacheWarmup.start(reloaded, properties);
+        waitForWarmup();
+        assertEquals(Collections.singletonList("/hot"), backendRequests);
+    }
+
+    /**
+     * The query string may contain session ids or tokens that must not be replayed.
+     * 
+     * @throws Exception
+     */
+    public void testTopUrlsWithQueryStringNotRecorded() throws Exception {
+        Properties properties = new PropertiesBuilder().set(Parameters.WARMUP_TOP_URLS, 2).build();
+        Driver driver = createDriver("warmupTopUrlsQuery", properties);
+        CacheWarmup.start(driver, properties);
+        proxy(driver, "/account", "?token=secret");
+        proxy(driver, "/account", "?token=secret");
+        proxy(driver, "/home", "");
+        backendRequests.clear();
+
+        CacheWarmup.start(createDriver("warmupTopUrlsQuery", properties), properties);
+        waitForWarmup();
+        assertEquals(Collections.singletonList("/home"), backendRequests);
+    }
+
+    public void testNotReadyWhileWarmingUp() throws Exception {
+        release = new CountDownLatch(1);
+        Properties properties =
+                new PropertiesBuilder().set(Parameters.WARMUP_URLS, "/a,/b,/c").set(Parameters.WARMUP_CONCURRENCY, 1)
+                        .build();
+        CacheWarmup.start(createDriver("warmupInProgress", properties), properties);
+        assertFalse(CacheWarmup.isReady());
+        assertEquals(
+                Boolean.FALSE,
+                ManagementFactory.getPlatformMBeanServer().getAttribute(
+                        new ObjectName("org.esigate:type=CacheWarmup,name=\"warmupInProgress\""), "Complete"));
+        release.countDown();
+        waitForWarmup();
+        assertEquals(3, backendRequests.size());
+    }
+
+    public void testStopRetiredProvider() throws Exception {
+        release = new CountDownLatch(1);
+        ObjectName objectName = new ObjectName("org.esigate:type=CacheWarmup,name=\"warmupRetired\"");
+        Properties properties = new PropertiesBuilder().set(Parameters.WARMUP_URLS, "/a").build();
+        Driver driver = createDriver("warmupRetired", properties);
+        CacheWarmup.start(driver, properties);
+        assertTrue(ManagementFactory.getPlatformMBeanServer().isRegistered(objectName));
+
+        CacheWarmup.stop(driver);
+        assertFalse(ManagementFactory.getPlatformMBeanServer().isRegistered(objectName));
+        assertTrue(CacheWarmup.isReady());
+        release.countDown();
+    }
+
+    public void testStopForgetsRecordedUrls() throws Exception {
+        Properties properties = new PropertiesBuilder().set(Parameters.WARMUP_TOP_URLS, 1).build();
+        Driver driver = createDriver("warmupForgotten", properties);
+        CacheWarmup.start(driver, properties);
+        proxy(driver, "/hot", "");
+        CacheWarmup.stop(driver);
+        backendRequests.clear();
+
+        CacheWarmup.start(createDriver("warmupForgotten", properties), properties);
+        waitForWarmup();
+        assertEquals(Collections.emptyList(), backendRequests);
+    }
+
+    public void testStopReplacedProvider() throws Exception {
+        release = new CountDownLatch(1);
+        ObjectName objectName = new ObjectName("org.esigate:type=CacheWarmup,name=\"warmupReplaced\"");
+        Properties properties = new PropertiesBuilder().set(Parameters.WARMUP_URLS, "/a").build();
+        Driver driver = createDriver("warmupReplaced", properties);
+        CacheWarmup.start(driver, properties);
+        CacheWarmup.start(createDriver("warmupReplaced", properties), properties);
+
+        // Closing the previous instance does not stop the warmup of the new one
+        CacheWarmup.stop(driver);
+        assertTrue(ManagementFactory.getPlatformMBeanServer().isRegistered(objectName));
+        assertFalse(CacheWarmup.isReady());
+        release.countDown();
+        waitForWarmup();
+    }
+
+    public void testTimeout() throws Exception {
+        release = new CountDownLatch(1);
+        Properties properties =
+                new PropertiesBuilder().set(Parameters.WARMUP_URLS, "/a").set(Parameters.WARMUP_TIMEOUT, 100).build();
+        CacheWarmup.start(createDriver("warmupTimeout", properties), properties);
+        waitForWarmup();
+        release.countDown();
+    }
+
+}
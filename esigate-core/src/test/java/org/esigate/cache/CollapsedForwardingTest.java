@@ -0,0 +1,223 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package org.esigate.cache;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Properties;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import junit.framework.TestCase;
+
+import org.apache.http.HttpException;
+import org.apache.http.HttpHost;
+import org.apache.http.HttpStatus;
+import org.apache.http.HttpVersion;
+import org.apache.http.client.methods.CloseableHttpResponse;
+import org.apache.http.client.methods.HttpExecutionAware;
+import org.apache.http.client.methods.HttpRequestWrapper;
+import org.apache.http.client.protocol.HttpClientContext;
+import org.apache.http.conn.routing.HttpRoute;
+import org.apache.http.entity.InputStreamEntity;
+import org.apache.http.impl.execchain.ClientExecChain;
+import org.apache.http.message.BasicHttpRequest;
+import org.apache.http.message.BasicHttpResponse;
+import org.apache.http.util.EntityUtils;
+import org.esigate.Parameters;
+import org.esigate.test.PropertiesBuilder;
+import org.esigate.test.TestUtils;
+
+public class CollapsedForwardingTest extends TestCase {
+    private static final int WAITING_REQUESTS = 4;
+
+    private final AtomicInteger backendRequests = new AtomicInteger();
+    private final CountDownLatch release = new CountDownLatch(1);
+    private ExecutorService executor;
+    private volatile boolean failFirstResponse;
+    private volatile boolean firstResponseClosed;
+
+    @Override
+    protected void setUp() {
+        executor = Executors.newCachedThreadPool();
+    }
+
+    @Override
+    protected void tearDown() {
+        executor.shutdownNow();
+    }
+
+    public void testConcurrentRequestsCollapsed() throws Exception {
+        CollapsedForwarding collapsedForwarding = createCollapsedForwarding(10000);
+        List<Future<String>> results = sendRequests(collapsedForwarding, "/page", "Cache-control", "max-age=60");
+
+        for (Future<String> result : results) {
+            assertEquals("content 1", result.get());
+        }
+        assertEquals(1, backendRequests.get());
+        assertEquals(1, collapsedForwarding.getForwardedCount());
+        assertEquals(WAITING_REQUESTS, collapsedForwarding.getCollapsedCount());
+
+        // The next request is forwarded
+        assertEquals("content 2", execute(collapsedForwarding, "/page", null, null));
+    }
+
+    public void testPrivateResponseNotShared() throws Exception {
+        CollapsedForwarding collapsedForwarding = createCollapsedForwarding(10000);
+        List<Future<String>> results = sendRequests(collapsedForwarding, "/page", "Cache-control", "private");
+
+        for (Future<String> result : results) {
+            result.get();
+        }
+        assertEquals(WAITING_REQUESTS + 1, backendRequests.get());
+        assertEquals(0, collapsedForwarding.getCollapsedCount());
+    }
+
+    public void testResponseSettingCookiesNotShared() throws Exception {
+        CollapsedForwarding collapsedForwarding = createCollapsedForwarding(10000);
+        List<Future<String>> results = sendRequests(collapsedForwarding, "/page", "Set-Cookie", "a=b");
+
+        for (Future<String> result : results) {
+            result.get();
+        }
+        assertEquals(WAITING_REQUESTS + 1, backendRequests.get());
+    }
+
+    public void testTimeout() throws Exception {
+        CollapsedForwarding collapsedForwarding = createCollapsedForwarding(10);
+        List<Future<String>> results = sendRequests(collapsedForwarding, "/page", null, null);
+
+        for (Future<String> result : results) {
+            result.get();
+        }
+        assertEquals(WAITING_REQUESTS + 1, backendRequests.get());
+        assertEquals(WAITING_REQUESTS, collapsedForwarding.getTimeoutCount());
+    }
+
+    public void testReadErrorReleasesConnectionAndWaitingRequests() throws Exception {
+        failFirstResponse = true;
+        CollapsedForwarding collapsedForwarding = createCollapsedForwarding(10000);
+        List<Future<String>> results = sendRequests(collapsedForwarding, "/page", "Cache-control", "max-age=60");
+
+        try {
+            results.get(0).get();
+            fail("The read error should be thrown to the first request");
+        } catch (ExecutionException e) {
+            assertTrue(e.getCause() instanceof IOException);
+        }
+        assertTrue(firstResponseClosed);
+        for (Future<String> result : results.subList(1, results.size())) {
+            assertTrue(result.get().startsWith("content "));
+        }
+        assertEquals(WAITING_REQUESTS + 1, backendRequests.get());
+        assertEquals(0, collapsedForwarding.getTimeoutCount());
+    }
+
+    private CollapsedForwarding createCollapsedForwarding(int timeout) {
+        Properties properties = new PropertiesBuilder() //
+                .set(Parameters.COLLAPSED_FORWARDING_TIMEOUT, timeout) //
+                .build();
+        return new CollapsedForwarding(properties);
+    }
+
+    /**
+     * Sends a request blocked in the backend until the others are waiting for it.
+     */
+    private List<Future<String>> sendRequests(final CollapsedForwarding collapsedForwarding, final String uri,
+            final String header, final String value) throws InterruptedException {
+        List<Future<String>> results = new ArrayList<>();
+        results.add(executor.submit(new Callable<String>() {
+            @Override
+            public String call() throws Exception {
+                return execute(collapsedForwarding, uri, header, value);
+            }
+        }));
+        while (backendRequests.get() == 0) {
+            Thread.sleep(10);
+        }
+        for (int i = 0; i < WAITING_REQUESTS; i++) {
+            results.add(executor.submit(new Callable<String>() {
+                @Override
+                public String call() throws Exception {
+                    release.await();
+                    return execute(collapsedForwarding, uri, header, value);
+                }
+            }));
+        }
+        Thread.sleep(100);
+        release.countDown();
+        return results;
+    }
+
+    private String
+            execute(CollapsedForwarding collapsedForwarding, String uri, final String header, final String value)
+                    throws IOException, HttpException {
+        ClientExecChain backend = new ClientExecChain() {
+            @Override
+            public CloseableHttpResponse execute(HttpRoute route, HttpRequestWrapper request,
+                    HttpClientContext clientContext, HttpExecutionAware execAware) throws IOException, HttpException {
+                int count = backendRequests.incrementAndGet();
+                try {
+                    release.await();
+                    Thread.sleep(100);
+                } catch (InterruptedException e) {
+                    throw new IOException(e);
+                }
+                CloseableHttpResponse response;
+                if (count == 1 && failFirstResponse) {
+                    response = new UnreadableResponse();
+                } else {
+                    response = TestUtils.createHttpResponse().entity("content " + count).build();
+                }
+                if (header != null) {
+                    response.addHeader(header, value);
+                }
+                return response;
+            }
+        };
+        CloseableHttpResponse response =
+                collapsedForwarding.wrapBackendHttpClient(backend).execute(new HttpRoute(new HttpHost("provider")),
+                        HttpRequestWrapper.wrap(new BasicHttpRequest("GET", uri)), HttpClientContext.create(), null);
+        return EntityUtils.toString(response.getEntity());
+    }
+
+    /**
+     * A response whose connection is reset while reading the body.
+     */
+    private final class UnreadableResponse extends BasicHttpResponse implements CloseableHttpResponse {
+        private UnreadableResponse() {
+            super(HttpVersion.HTTP_1_1, HttpStatus.SC_OK, "OK");
+            setEntity(new InputStreamEntity(new InputStream() {
+                @Override
+                public int read() throws IOException {
+                    throw new IOException("Connection reset");
+                }
+            }));
+        }
+
+        @Override
+        public void close() {
+            firstResponseClosed = true;
+        }
+    }
+
+}
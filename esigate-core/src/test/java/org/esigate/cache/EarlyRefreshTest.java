@@ -0,0 +1,147 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package org.esigate.cache;
+
+import java.io.IOException;
+import java.util.Properties;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import junit.framework.TestCase;
+
+import org.apache.http.HttpException;
+import org.apache.http.HttpHost;
+import org.apache.http.HttpResponse;
+import org.apache.http.client.cache.CacheResponseStatus;
+import org.apache.http.client.cache.HttpCacheContext;
+import org.apache.http.client.methods.CloseableHttpResponse;
+import org.apache.http.client.methods.HttpExecutionAware;
+import org.apache.http.client.methods.HttpRequestWrapper;
+import org.apache.http.client.protocol.HttpClientContext;
+import org.apache.http.conn.routing.HttpRoute;
+import org.apache.http.impl.execchain.ClientExecChain;
+import org.apache.http.message.BasicHttpRequest;
+import org.esigate.ConfigurationException;
+import org.esigate.Parameters;
+import org.esigate.http.DateUtils;
+import org.esigate.test.PropertiesBuilder;
+import org.esigate.test.TestUtils;
+
+public class EarlyRefreshTest extends TestCase {
+    private static final int HITS = 100;
+
+    private final BlockingQueue<HttpRequestWrapper> refreshes = new LinkedBlockingQueue<>();
+
+    public void testRefreshProbability() throws Exception {
+        assertEquals(0d, EarlyRefresh.getRefreshProbability(createResponse("max-age=100", 50), 20));
+        assertEquals(0d, EarlyRefresh.getRefreshProbability(createResponse("max-age=100", 80), 20));
+        assertEquals(0.25d, EarlyRefresh.getRefreshProbability(createResponse("max-age=100", 90), 20));
+        assertTrue(EarlyRefresh.getRefreshProbability(createResponse("max-age=100", 99), 20) > 0.9);
+        // Expired
+        assertEquals(0d, EarlyRefresh.getRefreshProbability(createResponse("max-age=100", 100), 20));
+        // s-maxage takes precedence
+        assertEquals(0.25d, EarlyRefresh.getRefreshProbability(createResponse("s-maxage=100, max-age=10", 90), 20));
+        // Unknown lifetime
+        assertEquals(0d, EarlyRefresh.getRefreshProbability(createResponse(null, 90), 20));
+    }
+
+    public void testRefreshProbabilityWithExpires() throws Exception {
+        HttpResponse response = createResponse(null, 90);
+        long now = System.currentTimeMillis();
+        response.addHeader("Date", DateUtils.formatDate(now));
+        response.addHeader("Expires", DateUtils.formatDate(now + 100000));
+        assertEquals(0.25d, EarlyRefresh.getRefreshProbability(response, 20));
+    }
+
+    public void testEntryAboutToExpireRefreshed() throws Exception {
+        ClientExecChain chain = createEarlyRefresh(100).wrapCachingHttpClient(createCache(99));
+        for (int i = 0; i < HITS && refreshes.isEmpty(); i++) {
+            execute(chain);
+        }
+        HttpRequestWrapper refresh = refreshes.poll(1, TimeUnit.SECONDS);
+        assertNotNull("The entry should have been refreshed", refresh);
+        assertEquals("max-age=0", refresh.getFirstHeader("Cache-Control").getValue());
+        assertEquals("/page", refresh.getRequestLine().getUri());
+    }
+
+    public void testFreshEntryNotRefreshed() throws Exception {
+        ClientExecChain chain = createEarlyRefresh(10).wrapCachingHttpClient(createCache(50));
+        for (int i = 0; i < HITS; i++) {
+            execute(chain);
+        }
+        assertNull(refreshes.poll(100, TimeUnit.MILLISECONDS));
+    }
+
+    public void testWorkersMandatory() {
+        Properties properties = new PropertiesBuilder() //
+                .set(Parameters.REMOTE_URL_BASE, "http://localhost") //
+                .set(Parameters.EARLY_REFRESH, 10) //
+                .build();
+        try {
+            new CacheAdapter().init(properties);
+            fail("Should throw a ConfigurationException");
+        } catch (ConfigurationException e) {
+            // Expected
+        }
+    }
+
+    private static EarlyRefresh createEarlyRefresh(int earlyRefresh) {
+        Properties properties = new PropertiesBuilder() //
+                .set(Parameters.EARLY_REFRESH, earlyRefresh) //
+                .set(Parameters.MAX_ASYNCHRONOUS_WORKERS, 1) //
+                .set(Parameters.REVALIDATION_QUEUE_SIZE, 10) //
+                .build();
+        return new EarlyRefresh(properties);
+    }
+
+    private static HttpResponse createResponse(String cacheControl, int age) throws IOException {
+        HttpResponse response = TestUtils.createHttpResponse().entity("content").build();
+        if (cacheControl != null) {
+            response.addHeader("Cache-Control", cacheControl);
+        }
+        response.addHeader("Age", Integer.toString(age));
+        return response;
+    }
+
+    /**
+     * Serves an entry with the given age and records the revalidations.
+     */
+    private ClientExecChain createCache(final int age) {
+        return new ClientExecChain() {
+            @Override
+            public CloseableHttpResponse execute(HttpRoute route, HttpRequestWrapper request,
+                    HttpClientContext clientContext, HttpExecutionAware execAware) throws IOException, HttpException {
+                if (request.containsHeader("Cache-Control")) {
+                    clientContext.setAttribute(HttpCacheContext.CACHE_RESPONSE_STATUS, CacheResponseStatus.VALIDATED);
+                    refreshes.add(request);
+                } else {
+                    clientContext.setAttribute(HttpCacheContext.CACHE_RESPONSE_STATUS, CacheResponseStatus.CACHE_HIT);
+                }
+                return TestUtils.createHttpResponse().header("Cache-Control", "max-age=100")
+                        .header("Age", Integer.toString(age)).entity("content").build();
+            }
+        };
+    }
+
+    private static void execute(ClientExecChain chain) throws IOException, HttpException {
+        HttpClientContext context = HttpClientContext.create();
+        chain.execute(new HttpRoute(new HttpHost("provider")),
+                HttpRequestWrapper.wrap(new BasicHttpRequest("GET", "/page")), context, null).close();
+        assertEquals(CacheResponseStatus.CACHE_HIT, context.getAttribute(HttpCacheContext.CACHE_RESPONSE_STATUS));
+    }
+
+}
@@ -0,0 +1,260 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package org.esigate.cache;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.RandomAccessFile;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Properties;
+
+import junit.framework.TestCase;
+
+import org.apache.commons.io.FileUtils;
+import org.apache.http.Header;
+import org.apache.http.HttpStatus;
+import org.apache.http.HttpVersion;
+import org.apache.http.client.cache.HttpCacheEntry;
+import org.apache.http.impl.client.cache.HeapResource;
+import org.apache.http.message.BasicHeader;
+import org.apache.http.message.BasicStatusLine;
+import org.esigate.ConfigurationException;
+import org.esigate.Parameters;
+
+public class MappedFileCacheStorageTest extends TestCase {
+    private File directory;
+
+    @Override
+    protected void setUp() throws IOException {
+        directory = File.createTempFile("mappedCache", "");
+        assertTrue(directory.delete());
+    }
+
+    @Override
+    protected void tearDown() throws IOException {
+        FileUtils.deleteQuietly(directory);
+    }
+
+    public void testBasicOperations() throws Exception {
+        Properties properties = new Properties();
+        properties.put(Parameters.MAPPED_CACHE_DIRECTORY.getName(), directory.getAbsolutePath());
+        CacheStorage cacheStorage = new MappedFileCacheStorage();
+        cacheStorage.init(properties);
+        try {
+            CacheStorageTestUtils.testBasicOperations(cacheStorage);
+        } finally {
+            cacheStorage.close();
+        }
+    }
+
+    public void testDirectoryMandatory() {
+        try {
+            new MappedFileCacheStorage().init(new Properties());
+            fail("Should throw a ConfigurationException");
+        } catch (ConfigurationException e) {
+            // Expected
+        }
+    }
+
+    public void testSameStorageForSameDirectory() throws Exception {
+        MappedHttpCacheStorage storage = MappedHttpCacheStorage.open(directory, 1024, 4096);
+        try {
+            assertSame(storage, MappedHttpCacheStorage.open(new File(directory, "."), 1024, 4096));
+            // Still used by the second caller
+            storage.close();
+            storage.putEntry("key", CacheStorageTestUtils.makeCacheEntry("value"));
+            assertEquals("value", CacheStorageTestUtils.getContent(storage.getEntry("key")));
+        } finally {
+            storage.close();
+        }
+        // Really closed now: the directory can be opened again
+        new MappedHttpCacheStorage(directory, 1024, 4096).close();
+    }
+
+    public void testOtherSizesRejected() throws Exception {
+        MappedHttpCacheStorage storage = MappedHttpCacheStorage.open(directory, 1024, 4096);
+        try {
+            MappedHttpCacheStorage.open(directory, 2048, 4096);
+            fail("Should throw an IOException");
+        } catch (IOException e) {
+            // Expected
+        } finally {
+            storage.close();
+        }
+        // Once closed, the directory can be opened with other sizes
+        MappedHttpCacheStorage.open(directory, 2048, 4096).close();
+    }
+
+    public void testDirectoryLocked() throws Exception {
+        MappedHttpCacheStorage storage = new MappedHttpCacheStorage(directory, 1024, 4096);
+        try {
+            new MappedHttpCacheStorage(directory, 1024, 4096);
+            fail("Should throw an IOException");
+        } catch (IOException e) {
+            // Expected
+        } finally {
+            storage.close();
+        }
+    }
+
+    public void testEntryFields() throws Exception {
+        Header[] headers =
+                new Header[] {new BasicHeader("Content-Type", "text/html"), new BasicHeader("Set-Cookie", "a=b")};
+        Map<String, String> variants = new HashMap<>();
+        variants.put("gzip", "variant-key");
+        HttpCacheEntry entry =
+                new HttpCacheEntry(new Date(1000), new Date(2000), new BasicStatusLine(HttpVersion.HTTP_1_0,
+                        HttpStatus.SC_NOT_FOUND, "Not found"), headers, new HeapResource("body".getBytes()), variants,
+                        "HEAD");
+        MappedHttpCacheStorage storage = new MappedHttpCacheStorage(directory, 1024, 4096);
+        try {
+            storage.putEntry("key", entry);
+            HttpCacheEntry result = storage.getEntry("key");
+            assertEquals(1000, result.getRequestDate().getTime());
+            assertEquals(2000, result.getResponseDate().getTime());
+            assertEquals(HttpVersion.HTTP_1_0, result.getProtocolVersion());
+            assertEquals(HttpStatus.SC_NOT_FOUND, result.getStatusCode());
+            assertEquals("Not found", result.getReasonPhrase());
+            assertEquals(2, result.getAllHeaders().length);
+            assertEquals("a=b", result.getFirstHeader("Set-Cookie").getValue());
+            assertEquals(variants, result.getVariantMap());
+            assertEquals("body", CacheStorageTestUtils.getContent(result));
+        } finally {
+            storage.close();
+        }
+    }
+
+    public void testEntryWithoutBody() throws Exception {
+        HttpCacheEntry entry =
+                new HttpCacheEntry(new Date(), new Date(), new BasicStatusLine(HttpVersion.HTTP_1_1,
+                        HttpStatus.SC_NOT_MODIFIED, null), new Header[0], null);
+        MappedHttpCacheStorage storage = new MappedHttpCacheStorage(directory, 1024, 4096);
+        try {
+            storage.putEntry("key", entry);
+            HttpCacheEntry result = storage.getEntry("key");
+            assertEquals(HttpStatus.SC_NOT_MODIFIED, result.getStatusCode());
+            assertNull(result.getReasonPhrase());
+            assertNull(result.getResource());
+        } finally {
+            storage.close();
+        }
+    }
+
+    public void testRestart() throws Exception {
+        MappedHttpCacheStorage storage = new MappedHttpCacheStorage(directory, 1024, 8192);
+        storage.putEntry("kept", CacheStorageTestUtils.makeCacheEntry("kept"));
+        storage.putEntry("updated", CacheStorageTestUtils.makeCacheEntry("old"));
+        storage.putEntry("updated", CacheStorageTestUtils.makeCacheEntry("new"));
+        storage.putEntry("removed", CacheStorageTestUtils.makeCacheEntry("removed"));
+        storage.removeEntry("removed");
+        storage.close();
+
+        storage = new MappedHttpCacheStorage(directory, 1024, 8192);
+        try {
+            assertEquals(2, storage.size());
+            assertEquals("kept", CacheStorageTestUtils.getContent(storage.getEntry("kept")));
+            assertEquals("new", CacheStorageTestUtils.getContent(storage.getEntry("updated")));
+            assertNull(storage.getEntry("removed"));
+        } finally {
+            storage.close();
+        }
+    }
+
+    public void testOldestSegmentEvicted() throws Exception {
+        MappedHttpCacheStorage storage = new MappedHttpCacheStorage(directory, 1024, 2048);
+        try {
+            String content = new String(new char[300]).replace('\0', 'x');
+            for (int i = 0; i < 20; i++) {
+                storage.putEntry("key" + i, CacheStorageTestUtils.makeCacheEntry(content));
+            }
+            assertNull(storage.getEntry("key0"));
+            assertEquals(content, CacheStorageTestUtils.getContent(storage.getEntry("key19")));
+            assertEquals(2, directory.list().length - 1);
+        } finally {
+            storage.close();
+        }
+    }
+
+    public void testEntryTooBig() throws Exception {
+        MappedHttpCacheStorage storage = new MappedHttpCacheStorage(directory, 1024, 4096);
+        try {
+            storage.putEntry("key", CacheStorageTestUtils.makeCacheEntry("small"));
+            storage.putEntry("key", CacheStorageTestUtils.makeCacheEntry(new String(new char[2000])));
+            assertNull(storage.getEntry("key"));
+        } finally {
+            storage.close();
+        }
+    }
+
+    public void testInterruptedWriteIgnored() throws Exception {
+        MappedHttpCacheStorage storage = new MappedHttpCacheStorage(directory, 1024, 4096);
+        storage.putEntry("key", CacheStorageTestUtils.makeCacheEntry("value"));
+        storage.putEntry("corrupt", CacheStorageTestUtils.makeCacheEntry("value"));
+        storage.close();
+
+        // Damage the last record
+        File segment = new File(directory, "segment-0.dat");
+        RandomAccessFile file = new RandomAccessFile(segment, "rw");
+        try {
+            byte[] bytes = new byte[1024];
+            file.readFully(bytes);
+            int last = new String(bytes, "ISO-8859-1").lastIndexOf("value");
+            file.seek(last);
+            file.write('V');
+        } finally {
+            file.close();
+        }
+
+        storage = new MappedHttpCacheStorage(directory, 1024, 4096);
+        try {
+            assertEquals("value", CacheStorageTestUtils.getContent(storage.getEntry("key")));
+            assertNull(storage.getEntry("corrupt"));
+            // The next records overwrite the damaged one
+            storage.putEntry("new", CacheStorageTestUtils.makeCacheEntry("new"));
+        } finally {
+            storage.close();
+        }
+        storage = new MappedHttpCacheStorage(directory, 1024, 4096);
+        try {
+            assertEquals("new", CacheStorageTestUtils.getContent(storage.getEntry("new")));
+        } finally {
+            storage.close();
+        }
+    }
+
+    public void testSerializable() throws Exception {
+        MappedHttpCacheStorage storage = new MappedHttpCacheStorage(directory, 1024, 4096);
+        try {
+            storage.putEntry("key", CacheStorageTestUtils.makeCacheEntry("value"));
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            ObjectOutputStream oos = new ObjectOutputStream(out);
+            oos.writeObject(storage.getEntry("key"));
+            oos.close();
+            HttpCacheEntry result =
+                    (HttpCacheEntry) new ObjectInputStream(new ByteArrayInputStream(out.toByteArray())).readObject();
+            assertTrue(result.getResource() instanceof HeapResource);
+            assertEquals("value", CacheStorageTestUtils.getContent(result));
+        } finally {
+            storage.close();
+        }
+    }
+}
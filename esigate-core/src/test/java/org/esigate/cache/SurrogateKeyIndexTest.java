@@ -0,0 +1,191 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package org.esigate.cache;
+
+import java.lang.management.ManagementFactory;
+import java.util.Date;
+import java.util.Properties;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.management.ObjectName;
+
+import junit.framework.TestCase;
+
+import org.apache.http.Header;
+import org.apache.http.HttpRequest;
+import org.apache.http.HttpResponse;
+import org.apache.http.HttpStatus;
+import org.apache.http.ProtocolVersion;
+import org.apache.http.client.cache.HttpCacheEntry;
+import org.apache.http.client.cache.HttpCacheUpdateCallback;
+import org.apache.http.entity.ContentType;
+import org.apache.http.entity.StringEntity;
+import org.apache.http.impl.client.cache.BasicHttpCacheStorage;
+import org.apache.http.impl.client.cache.CacheConfig;
+import org.apache.http.impl.client.cache.HeapResource;
+import org.apache.http.message.BasicHeader;
+import org.apache.http.message.BasicStatusLine;
+import org.apache.http.util.EntityUtils;
+import org.esigate.Driver;
+import org.esigate.Parameters;
+import org.esigate.http.DateUtils;
+import org.esigate.http.HttpClientRequestExecutor;
+import org.esigate.test.PropertiesBuilder;
+import org.esigate.test.TestUtils;
+import org.esigate.test.conn.IResponseHandler;
+import org.esigate.test.conn.MockConnectionManager;
+import org.esigate.test.http.HttpResponseBuilder;
+
+public class SurrogateKeyIndexTest extends TestCase {
+    private BasicHttpCacheStorage storage;
+    private SurrogateKeyIndex index;
+
+    @Override
+    protected void setUp() {
+        storage = new BasicHttpCacheStorage(CacheConfig.DEFAULT);
+        index = new SurrogateKeyIndex("test", storage, 100);
+    }
+
+    private static HttpCacheEntry makeCacheEntry(Header... headers) {
+        return new HttpCacheEntry(new Date(), new Date(), new BasicStatusLine(new ProtocolVersion("HTTP", 1, 1),
+                HttpStatus.SC_OK, "OK"), headers, new HeapResource("content".getBytes()));
+    }
+
+    public void testPurgeTag() throws Exception {
+        index.putEntry("http://localhost:80/a", makeCacheEntry(new BasicHeader("Surrogate-Key", "news  article-1")));
+        index.putEntry("http://localhost:80/b", makeCacheEntry(new BasicHeader("Cache-Tag", "news,article-2")));
+        index.putEntry("http://localhost:80/c", makeCacheEntry());
+        assertEquals(3, index.getSize());
+
+        assertEquals(1, index.purgeTag("article-1"));
+        assertNull(storage.getEntry("http://localhost:80/a"));
+        assertNotNull(storage.getEntry("http://localhost:80/b"));
+
+        assertEquals(1, index.purgeTag("news"));
+        assertNull(storage.getEntry("http://localhost:80/b"));
+        assertNotNull(storage.getEntry("http://localhost:80/c"));
+        assertEquals(0, index.purgeTag("news"));
+        assertEquals(1, index.getSize());
+    }
+
+    public void testPurgePrefix() throws Exception {
+        index.putEntry("http://localhost:80/news/1", makeCacheEntry());
+        index.putEntry("{accept-encoding=gzip}http://localhost:80/news/2", makeCacheEntry());
+        index.putEntry("https://localhost:443/news/3", makeCacheEntry());
+        index.putEntry("http://localhost:80/sport/1", makeCacheEntry());
+
+        assertEquals(2, index.purgePrefix("http://LOCALHOST/news/"));
+        assertNull(storage.getEntry("{accept-encoding=gzip}http://localhost:80/news/2"));
+        assertNotNull(storage.getEntry("https://localhost:443/news/3"));
+
+        assertEquals(1, index.purgePrefix("/news/"));
+        assertEquals(1, index.getSize());
+        assertNotNull(storage.getEntry("http://localhost:80/sport/1"));
+    }
+
+    public void testUpdateAndRemoveReindex() throws Exception {
+        index.putEntry("key", makeCacheEntry(new BasicHeader("Surrogate-Key", "old")));
+        index.updateEntry("key", new HttpCacheUpdateCallback() {
+            @Override
+            public HttpCacheEntry update(HttpCacheEntry existing) {
+                return makeCacheEntry(new BasicHeader("Surrogate-Key", "new"));
+            }
+        });
+        assertEquals(0, index.purgeTag("old"));
+        assertEquals(1, index.purgeTag("new"));
+
+        index.putEntry("key", makeCacheEntry(new BasicHeader("Surrogate-Key", "tag")));
+        index.removeEntry("key");
+        assertEquals(0, index.getSize());
+        assertEquals(0, index.purgeTag("tag"));
+    }
+
+    public void testIndexBounded() throws Exception {
+        index = new SurrogateKeyIndex("test", storage, 2);
+        for (int i = 0; i < 3; i++) {
+            index.putEntry("key" + i, makeCacheEntry(new BasicHeader("Surrogate-Key", "tag")));
+        }
+        assertEquals(2, index.getSize());
+        // The oldest entry is removed from the cache too so that it cannot be missed by a purge
+        assertNull(storage.getEntry("key0"));
+        assertEquals(2, index.purgeTag("tag"));
+    }
+
+    public void testNormalize() {
+        assertEquals("http://localhost/a", SurrogateKeyIndex.normalize("{a=b}http://localhost:80/a"));
+        assertEquals("https://localhost:8443/a", SurrogateKeyIndex.normalize("https://localhost:8443/a"));
+        assertEquals("https://localhost", SurrogateKeyIndex.normalize("HTTPS://LocalHost:443"));
+        assertEquals("/a", SurrogateKeyIndex.normalize("/a"));
+    }
+
+    public void testPurgeThroughManagementServer() throws Exception {
+        final AtomicInteger requests = new AtomicInteger();
+        MockConnectionManager connectionManager = new MockConnectionManager();
+        connectionManager.setResponseHandler(new IResponseHandler() {
+            @Override
+            public HttpResponse execute(HttpRequest request) {
+                return new HttpResponseBuilder().status(HttpStatus.SC_OK)
+                        .header("Date", DateUtils.formatDate(new Date()))
+                        .header("Cache-control", "public, max-age=1000").header("Surrogate-Key", "news")
+                        .entity(new StringEntity("content " + requests.incrementAndGet(), ContentType.TEXT_PLAIN))
+                        .build();
+            }
+        });
+        Properties properties = new PropertiesBuilder() //
+                .set(Parameters.REMOTE_URL_BASE, "http://localhost") //
+                .set(Parameters.SURROGATE_KEY_INDEX, true) //
+                .build();
+        Driver driver =
+                Driver.builder()
+                        .setName("surrogateKeyIndex")
+                        .setProperties(properties)
+                        .setRequestExecutorBuilder(
+                                HttpClientRequestExecutor.builder().setConnectionManager(connectionManager)).build();
+
+        assertEquals("content 1", proxy(driver, "/news/1"));
+        assertEquals("content 1", proxy(driver, "/news/1"));
+
+        Object purged =
+                ManagementFactory.getPlatformMBeanServer().invoke(
+                        new ObjectName("org.esigate:type=SurrogateKeyIndex,name=\"surrogateKeyIndex\""), "purgeTag",
+                        new Object[] {"news"}, new String[] {String.class.getName()});
+        assertEquals(1, purged);
+        assertEquals("content 2", proxy(driver, "/news/1"));
+    }
+
+    public void testUnregisteredOnClose() throws Exception {
+        ObjectName objectName = new ObjectName("org.esigate:type=SurrogateKeyIndex,name=\"closed\"");
+        Properties properties = new PropertiesBuilder() //
+                .set(Parameters.REMOTE_URL_BASE, "http://localhost") //
+                .set(Parameters.SURROGATE_KEY_INDEX, true) //
+                .build();
+        Driver driver = Driver.builder().setName("closed").setProperties(properties).build();
+        // Same provider configured again
+        Driver newDriver = Driver.builder().setName("closed").setProperties(properties).build();
+        assertTrue(ManagementFactory.getPlatformMBeanServer().isRegistered(objectName));
+
+        // The index of the new provider stays registered
+        driver.close();
+        assertTrue(ManagementFactory.getPlatformMBeanServer().isRegistered(objectName));
+
+        newDriver.close();
+        assertFalse(ManagementFactory.getPlatformMBeanServer().isRegistered(objectName));
+    }
+
+    private static String proxy(Driver driver, String relUrl) throws Exception {
+        return EntityUtils.toString(driver.proxy(relUrl, TestUtils.createIncomingRequest().build()).getEntity());
+    }
+
+}
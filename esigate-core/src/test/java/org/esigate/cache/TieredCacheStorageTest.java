@@ -0,0 +1,167 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package org.esigate.cache;
+
+import java.io.IOException;
+import java.util.Properties;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import junit.framework.TestCase;
+
+import org.apache.commons.io.IOUtils;
+import org.apache.http.client.cache.HttpCacheEntry;
+import org.apache.http.client.cache.HttpCacheUpdateCallback;
+import org.apache.http.impl.client.cache.BasicHttpCacheStorage;
+import org.apache.http.impl.client.cache.CacheConfig;
+import org.esigate.ConfigurationException;
+import org.esigate.Parameters;
+
+public class TieredCacheStorageTest extends TestCase {
+    private CountingStorage secondTier;
+
+    @Override
+    protected void setUp() {
+        secondTier = new CountingStorage();
+    }
+
+    public void testBasicOperations() throws Exception {
+        Properties properties = new Properties();
+        properties.put(Parameters.TIERED_CACHE_STORAGE.getName(), BasicCacheStorage.class.getName());
+        CacheStorage cacheStorage = new TieredCacheStorage();
+        cacheStorage.init(properties);
+        CacheStorageTestUtils.testBasicOperations(cacheStorage);
+    }
+
+    public void testSecondTierMandatory() {
+        try {
+            new TieredCacheStorage().init(new Properties());
+            fail("Should throw a ConfigurationException");
+        } catch (ConfigurationException e) {
+            // Expected
+        }
+        Properties properties = new Properties();
+        properties.put(Parameters.TIERED_CACHE_STORAGE.getName(), TieredCacheStorage.class.getName());
+        try {
+            new TieredCacheStorage().init(properties);
+            fail("Should throw a ConfigurationException");
+        } catch (ConfigurationException e) {
+            // Expected
+        }
+    }
+
+    public void testHitServedFromHeap() throws Exception {
+        TieredHttpCacheStorage storage = new TieredHttpCacheStorage(secondTier, 10000, 10000, 10000);
+        storage.putEntry("key", CacheStorageTestUtils.makeCacheEntry("value"));
+        assertEquals(1, secondTier.puts.get());
+        for (int i = 0; i < 3; i++) {
+            assertEquals("value", CacheStorageTestUtils.getContent(storage.getEntry("key")));
+        }
+        assertEquals(0, secondTier.gets.get());
+    }
+
+    public void testEntryLoadedFromSecondTier() throws Exception {
+        secondTier.putEntry("key", CacheStorageTestUtils.makeCacheEntry("value"));
+        TieredHttpCacheStorage storage = new TieredHttpCacheStorage(secondTier, 10000, 10000, 10000);
+        assertEquals("value", CacheStorageTestUtils.getContent(storage.getEntry("key")));
+        assertEquals("value", CacheStorageTestUtils.getContent(storage.getEntry("key")));
+        assertEquals(1, secondTier.gets.get());
+    }
+
+    public void testMissRemembered() throws Exception {
+        TieredHttpCacheStorage storage = new TieredHttpCacheStorage(secondTier, 10000, 10000, 10000);
+        assertNull(storage.getEntry("key"));
+        assertNull(storage.getEntry("key"));
+        assertEquals(1, secondTier.gets.get());
+
+        // Writes are not hidden by the miss
+        storage.putEntry("key", CacheStorageTestUtils.makeCacheEntry("value"));
+        assertEquals("value", CacheStorageTestUtils.getContent(storage.getEntry("key")));
+    }
+
+    public void testMissNotRemembered() throws Exception {
+        TieredHttpCacheStorage storage = new TieredHttpCacheStorage(secondTier, 10000, 10000, 0);
+        assertNull(storage.getEntry("key"));
+        assertNull(storage.getEntry("key"));
+        assertEquals(2, secondTier.gets.get());
+    }
+
+    public void testExpiration() throws Exception {
+        TieredHttpCacheStorage storage = new TieredHttpCacheStorage(secondTier, 10000, 50, 50);
+        storage.putEntry("key", CacheStorageTestUtils.makeCacheEntry("value"));
+        // Updated by another node
+        secondTier.putEntry("key", CacheStorageTestUtils.makeCacheEntry("new value"));
+        assertEquals("value", CacheStorageTestUtils.getContent(storage.getEntry("key")));
+        Thread.sleep(100);
+        assertEquals("new value", CacheStorageTestUtils.getContent(storage.getEntry("key")));
+    }
+
+    public void testMaxSize() throws Exception {
+        String content = new String(new char[1000]);
+        TieredHttpCacheStorage storage = new TieredHttpCacheStorage(secondTier, 3000, 10000, 10000);
+        for (int i = 0; i < 5; i++) {
+            storage.putEntry("key" + i, CacheStorageTestUtils.makeCacheEntry(content));
+        }
+        assertTrue(storage.getSize() <= 3000);
+        assertEquals(2, storage.size());
+        // The least recently used entries were evicted but are still in the second tier
+        assertNotNull(storage.getEntry("key0"));
+        assertEquals(1, secondTier.gets.get());
+        assertNotNull(storage.getEntry("key4"));
+        assertEquals(1, secondTier.gets.get());
+
+        storage.putEntry("big", CacheStorageTestUtils.makeCacheEntry(new String(new char[5000])));
+        assertNotNull(storage.getEntry("big"));
+        assertEquals(2, secondTier.gets.get());
+    }
+
+    public void testRemoveAndUpdate() throws Exception {
+        TieredHttpCacheStorage storage = new TieredHttpCacheStorage(secondTier, 10000, 10000, 10000);
+        storage.putEntry("key", CacheStorageTestUtils.makeCacheEntry("value"));
+        storage.updateEntry("key", new HttpCacheUpdateCallback() {
+            @Override
+            public HttpCacheEntry update(HttpCacheEntry existing) throws IOException {
+                return CacheStorageTestUtils.makeCacheEntry("updated "
+                        + IOUtils.toString(existing.getResource().getInputStream()));
+            }
+        });
+        assertEquals("updated value", CacheStorageTestUtils.getContent(storage.getEntry("key")));
+        assertEquals("updated value", CacheStorageTestUtils.getContent(secondTier.getEntry("key")));
+        storage.removeEntry("key");
+        assertNull(storage.getEntry("key"));
+        assertNull(secondTier.getEntry("key"));
+    }
+
+    private static final class CountingStorage extends BasicHttpCacheStorage {
+        private final AtomicInteger gets = new AtomicInteger();
+        private final AtomicInteger puts = new AtomicInteger();
+
+        private CountingStorage() {
+            super(CacheConfig.DEFAULT);
+        }
+
+        @Override
+        public synchronized HttpCacheEntry getEntry(String url) throws IOException {
+            gets.incrementAndGet();
+            return super.getEntry(url);
+        }
+
+        @Override
+        public synchronized void putEntry(String url, HttpCacheEntry entry) throws IOException {
+            puts.incrementAndGet();
+            super.putEntry(url, entry);
+        }
+    }
+}
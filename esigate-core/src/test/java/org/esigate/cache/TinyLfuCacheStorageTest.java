@@ -0,0 +1,140 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package org.esigate.cache;
+
+import java.util.Date;
+import java.util.Properties;
+
+import junit.framework.TestCase;
+
+import org.apache.commons.lang3.StringUtils;
+import org.apache.http.Header;
+import org.apache.http.HttpStatus;
+import org.apache.http.ProtocolVersion;
+import org.apache.http.client.cache.HttpCacheEntry;
+import org.apache.http.client.cache.HttpCacheUpdateCallback;
+import org.apache.http.impl.client.cache.HeapResource;
+import org.apache.http.message.BasicStatusLine;
+import org.esigate.ConfigurationException;
+import org.esigate.Parameters;
+
+import com.codahale.metrics.Counter;
+import com.codahale.metrics.Gauge;
+
+public class TinyLfuCacheStorageTest extends TestCase {
+    // Body of an entry weighing 1000 bytes
+    private static final String CONTENT = StringUtils.repeat('a', 744);
+
+    private static HttpCacheEntry makeCacheEntry(String content) {
+        return new HttpCacheEntry(new Date(), new Date(), new BasicStatusLine(new ProtocolVersion("HTTP", 1, 1),
+                HttpStatus.SC_OK, "OK"), new Header[0], new HeapResource(content.getBytes()));
+    }
+
+    private static void fetch(TinyLfuHttpCacheStorage storage, String key) {
+        if (storage.getEntry(key) == null) {
+            storage.putEntry(key, makeCacheEntry(CONTENT));
+        }
+    }
+
+    public void testBasicOperations() throws Exception {
+        CacheStorage cacheStorage = new TinyLfuCacheStorage();
+        cacheStorage.init(new Properties());
+        CacheStorageTestUtils.testBasicOperations(cacheStorage);
+    }
+
+    public void testInvalidConfiguration() {
+        Properties properties = new Properties();
+        properties.put(Parameters.TINY_LFU_CACHE_CONCURRENCY_LEVEL.getName(), "0");
+        try {
+            new TinyLfuCacheStorage().init(properties);
+            fail("Should throw a ConfigurationException");
+        } catch (ConfigurationException e) {
+            // Expected
+        }
+    }
+
+    public void testSizeBounded() {
+        TinyLfuHttpCacheStorage storage = new TinyLfuHttpCacheStorage(100000, 4);
+        for (int i = 0; i < 1000; i++) {
+            fetch(storage, "key" + i);
+        }
+        assertTrue(storage.getSize() <= 100000);
+        assertTrue(storage.getCount() > 50);
+        assertEquals(1000L, storage.getSize() / storage.getCount());
+    }
+
+    public void testEntryTooBig() {
+        TinyLfuHttpCacheStorage storage = new TinyLfuHttpCacheStorage(10000, 4);
+        storage.putEntry("key", makeCacheEntry(StringUtils.repeat('a', 5000)));
+        assertNull(storage.getEntry("key"));
+        assertEquals(1L, ((Counter) storage.getMetrics().get("rejections")).getCount());
+    }
+
+    public void testPopularEntriesSurviveScan() {
+        TinyLfuHttpCacheStorage storage = new TinyLfuHttpCacheStorage(100000, 1);
+        for (int i = 0; i < 20; i++) {
+            for (int j = 0; j < 5; j++) {
+                fetch(storage, "hot" + i);
+            }
+        }
+        // URLs requested only once, 3 times the size of the cache
+        for (int i = 0; i < 300; i++) {
+            fetch(storage, "scan" + i);
+        }
+        for (int i = 0; i < 20; i++) {
+            assertNotNull("hot" + i + " should have been kept", storage.getEntry("hot" + i));
+        }
+        assertTrue(storage.getSize() <= 100000);
+    }
+
+    public void testUpdateAndRemove() throws Exception {
+        TinyLfuHttpCacheStorage storage = new TinyLfuHttpCacheStorage(100000, 4);
+        storage.putEntry("key", makeCacheEntry("a"));
+        storage.updateEntry("key", new HttpCacheUpdateCallback() {
+            @Override
+            public HttpCacheEntry update(HttpCacheEntry existing) {
+                return makeCacheEntry(CONTENT);
+            }
+        });
+        assertEquals(1000L, storage.getSize());
+        storage.removeEntry("key");
+        assertEquals(0L, storage.getSize());
+        assertEquals(0, storage.getCount());
+    }
+
+    public void testMetrics() {
+        TinyLfuHttpCacheStorage storage = new TinyLfuHttpCacheStorage(100000, 4);
+        fetch(storage, "key");
+        fetch(storage, "key");
+        assertEquals(1L, ((Counter) storage.getMetrics().get("hits")).getCount());
+        assertEquals(1L, ((Counter) storage.getMetrics().get("misses")).getCount());
+        assertEquals(1000L, ((Gauge<?>) storage.getMetrics().get("size")).getValue());
+        assertEquals(1, ((Gauge<?>) storage.getMetrics().get("entries")).getValue());
+    }
+
+    public void testFrequencySketchAging() {
+        FrequencySketch sketch = new FrequencySketch(16);
+        for (int i = 0; i < 20; i++) {
+            sketch.increment("key");
+        }
+        assertEquals(15, sketch.frequency("key"));
+        assertEquals(0, sketch.frequency("other"));
+        for (int i = 0; i < 1000; i++) {
+            sketch.increment("other" + i);
+        }
+        assertTrue(sketch.frequency("key") < 15);
+    }
+
+}
@@ -32,6 +32,10 @@ public class BaseElementTypeTest extends TestCase {
         assertFalse(tested.isEndTag("</endStarted somewhere here"));
     }
 
+    public void testGetTagName() {
+        assertEquals("esi:include", new MockBaseElementType("<esi:include", "</esi:include").getTagName());
+    }
+
     private static class MockBaseElementType extends BaseElementType {
 
         protected MockBaseElementType(String startTag, String endTag) {
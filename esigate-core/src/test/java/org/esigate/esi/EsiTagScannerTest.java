@@ -0,0 +1,110 @@
+/* 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package org.esigate.esi;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import junit.framework.TestCase;
+
+import org.esigate.parser.TagMatcher;
+
+public class EsiTagScannerTest extends TestCase {
+    private static final Pattern LEGACY_PATTERN = Pattern
+            .compile("(<esi:\\w+((\\s+\\w+(\\s*=\\s*(?:\".*?\"|'.*?'|[^'\">\\s]+))?)+\\s*|\\s*)/?>)|(</esi:[^>]*>)");
+
+    private static final String[] PAGES = {"begin <esi:include src=\"http://host/page\"/> end",
+            "<esi:vars>$(HTTP_HOST)</esi:vars><esi:include src='a' alt=b onerror=\"continue\" />",
+            "<esi:choose>\n<esi:when test=\"$(HTTP_COOKIE{a})=='1'\">ok</esi:when>\n</esi:choose >",
+            "<esi:when test=\"$(a) < 3 && $(b) > 2\">x</esi:when>", "<esi:include src=\"a\"alt=\"b\"/> lazy quotes",
+            "<esi:include src=\"a\nb\"/> no newline in quotes <esi:remove>",
+            "<esi:include src=/path/> <esi:include src= > <esi:include-x> <esi:> <esi:a b c>",
+            "<div><esi:include src=\"a\" <esi:comment text=\"x\"/></div></esi:unknown",
+            "<esi:a b=\"<esi:c>\"> <esi:d b=\"unfinished", "<!-- html --> --->", "< esi:a> <<esi:b> </ esi:c> </esi:d",
+            ""};
+
+    public void testSameTagsAsLegacyPattern() {
+        for (String page : PAGES) {
+            assertEquals(page, find(LEGACY_PATTERN, page), find(page));
+        }
+    }
+
+    public void testCommentDelimiters() {
+        String page = "--> <!--esi <esi:include src=\"a\"/> --><!-- html --><!--esi <!--esi a --> -- b -->";
+        assertEquals(Arrays.asList("delimiter 4:<!--esi", "12:<esi:include src=\"a\"/>", "delimiter 35:-->",
+                "delimiter 51:<!--esi", "delimiter 59:<!--esi", "delimiter 69:-->", "delimiter 78:-->"), find(page));
+    }
+
+    public void testCommentDepthKeptAcrossChunks() {
+        TagMatcher matcher = EsiTagScanner.INSTANCE.matcher("a <!--esi b -", false);
+        assertTrue(matcher.find());
+        assertTrue(matcher.isDelimiter());
+        assertFalse(matcher.find());
+        assertEquals(12, matcher.incompleteTagStart());
+
+        matcher.reset("--> c -->", true);
+        assertTrue(matcher.find());
+        assertTrue(matcher.isDelimiter());
+        assertEquals(0, matcher.start());
+        assertFalse(matcher.find());
+    }
+
+    public void testIncompleteTag() {
+        String page = "text <esi:include src=\"a\"/> <div> <esi:include src=\"b";
+        TagMatcher matcher = EsiTagScanner.INSTANCE.matcher(page, false);
+        assertTrue(matcher.find());
+        assertEquals("<esi:include src=\"a\"/>", page.substring(matcher.start(), matcher.end()));
+        assertFalse(matcher.find());
+        assertEquals(page.lastIndexOf('<'), matcher.incompleteTagStart());
+
+        matcher = EsiTagScanner.INSTANCE.matcher(page, true);
+        assertTrue(matcher.find());
+        assertFalse(matcher.find());
+        assertEquals(page.length(), matcher.incompleteTagStart());
+
+        page = "text <!-";
+        matcher = EsiTagScanner.INSTANCE.matcher(page, false);
+        assertFalse(matcher.find());
+        assertEquals(page.indexOf('<'), matcher.incompleteTagStart());
+
+        page = "text <div>";
+        matcher = EsiTagScanner.INSTANCE.matcher(page, false);
+        assertFalse(matcher.find());
+        assertEquals(page.length(), matcher.incompleteTagStart());
+    }
+
+    private static List<String> find(Pattern pattern, String page) {
+        List<String> result = new ArrayList<>();
+        Matcher matcher = pattern.matcher(page);
+        while (matcher.find()) {
+            result.add(matcher.start() + ":" + matcher.group());
+        }
+        return result;
+    }
+
+    private static List<String> find(String page) {
+        List<String> result = new ArrayList<>();
+        TagMatcher matcher = EsiTagScanner.INSTANCE.matcher(page, true);
+        while (matcher.find()) {
+            String prefix = matcher.isDelimiter() ? "delimiter " : "";
+            result.add(prefix + matcher.start() + ":" + page.substring(matcher.start(), matcher.end()));
+        }
+        return result;
+    }
+}
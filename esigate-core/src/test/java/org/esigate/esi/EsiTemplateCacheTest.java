@@ -0,0 +1,225 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package org.esigate.esi;
+
+import java.io.IOException;
+import java.io.Reader;
+import java.io.StringReader;
+import java.io.Writer;
+import java.util.Properties;
+
+import junit.framework.TestCase;
+
+import org.apache.commons.io.output.StringBuilderWriter;
+import org.apache.http.HttpRequest;
+import org.apache.http.HttpResponse;
+import org.esigate.Driver;
+import org.esigate.HttpErrorPage;
+import org.esigate.MockRequestExecutor;
+import org.esigate.Parameters;
+import org.esigate.Renderer;
+import org.esigate.extension.Esi;
+import org.esigate.http.HttpResponseUtils;
+import org.esigate.http.IncomingRequest;
+import org.esigate.impl.DriverRequest;
+import org.esigate.test.PropertiesBuilder;
+import org.esigate.test.TestUtils;
+import org.esigate.test.conn.IResponseHandler;
+
+import com.codahale.metrics.Counter;
+
+public class EsiTemplateCacheTest extends TestCase {
+    private static final String URL = "http://localhost/page";
+    private static final long MAX_SIZE = 1024 * 1024;
+
+    private Driver provider;
+
+    @Override
+    protected void setUp() {
+        provider = MockRequestExecutor.createDriver();
+    }
+
+    public void testKey() {
+        assertNull(EsiTemplateCache.getKey(URL, TestUtils.createHttpResponse().build()));
+        assertNull(EsiTemplateCache.getKey(null, TestUtils.createHttpResponse().header("ETag", "\"1\"").build()));
+        assertNull(EsiTemplateCache.getKey(URL, TestUtils.createHttpResponse().header("ETag", "W/\"1\"").build()));
+        assertNull(EsiTemplateCache.getKey(URL,
+                TestUtils.createHttpResponse().header("Last-Modified", "Tue, 15 Nov 1994 12:45:26 GMT").build()));
+
+        HttpResponse response = TestUtils.createHttpResponse().header("ETag", "\"1\"").build();
+        assertNotNull(EsiTemplateCache.getKey(URL, response));
+        assertEquals(EsiTemplateCache.getKey(URL, response), EsiTemplateCache.getKey(URL, response));
+        assertFalse(EsiTemplateCache.getKey(URL, response).equals(EsiTemplateCache.getKey(URL + "?a=b", response)));
+        assertFalse(EsiTemplateCache.getKey(URL, response).equals(
+                EsiTemplateCache.getKey(URL, TestUtils.createHttpResponse().header("ETag", "\"2\"").build())));
+    }
+
+    public void testNoKeyForPrivateResponses() {
+        assertNull(EsiTemplateCache.getKey(URL,
+                TestUtils.createHttpResponse().header("ETag", "\"1\"").header("Cache-Control", "max-age=60, private")
+                        .build()));
+        assertNull(EsiTemplateCache.getKey(URL,
+                TestUtils.createHttpResponse().header("ETag", "\"1\"").header("Cache-Control", "no-store").build()));
+        assertNull(EsiTemplateCache.getKey(URL,
+                TestUtils.createHttpResponse().header("ETag", "\"1\"").header("Set-Cookie", "session=1").build()));
+        assertNotNull(EsiTemplateCache.getKey(URL,
+                TestUtils.createHttpResponse().header("ETag", "\"1\"").header("Cache-Control", "public").build()));
+    }
+
+    public void testTemplateReused() throws Exception {
+        EsiTemplateCache cache = new EsiTemplateCache(MAX_SIZE);
+        String page = "begin <!--esi <esi:vars>$(HTTP_HOST)</esi:vars> --> end";
+        assertEquals("begin  www.foo.com  end", render(cache, "key", page));
+        assertEquals(0, cache.getHitCount());
+        assertEquals(1, cache.getMissCount());
+
+        // Same key: the content is not scanned again
+        assertEquals("begin  www.foo.com  end", render(cache, "key", page));
+        assertEquals(1, cache.getHitCount());
+        assertEquals(1, cache.getMissCount());
+        assertEquals(1, cache.size());
+    }
+
+    /**
+     * Templates are recorded and replayed while the page is read, whatever the size of the chunks read.
+     */
+    public void testTemplateReusedWithReader() throws Exception {
+        EsiTemplateCache cache = new EsiTemplateCache(MAX_SIZE);
+        String page = "begin <esi:remove>removed</esi:remove> <!--esi <esi:vars>$(HTTP_HOST)</esi:vars> --> end";
+        String expected = "begin   www.foo.com  end";
+        assertEquals(expected, renderReader(cache, "key", page, 3));
+        assertEquals(0, cache.getHitCount());
+        for (int chunkSize = 1; chunkSize <= page.length(); chunkSize++) {
+            assertEquals(expected, renderReader(cache, "key", page, chunkSize));
+        }
+        assertEquals(expected, render(cache, "key", page));
+        assertEquals(page.length() + 1, cache.getHitCount());
+        assertEquals(1, cache.getMissCount());
+    }
+
+    public void testNoKey() throws Exception {
+        EsiTemplateCache cache = new EsiTemplateCache(MAX_SIZE);
+        assertEquals("a", render(cache, null, "a"));
+        assertEquals("b", renderReader(cache, null, "b", 1));
+        assertEquals(0, cache.size());
+        assertEquals(0, cache.getMissCount());
+    }
+
+    public void testLeastRecentlyUsedEvictedWhenFull() throws Exception {
+        EsiTemplateCache cache = new EsiTemplateCache(MAX_SIZE);
+        render(cache, "1", "page1");
+        long templateSize = cache.getSize();
+        assertTrue(templateSize > 0);
+
+        cache = new EsiTemplateCache(templateSize * 2);
+        render(cache, "1", "page1");
+        render(cache, "2", "page2");
+        render(cache, "1", "page1");
+        render(cache, "3", "page3");
+        assertEquals(2, cache.size());
+        assertEquals(templateSize * 2, cache.getSize());
+        assertEquals(1, cache.getEvictionCount());
+        assertEquals("page1", render(cache, "1", "page1"));
+        assertEquals("page2", render(cache, "2", "page2"));
+        assertEquals(2, cache.getHitCount());
+        assertEquals(4, cache.getMissCount());
+        assertEquals(4L, ((Counter) cache.getMetrics().get("misses")).getCount());
+    }
+
+    public void testTemplateLargerThanCacheNotKept() throws Exception {
+        EsiTemplateCache cache = new EsiTemplateCache(10);
+        assertEquals("page", render(cache, "1", "page"));
+        assertEquals(0, cache.size());
+        assertEquals(0, cache.getSize());
+        assertEquals(1, cache.getEvictionCount());
+    }
+
+    /**
+     * The output of a renderer depending on the request must not be replaced by the template of another request.
+     */
+    public void testRequestDependentRendererBeforeEsi() throws Exception {
+        Properties properties = new PropertiesBuilder() //
+                .set(Parameters.REMOTE_URL_BASE, "http://localhost:8080") //
+                .set(Parameters.EXTENSIONS, Esi.class) //
+                .set(EsiTemplateCache.MAX_SIZE, MAX_SIZE) //
+                .build();
+        Driver driver = TestUtils.createMockDriver(properties, new IResponseHandler() {
+            @Override
+            public HttpResponse execute(HttpRequest request) throws IOException {
+                return TestUtils.createHttpResponse().header("ETag", "\"1\"").header("Content-Type", "text/html")
+                        .entity("Hello USER<esi:remove>removed</esi:remove>!").build();
+            }
+        });
+        Renderer userRenderer = new Renderer() {
+            @Override
+            public void render(DriverRequest request, String content, Writer out) throws IOException {
+                out.write(content.replace("USER", request.getOriginalRequest().getFirstHeader("X-User").getValue()));
+            }
+        };
+        IncomingRequest alice =
+                TestUtils.createIncomingRequest("http://localhost:8080/page").addHeader("X-User", "alice").build();
+        assertEquals("Hello alice!", HttpResponseUtils.toString(driver.render("/page", alice, userRenderer)));
+        IncomingRequest bob =
+                TestUtils.createIncomingRequest("http://localhost:8080/page").addHeader("X-User", "bob").build();
+        assertEquals("Hello bob!", HttpResponseUtils.toString(driver.render("/page", bob, userRenderer)));
+        assertEquals(0, EsiTemplateCache.get(driver).size());
+    }
+
+    public void testTemplateReusedByDriver() throws Exception {
+        Properties properties = new PropertiesBuilder() //
+                .set(Parameters.REMOTE_URL_BASE, "http://localhost:8080") //
+                .set(Parameters.EXTENSIONS, Esi.class) //
+                .set(EsiTemplateCache.MAX_SIZE, MAX_SIZE) //
+                .build();
+        Driver driver = TestUtils.createMockDriver(properties, new IResponseHandler() {
+            @Override
+            public HttpResponse execute(HttpRequest request) throws IOException {
+                return TestUtils.createHttpResponse().header("ETag", "\"1\"").header("Content-Type", "text/html")
+                        .entity("Hello<esi:remove>removed</esi:remove>!").build();
+            }
+        });
+        for (int i = 0; i < 2; i++) {
+            IncomingRequest request = TestUtils.createIncomingRequest("http://localhost:8080/page").build();
+            assertEquals("Hello!", HttpResponseUtils.toString(driver.render("/page", request)));
+        }
+        assertEquals(1, EsiTemplateCache.get(driver).getHitCount());
+        assertEquals(1, EsiTemplateCache.get(driver).getMissCount());
+    }
+
+    private String render(EsiTemplateCache cache, String key, String page) throws IOException, HttpErrorPage {
+        StringBuilderWriter out = new StringBuilderWriter();
+        new EsiRenderer(cache, key).render(createRequest(), page, out);
+        return out.toString();
+    }
+
+    private String renderReader(EsiTemplateCache cache, String key, String page, final int chunkSize)
+            throws IOException, HttpErrorPage {
+        StringBuilderWriter out = new StringBuilderWriter();
+        Reader reader = new StringReader(page) {
+            @Override
+            public int read(char[] cbuf, int off, int len) throws IOException {
+                return super.read(cbuf, off, Math.min(len, chunkSize));
+            }
+        };
+        new EsiRenderer(cache, key).render(createRequest(), reader, out);
+        return out.toString();
+    }
+
+    private DriverRequest createRequest() throws HttpErrorPage {
+        return new DriverRequest(TestUtils.createIncomingRequest("http://www.foo.com").build(), provider, URL);
+    }
+
+}
@@ -25,11 +25,11 @@ public class InlineElementTest extends AbstractElementTest {
         String page = "begin <esi:inline name=\"someUri\" fetchable=\"yes\">inside inline</esi:inline>end";
         String result = render(page);
         assertEquals("begin end", result);
-        InlineCache actual = InlineCache.getFragment("someUri");
+        InlineFragmentStore.Fragment actual = InlineFragmentStore.get(getProvider()).get("someUri");
         assertNotNull(actual);
         assertTrue(actual.isFetchable());
         assertFalse(actual.isExpired());
-        assertEquals("inside inline", actual.getFragment());
+        assertEquals("inside inline", actual.getContent());
     }
 
 }
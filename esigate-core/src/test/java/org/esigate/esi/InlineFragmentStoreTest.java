@@ -0,0 +1,132 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package org.esigate.esi;
+
+import java.util.Date;
+import java.util.Properties;
+
+import junit.framework.TestCase;
+
+import org.apache.http.client.cache.HttpCacheStorage;
+import org.apache.http.impl.client.cache.BasicHttpCacheStorage;
+import org.apache.http.impl.client.cache.CacheConfig;
+import org.esigate.Driver;
+import org.esigate.MockRequestExecutor;
+import org.esigate.Parameters;
+import org.esigate.test.PropertiesBuilder;
+
+import com.codahale.metrics.Counter;
+
+public class InlineFragmentStoreTest extends TestCase {
+
+    public void testMaxEntries() {
+        InlineFragmentStore store =
+                new InlineFragmentStore("test", new PropertiesBuilder().set(InlineFragmentStore.MAX_ENTRIES, 2).build());
+        store.put("1", null, false, null, "one");
+        store.put("2", null, false, null, "two");
+        store.put("1", null, false, null, "one again");
+        store.put("3", null, false, null, "three");
+        assertEquals(2, store.size());
+        // The oldest fragment stored is evicted first
+        assertNull(store.get("2"));
+        assertEquals("one again", store.get("1").getContent());
+        assertEquals("three", store.get("3").getContent());
+        assertEquals(1, store.getEvictionCount());
+        assertEquals(2, store.getHitCount());
+        assertEquals(1, store.getMissCount());
+        assertEquals(1L, ((Counter) store.getMetrics().get("evictions")).getCount());
+    }
+
+    public void testMaxSize() {
+        // 2 bytes per char: a fragment named "1" containing 9 chars uses 20 bytes
+        InlineFragmentStore store =
+                new InlineFragmentStore("test", new PropertiesBuilder().set(InlineFragmentStore.MAX_SIZE, 40).build());
+        store.put("1", null, false, null, "123456789");
+        store.put("2", null, false, null, "123456789");
+        assertEquals(40, store.getSize());
+        store.put("3", null, false, null, "123456789");
+        assertEquals(2, store.size());
+        assertEquals(40, store.getSize());
+        assertNull(store.get("1"));
+
+        // Too big to be stored at all
+        store.put("4", null, false, null, "12345678901234567890");
+        assertNull(store.get("4"));
+        assertEquals(2, store.size());
+    }
+
+    public void testExpiration() {
+        InlineFragmentStore store = new InlineFragmentStore("test", new Properties());
+        store.put("expired", new Date(System.currentTimeMillis() - 1000), false, null, "expired");
+        store.put("valid", new Date(System.currentTimeMillis() + 10000), true, "/page", "valid");
+        assertNull(store.get("expired"));
+        InlineFragmentStore.Fragment fragment = store.get("valid");
+        assertEquals("valid", fragment.getContent());
+        assertTrue(fragment.isFetchable());
+        assertEquals("/page", fragment.getOriginalUrl());
+        assertEquals(1, store.size());
+    }
+
+    public void testTtl() throws Exception {
+        InlineFragmentStore store =
+                new InlineFragmentStore("test", new PropertiesBuilder().set(InlineFragmentStore.TTL, 1).build());
+        store.put("1", null, false, null, "one");
+        assertNotNull(store.get("1").getOutdate());
+        Thread.sleep(1100);
+        assertNull(store.get("1"));
+        assertEquals(0, store.size());
+        assertEquals(0, store.getSize());
+    }
+
+    public void testOneStorePerDriver() {
+        Driver driver1 = MockRequestExecutor.createDriver("inline1");
+        Driver driver2 = MockRequestExecutor.createDriver("inline2");
+        assertSame(InlineFragmentStore.get(driver1), InlineFragmentStore.get(driver1));
+        InlineFragmentStore.get(driver1).put("uri", null, false, null, "fragment");
+        assertNull(InlineFragmentStore.get(driver2).get("uri"));
+    }
+
+    public void testSharedStorage() {
+        HttpCacheStorage storage = new BasicHttpCacheStorage(CacheConfig.DEFAULT);
+        InlineFragmentStore node1 = new InlineFragmentStore("test", new Properties(), storage);
+        InlineFragmentStore node2 = new InlineFragmentStore("test", new Properties(), storage);
+        InlineFragmentStore otherDriver = new InlineFragmentStore("other", new Properties(), storage);
+        node1.put("uri", null, true, "/page", "fragment é");
+        InlineFragmentStore.Fragment fragment = node2.get("uri");
+        assertEquals("fragment é", fragment.getContent());
+        assertTrue(fragment.isFetchable());
+        assertEquals("/page", fragment.getOriginalUrl());
+        assertEquals(1, node2.size());
+        assertNull(otherDriver.get("uri"));
+
+        node1.put("expired", new Date(System.currentTimeMillis() - 1000), false, null, "expired");
+        assertNull(node2.get("expired"));
+    }
+
+    public void testSharedStorageOfDriver() throws Exception {
+        Properties properties =
+                new PropertiesBuilder().set(Parameters.REMOTE_URL_BASE, "http://localhost")
+                        .set(InlineFragmentStore.SHARED, true).build();
+        Driver driver = Driver.builder().setName("inline3").setProperties(properties).build();
+        try {
+            InlineFragmentStore.get(driver).put("uri", null, false, null, "fragment");
+            assertNotNull(driver.getCacheStorage().getEntry("esi_inline:inline3:uri"));
+        } finally {
+            driver.close();
+        }
+    }
+
+}
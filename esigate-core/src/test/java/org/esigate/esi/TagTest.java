@@ -1,8 +1,65 @@
 package org.esigate.esi;
 
+import java.util.HashMap;
+import java.util.Map;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
 import junit.framework.TestCase;
 
 public class TagTest extends TestCase {
+    private static final Pattern LEGACY_TAG_CLOSE_PATTERN = Pattern.compile("\\A</([\\S]*)[\\s]*>\\z");
+    private static final Pattern LEGACY_TAG_START_PATTERN = Pattern.compile("\\A<([\\S]*)[\\s|>]");
+    private static final Pattern LEGACY_ATTRIBUTE_PATTERN = Pattern.compile("([^\\s=]+)\\s*=\\s*('[^']*'|\"[^\"]*\")");
+    private static final Pattern LEGACY_AUTO_CLOSE_TAG = Pattern.compile("/[\\s]*>\\z");
+
+    private static final String[] TAGS = {"<esi:include src=\"a\" alt='b' onerror=\"continue\"/>",
+            "<esi:include src=\"a\"alt=\"b\"/>", "<esi:include src=\"a\" src=\"b\">", "<esi:vars>", "<esi:include/>",
+            "<esi:include / >", "</esi:include>", "</esi:include \n>", "</esi:a b>", "</>", "<>",
+            "<esi:when test=\"$(a)=='1' && b > 2\">", "<esi:include src=a alt = 'b'>", "<esi:a x='1\ny'\t/>",
+            "<esi:a|b>", "<esi:a|b c>", "< esi:a>", "<esi:a x=\"1\"y='2'>", "<esi:a =\"1\" b==\"2\" c= \"3\">",
+            "<esi:a b=\"unfinished>", "<esi:a\u000bb=\"1\">", "<esi:include src=\"a\"/>\n"};
+
+    public void testSameResultsAsLegacyRegexes() {
+        String[] names = {"src", "alt", "onerror", "test", "x", "y", "b", "c", "a"};
+        for (String string : TAGS) {
+            Tag tag = Tag.create(string);
+            Matcher closeMatcher = LEGACY_TAG_CLOSE_PATTERN.matcher(string);
+            Map<String, String> attributes = new HashMap<>();
+            if (closeMatcher.find()) {
+                assertEquals(string, closeMatcher.group(1), tag.getName());
+                assertTrue(string, tag.isClosing());
+                assertFalse(string, tag.isOpenClosed());
+            } else {
+                Matcher startMatcher = LEGACY_TAG_START_PATTERN.matcher(string);
+                assertTrue(string, startMatcher.find());
+                assertEquals(string, startMatcher.group(1), tag.getName());
+                assertFalse(string, tag.isClosing());
+                assertEquals(string, LEGACY_AUTO_CLOSE_TAG.matcher(string).find(), tag.isOpenClosed());
+                Matcher attributesMatcher = LEGACY_ATTRIBUTE_PATTERN.matcher(string);
+                while (attributesMatcher.find()) {
+                    attributes.put(attributesMatcher.group(1),
+                            string.substring(attributesMatcher.start(2) + 1, attributesMatcher.end(2) - 1));
+                }
+            }
+            for (String name : names) {
+                assertEquals(string + " " + name, attributes.get(name), tag.getAttribute(name));
+            }
+        }
+    }
+
+    public void testInvalidTags() {
+        String[] invalidTags = {"", "esi:include", "<esi:include", "<!--esi"};
+        for (String string : invalidTags) {
+            assertFalse(string, LEGACY_TAG_START_PATTERN.matcher(string).find());
+            try {
+                Tag.create(string);
+                fail("should fail with IllegalArgumentException: " + string);
+            } catch (IllegalArgumentException e) {
+                assertNotNull(e.getMessage());
+            }
+        }
+    }
 
     public void testCreate() {
         Tag tag = Tag.create("<esi:include toto='titi' hello =  \"World\"/>");
@@ -61,6 +61,10 @@ public abstract class AbstractElementTest extends TestCase {
         this.provider = provider;
     }
 
+    protected Driver getProvider() {
+        return provider;
+    }
+
     protected IncomingRequest.Builder getRequestBuilder() {
         return requestBuilder;
     }
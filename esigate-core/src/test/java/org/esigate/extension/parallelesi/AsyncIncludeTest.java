@@ -0,0 +1,316 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package org.esigate.extension.parallelesi;
+
+import java.io.IOException;
+import java.util.List;
+import java.util.Properties;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import junit.framework.TestCase;
+
+import org.apache.commons.io.output.StringBuilderWriter;
+import org.apache.http.client.methods.CloseableHttpResponse;
+import org.esigate.AsyncRequestExecutor;
+import org.esigate.ConfigurationException;
+import org.esigate.Driver;
+import org.esigate.DriverFactory;
+import org.esigate.HttpErrorPage;
+import org.esigate.MockRequestExecutor.MockDriverBuilder;
+import org.esigate.Parameters;
+import org.esigate.RequestExecutor;
+import org.esigate.RequestExecutor.RequestExecutorBuilder;
+import org.esigate.events.EventManager;
+import org.esigate.http.ContentTypeHelper;
+import org.esigate.http.IncomingRequest;
+import org.esigate.http.OutgoingRequest;
+import org.esigate.impl.DriverRequest;
+import org.esigate.test.TestUtils;
+
+/**
+ * Includes of a provider whose request executor does not block: the requests are all sent while parsing the page.
+ */
+public class AsyncIncludeTest extends TestCase {
+    private static final int DELAY = 200;
+
+    private AsyncExecutorBuilder builder;
+    private Driver driver;
+
+    @Override
+    protected void setUp() {
+        Properties properties = new Properties();
+        properties.put(Parameters.REMOTE_URL_BASE.getName(), "http://localhost");
+        builder = new AsyncExecutorBuilder(true);
+        driver = Driver.builder().setName("async").setProperties(properties).setRequestExecutorBuilder(builder).build();
+        DriverFactory.put("async", driver);
+        builder.mockBuilder.addResource("/a", "a");
+        builder.mockBuilder.addResource("/b", "b");
+        builder.mockBuilder.addResource("/c", "c");
+        builder.mockBuilder.addResource("/nested", "<esi:include src=\"$(PROVIDER{async})/a\"/>"
+                + "<esi:include src=\"$(PROVIDER{async})/b\"/>");
+    }
+
+    public void testIncludesSentWithoutThreads() throws Exception {
+        String page =
+                "<esi:include src=\"$(PROVIDER{async})/a\"/>-<esi:include src=\"$(PROVIDER{async})/b\"/>-"
+                        + "<esi:include src=\"$(PROVIDER{async})/c\"/>";
+        // The first rendering loads the classes, it is not timed
+        assertEquals("a-b-c", render(page));
+        builder.executor.asyncRequests.set(0);
+        long start = System.currentTimeMillis();
+        assertEquals("a-b-c", render(page));
+        long duration = System.currentTimeMillis() - start;
+
+        assertEquals(3, builder.executor.asyncRequests.get());
+        assertEquals(0, builder.executor.blockingRequests.get());
+        assertTrue("Requests must be sent in parallel: " + duration, duration < 3 * DELAY);
+    }
+
+    public void testSameIncludeSentOnce() throws Exception {
+        assertEquals("aa",
+                render("<esi:include src=\"$(PROVIDER{async})/a\"/><esi:include src=\"$(PROVIDER{async})/a\"/>"));
+        assertEquals(1, builder.executor.asyncRequests.get());
+    }
+
+    public void testNestedIncludes() throws Exception {
+        assertEquals("ab-c", render("<esi:include src=\"$(PROVIDER{async})/nested\"/>-"
+                + "<esi:include src=\"$(PROVIDER{async})/c\"/>"));
+        assertEquals(4, builder.executor.asyncRequests.get());
+        assertEquals(0, builder.executor.blockingRequests.get());
+    }
+
+    public void testError() throws Exception {
+        assertEquals("alt", render("<esi:include src=\"$(PROVIDER{async})/missing\" onerror=\"continue\"/>alt"));
+        try {
+            render("<esi:include src=\"$(PROVIDER{async})/missing\"/>");
+            fail("Should throw an HttpErrorPage");
+        } catch (HttpErrorPage e) {
+            assertEquals(404, e.getHttpResponse().getStatusLine().getStatusCode());
+        }
+    }
+
+    public void testPooledPrefetch() throws Exception {
+        Properties properties = new Properties();
+        properties.put(Parameters.REMOTE_URL_BASE.getName(), "http://localhost");
+        properties.put(Parameters.PREFETCH_THREADS.getName(), "3");
+        builder = new AsyncExecutorBuilder(false);
+        driver = Driver.builder().setName("async").setProperties(properties).setRequestExecutorBuilder(builder).build();
+        DriverFactory.put("async", driver);
+        builder.mockBuilder.addResource("/a", "a");
+        builder.mockBuilder.addResource("/b", "b");
+        builder.mockBuilder.addResource("/c", "c");
+        assertTrue(driver.getRequestExecutor() instanceof AsyncRequestExecutor);
+
+        String page =
+                "<esi:include src=\"$(PROVIDER{async})/a\"/>-<esi:include src=\"$(PROVIDER{async})/b\"/>-"
+                        + "<esi:include src=\"$(PROVIDER{async})/c\"/>";
+        long start = System.currentTimeMillis();
+        assertEquals("a-b-c", render(page));
+        long duration = System.currentTimeMillis() - start;
+
+        assertEquals(3, builder.slowExecutor.prefetchRequests.get());
+        assertTrue("Requests must be sent in parallel: " + duration, duration < 3 * DELAY);
+        driver.close();
+    }
+
+    public void testPooledPrefetchQueueBounded() throws Exception {
+        Properties properties = new Properties();
+        properties.put(Parameters.REMOTE_URL_BASE.getName(), "http://localhost");
+        properties.put(Parameters.PREFETCH_THREADS.getName(), "1");
+        properties.put(Parameters.PREFETCH_QUEUE_SIZE.getName(), "1");
+        builder = new AsyncExecutorBuilder(false);
+        driver = Driver.builder().setName("async").setProperties(properties).setRequestExecutorBuilder(builder).build();
+        DriverFactory.put("async", driver);
+        builder.mockBuilder.addResource("/a", "a");
+        builder.mockBuilder.addResource("/b", "b");
+        builder.mockBuilder.addResource("/c", "c");
+
+        // One request sent, one queued, the last one is sent when rendered
+        assertEquals("a-b-c", render("<esi:include src=\"$(PROVIDER{async})/a\"/>-"
+                + "<esi:include src=\"$(PROVIDER{async})/b\"/>-<esi:include src=\"$(PROVIDER{async})/c\"/>"));
+        assertEquals(2, builder.slowExecutor.prefetchRequests.get());
+        driver.close();
+    }
+
+    public void testNoPrefetchInsideConditionsAndRemove() throws Exception {
+        assertEquals("c", render("<esi:remove><esi:include src=\"$(PROVIDER{async})/a\"/></esi:remove>"
+                + "<esi:choose><esi:when test=\"1==2\"><esi:include src=\"$(PROVIDER{async})/b\"/></esi:when>"
+                + "<esi:otherwise><esi:include src=\"$(PROVIDER{async})/c\"/></esi:otherwise></esi:choose>"));
+        assertEquals(0, builder.executor.asyncRequests.get());
+    }
+
+    /**
+     * The prefetched includes take a place in the budget of the request until they are read.
+     * 
+     * @throws Exception
+     */
+    public void testPrefetchCountedInIncludesPerRequest() throws Exception {
+        String page =
+                "<esi:include src=\"$(PROVIDER{async})/a\"/>-<esi:include src=\"$(PROVIDER{async})/b\"/>-"
+                        + "<esi:include src=\"$(PROVIDER{async})/c\"/>";
+        assertEquals("a-b-c", render(page, new EsiRenderer(null, 0, 1)));
+        assertEquals(1, builder.executor.asyncRequests.get());
+        assertEquals(2, builder.executor.blockingRequests.get());
+    }
+
+    /**
+     * The requests of the includes never read because the page failed are cancelled.
+     * 
+     * @throws Exception
+     */
+    public void testUnreadPrefetchDiscarded() throws Exception {
+        try {
+            render("<esi:include src=\"$(PROVIDER{async})/a\"/><esi:include src=\"$(PROVIDER{unknown})/b\"/>");
+            fail("Should throw a ConfigurationException");
+        } catch (ConfigurationException e) {
+            // Expected
+        }
+        assertEquals(1, builder.executor.responses.size());
+        assertTrue(builder.executor.responses.get(0).isCancelled());
+    }
+
+    private String render(String page) throws HttpErrorPage, IOException {
+        // No executor: parallel processing only comes from the request executor
+        return render(page, new EsiRenderer(null));
+    }
+
+    private String render(String page, EsiRenderer renderer) throws HttpErrorPage, IOException {
+        IncomingRequest incomingRequest = TestUtils.createIncomingRequest().build();
+        DriverRequest request = new DriverRequest(incomingRequest, driver, page);
+        StringBuilderWriter out = new StringBuilderWriter();
+        renderer.render(request, page, out);
+        return out.toString();
+    }
+
+    private static final class AsyncExecutorBuilder implements RequestExecutorBuilder {
+        private final MockDriverBuilder mockBuilder = new MockDriverBuilder();
+        private final boolean async;
+        private DelayedAsyncExecutor executor;
+        private SlowExecutor slowExecutor;
+
+        private AsyncExecutorBuilder(boolean async) {
+            this.async = async;
+        }
+
+        @Override
+        public RequestExecutorBuilder setEventManager(EventManager eventManager) {
+            mockBuilder.setEventManager(eventManager);
+            return this;
+        }
+
+        @Override
+        public RequestExecutorBuilder setDriver(Driver driver) {
+            mockBuilder.setDriver(driver);
+            return this;
+        }
+
+        @Override
+        public RequestExecutorBuilder setProperties(Properties properties) {
+            mockBuilder.setProperties(properties);
+            return this;
+        }
+
+        @Override
+        public RequestExecutorBuilder setContentTypeHelper(ContentTypeHelper contentTypeHelper) {
+            mockBuilder.setContentTypeHelper(contentTypeHelper);
+            return this;
+        }
+
+        @Override
+        public RequestExecutor build() {
+            if (!async) {
+                slowExecutor = new SlowExecutor(mockBuilder.build());
+                return slowExecutor;
+            }
+            executor = new DelayedAsyncExecutor(mockBuilder.build());
+            return executor;
+        }
+    }
+
+    /**
+     * Answers after a delay, in a new thread standing for the I/O thread of a non-blocking client.
+     */
+    private static final class DelayedAsyncExecutor implements AsyncRequestExecutor {
+        private final RequestExecutor delegate;
+        private final AtomicInteger asyncRequests = new AtomicInteger();
+        private final AtomicInteger blockingRequests = new AtomicInteger();
+        private final List<Future<CloseableHttpResponse>> responses = new CopyOnWriteArrayList<>();
+
+        private DelayedAsyncExecutor(RequestExecutor delegate) {
+            this.delegate = delegate;
+        }
+
+        @Override
+        public OutgoingRequest createOutgoingRequest(DriverRequest request, String url, boolean b) {
+            return delegate.createOutgoingRequest(request, url, b);
+        }
+
+        @Override
+        public CloseableHttpResponse execute(OutgoingRequest outgoingRequest) throws HttpErrorPage {
+            blockingRequests.incrementAndGet();
+            return delegate.execute(outgoingRequest);
+        }
+
+        @Override
+        public Future<CloseableHttpResponse> executeAsync(final OutgoingRequest outgoingRequest) {
+            asyncRequests.incrementAndGet();
+            FutureTask<CloseableHttpResponse> response = new FutureTask<>(new Callable<CloseableHttpResponse>() {
+                @Override
+                public CloseableHttpResponse call() throws Exception {
+                    Thread.sleep(DELAY);
+                    return delegate.execute(outgoingRequest);
+                }
+            });
+            new Thread(response).start();
+            responses.add(response);
+            return response;
+        }
+    }
+
+    /**
+     * A blocking request executor answering after a delay.
+     */
+    private static final class SlowExecutor implements RequestExecutor {
+        private final RequestExecutor delegate;
+        private final AtomicInteger prefetchRequests = new AtomicInteger();
+
+        private SlowExecutor(RequestExecutor delegate) {
+            this.delegate = delegate;
+        }
+
+        @Override
+        public OutgoingRequest createOutgoingRequest(DriverRequest request, String url, boolean b) {
+            return delegate.createOutgoingRequest(request, url, b);
+        }
+
+        @Override
+        public CloseableHttpResponse execute(OutgoingRequest outgoingRequest) throws HttpErrorPage {
+            if (Thread.currentThread().getName().startsWith("esigate-prefetch-async-")) {
+                prefetchRequests.incrementAndGet();
+            }
+            try {
+                Thread.sleep(DELAY);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            return delegate.execute(outgoingRequest);
+        }
+    }
+
+}
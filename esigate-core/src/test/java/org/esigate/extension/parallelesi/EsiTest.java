@@ -14,8 +14,14 @@
  */
 package org.esigate.extension.parallelesi;
 
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
 import java.io.UnsupportedEncodingException;
+import java.util.ArrayList;
+import java.util.List;
 import java.util.Properties;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import org.apache.http.HttpRequest;
 import org.apache.http.HttpResponse;
@@ -25,7 +31,9 @@ import org.esigate.Driver;
 import org.esigate.HttpErrorPage;
 import org.esigate.Parameters;
 import org.esigate.extension.FetchLogging;
+import org.esigate.http.HttpResponseUtils;
 import org.esigate.http.IncomingRequest;
+import org.esigate.http.ProgressiveRenderingEntity;
 import org.esigate.test.PropertiesBuilder;
 import org.esigate.test.TestUtils;
 import org.esigate.test.conn.IResponseHandler;
@@ -266,6 +274,90 @@ public class EsiTest extends TestCase {
         assertEquals("Fragment 1 Fragment 3 Fragment 4 Fragment 2", EntityUtils.toString(response.getEntity()));
     }
 
+    /**
+     * With progressiveRendering, the beginning of the page is flushed to the client before the includes are retrieved.
+     * 
+     * @throws Exception
+     */
+    public void testProgressiveRendering() throws Exception {
+        Properties properties = new PropertiesBuilder() //
+                .set(Parameters.REMOTE_URL_BASE, "http://provider/") //
+                .set(Parameters.EXTENSIONS, Esi.class) //
+                .set(Parameters.PROGRESSIVE_RENDERING, true) //
+                .set(Esi.MAX_THREADS, 2) //
+                .build();
+
+        Driver driver = TestUtils.createMockDriver(properties, new IResponseHandler() {
+            @Override
+            public HttpResponse execute(HttpRequest request) throws IOException {
+                if (request.getRequestLine().getUri().equals("/page/")) {
+                    return TestUtils.createHttpResponse().status(HttpStatus.SC_OK).reason("OK")
+                            .header("Content-Type", "text/html; charset=utf-8")
+                            .entity("<head>head</head><esi:include src=\"http://test.mydomain.fr/slow\"/>").build();
+                }
+                try {
+                    Thread.sleep(500);
+                } catch (InterruptedException e) {
+                    throw new IOException(e);
+                }
+                return TestUtils.createHttpResponse().status(HttpStatus.SC_OK).reason("OK")
+                        .header("Content-Type", "text/html; charset=utf-8").entity("body").build();
+            }
+        });
+
+        HttpResponse response =
+                TestUtils.driverProxy(driver, TestUtils.createRequest("http://test.mydomain.fr/page/").build());
+        assertTrue(response.getEntity() instanceof ProgressiveRenderingEntity);
+
+        final List<String> flushed = new ArrayList<>();
+        ByteArrayOutputStream out = new ByteArrayOutputStream() {
+            @Override
+            public void flush() {
+                flushed.add(toString());
+            }
+        };
+        HttpResponseUtils.writeTo(response.getEntity(), out);
+        assertEquals("<head>head</head>body", out.toString("UTF-8"));
+        assertEquals("<head>head</head>", flushed.get(0));
+    }
+
+    /**
+     * Reading the content of a progressively rendered page keeps it, so that the page can still be sent afterwards.
+     * 
+     * @throws Exception
+     */
+    public void testProgressiveRenderingContentRead() throws Exception {
+        Properties properties = new PropertiesBuilder() //
+                .set(Parameters.REMOTE_URL_BASE, "http://provider/") //
+                .set(Parameters.EXTENSIONS, Esi.class) //
+                .set(Parameters.PROGRESSIVE_RENDERING, true) //
+                .build();
+
+        Driver driver = TestUtils.createMockDriver(properties, new IResponseHandler() {
+            @Override
+            public HttpResponse execute(HttpRequest request) throws IOException {
+                if (request.getRequestLine().getUri().equals("/page/")) {
+                    return TestUtils.createHttpResponse().status(HttpStatus.SC_OK).reason("OK")
+                            .header("Content-Type", "text/html; charset=utf-8")
+                            .entity("<head>head</head><esi:include src=\"http://test.mydomain.fr/body\"/>").build();
+                }
+                return TestUtils.createHttpResponse().status(HttpStatus.SC_OK).reason("OK")
+                        .header("Content-Type", "text/html; charset=utf-8").entity("body").build();
+            }
+        });
+
+        HttpResponse response =
+                TestUtils.driverProxy(driver, TestUtils.createRequest("http://test.mydomain.fr/page/").build());
+        assertFalse(response.getEntity().isRepeatable());
+        assertEquals("<head>head</head>body", EntityUtils.toString(response.getEntity()));
+        assertTrue(response.getEntity().isRepeatable());
+        assertEquals("<head>head</head>body".length(), response.getEntity().getContentLength());
+
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        HttpResponseUtils.writeTo(response.getEntity(), out);
+        assertEquals("<head>head</head>body", out.toString("UTF-8"));
+    }
+
     /**
      * This test ensure the parallel esi if faster than single thread mode.
      * 
@@ -345,4 +437,138 @@ public class EsiTest extends TestCase {
 
     }
 
+    /**
+     * Ensure the includes over esi_max_concurrent_includes are processed sequentially instead of being refused.
+     * 
+     * @throws Exception
+     */
+    public void testMaxConcurrentIncludes() throws Exception {
+        Properties properties = new PropertiesBuilder() //
+                .set(Parameters.REMOTE_URL_BASE, "http://provider/") //
+                .set(Parameters.EXTENSIONS, Esi.class) //
+                .set(Esi.MAX_THREADS, 1) //
+                .set(Esi.MAX_QUEUE, 1) //
+                .set(Esi.MAX_CONCURRENT_INCLUDES, 1) //
+                .build();
+
+        Driver driver = TestUtils.createMockDriver(properties, new FragmentsHandler());
+
+        IncomingRequest request = TestUtils.createRequest("http://test.mydomain.fr/foobar/").build();
+        HttpResponse response = TestUtils.driverProxy(driver, request);
+        assertEquals("Fragment 1Fragment 2Fragment 3", EntityUtils.toString(response.getEntity()));
+    }
+
+    /**
+     * Ensure the executor can be provided by a custom {@link ExecutorFactory}.
+     * 
+     * @throws Exception
+     */
+    public void testExecutorFactory() throws Exception {
+        Properties properties = new PropertiesBuilder() //
+                .set(Parameters.REMOTE_URL_BASE, "http://provider/") //
+                .set(Parameters.EXTENSIONS, Esi.class) //
+                .set(Esi.EXECUTOR_FACTORY, NewThreadExecutorFactory.class) //
+                .build();
+
+        Driver driver = TestUtils.createMockDriver(properties, new FragmentsHandler());
+
+        NewThreadExecutorFactory.COUNT.set(0);
+        IncomingRequest request = TestUtils.createRequest("http://test.mydomain.fr/foobar/").build();
+        HttpResponse response = TestUtils.driverProxy(driver, request);
+        assertEquals("Fragment 1Fragment 2Fragment 3", EntityUtils.toString(response.getEntity()));
+        assertEquals(3, NewThreadExecutorFactory.COUNT.get());
+    }
+
+    /**
+     * Ensure the includes of the same url processed in parallel share a single request to the provider.
+     * 
+     * @throws Exception
+     */
+    public void testSameIncludeFetchedOnce() throws Exception {
+        Properties properties = new PropertiesBuilder() //
+                .set(Parameters.REMOTE_URL_BASE, "http://provider/") //
+                .set(Parameters.EXTENSIONS, Esi.class) //
+                .set(Parameters.USE_CACHE, false) //
+                .set(Esi.MAX_THREADS, 5) //
+                .set(Esi.MIN_THREADS, 5) //
+                .build();
+
+        final AtomicInteger fragmentRequests = new AtomicInteger();
+        Driver driver = TestUtils.createMockDriver(properties, new IResponseHandler() {
+            @Override
+            public HttpResponse execute(HttpRequest request) throws UnsupportedEncodingException {
+                if (request.getRequestLine().getUri().equals("/foobar/")) {
+                    StringBuilder page = new StringBuilder();
+                    for (int i = 0; i < 5; i++) {
+                        page.append("<esi:include src=\"http://test.mydomain.fr/esi/1\"/>");
+                    }
+                    return TestUtils.createHttpResponse().status(HttpStatus.SC_OK).reason("OK")
+                            .header("Content-Type", "text/html; charset=utf-8").entity(page.toString()).build();
+                }
+                fragmentRequests.incrementAndGet();
+                try {
+                    Thread.sleep(100);
+                } catch (InterruptedException e) {
+                    throw new IllegalStateException(e);
+                }
+                return TestUtils.createHttpResponse().status(HttpStatus.SC_OK).reason("OK")
+                        .header("Content-Type", "text/html; charset=utf-8").entity("F").build();
+            }
+        });
+
+        IncomingRequest request = TestUtils.createRequest("http://test.mydomain.fr/foobar/").build();
+        HttpResponse response = TestUtils.driverProxy(driver, request);
+        assertEquals("FFFFF", EntityUtils.toString(response.getEntity()));
+        assertEquals(1, fragmentRequests.get());
+    }
+
+    /**
+     * A page with 3 includes.
+     */
+    private static final class FragmentsHandler implements IResponseHandler {
+        @Override
+        public HttpResponse execute(HttpRequest request) throws UnsupportedEncodingException {
+            String uri = request.getRequestLine().getUri();
+            if (uri.equals("/foobar/")) {
+                return TestUtils
+                        .createHttpResponse()
+                        .status(HttpStatus.SC_OK)
+                        .reason("OK")
+                        .header("Content-Type", "text/html; charset=utf-8")
+                        .entity("<esi:include src=\"http://test.mydomain.fr/esi/1\"/>"
+                                + "<esi:include src=\"http://test.mydomain.fr/esi/2\"/>"
+                                + "<esi:include src=\"http://test.mydomain.fr/esi/3\"/>").build();
+            }
+            if (uri.startsWith("/esi/")) {
+                return TestUtils.createHttpResponse().status(HttpStatus.SC_OK).reason("OK")
+                        .header("Content-Type", "text/html; charset=utf-8")
+                        .entity("Fragment " + uri.substring("/esi/".length())).build();
+            }
+            throw new IllegalStateException("Unexpected request" + uri);
+        }
+    }
+
+    /**
+     * Starts a new thread for each include.
+     */
+    public static final class NewThreadExecutorFactory implements ExecutorFactory {
+        private static final AtomicInteger COUNT = new AtomicInteger();
+
+        @Override
+        public void init(Driver driver, Properties properties) {
+            // Nothing to configure
+        }
+
+        @Override
+        public Executor getExecutor() {
+            return new Executor() {
+                @Override
+                public void execute(Runnable command) {
+                    COUNT.incrementAndGet();
+                    new Thread(command).start();
+                }
+            };
+        }
+    }
+
 }
@@ -22,6 +22,7 @@ import org.apache.http.HttpStatus;
 import org.apache.http.impl.cookie.BasicClientCookie;
 import org.esigate.ConfigurationException;
 import org.esigate.HttpErrorPage;
+import org.esigate.esi.InlineFragmentStore;
 
 public class IncludeElementTest extends AbstractElementTest {
 
@@ -97,17 +98,18 @@ public class IncludeElementTest extends AbstractElementTest {
 
     public void testIncludeInlineCache() throws IOException, HttpErrorPage {
         String page = "before <esi:include src='$(PROVIDER{mock})/inline-cache' /> after";
-        InlineCache.storeFragment("$(PROVIDER{mock})/inline-cache", null, false, null, "---inline cache item---");
+        InlineFragmentStore store = InlineFragmentStore.get(getProvider());
+        store.put("$(PROVIDER{mock})/inline-cache", null, false, null, "---inline cache item---");
         String result = render(page);
         assertEquals("before ---inline cache item--- after", result);
 
-        InlineCache.storeFragment("$(PROVIDER{mock})/inline-cache", new Date(System.currentTimeMillis() + TEN_SECONDS),
-                false, null, "---updated inline cache item---");
+        store.put("$(PROVIDER{mock})/inline-cache", new Date(System.currentTimeMillis() + TEN_SECONDS), false, null,
+                "---updated inline cache item---");
         result = render(page);
         assertEquals("before ---updated inline cache item--- after", result);
 
-        InlineCache.storeFragment("$(PROVIDER{mock})/inline-cache", new Date(System.currentTimeMillis() - TEN_SECONDS),
-                false, null, "---expired inline cache item---");
+        store.put("$(PROVIDER{mock})/inline-cache", new Date(System.currentTimeMillis() - TEN_SECONDS), false, null,
+                "---expired inline cache item---");
         addResource("/inline-cache", "---fetched inline cache item---");
         result = render(page);
         assertEquals("before ---fetched inline cache item--- after", result);
@@ -0,0 +1,396 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package org.esigate.extension.parallelesi;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.util.Properties;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import junit.framework.TestCase;
+
+import org.apache.commons.io.output.StringBuilderWriter;
+import org.apache.http.HttpEntity;
+import org.apache.http.client.methods.CloseableHttpResponse;
+import org.apache.http.entity.ContentType;
+import org.apache.http.entity.InputStreamEntity;
+import org.apache.http.util.EntityUtils;
+import org.esigate.Driver;
+import org.esigate.DriverFactory;
+import org.esigate.HttpErrorPage;
+import org.esigate.MockRequestExecutor.MockDriverBuilder;
+import org.esigate.Parameters;
+import org.esigate.RequestExecutor;
+import org.esigate.RequestExecutor.RequestExecutorBuilder;
+import org.esigate.events.EventManager;
+import org.esigate.http.ContentTypeHelper;
+import org.esigate.http.HttpResponseUtils;
+import org.esigate.http.IncomingRequest;
+import org.esigate.http.OutgoingRequest;
+import org.esigate.impl.DriverRequest;
+import org.esigate.test.TestUtils;
+
+/**
+ * Includes of a provider too slow to answer within the timeout of the include or of the whole request.
+ */
+public class IncludeTimeoutTest extends TestCase {
+    private static final int SLOW = 2000;
+    private static final int MEDIUM = 300;
+
+    private ExecutorService executorService;
+
+    @Override
+    protected void setUp() {
+        executorService = Executors.newCachedThreadPool();
+    }
+
+    @Override
+    protected void tearDown() {
+        executorService.shutdownNow();
+    }
+
+    public void testIncludeTimeoutWithAlt() throws Exception {
+        Driver driver = createDriver(new Properties());
+        long start = System.currentTimeMillis();
+        assertEquals("before fast after", render(driver, "before <esi:include src=\"$(PROVIDER{timeout})/slow\" "
+                + "alt=\"$(PROVIDER{timeout})/fast\" timeout=\"100\"/> after", true));
+        assertTrue(System.currentTimeMillis() - start < SLOW);
+    }
+
+    public void testIncludeTimeoutContinue() throws Exception {
+        Driver driver = createDriver(new Properties());
+        long start = System.currentTimeMillis();
+        assertEquals("before  after", render(driver, "before <esi:include src=\"$(PROVIDER{timeout})/slow\" "
+                + "onerror=\"continue\" timeout=\"100\"/> after", true));
+        assertTrue(System.currentTimeMillis() - start < SLOW);
+    }
+
+    public void testIncludeTimeoutError() throws Exception {
+        Driver driver = createDriver(new Properties());
+        try {
+            render(driver, "<esi:include src=\"$(PROVIDER{timeout})/slow\" timeout=\"100\"/>", true);
+            fail("Should throw an HttpErrorPage");
+        } catch (HttpErrorPage e) {
+            assertEquals(504, e.getHttpResponse().getStatusLine().getStatusCode());
+        }
+    }
+
+    /**
+     * Without threads, the timeout of the include applies to the outgoing request.
+     * 
+     * @throws Exception
+     */
+    public void testIncludeTimeoutWithoutThreads() throws Exception {
+        Driver driver = createDriver(new Properties());
+        long start = System.currentTimeMillis();
+        assertEquals("fast", render(driver, "<esi:include src=\"$(PROVIDER{timeout})/slow\" "
+                + "alt=\"$(PROVIDER{timeout})/fast\" timeout=\"100\"/>", false));
+        assertTrue(System.currentTimeMillis() - start < SLOW);
+    }
+
+    public void testRenderTimeout() throws Exception {
+        Properties properties = new Properties();
+        properties.put(Parameters.RENDER_TIMEOUT.getName(), "200");
+        Driver driver = createDriver(properties);
+        long start = System.currentTimeMillis();
+        assertEquals("fast-", render(driver, "<esi:include src=\"$(PROVIDER{timeout})/fast\"/>-"
+                + "<esi:include src=\"$(PROVIDER{timeout})/slow\" onerror=\"continue\"/>", true));
+        assertTrue(System.currentTimeMillis() - start < SLOW);
+    }
+
+    public void testNoTimeout() throws Exception {
+        Driver driver = createDriver(new Properties());
+        assertEquals("fast", render(driver, "<esi:include src=\"$(PROVIDER{timeout})/fast\" timeout=\"1000\"/>", true));
+        assertEquals("fast",
+                render(driver, "<esi:include src=\"$(PROVIDER{timeout})/fast\" timeout=\"invalid\"/>", true));
+    }
+
+    /**
+     * A nested include queued behind its parent on a saturated pool must be run by the thread waiting for it instead of
+     * timing out.
+     * 
+     * @throws Exception
+     */
+    public void testNestedIncludesOnSaturatedPool() throws Exception {
+        Driver driver = createDriver(new Properties());
+        ExecutorService singleThread = Executors.newFixedThreadPool(1);
+        try {
+            String page = "<esi:include src=\"$(PROVIDER{timeout})/nested\" timeout=\"1000\"/>";
+            DriverRequest request = new DriverRequest(TestUtils.createIncomingRequest().build(), driver, page);
+            StringBuilderWriter out = new StringBuilderWriter();
+            long start = System.currentTimeMillis();
+            new EsiRenderer(singleThread, 1, 0).render(request, page, out);
+            assertEquals("nested fast", out.toString());
+            assertTrue(System.currentTimeMillis() - start < 1000);
+        } finally {
+            singleThread.shutdownNow();
+        }
+    }
+
+    /**
+     * A waiting include must not process itself the response of a provider sending its bytes slowly, which no socket
+     * timeout would interrupt.
+     * 
+     * @throws Exception
+     */
+    public void testTricklingIncludeTimeoutOnSaturatedPool() throws Exception {
+        Driver driver = createDriver(new Properties());
+        ExecutorService singleThread = Executors.newFixedThreadPool(1);
+        final CountDownLatch busy = new CountDownLatch(1);
+        try {
+            singleThread.execute(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        busy.await();
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                    }
+                }
+            });
+            String page =
+                    "<esi:include src=\"$(PROVIDER{timeout})/trickle\" alt=\"$(PROVIDER{timeout})/fast\" "
+                            + "timeout=\"100\"/>";
+            DriverRequest request = new DriverRequest(TestUtils.createIncomingRequest().build(), driver, page);
+            StringBuilderWriter out = new StringBuilderWriter();
+            long start = System.currentTimeMillis();
+            new EsiRenderer(singleThread).render(request, page, out);
+            assertEquals("fast", out.toString());
+            assertTrue(System.currentTimeMillis() - start < SLOW);
+        } finally {
+            busy.countDown();
+            singleThread.shutdownNow();
+        }
+    }
+
+    /**
+     * The timeout of an include also applies to the requests sent for the includes of the included page.
+     * 
+     * @throws Exception
+     */
+    public void testNestedIncludeBoundedByParentTimeout() throws Exception {
+        Driver driver = createDriver(new Properties());
+        long start = System.currentTimeMillis();
+        assertEquals("fast", render(driver, "<esi:include src=\"$(PROVIDER{timeout})/nested-slow\" "
+                + "alt=\"$(PROVIDER{timeout})/fast\" timeout=\"100\"/>", false));
+        assertTrue(System.currentTimeMillis() - start < SLOW);
+    }
+
+    /**
+     * The timeout of the include also applies to includes retrieved by the asynchronous request executor.
+     * 
+     * @throws Exception
+     */
+    public void testPrefetchedIncludeTimeout() throws Exception {
+        Properties properties = new Properties();
+        properties.put(Parameters.PREFETCH_THREADS.getName(), "2");
+        Driver driver = createDriver(properties);
+        try {
+            long start = System.currentTimeMillis();
+            assertEquals("before fast after", render(driver, "before <esi:include src=\"$(PROVIDER{timeout})/slow\" "
+                    + "alt=\"$(PROVIDER{timeout})/fast\" timeout=\"100\"/> after", true));
+            assertTrue(System.currentTimeMillis() - start < SLOW);
+        } finally {
+            driver.close();
+        }
+    }
+
+    /**
+     * Includes of the same page share the request to the provider but each one waits according to its own timeout.
+     * 
+     * @throws Exception
+     */
+    public void testSharedIncludeWithDifferentTimeouts() throws Exception {
+        final Driver driver = createDriver(new Properties());
+        final IncomingRequest request = TestUtils.createIncomingRequest().build();
+        Future<CloseableHttpResponse> shortTimeout = executorService.submit(new Callable<CloseableHttpResponse>() {
+            @Override
+            public CloseableHttpResponse call() throws Exception {
+                return driver.render("/medium", request, System.currentTimeMillis() + 100);
+            }
+        });
+        Thread.sleep(20);
+        // Waits for the request sent for the first include, which times out, then tries again
+        assertEquals("medium",
+                HttpResponseUtils.toString(driver.render("/medium", request, System.currentTimeMillis() + 1000)));
+        try {
+            shortTimeout.get();
+            fail("Should throw an HttpErrorPage");
+        } catch (ExecutionException e) {
+            assertEquals(504, ((HttpErrorPage) e.getCause()).getHttpResponse().getStatusLine().getStatusCode());
+        }
+
+        final IncomingRequest request2 = TestUtils.createIncomingRequest().build();
+        Future<CloseableHttpResponse> longTimeout = executorService.submit(new Callable<CloseableHttpResponse>() {
+            @Override
+            public CloseableHttpResponse call() throws Exception {
+                return driver.render("/medium", request2, System.currentTimeMillis() + 1000);
+            }
+        });
+        Thread.sleep(20);
+        // Does not wait for the first include longer than its own timeout
+        long start = System.currentTimeMillis();
+        try {
+            driver.render("/medium", request2, System.currentTimeMillis() + 100);
+            fail("Should throw an HttpErrorPage");
+        } catch (HttpErrorPage e) {
+            assertEquals(504, e.getHttpResponse().getStatusLine().getStatusCode());
+        }
+        assertTrue(System.currentTimeMillis() - start < MEDIUM);
+        assertEquals("medium", HttpResponseUtils.toString(longTimeout.get()));
+    }
+
+    private String render(Driver driver, String page, boolean threads) throws HttpErrorPage, IOException {
+        DriverRequest request = new DriverRequest(TestUtils.createIncomingRequest().build(), driver, page);
+        StringBuilderWriter out = new StringBuilderWriter();
+        new EsiRenderer(threads ? executorService : null).render(request, page, out);
+        return out.toString();
+    }
+
+    private static Driver createDriver(Properties properties) {
+        properties.put(Parameters.REMOTE_URL_BASE.getName(), "http://localhost");
+        SlowExecutorBuilder builder = new SlowExecutorBuilder();
+        builder.mockBuilder.addResource("/fast", "fast");
+        builder.mockBuilder.addResource("/slow", "slow");
+        builder.mockBuilder.addResource("/medium", "medium");
+        builder.mockBuilder.addResource("/nested", "nested <esi:include src=\"$(PROVIDER{timeout})/fast\" "
+                + "timeout=\"1000\"/>");
+        builder.mockBuilder.addResource("/trickle", "trickle");
+        builder.mockBuilder.addResource("/nested-slow", "<esi:include src=\"$(PROVIDER{timeout})/slow\"/>");
+        Driver driver =
+                Driver.builder().setName("timeout").setProperties(properties).setRequestExecutorBuilder(builder)
+                        .build();
+        DriverFactory.put("timeout", driver);
+        return driver;
+    }
+
+    private static final class SlowExecutorBuilder implements RequestExecutorBuilder {
+        private final MockDriverBuilder mockBuilder = new MockDriverBuilder();
+
+        @Override
+        public RequestExecutorBuilder setEventManager(EventManager eventManager) {
+            mockBuilder.setEventManager(eventManager);
+            return this;
+        }
+
+        @Override
+        public RequestExecutorBuilder setDriver(Driver driver) {
+            mockBuilder.setDriver(driver);
+            return this;
+        }
+
+        @Override
+        public RequestExecutorBuilder setProperties(Properties properties) {
+            mockBuilder.setProperties(properties);
+            return this;
+        }
+
+        @Override
+        public RequestExecutorBuilder setContentTypeHelper(ContentTypeHelper contentTypeHelper) {
+            mockBuilder.setContentTypeHelper(contentTypeHelper);
+            return this;
+        }
+
+        @Override
+        public RequestExecutor build() {
+            return new SlowExecutor(mockBuilder.build());
+        }
+    }
+
+    /**
+     * Takes {@link IncludeTimeoutTest#SLOW} milliseconds to answer for /slow and {@link IncludeTimeoutTest#MEDIUM}
+     * milliseconds for /medium, or fails like a socket timeout when the deadline of the request is closer. Answers at
+     * once for /trickle but sends the body one byte at a time during {@link IncludeTimeoutTest#SLOW} milliseconds,
+     * whatever the deadline.
+     */
+    private static final class SlowExecutor implements RequestExecutor {
+        private final RequestExecutor delegate;
+
+        private SlowExecutor(RequestExecutor delegate) {
+            this.delegate = delegate;
+        }
+
+        @Override
+        public OutgoingRequest createOutgoingRequest(DriverRequest request, String url, boolean b) {
+            return delegate.createOutgoingRequest(request, url, b);
+        }
+
+        @Override
+        public CloseableHttpResponse execute(OutgoingRequest outgoingRequest) throws HttpErrorPage {
+            String uri = outgoingRequest.getRequestLine().getUri();
+            int delay = 0;
+            if (uri.endsWith("/slow")) {
+                delay = SLOW;
+            } else if (uri.endsWith("/medium")) {
+                delay = MEDIUM;
+            }
+            if (delay > 0) {
+                long deadline = outgoingRequest.getOriginalRequest().getDeadline();
+                long wait = delay;
+                if (deadline > 0) {
+                    wait = Math.min(delay, Math.max(0, deadline - System.currentTimeMillis()));
+                }
+                try {
+                    Thread.sleep(wait);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+                if (wait < delay) {
+                    throw new HttpErrorPage(504, "Socket timeout", "Socket timeout");
+                }
+            }
+            CloseableHttpResponse response = delegate.execute(outgoingRequest);
+            if (uri.endsWith("/trickle")) {
+                HttpEntity entity = response.getEntity();
+                try {
+                    response.setEntity(new InputStreamEntity(new TricklingInputStream(EntityUtils.toByteArray(entity)),
+                            ContentType.get(entity)));
+                } catch (IOException e) {
+                    throw new HttpErrorPage(500, e.toString(), e);
+                }
+            }
+            return response;
+        }
+    }
+
+    private static final class TricklingInputStream extends InputStream {
+        private final byte[] content;
+        private int position = 0;
+
+        private TricklingInputStream(byte[] content) {
+            this.content = content;
+        }
+
+        @Override
+        public int read() throws IOException {
+            if (position == content.length) {
+                return -1;
+            }
+            try {
+                Thread.sleep(SLOW / content.length);
+            } catch (InterruptedException e) {
+                throw new InterruptedIOException("Interrupted");
+            }
+            return content[position++];
+        }
+    }
+
+}
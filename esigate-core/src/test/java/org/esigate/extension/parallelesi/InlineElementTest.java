@@ -18,6 +18,7 @@ package org.esigate.extension.parallelesi;
 import java.io.IOException;
 
 import org.esigate.HttpErrorPage;
+import org.esigate.esi.InlineFragmentStore;
 
 public class InlineElementTest extends AbstractElementTest {
 
@@ -25,11 +26,11 @@ public class InlineElementTest extends AbstractElementTest {
         String page = "begin <esi:inline name=\"someUri\" fetchable=\"yes\">inside inline</esi:inline>end";
         String result = render(page);
         assertEquals("begin end", result);
-        InlineCache actual = InlineCache.getFragment("someUri");
+        InlineFragmentStore.Fragment actual = InlineFragmentStore.get(getProvider()).get("someUri");
         assertNotNull(actual);
         assertTrue(actual.isFetchable());
         assertFalse(actual.isExpired());
-        assertEquals("inside inline", actual.getFragment());
+        assertEquals("inside inline", actual.getContent());
     }
 
 }
@@ -20,6 +20,7 @@ import java.util.List;
 import java.util.concurrent.Executor;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import org.esigate.HttpErrorPage;
 import org.esigate.Parameters;
@@ -95,6 +96,83 @@ public class ParallelEsiTest extends AbstractElementTest {
         assertEquals(expect.toString(), result);
     }
 
+    /**
+     * Nested includes are run in parallel up to the maximum depth.
+     * 
+     * @throws IOException
+     * @throws HttpErrorPage
+     */
+    public void testNestedIncludes() throws IOException, HttpErrorPage {
+        addResource("/nested", "<esi:include src=\"$(PROVIDER{mock})/test\" />"
+                + "<esi:include src=\"$(PROVIDER{mock})/test\" />");
+        String page =
+                "<esi:include src=\"$(PROVIDER{mock})/nested\" />-<esi:include src=\"$(PROVIDER{mock})/nested\" />";
+
+        CountingExecutor exe = new CountingExecutor(Executors.newCachedThreadPool());
+        setTested(new EsiRenderer(exe));
+        assertEquals("testtest-testtest", render(page));
+        assertEquals(2, exe.getCount());
+
+        exe = new CountingExecutor(Executors.newCachedThreadPool());
+        setTested(new EsiRenderer(exe, 1, 0));
+        assertEquals("testtest-testtest", render(page));
+        assertEquals(6, exe.getCount());
+    }
+
+    /**
+     * Includes over the limit of the request are run in the current thread.
+     * 
+     * @throws IOException
+     * @throws HttpErrorPage
+     */
+    public void testMaxIncludesPerRequest() throws IOException, HttpErrorPage {
+        StringBuilder page = new StringBuilder();
+        for (int i = 0; i < 10; i++) {
+            page.append("<esi:include src=\"$(PROVIDER{mock})/test\" />");
+        }
+        BlockingExecutor exe = new BlockingExecutor();
+        setTested(new EsiRenderer(exe, 0, 3));
+        // The blocking executor never runs the tasks: they are run when waiting for them
+        assertEquals("testtesttesttesttesttesttesttesttesttest", render(page.toString()));
+        assertEquals(3, exe.getCount());
+    }
+
+    /**
+     * Nested includes do not wait for a thread when all the threads are busy waiting for them.
+     * 
+     * @throws IOException
+     * @throws HttpErrorPage
+     */
+    public void testNestedIncludesWithSingleThread() throws IOException, HttpErrorPage {
+        addResource("/nested", "<esi:include src=\"$(PROVIDER{mock})/test\" />"
+                + "<esi:include src=\"$(PROVIDER{mock})/test\" />");
+        setTested(new EsiRenderer(Executors.newFixedThreadPool(1), 3, 0));
+        assertEquals("testtest-testtest", render("<esi:include src=\"$(PROVIDER{mock})/nested\" />-"
+                + "<esi:include src=\"$(PROVIDER{mock})/nested\" />"));
+    }
+
+    /**
+     * An executor counting the tasks.
+     */
+    static class CountingExecutor implements Executor {
+        private final Executor executor;
+        private final AtomicInteger count = new AtomicInteger();
+
+        CountingExecutor(Executor executor) {
+            this.executor = executor;
+        }
+
+        @Override
+        public void execute(Runnable command) {
+            count.incrementAndGet();
+            executor.execute(command);
+        }
+
+        public int getCount() {
+            return count.get();
+        }
+    }
+
     /**
      * A blocking executor which will not start runnable unless {@link #perform()} is called.
      * 
@@ -0,0 +1,98 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package org.esigate.http;
+
+import java.io.ByteArrayInputStream;
+
+import junit.framework.TestCase;
+
+import org.apache.commons.lang3.StringUtils;
+import org.apache.http.HttpResponse;
+import org.apache.http.HttpStatus;
+import org.apache.http.client.entity.GzipDecompressingEntity;
+import org.apache.http.entity.ContentType;
+import org.apache.http.entity.InputStreamEntity;
+import org.apache.http.entity.StringEntity;
+import org.apache.http.util.EntityUtils;
+import org.esigate.Parameters;
+import org.esigate.test.TestUtils;
+import org.esigate.test.http.HttpResponseBuilder;
+
+public class CompressionUtilsTest extends TestCase {
+
+    public void testAcceptsGzip() {
+        assertAcceptsGzip(true, "gzip, deflate");
+        assertAcceptsGzip(true, "deflate;q=1.0, x-gzip;q=0.5");
+        assertAcceptsGzip(true, "*");
+        assertAcceptsGzip(false, "gzip;q=0, *");
+        assertAcceptsGzip(false, "deflate");
+        assertAcceptsGzip(false, "identity");
+        assertAcceptsGzip(false, null);
+    }
+
+    private static void assertAcceptsGzip(boolean expected, String acceptEncoding) {
+        IncomingRequest.Builder request = TestUtils.createIncomingRequest();
+        if (acceptEncoding != null) {
+            request.addHeader("Accept-Encoding", acceptEncoding);
+        }
+        assertEquals(acceptEncoding, expected, CompressionUtils.acceptsGzip(request.build()));
+    }
+
+    public void testIsCompressible() {
+        assertTrue(CompressionUtils.isCompressible(createResponse("text/css", "body {}"),
+                Parameters.COMPRESSIBLE_CONTENT_TYPES.getDefaultValue()));
+        assertTrue(CompressionUtils.isCompressible(createResponse("application/javascript; charset=UTF-8", "x();"),
+                Parameters.COMPRESSIBLE_CONTENT_TYPES.getDefaultValue()));
+        assertFalse(CompressionUtils.isCompressible(createResponse("image/png", "png"),
+                Parameters.COMPRESSIBLE_CONTENT_TYPES.getDefaultValue()));
+        HttpResponse compressed = createResponse("text/css", "body {}");
+        compressed.addHeader("Content-Encoding", "gzip");
+        assertFalse(CompressionUtils
+                .isCompressible(compressed, Parameters.COMPRESSIBLE_CONTENT_TYPES.getDefaultValue()));
+    }
+
+    public void testCompress() throws Exception {
+        String content = StringUtils.repeat("some text ", 100);
+        HttpResponse response = createResponse("text/plain", content);
+        response.addHeader("Content-Length", Integer.toString(content.length()));
+        assertTrue(CompressionUtils.compress(response));
+        assertTrue(CompressionUtils.isGzip(response.getEntity()));
+        assertEquals("gzip", response.getFirstHeader("Content-Encoding").getValue());
+        assertEquals(Long.toString(response.getEntity().getContentLength()), response.getFirstHeader("Content-Length")
+                .getValue());
+        assertTrue(response.getEntity().getContentType().getValue().startsWith("text/plain"));
+        assertEquals(content, EntityUtils.toString(new GzipDecompressingEntity(response.getEntity())));
+        assertEquals(content, EntityUtils.toString(CompressionUtils.decompress(response.getEntity())));
+    }
+
+    public void testCompressBiggerThanMaxSize() throws Exception {
+        String content = StringUtils.repeat("some text ", 100);
+        HttpResponse response = createResponse("text/plain", content);
+        response.setEntity(new InputStreamEntity(new ByteArrayInputStream(content.getBytes("UTF-8")), -1,
+                ContentType.TEXT_PLAIN));
+        assertFalse(CompressionUtils.compress(response, 500));
+        assertNull(response.getFirstHeader("Content-Encoding"));
+        assertFalse(CompressionUtils.isGzip(response.getEntity()));
+        assertTrue(response.getEntity().getContentType().getValue().startsWith("text/plain"));
+        assertEquals(content, EntityUtils.toString(response.getEntity()));
+    }
+
+    private static HttpResponse createResponse(String contentType, String content) {
+        return new HttpResponseBuilder().status(HttpStatus.SC_OK).header("Content-Type", contentType)
+                .entity(new StringEntity(content, ContentType.parse(contentType))).build();
+    }
+
+}
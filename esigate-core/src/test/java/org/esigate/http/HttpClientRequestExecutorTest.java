@@ -27,6 +27,7 @@ import org.apache.http.HttpResponse;
 import org.apache.http.HttpStatus;
 import org.apache.http.ProtocolVersion;
 import org.apache.http.StatusLine;
+import org.apache.http.client.methods.CloseableHttpResponse;
 import org.apache.http.entity.ByteArrayEntity;
 import org.apache.http.entity.StringEntity;
 import org.apache.http.message.BasicHttpResponse;
@@ -817,4 +818,49 @@ public class HttpClientRequestExecutorTest extends TestCase {
         assertEquals(HttpStatus.SC_NOT_MODIFIED, result2.getStatusLine().getStatusCode());
     }
 
+    public void testDeadlineLimitsTimeouts() throws Exception {
+        properties = new PropertiesBuilder() //
+                .set(Parameters.REMOTE_URL_BASE, "http://localhost:8080") //
+                .set(Parameters.CONNECT_TIMEOUT, 1000) //
+                .set(Parameters.SOCKET_TIMEOUT, 10000) //
+                .build();
+        createHttpClientRequestExecutor();
+        DriverRequest httpRequest = TestUtils.createDriverRequest(driver);
+        OutgoingRequest outgoingRequest =
+                httpClientRequestExecutor.createOutgoingRequest(httpRequest, "http://localhost:8080/", false);
+        assertEquals(1000, outgoingRequest.getConfig().getConnectTimeout());
+        assertEquals(10000, outgoingRequest.getConfig().getSocketTimeout());
+
+        httpRequest.setDeadline(System.currentTimeMillis() + 5000);
+        outgoingRequest = httpClientRequestExecutor.createOutgoingRequest(httpRequest, "http://localhost:8080/", false);
+        assertEquals(1000, outgoingRequest.getConfig().getConnectTimeout());
+        assertTrue(outgoingRequest.getConfig().getSocketTimeout() <= 5000);
+        assertTrue(outgoingRequest.getConfig().getSocketTimeout() > 0);
+
+        // Even when the deadline is over, the request is not sent without timeout
+        httpRequest.setDeadline(System.currentTimeMillis() - 1000);
+        outgoingRequest = httpClientRequestExecutor.createOutgoingRequest(httpRequest, "http://localhost:8080/", false);
+        assertEquals(1, outgoingRequest.getConfig().getSocketTimeout());
+    }
+
+    /**
+     * A response closed without reading its body is no longer in progress.
+     * 
+     * @throws Exception
+     */
+    public void testCloseDoesNotWaitForClosedResponses() throws Exception {
+        properties = new PropertiesBuilder() //
+                .set(Parameters.REMOTE_URL_BASE, "http://localhost:8080") //
+                .set(Parameters.USE_CACHE, false) //
+                .set(Parameters.CLOSE_TIMEOUT, 5000) //
+                .build();
+        createHttpClientRequestExecutor();
+        mockConnectionManager.setResponse(createMockResponse("content"));
+        CloseableHttpResponse response = (CloseableHttpResponse) executeRequest();
+        response.close();
+        long start = System.currentTimeMillis();
+        driver.close();
+        assertTrue(System.currentTimeMillis() - start < 5000);
+    }
+
 }
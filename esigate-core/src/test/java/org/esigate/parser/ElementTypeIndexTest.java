@@ -0,0 +1,84 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package org.esigate.parser;
+
+import java.util.Arrays;
+
+import junit.framework.TestCase;
+
+public class ElementTypeIndexTest extends TestCase {
+
+    public void testGet() {
+        ElementType include = new MockNamedElementType("esi:include");
+        ElementType inline = new MockNamedElementType("esi:inline");
+        ElementType unknown = new UnknownElementType();
+        ElementTypeIndex<ElementType> index = new ElementTypeIndex<>(Arrays.asList(include, inline, unknown));
+
+        assertSame(include, index.get("<esi:include src=\"a\"/>"));
+        assertSame(include, index.get("<esi:include/>"));
+        assertSame(include, index.get("<esi:include\nsrc=\"a\">"));
+        assertSame(inline, index.get("<esi:inline>"));
+        assertSame(inline, index.get("<esi:inline"));
+        assertNull(index.get("<esi:includex>"));
+        assertNull(index.get("<esi:vars>"));
+    }
+
+    public void testFirstTypeWins() {
+        ElementType first = new MockNamedElementType("esi:include");
+        ElementType second = new MockNamedElementType("esi:include");
+        ElementTypeIndex<ElementType> index = new ElementTypeIndex<>(Arrays.asList(first, second));
+        assertSame(first, index.get("<esi:include>"));
+    }
+
+    public void testNoNamedType() {
+        ElementTypeIndex<ElementType> index =
+                new ElementTypeIndex<ElementType>(Arrays.<ElementType>asList(new UnknownElementType()));
+        assertNull(index.get("<esi:include>"));
+    }
+
+    private static class MockNamedElementType implements ElementType, NamedElementType {
+        private final String name;
+
+        MockNamedElementType(String name) {
+            this.name = name;
+        }
+
+        @Override
+        public String getTagName() {
+            return name;
+        }
+
+        @Override
+        public boolean isStartTag(String tag) {
+            return tag.startsWith("<" + name);
+        }
+
+        @Override
+        public boolean isSelfClosing(String tag) {
+            return true;
+        }
+
+        @Override
+        public boolean isEndTag(String tag) {
+            return false;
+        }
+
+        @Override
+        public Element newInstance() {
+            return null;
+        }
+    }
+}
@@ -16,6 +16,8 @@
 package org.esigate.parser;
 
 import java.io.IOException;
+import java.io.Reader;
+import java.io.StringReader;
 import java.util.regex.Pattern;
 
 import junit.framework.TestCase;
@@ -54,6 +56,45 @@ public class ParserTest extends TestCase {
         assertEquals("begin this text should be updated <test:unknown name='value' /> end", out.toString());
     }
 
+    public void testParseReaderWithTagsAcrossChunks() throws IOException, HttpErrorPage {
+        final String page =
+                "begin " + "<test:simple name='ignored'> this text will be ignored </test:simple>"
+                        + "<test:body>this text should be {request} </test:body>" + "<test:unknown name='value' />"
+                        + "<test:simple name='also ignored'/>" + " end <";
+        StringBuilderWriter out = new StringBuilderWriter();
+
+        // Read one character at a time so that every tag is split between chunks
+        tested.parse(new Reader() {
+            private final Reader in = new StringReader(page);
+
+            @Override
+            public int read(char[] cbuf, int off, int len) throws IOException {
+                return in.read(cbuf, off, Math.min(len, 1));
+            }
+
+            @Override
+            public void close() throws IOException {
+                in.close();
+            }
+        }, out);
+        assertEquals("begin this text should be updated <test:unknown name='value' /> end <", out.toString());
+    }
+
+    public void testParseStreamKeepsOnlyIncompleteTag() throws IOException, HttpErrorPage {
+        StringBuilderWriter out = new StringBuilderWriter();
+        ParserStream stream = tested.open(out);
+
+        stream.append("begin <test:body>this text should be {req");
+        assertEquals("begin ", out.toString());
+        stream.append("uest} </test:bo");
+        assertEquals("begin ", out.toString());
+        stream.append("dy> middle <te");
+        assertEquals("begin this text should be updated  middle ", out.toString());
+        stream.append("xt> end");
+        stream.end();
+        assertEquals("begin this text should be updated  middle <text> end", out.toString());
+    }
+
     private static final ElementType SIMPLE = new MockElementType("<test:simple", "</test:simple") {
         @Override
         public Element newInstance() {
@@ -1,6 +1,9 @@
 package org.esigate.parser.future;
 
 import java.io.IOException;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
 
 import junit.framework.Assert;
 
@@ -26,4 +29,85 @@ public class FutureAppendableAdapterTest {
         Assert.assertEquals("test1test2test3test4", sw.toString());
     }
 
+    @Test
+    public void testCompletedPrefixAppendedBeforePerformAppends() throws IOException, HttpErrorPage {
+        StringBuilderWriter sw = new StringBuilderWriter();
+        FutureAppendableAdapter adapter = new FutureAppendableAdapter(sw);
+        FutureTask<CharSequence> pending = new FutureTask<>(new Callable<CharSequence>() {
+            @Override
+            public CharSequence call() {
+                return "include";
+            }
+        });
+
+        adapter.enqueueAppend(new CharSequenceFuture("<head/>"));
+        Assert.assertEquals("<head/>", sw.toString());
+
+        // Content after a pending future must wait, to keep the order
+        adapter.enqueueAppend(pending);
+        adapter.enqueueAppend(new CharSequenceFuture("<body/>"));
+        Assert.assertEquals("<head/>", sw.toString());
+        Assert.assertTrue(adapter.hasPending());
+
+        pending.run();
+        adapter.enqueueAppend(new CharSequenceFuture("end"));
+        Assert.assertEquals("<head/>include<body/>end", sw.toString());
+        Assert.assertFalse(adapter.hasPending());
+    }
+
+    @Test
+    public void testFlushedBeforeWaiting() throws IOException, HttpErrorPage {
+        final StringBuilder flushed = new StringBuilder();
+        final StringBuilderWriter sw = new StringBuilderWriter() {
+            @Override
+            public void flush() {
+                flushed.setLength(0);
+                flushed.append(toString());
+            }
+        };
+        FutureAppendableAdapter adapter = new FutureAppendableAdapter(sw);
+        FutureTask<CharSequence> pending = new FutureTask<CharSequence>(new Callable<CharSequence>() {
+            @Override
+            public CharSequence call() {
+                return "include";
+            }
+        }) {
+            @Override
+            public CharSequence get() throws InterruptedException, ExecutionException {
+                run();
+                return super.get();
+            }
+        };
+
+        adapter.enqueueAppend(new CharSequenceFuture("prefix"));
+        adapter.enqueueAppend(pending);
+        adapter.performAppends();
+        Assert.assertEquals("prefix", flushed.toString());
+        Assert.assertEquals("prefixinclude", sw.toString());
+    }
+
+    @Test
+    public void testErrorReportedByPerformAppends() throws IOException {
+        StringBuilderWriter sw = new StringBuilderWriter();
+        FutureAppendableAdapter adapter = new FutureAppendableAdapter(sw);
+        FutureTask<CharSequence> failed = new FutureTask<>(new Callable<CharSequence>() {
+            @Override
+            public CharSequence call() throws HttpErrorPage {
+                throw new HttpErrorPage(502, "error", "error");
+            }
+        });
+        failed.run();
+
+        adapter.enqueueAppend(new CharSequenceFuture("a"));
+        adapter.enqueueAppend(failed);
+        adapter.enqueueAppend(new CharSequenceFuture("b"));
+        Assert.assertEquals("a", sw.toString());
+        try {
+            adapter.performAppends();
+            Assert.fail("HttpErrorPage expected");
+        } catch (HttpErrorPage e) {
+            Assert.assertEquals(502, e.getHttpResponse().getStatusLine().getStatusCode());
+        }
+    }
+
 }
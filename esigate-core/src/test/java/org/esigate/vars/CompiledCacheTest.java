@@ -0,0 +1,69 @@
+/* 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package org.esigate.vars;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+
+import org.junit.Test;
+
+public class CompiledCacheTest {
+
+    @Test
+    public void testGetPut() {
+        CompiledCache<Object> cache = new CompiledCache<>(10, 1000);
+        assertNull(cache.get("a"));
+        Object value = new Object();
+        cache.put("a", value);
+        assertSame(value, cache.get("a"));
+        // The first compiled value is kept
+        cache.put("a", new Object());
+        assertSame(value, cache.get("a"));
+        assertEquals(1, cache.size());
+    }
+
+    @Test
+    public void testBounded() {
+        CompiledCache<String> cache = new CompiledCache<>(10, 1000);
+        for (int i = 0; i < 100; i++) {
+            cache.put("key" + i, "value" + i);
+            assertEquals(Math.min(i + 1, 10), cache.size());
+        }
+        assertEquals("value99", cache.get("key99"));
+    }
+
+    @Test
+    public void testBoundedInSize() {
+        CompiledCache<String> cache = new CompiledCache<>(10, CompiledCache.getSize("key0") * 3);
+        for (int i = 0; i < 9; i++) {
+            cache.put("key" + i, "value" + i);
+            assertEquals(Math.min(i + 1, 3), cache.size());
+        }
+        assertEquals(CompiledCache.getSize("key0") * 3, cache.getBytes());
+        assertEquals("value8", cache.get("key8"));
+    }
+
+    @Test
+    public void testLargerThanCacheNotKept() {
+        CompiledCache<String> cache = new CompiledCache<>(10, CompiledCache.getSize("key") - 1);
+        cache.put("key", "value");
+        assertNull(cache.get("key"));
+        assertEquals(0, cache.size());
+        assertEquals(0, cache.getBytes());
+    }
+
+}
@@ -0,0 +1,92 @@
+/* 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package org.esigate.vars;
+
+import junit.framework.TestCase;
+
+import org.apache.http.impl.cookie.BasicClientCookie;
+import org.esigate.HttpErrorPage;
+import org.esigate.MockRequestExecutor;
+import org.esigate.impl.DriverRequest;
+import org.esigate.test.TestUtils;
+
+public class ExpressionTest extends TestCase {
+
+    /** Results of the implementation of Operations based on String manipulations, which must be kept. */
+    private static final String[] TRUE_EXPRESSIONS = {"1==1", "1==01", "1.0==1", "a==a", "'a'=='a'", "'a'==a",
+            "a b==ab", "2>=1", "b>=a", "10>9", "a<b", "1<=2", "!=", "==", "(a==a)&(b==b)", "(a==a)|(b==c)", "!(a==b)",
+            "!a==b", "(a==a)", "(a==a)&(b==b)|(c==d)", "(a==b)&(b==b)|(c==c)", "$exists(a)", "$exists(a)&(b==b)",
+            "$exists(a) & $exists(b)", "NaN==NaN", "1e2==100", "1d==1", " 1==1", "Infinity>1", "a!=b", "x>="};
+    private static final String[] FALSE_EXPRESSIONS = {"!(1==1)", "a == b", "10<9", "2<=1", "a", "''", "'", "'=='",
+            "(a==a)&(b==c)", "(a==b)|(b==c)", "(a==a)&&(b==b)", "(a==a)||(b==c)", "!(a==a)&(b==b)", "((a==a))",
+            "(a==a)&", "$exists()", "$exists('')", "($exists(a))&(b==c)", "0.0==-0.0", "0x10==16", "a!=a", "1!=1.0",
+            ">=x", "a=b", "(1==1)&(2==2)&(3==4)", "(1==1)|(2==3)&(3==4)"};
+
+    public void testProcessOperators() {
+        for (String expression : TRUE_EXPRESSIONS) {
+            assertTrue(expression, Operations.processOperators(expression));
+        }
+        for (String expression : FALSE_EXPRESSIONS) {
+            assertFalse(expression, Operations.processOperators(expression));
+        }
+        assertFalse(Operations.processOperators(null));
+        assertFalse(Operations.processOperators(""));
+    }
+
+    public void testCompiledWithoutVariables() throws HttpErrorPage {
+        DriverRequest request = createRequest();
+        for (String expression : TRUE_EXPRESSIONS) {
+            assertTrue(expression, Expression.compile(expression).evaluate(request));
+        }
+        for (String expression : FALSE_EXPRESSIONS) {
+            assertFalse(expression, Expression.compile(expression).evaluate(request));
+        }
+    }
+
+    public void testVariables() throws HttpErrorPage {
+        DriverRequest request = createRequest();
+        assertTrue(Expression.compile("$(HTTP_COOKIE{a})=='1'").evaluate(request));
+        assertTrue(Expression.compile("$(HTTP_COOKIE{a})==1.0").evaluate(request));
+        assertTrue(Expression.compile("$(HTTP_COOKIE{b})<$(HTTP_COOKIE{a})").evaluate(request));
+        assertTrue(Expression.compile("($(HTTP_COOKIE{a})==1) & ($(HTTP_COOKIE{missing}|'x')=='x')").evaluate(request));
+        assertTrue(Expression.compile("'prefix-$(HTTP_COOKIE{a})'=='prefix-1'").evaluate(request));
+        assertFalse(Expression.compile("$(HTTP_COOKIE{a})!=1").evaluate(request));
+        assertTrue(Expression.compile("!($(HTTP_COOKIE{a})==2)").evaluate(request));
+        assertTrue(Expression.compile("$exists($(HTTP_COOKIE{a}))").evaluate(request));
+        assertFalse(Expression.compile("$exists($(HTTP_COOKIE{missing}))").evaluate(request));
+        assertFalse(Expression.compile("(a==a) | $exists($(HTTP_COOKIE{missing}))").evaluate(request));
+        // Spaces are ignored, in the values too
+        assertTrue(Expression.compile("$(HTTP_COOKIE{spaces})=='a b c'").evaluate(request));
+        assertTrue(Expression.compile("$(HTTP_COOKIE{spaces})=='abc'").evaluate(request));
+    }
+
+    public void testValuesAreNotParsed() throws HttpErrorPage {
+        DriverRequest request = createRequest();
+        // Once replaced, the value would have been read as "(x==y)|(1==1)"
+        assertFalse(Expression.compile("($(HTTP_COOKIE{injection})==y)").evaluate(request));
+        assertTrue(Expression.compile("$(HTTP_COOKIE{injection})!=y").evaluate(request));
+    }
+
+    public void testCompiledOnce() {
+        assertSame(Expression.compile("$(HTTP_HOST)==a"), Expression.compile("$(HTTP_HOST)==a"));
+    }
+
+    private static DriverRequest createRequest() throws HttpErrorPage {
+        return new DriverRequest(TestUtils.createIncomingRequest().addCookie(new BasicClientCookie("a", "1"))
+                .addCookie(new BasicClientCookie("b", "0")).addCookie(new BasicClientCookie("spaces", "a b c"))
+                .addCookie(new BasicClientCookie("injection", "x==y)|(1==1")).build(),
+                MockRequestExecutor.createDriver(), "/");
+    }
+}
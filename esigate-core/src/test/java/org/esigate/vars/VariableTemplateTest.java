@@ -0,0 +1,86 @@
+/* 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package org.esigate.vars;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+public class VariableTemplateTest {
+
+    private static String render(String source) {
+        return VariableTemplate.compile(source).render(null);
+    }
+
+    @Test
+    public void testNoVariable() {
+        String source = "no variable (here)";
+        VariableTemplate template = VariableTemplate.compile(source);
+        assertFalse(template.hasVariables());
+        assertSame(source, template.render(null));
+        assertEquals("$(unclosed", render("$(unclosed"));
+    }
+
+    @Test
+    public void testSegments() {
+        assertEquals("Test", render("$(varTest)"));
+        assertEquals("aTestbTestc", render("a$(varTest)b$(varTest)c"));
+        assertEquals("Test/testBlock", render("$(varTest)$(vartestBlock)"));
+        assertEquals("a  b", render("a $(unknown) b"));
+        assertEquals("a default b", render("a $(unknown|default) b"));
+        assertEquals("a default b", render("a $(unknown|'default') b"));
+    }
+
+    @Test
+    public void testDefaultValueIsNotResolved() {
+        assertEquals("$(varTest Test", render("$(unknown|'$(varTest') $(varTest)"));
+    }
+
+    @Test
+    public void testVariableOnOneLine() {
+        // Same as \$\((.*?)\): a variable cannot span several lines
+        assertEquals("$(a\nb) Test", render("$(a\nb) $(varTest)"));
+        assertEquals("$($(varTest\r\n)", render("$($(varTest\r\n)"));
+        assertEquals("", render("$($(varTest)"));
+    }
+
+    @Test
+    public void testCached() {
+        VariableTemplate template = VariableTemplate.compile("cached $(varTest)");
+        assertTrue(template.hasVariables());
+        assertSame(template, VariableTemplate.compile(new String("cached $(varTest)")));
+    }
+
+    @Test
+    public void testRenderToBuffer() {
+        StringBuilder out = new StringBuilder("> ");
+        VariableTemplate.compile("a$(varTest)b").render(null, out);
+        VariableTemplate.compile("c").render(null, out);
+        assertEquals("> aTestbc", out.toString());
+    }
+
+    @Test
+    public void testRenderWithoutCache() {
+        String source = "a$(varTest)b";
+        assertEquals("aTestb", VariableTemplate.render(source, null));
+        String noVariable = "no variable";
+        assertSame(noVariable, VariableTemplate.render(noVariable, null));
+    }
+
+}
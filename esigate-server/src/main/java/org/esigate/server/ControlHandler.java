@@ -22,6 +22,9 @@ import java.util.Map;
 import java.util.Map.Entry;
 import java.util.TreeMap;
 
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
 import javax.servlet.ServletException;
 import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
@@ -44,7 +47,13 @@ import com.codahale.metrics.Timer;
  * <ul>
  * <li>POST /shutdown</li>
  * <li>POST /status</li>
+ * <li>GET /ready : 200 once the providers are configured and their caches are warm, 503 before</li>
+ * <li>POST /purge?tag=&lt;surrogate key&gt;[&amp;provider=&lt;provider&gt;]</li>
+ * <li>POST /purge?prefix=&lt;URL or path&gt;[&amp;provider=&lt;provider&gt;]</li>
  * </ul>
+ * <p>
+ * Purge commands require surrogateKeyIndex to be enabled on the providers and respond with the number of cache entries
+ * removed. They go through the platform MBean server as the providers live in the web application class loader.
  * 
  * @author Nicolas Richeton
  * 
@@ -56,6 +65,8 @@ public class ControlHandler extends AbstractHandler {
      * Human-readable status
      */
     private static final String URL_STATUS = "/server-status";
+    private static final String SURROGATE_KEY_INDEX = "org.esigate:type=SurrogateKeyIndex,name=";
+    private static final String READINESS = "org.esigate:type=Readiness";
     /**
      * Machine-readable status.
      * 
@@ -152,6 +163,23 @@ public class ControlHandler extends AbstractHandler {
                 }
                 break;
 
+            case "/ready":
+                if ("GET".equals(serverRequest.getMethod())) {
+                    boolean ready = isReady();
+                    response.setStatus(ready ? HttpServletResponse.SC_OK
+                            : HttpServletResponse.SC_SERVICE_UNAVAILABLE);
+                    try (Writer sos = response.getWriter()) {
+                        sos.append(ready ? "Ready\n" : "Warming up\n");
+                    }
+                }
+                break;
+
+            case "/purge":
+                if ("POST".equals(serverRequest.getMethod())) {
+                    purge(request, response);
+                }
+                break;
+
             default:
                 response.setStatus(HttpServletResponse.SC_NOT_ACCEPTABLE);
                 break;
@@ -161,6 +189,49 @@ public class ControlHandler extends AbstractHandler {
 
     }
 
+    /**
+     * @return true once the providers are configured and no provider is warming up its cache, false until the web
+     *         application has registered its readiness
+     */
+    private static boolean isReady() {
+        MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+        try {
+            ObjectName readiness = new ObjectName(READINESS);
+            return server.isRegistered(readiness) && Boolean.TRUE.equals(server.getAttribute(readiness, "Ready"));
+        } catch (JMException e) {
+            return false;
+        }
+    }
+
+    private static void purge(HttpServletRequest request, HttpServletResponse response) throws IOException {
+        String tag = request.getParameter("tag");
+        String prefix = request.getParameter("prefix");
+        String provider = request.getParameter("provider");
+        if ((tag == null) == (prefix == null)) {
+            response.sendError(HttpServletResponse.SC_BAD_REQUEST, "Either tag or prefix is expected");
+            return;
+        }
+        String operation = tag != null ? "purgeTag" : "purgePrefix";
+        Object[] params = {tag != null ? tag : prefix};
+        String[] signature = {String.class.getName()};
+        MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+        int purged = 0;
+        try {
+            ObjectName pattern =
+                    new ObjectName(SURROGATE_KEY_INDEX + (provider != null ? ObjectName.quote(provider) : "*"));
+            for (ObjectName index : server.queryNames(pattern, null)) {
+                purged += (Integer) server.invoke(index, operation, params, signature);
+            }
+        } catch (JMException e) {
+            response.sendError(HttpServletResponse.SC_INTERNAL_SERVER_ERROR, e.getMessage());
+            return;
+        }
+        response.setStatus(HttpServletResponse.SC_OK);
+        try (Writer sos = response.getWriter()) {
+            sos.append("Purged: ").append(String.valueOf(purged)).append("\n");
+        }
+    }
+
     private Map<String, Object> getServerStatus() {
         Map<String, Object> result = new TreeMap<>();
 
@@ -203,6 +274,9 @@ public class ControlHandler extends AbstractHandler {
                         + meters.get(PREFIX_CONTEXT + "5xx-responses").getOneMinuteRate();
         result.put("ReqPerSec", reqPerSec);
 
+        // Caches warm
+        result.put("Ready", isReady() ? 1 : 0);
+
         // Get uptime
         result.put("Uptime", ManagementFactory.getRuntimeMXBean().getUptime());
 
@@ -68,7 +68,7 @@ public class ProxyFilter implements Filter {
 
     @Override
     public void destroy() {
-        // Nothing to do
+        DriverFactory.close();
     }
 
 }